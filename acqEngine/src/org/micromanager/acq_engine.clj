@@ -20,7 +20,7 @@
      [ChannelSpec-to-map MultiStagePosition-to-map attempt-all core
       data-object-to-map do-when double-vector get-camera-roi
       get-current-time-str get-msp get-msp-z-position get-pixel-type
-      get-property get-property-value get-system-config-cached gui json-to-data
+      get-property get-property-value get-system-config-cached gui
       load-mm log map-config mmc rekey set-msp-z-position store-mmcore
       str-vector when-lets with-core-setting]]
     [org.micromanager.sequence-generator :only [generate-acq-sequence]])
@@ -35,7 +35,7 @@
     [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
     [mmcorej Configuration Metadata TaggedImage]
     [org.json JSONArray JSONObject]
-    [org.micromanager.acquisition MMAcquisition TaggedImageQueue]
+    [org.micromanager.acquisition MMAcquisition SequenceImageDrainer TaggedImageQueue]
     [org.micromanager.api PositionList SequenceSettings]
     [org.micromanager.utils MDUtils ReportingUtils])
   (:gen-class
@@ -79,11 +79,11 @@
 (defn elapsed-time [state]
   (if (state :start-time) (- (jvm-time-ms) (state :start-time)) 0))
 
-(defn core-time-from-tags [tags]
-  (try (Double/parseDouble (tags "ElapsedTime-ms")) (catch Exception e nil)))
+(defn core-time-from-tags [^JSONObject tags]
+  (try (Double/parseDouble (.getString tags "ElapsedTime-ms")) (catch Exception e nil)))
 
-(defn burst-time [tags state]
-  (when (and (:burst-time-offset state) (get tags "ElapsedTime-ms"))
+(defn burst-time [^JSONObject tags state]
+  (when (and (:burst-time-offset state) (.has tags "ElapsedTime-ms"))
     (+ (core-time-from-tags tags)
        (:burst-time-offset state))))
 
@@ -145,26 +145,31 @@
     (when-let [runnables (event :runnables)]
       {"AttachedTasks" (JSONArray. (map str runnables))})))
 
-(defn annotate-image [img event state elapsed-time-ms]
-  {:pix (:pix img)
-   :tags
-   (merge-with #(or %2 %1) ; only overwrite tags if generated tag is not nil
-     (:tags img)
-     (generate-metadata event state)
-     {"ElapsedTime-ms" elapsed-time-ms}
-     )}) ;; include any existing metadata
+(defn annotate-image
+  "Add the acquisition metadata to the tags of an image, in place. The
+   core tags stay in their JSONObject rather than being copied into a
+   clojure map and back. The summary metadata goes in by reference."
+  [img event state elapsed-time-ms]
+  (let [^JSONObject tags (:tags img)]
+    (doseq [[k v] (assoc (generate-metadata event state)
+                         "ElapsedTime-ms" elapsed-time-ms)]
+      (when-not (nil? v) ; only overwrite tags if generated tag is not nil
+        (.put tags (name k) v)))
+    img))
 
 (defn unwrap-tagged-image
   "Take a TaggedImage (as from core) and return a clojure data object,
-   with keys :pix and :tags."
+   with keys :pix and :tags. The tags remain a JSONObject."
   [^TaggedImage tagged-image]
   {:pix (.pix tagged-image)
-   :tags (json-to-data (.tags tagged-image))})
+   :tags (.tags tagged-image)})
 
 (defn make-TaggedImage
   "Take a clojure map with keys :pix and :tags and generate a TaggedImage."
   [annotated-img]
-  (TaggedImage. (:pix annotated-img) (JSONObject. (:tags annotated-img))))
+  (let [tags (:tags annotated-img)]
+    (TaggedImage. (:pix annotated-img)
+                  (if (instance? JSONObject tags) tags (JSONObject. tags)))))
 
 ;; hardware error handling
 
@@ -352,61 +357,35 @@
           0
           true)))
 
-(defn pop-tagged-image []
-  (try (. mmc popNextTaggedImage)
-       (catch Exception e nil)))
+(def burst-queue-size
+  "Number of burst images that can wait between the drain thread and the
+   engine; the rest wait in the circular buffer."
+  10)
 
-(defn pop-tagged-image-timeout
-  [timeout-ms]
-  (log "waiting for burst image with timeout" timeout-ms "ms")
+(defn start-burst-drainer
+  "Starts a thread that pops n images from the circular buffer."
+  [n]
+  (doto (SequenceImageDrainer. mmc n burst-queue-size)
+    .start))
+
+(defn pop-burst-image
+  "Waits for the next image from the drainer. Wakes up every 100 ms to
+   check for an engine stop."
+  [^SequenceImageDrainer drainer timeout-ms]
   (let [deadline (+ (System/currentTimeMillis) timeout-ms)]
     (loop []
       (when (@state :stop)
         (log "halting image collection due to engine stop")
         (throw (EOFException. "(Aborted)")))
-      (if-let [image (pop-tagged-image)]
-        image
-        (if (< deadline (System/currentTimeMillis))
-          (do
-            (log "halting image collection due to timeout")
-            (throw-exception "Timed out waiting for image to arrive from camera."))
-          (do
-            (when (. mmc isBufferOverflowed)
-              (log "halting image collection due to circular buffer overflow")
-              (throw-exception "Circular buffer overflowed."))
-            (Thread/sleep 1)
+      (let [wait-ms (max 1 (min 100 (- deadline (System/currentTimeMillis))))]
+        (if-let [image (.poll drainer wait-ms TimeUnit/MILLISECONDS)]
+          (unwrap-tagged-image image)
+          (if (< deadline (System/currentTimeMillis))
+            (do
+              (log "halting image collection due to timeout")
+              (throw-exception "Timed out waiting for image to arrive from camera."))
             (recur)))))))
 
-(defn pop-burst-image
-  [timeout-ms]
-  (unwrap-tagged-image (pop-tagged-image-timeout timeout-ms)))
-
-(defn queuify
-  "Runs zero-arg function n times on a new thread. Returns
-   a queue that will eventually receive n return values.
-   Will block whenever queue reaches queue-size. If function
-   throws an exception, this exception will be placed on
-   the queue, the thread will stop, and the final call to .take
-   on the queue will re-throw the exception (wrapped in RuntimeException)."
-  [n queue-size function]
-  (let [queue (proxy [LinkedBlockingQueue] [queue-size]
-                (take [] (let [item (proxy-super take)]
-                           (if (instance? Throwable item)
-                             (throw item)
-                             item))))]
-    (future (try
-              (dotimes [_ n]
-                (try (.put queue (function))
-                  (catch Throwable t
-                    (.put queue t)
-                    (throw t))))
-              (catch Throwable t nil)))
-    queue))
-
-(defn pop-burst-images
-  [n timeout-ms]
-  (queuify n 10 #(pop-burst-image timeout-ms)))
-
 (defn make-multicamera-channel [raw-channel-index camera-channel num-camera-channels]
   (+ camera-channel (* num-camera-channels (or raw-channel-index 0))))
 
@@ -449,11 +428,12 @@
   (swap! state assoc-if-nil :burst-time-offset
          (- (elapsed-time @state)
             (core-time-from-tags (image :tags))))
-  (let [cam-chan (if-let [cam-chan-str (get-in image [:tags camera-index-tag])]
+  (let [^JSONObject tags (:tags image)
+        cam-chan (if-let [cam-chan-str (.optString tags camera-index-tag nil)]
                    (Long/parseLong cam-chan-str)
                    0)
         image-number (+ image-number-offset
-                        (Long/parseLong (get-in image [:tags "ImageNumber"])))
+                        (Long/parseLong (.getString tags "ImageNumber")))
         burst-event (nth burst-events image-number)
         camera-channel-name (nth camera-channel-names cam-chan)
         num-camera-channels (count camera-channel-names)
@@ -481,36 +461,33 @@
 
 (defn produce-burst-images
   "Pops images from circular buffer, tags them, and sends them to output queue."
-  [burst-events camera-channel-names timeout-ms out-queue]
+  [drainer burst-events camera-channel-names timeout-ms out-queue]
   (let [total (* (count burst-events)
                  (count camera-channel-names))
         camera-index-tag (str (. mmc getCameraDevice) "-CameraChannelIndex")
-        image-number-offset (if (first-trigger-missing?) -1 0)
-        image-queue (pop-burst-images total timeout-ms)]
-    (try
-      (doseq [i (range total)]
-        (send-tagged-image
-          out-queue
-          (let [image (try
-                        (.take image-queue)
-                        (catch RuntimeException e
-                          (if (.getCause e) ; unwrap rethrown exception
-                            (throw (.getCause e))
-                            (throw e))))]
-            (-> image
-              (tag-burst-image burst-events camera-channel-names camera-index-tag
-                               image-number-offset)
-              make-TaggedImage))))
-      (finally (burst-cleanup)))))
+        image-number-offset (if (first-trigger-missing?) -1 0)]
+    (doseq [i (range total)]
+      (send-tagged-image
+        out-queue
+        (-> (pop-burst-image drainer timeout-ms)
+          (tag-burst-image burst-events camera-channel-names camera-index-tag
+                           image-number-offset)
+          make-TaggedImage)))))
 
 (defn collect-burst-images [event out-queue settings]
-  (let [pop-timeout-ms (+ (:camera-timeout settings) (* 10 (:exposure event)))]
-    (when (first-trigger-missing?)
-      (pop-burst-image pop-timeout-ms)) ; drop first image if first trigger doesn't happen
-    (swap! state assoc :burst-time-offset nil)
-    (let [burst-events (vec (assign-z-offsets (event :burst-data)))
-          camera-channel-names (get-camera-channel-names)]
-      (produce-burst-images burst-events camera-channel-names pop-timeout-ms out-queue))))
+  (let [pop-timeout-ms (+ (:camera-timeout settings) (* 10 (:exposure event)))
+        burst-events (vec (assign-z-offsets (event :burst-data)))
+        camera-channel-names (get-camera-channel-names)
+        total (* (count burst-events) (count camera-channel-names))
+        drainer (start-burst-drainer (if (first-trigger-missing?) (inc total) total))]
+    (try
+      (when (first-trigger-missing?)
+        (pop-burst-image drainer pop-timeout-ms)) ; drop first image if first trigger doesn't happen
+      (swap! state assoc :burst-time-offset nil)
+      (produce-burst-images drainer burst-events camera-channel-names pop-timeout-ms out-queue)
+      (finally
+        (burst-cleanup)
+        (.stop drainer)))))
 
 (defn collect-snap-image [event out-queue]
   (let [image (unwrap-tagged-image (core getTaggedImage (event :camera-channel-index)))]
@@ -898,7 +875,10 @@
         ch-names (vec (map :name super-channels))
         computer (try (.. InetAddress getLocalHost getHostName) (catch UnknownHostException e ""))]
      (JSONObject. {
+      "Binning" (try (core getProperty (core getCameraDevice) "Binning")
+                     (catch Exception e nil))
       "BitDepth" (core getImageBitDepth)
+      "Camera" (core getCameraDevice)
       "CameraTimeout" (:camera-timeout settings)
       "Channels" (max 1 (count super-channels))
       "ChNames" (JSONArray. ch-names)
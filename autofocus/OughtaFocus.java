@@ -28,15 +28,25 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import ij.process.FloatProcessor;
-import ij.gui.OvalRoi;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
+import mmcorej.DoubleVector;
 import mmcorej.TaggedImage;
 
 import org.apache.commons.math.FunctionEvaluationException;
@@ -73,6 +83,10 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    };
    private final static String FFT_UPPER_CUTOFF = "FFTUpperCutoff(%)";
    private final static String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
+   private static final String SEARCH_MODE = "SearchMode";
+   private final static String[] SEARCHMODES = {"Brent", "Sweep"};
+   private static final String SWEEP_STEPS = "SweepSteps";
+   private static final String Z_SEQUENCE = "UseZSequence";
    private double searchRange = 10;
    private double tolerance = 1;
    private double cropFactor = 1;
@@ -82,11 +96,31 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private String scoringMethod = "Edges";
    private double fft_upper_cutoff = 14;
    private double fft_lower_cutoff = 2.5;
+   private String searchMode = "Brent";
+   private int sweepSteps = 11;
+   private String useZSequence = "No";
    private int imageCount_;
    private long startTimeMs_;
    private double startZUm_;
    private boolean liveModeOn_;
    private boolean settingsLoaded_ = false;
+   private long totalTimeMs_;
+
+   // Scores are computed on their own thread, overlapped with the next
+   // move and snap when the positions are known in advance (Sweep)
+   private final ThreadPoolExecutor scoreExecutor_ =
+           newExecutor(1, "OughtaFocus score");
+   // Score kernels and the FFT split the image rows over these threads
+   private final RowBands bands_ = new RowBands(
+           Math.min(4, Runtime.getRuntime().availableProcessors()));
+   // Buffers reused from image to image; guarded by this
+   private double[][][] rowBuffers_ = new double[0][][];
+   private final double[] bandSums_ = new double[bands_.getNumBands()];
+   private Object monochromeBuffer_;
+   private FHT_NoScaling fht_;
+   // Timing of each image of the last search
+   private final List<FocusStep> steps_ =
+           Collections.synchronizedList(new ArrayList<FocusStep>());
 
    public OughtaFocus() {
       super();
@@ -98,6 +132,9 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       super.createProperty(FFT_UPPER_CUTOFF, NumberUtils.doubleToDisplayString(fft_upper_cutoff));
       super.createProperty(SHOW_IMAGES, show, SHOWVALUES);
       super.createProperty(SCORING_METHOD, scoringMethod, SCORINGMETHODS);
+      super.createProperty(SEARCH_MODE, searchMode, SEARCHMODES);
+      super.createProperty(SWEEP_STEPS, NumberUtils.intToDisplayString(sweepSteps));
+      super.createProperty(Z_SEQUENCE, useZSequence, SHOWVALUES);
       imageCount_ = 0;
    }
 
@@ -116,6 +153,9 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          fft_upper_cutoff = MathFunctions.clip(0.0, fft_upper_cutoff, 100.0);
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         searchMode = getPropertyValue(SEARCH_MODE);
+         sweepSteps = Math.max(3, NumberUtils.displayStringToInt(getPropertyValue(SWEEP_STEPS)));
+         useZSequence = getPropertyValue(Z_SEQUENCE);
 
       } catch (MMException ex) {
          ReportingUtils.logError(ex);
@@ -178,6 +218,13 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    }
 
    private double runAutofocusAlgorithm() throws Exception {
+      imageCount_ = 0;
+      steps_.clear();
+      if (searchMode.contentEquals("Sweep")) {
+         double zResult = runSweep();
+         totalTimeMs_ = System.currentTimeMillis() - startTimeMs_;
+         return zResult;
+      }
       UnivariateRealFunction scoreFun = new UnivariateRealFunction() {
 
          @Override
@@ -191,20 +238,175 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       };
       BrentOptimizer brentOptimizer = new BrentOptimizer();
       brentOptimizer.setAbsoluteAccuracy(tolerance);
-      imageCount_ = 0;
 
       CMMCore core = app_.getMMCore();
       double z = core.getPosition(core.getFocusDevice());
       startZUm_ = z;
 //      getCurrentFocusScore();
       double zResult = brentOptimizer.optimize(scoreFun, GoalType.MAXIMIZE, z - searchRange / 2, z + searchRange / 2);
+      totalTimeMs_ = System.currentTimeMillis() - startTimeMs_;
       ReportingUtils.logMessage("OughtaFocus Iterations: " + brentOptimizer.getIterationCount()
+              + ", z=" + TextUtils.FMT2.format(zResult)
+              + ", dz=" + TextUtils.FMT2.format(zResult - startZUm_)
+              + ", t=" + totalTimeMs_);
+      return zResult;
+   }
+
+   /**
+    * Scores images at SweepSteps evenly spaced positions over the search
+    * range, then at a spacing of about the tolerance around the best of
+    * those.  Since the positions are known in advance, each image is scored
+    * while the stage moves to the next position and the next image is
+    * taken.
+    */
+   private double runSweep() throws Exception {
+      CMMCore core = app_.getMMCore();
+      double z = core.getPosition(core.getFocusDevice());
+      startZUm_ = z;
+      double low = z - searchRange / 2;
+      double high = z + searchRange / 2;
+      double step = searchRange / (sweepSteps - 1);
+      double zResult = sweep(low, step, sweepSteps);
+      if (step > tolerance) {
+         // Keep the fine sweep within the search range, so that the stage
+         // is never sent further than the coarse sweep went
+         double fineLow = Math.max(low, zResult - step);
+         double fineHigh = Math.min(high, zResult + step);
+         int fineSteps = (int) Math.ceil((fineHigh - fineLow) / tolerance) + 1;
+         fineSteps = Math.max(3, Math.min(2 * sweepSteps + 1, fineSteps));
+         zResult = sweep(fineLow, (fineHigh - fineLow) / (fineSteps - 1), fineSteps);
+      }
+      zResult = MathFunctions.clip(low, zResult, high);
+      ReportingUtils.logMessage("OughtaFocus Sweep: images=" + imageCount_
               + ", z=" + TextUtils.FMT2.format(zResult)
               + ", dz=" + TextUtils.FMT2.format(zResult - startZUm_)
               + ", t=" + (System.currentTimeMillis() - startTimeMs_));
       return zResult;
    }
 
+   /**
+    * Scores images at n positions, step apart, using a hardware Z sequence
+    * when asked for and possible.
+    * @return the position of the maximum score, interpolated with a
+    * parabola through the best score and its neighbors
+    */
+   private double sweep(double start, double step, int n) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      double[] positions = new double[n];
+      for (int i = 0; i < n; ++i) {
+         positions[i] = start + i * step;
+      }
+      List<Future<Double>> futures;
+      if (useZSequence.contentEquals("Yes") && !liveModeOn_
+              && core.isStageSequenceable(focusDevice)
+              && n <= core.getStageSequenceMaxLength(focusDevice)) {
+         futures = acquireSequence(positions);
+      } else {
+         futures = acquireSteps(positions);
+      }
+
+      double[] scores = new double[n];
+      int best = 0;
+      for (int i = 0; i < n; ++i) {
+         try {
+            scores[i] = futures.get(i).get();
+         } catch (ExecutionException e) {
+            throw asException(e);
+         }
+         if (scores[i] > scores[best]) {
+            best = i;
+         }
+      }
+      double offset = 0;
+      if (best > 0 && best < n - 1) {
+         double curvature = scores[best - 1] - 2 * scores[best] + scores[best + 1];
+         if (curvature < 0) {
+            offset = 0.5 * (scores[best - 1] - scores[best + 1]) / curvature;
+         }
+      }
+      return positions[best] + offset * step;
+   }
+
+   /**
+    * Moves to each position and snaps an image, handing the image to the
+    * score thread before moving on.
+    */
+   private List<Future<Double>> acquireSteps(double[] positions) throws Exception {
+      List<Future<Double>> scores = new ArrayList<Future<Double>>(positions.length);
+      for (double z : positions) {
+         FocusStep step = new FocusStep(imageCount_++, z);
+         long start = System.nanoTime();
+         setZPosition(z);
+         long moved = System.nanoTime();
+         step.moveMs = (moved - start) / 1e6;
+         TaggedImage img = snapImage();
+         step.imageMs = (System.nanoTime() - moved) / 1e6;
+         scores.add(submitScore(img, step));
+      }
+      return scores;
+   }
+
+   /**
+    * Lets the focus stage step through the positions on camera triggers
+    * during a sequence acquisition of one image per position.
+    */
+   private List<Future<Double>> acquireSequence(double[] positions) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      DoubleVector sequence = new DoubleVector();
+      for (double z : positions) {
+         sequence.add(z);
+      }
+      setZPosition(positions[0]);
+      core.loadStageSequence(focusDevice, sequence);
+      core.startStageSequence(focusDevice);
+      long timeoutMs = 10000 + (long) (positions.length * core.getExposure());
+      List<Future<Double>> scores = new ArrayList<Future<Double>>(positions.length);
+      try {
+         core.startSequenceAcquisition(positions.length, 0, true);
+         for (double z : positions) {
+            FocusStep step = new FocusStep(imageCount_++, z);
+            long start = System.nanoTime();
+            while (core.getRemainingImageCount() == 0) {
+               if (!core.isSequenceRunning() && core.getRemainingImageCount() == 0) {
+                  throw new MMException("Z sequence ended after " + scores.size()
+                          + " of " + positions.length + " images");
+               }
+               if ((System.nanoTime() - start) / 1000000 > timeoutMs) {
+                  throw new MMException("Timed out waiting for Z sequence image");
+               }
+               Thread.sleep(1);
+            }
+            TaggedImage img = core.popNextTaggedImage();
+            step.imageMs = (System.nanoTime() - start) / 1e6;
+            showImage(img);
+            scores.add(submitScore(img, step));
+         }
+      } finally {
+         core.stopSequenceAcquisition();
+         core.stopStageSequence(focusDevice);
+      }
+      return scores;
+   }
+
+   private Future<Double> submitScore(final TaggedImage img, final FocusStep step) {
+      final long submitted = System.nanoTime();
+      steps_.add(step);
+      return scoreExecutor_.submit(new Callable<Double>() {
+         @Override
+         public Double call() throws Exception {
+            long start = System.nanoTime();
+            step.queueMs = (start - submitted) / 1e6;
+            step.score = scoreImage(img);
+            step.scoreMs = (System.nanoTime() - start) / 1e6;
+            ReportingUtils.logMessage("OughtaFocus: " + step
+                    + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+            return step.score;
+         }
+      });
+   }
+
    private void setZPosition(double z) throws Exception {
       CMMCore core = app_.getMMCore();
       String focusDevice = core.getFocusDevice();
@@ -226,20 +428,35 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    }
 
    public static Object getMonochromePixels(TaggedImage image) throws JSONException, MMScriptException {
+      return getMonochromePixels(image, null);
+   }
+
+   /**
+    * For RGB images, averages the color components into the buffer if it
+    * is of the right type and size, and otherwise into a new array.
+    */
+   private static Object getMonochromePixels(TaggedImage image, Object buffer)
+           throws JSONException, MMScriptException {
       if (MDUtils.isRGB32(image)) {
-         final byte[][] planes = ImageUtils.getColorPlanesFromRGB32((byte[]) image.pix);
-         final int numPixels = planes[0].length;
-         byte[] monochrome = new byte[numPixels];
-         for (int j=0;j<numPixels;++j) {
-            monochrome[j] = (byte) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
+         final byte[] pixels = (byte[]) image.pix;
+         final int numPixels = pixels.length / 4;
+         byte[] monochrome = (buffer instanceof byte[]
+                 && ((byte[]) buffer).length == numPixels)
+                 ? (byte[]) buffer : new byte[numPixels];
+         for (int j = 0, k = 0; j < numPixels; ++j, k += 4) {
+            monochrome[j] = (byte) (((pixels[k] & 0xff) + (pixels[k + 1] & 0xff)
+                    + (pixels[k + 2] & 0xff)) / 3);
          }
          return monochrome;
       } else if (MDUtils.isRGB64(image)) {
-         final short[][] planes = ImageUtils.getColorPlanesFromRGB64((short[]) image.pix);
-         final int numPixels = planes[0].length;
-         short[] monochrome = new short[numPixels];
-         for (int j=0;j<numPixels;++j) {
-            monochrome[j] = (short) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
+         final short[] pixels = (short[]) image.pix;
+         final int numPixels = pixels.length / 4;
+         short[] monochrome = (buffer instanceof short[]
+                 && ((short[]) buffer).length == numPixels)
+                 ? (short[]) buffer : new short[numPixels];
+         for (int j = 0, k = 0; j < numPixels; ++j, k += 4) {
+            monochrome[j] = (short) (((pixels[k] & 0xffff) + (pixels[k + 1] & 0xffff)
+                    + (pixels[k + 2] & 0xffff)) / 3);
          }
          return monochrome;
       } else {
@@ -247,42 +464,54 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       }
    }
 
+   private synchronized double scoreImage(TaggedImage img) throws Exception {
+      Object pixels = getMonochromePixels(img, monochromeBuffer_);
+      if (pixels != img.pix) {
+         monochromeBuffer_ = pixels;
+      }
+      return computeScore(makeMonochromeProcessor(app_.getMMCore(), pixels));
+   }
 
-   public double measureFocusScore(double z) throws Exception {
+   private TaggedImage snapImage() throws Exception {
       CMMCore core = app_.getMMCore();
-      long start = System.currentTimeMillis();
-      try {
-         setZPosition(z);
-         long tZ = System.currentTimeMillis() - start;
+      if (liveModeOn_) {
+         return core.getLastTaggedImage();
+      }
+      core.waitForDevice(core.getCameraDevice());
+      core.snapImage();
+      TaggedImage img = core.getTaggedImage();
+      showImage(img);
+      return img;
+   }
 
-         TaggedImage img;
-         if (liveModeOn_) {
-            img = core.getLastTaggedImage();
-         } else {
-            core.waitForDevice(core.getCameraDevice());
-            core.snapImage();
-            final TaggedImage img1 = core.getTaggedImage();
-            img = img1;
-            if (show.contentEquals("Yes")) {
-               SwingUtilities.invokeLater(new Runnable() {
-
-                  @Override
-                  public void run() {
-                     app_.displayImage(img1);
-                  }
-               });
+   private void showImage(final TaggedImage img) {
+      if (show.contentEquals("Yes")) {
+         SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+               app_.displayImage(img);
             }
-         }
-         long tI = System.currentTimeMillis() - start - tZ;
-         ImageProcessor proc = makeMonochromeProcessor(core, getMonochromePixels(img));
-         double score = computeScore(proc);
-         long tC = System.currentTimeMillis() - start - tZ - tI;
-         ReportingUtils.logMessage("OughtaFocus: image=" + imageCount_++
-                 + ", t=" + (System.currentTimeMillis() - startTimeMs_)
-                 + ", z=" + TextUtils.FMT2.format(z)
-                 + ", score=" + TextUtils.FMT2.format(score)
-                 + ", Tz=" + tZ + ", Ti=" + tI + ", Tc=" + tC);
-         return score;
+         });
+      }
+   }
+
+   public double measureFocusScore(double z) throws Exception {
+      FocusStep step = new FocusStep(imageCount_++, z);
+      steps_.add(step);
+      try {
+         long start = System.nanoTime();
+         setZPosition(z);
+         long moved = System.nanoTime();
+         step.moveMs = (moved - start) / 1e6;
+         TaggedImage img = snapImage();
+         long snapped = System.nanoTime();
+         step.imageMs = (snapped - moved) / 1e6;
+         step.score = scoreImage(img);
+         step.scoreMs = (System.nanoTime() - snapped) / 1e6;
+         ReportingUtils.logMessage("OughtaFocus: " + step
+                 + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+         return step.score;
       } catch (Exception e) {
          ReportingUtils.logError(e);
          throw e;
@@ -299,9 +528,31 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return imageCount_;
    }
 
+   /**
+    * @return for each image of the last search, the time (ms) spent moving
+    * the stage (Tz), taking the image (Ti), waiting for the score thread
+    * (Tq) and computing the score (Tc), followed by the totals
+    */
    @Override
    public String getVerboseStatus() {
-      throw new UnsupportedOperationException("Not supported yet.");
+      StringBuilder status = new StringBuilder();
+      double move = 0, image = 0, queue = 0, score = 0;
+      synchronized (steps_) {
+         for (FocusStep step : steps_) {
+            status.append(step).append('\n');
+            move += step.moveMs;
+            image += step.imageMs;
+            queue += step.queueMs;
+            score += step.scoreMs;
+         }
+         status.append(searchMode).append(": images=").append(steps_.size());
+      }
+      status.append(", Tz=").append(TextUtils.FMT2.format(move))
+              .append(", Ti=").append(TextUtils.FMT2.format(image))
+              .append(", Tq=").append(TextUtils.FMT2.format(queue))
+              .append(", Tc=").append(TextUtils.FMT2.format(score))
+              .append(", t=").append(totalTimeMs_);
+      return status.toString();
    }
 
    @Override
@@ -386,22 +637,22 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    // tuberculosis microscopy". Proc 29th International Conference of the
    // IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
    private double computeRedondo(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 1; j < h - 1; ++j) {
-            double p = proc.getPixel(i - 1, j)
-                    + proc.getPixel(i + 1, j)
-                    + proc.getPixel(i, j - 1)
-                    + proc.getPixel(i, j + 1)
-                    - 4 * (proc.getPixel(i - 1, j));
-            sum += (p * p);
+      return sumRows(proc, new RowKernel() {
+         @Override
+         double sumRow(double[] above, double[] row, double[] below, int y,
+                 int w, int h) {
+            if (y < 1 || y >= h - 1) {
+               return 0.0;
+            }
+            double sum = 0.0;
+            for (int i = 1; i < w - 1; ++i) {
+               double p = row[i - 1] + row[i + 1] + above[i] + below[i]
+                       - 4 * row[i - 1];
+               sum += (p * p);
+            }
+            return sum;
          }
-      }
-
-      return sum;
+      });
    }
 
    // Volath's 1D autocorrelation
@@ -409,24 +660,21 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    // the behavior of automatic focusing algorithms,"
    // J. Microsc. 151, (2), 133 –146 (1988).
    private double computeVolath(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum1 = 0.0;
-      double sum2 = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      for (int i = 0; i < w - 2; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
+      return sumRows(proc, new RowKernel() {
+         @Override
+         double sumRow(double[] above, double[] row, double[] below, int y,
+                 int w, int h) {
+            double sum1 = 0.0;
+            double sum2 = 0.0;
+            for (int i = 1; i < w - 1; ++i) {
+               sum1 += row[i] * row[i + 1];
+            }
+            for (int i = 0; i < w - 2; ++i) {
+               sum2 += row[i] * row[i + 2];
+            }
+            return sum1 - sum2;
          }
-      }
-
-      return (sum1 - sum2);
+      });
    }
 
    // Volath 5 - smoothes out high-frequency (suppresses noise)
@@ -436,13 +684,17 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double computeVolath5(ImageProcessor proc) {
       int h = proc.getHeight();
       int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 0; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
+      double sum = sumRows(proc, new RowKernel() {
+         @Override
+         double sumRow(double[] above, double[] row, double[] below, int y,
+                 int width, int height) {
+            double products = 0.0;
+            for (int i = 0; i < width - 1; ++i) {
+               products += row[i] * row[i + 1];
+            }
+            return products;
          }
-      }
+      });
 
       ImageStatistics stats = proc.getStatistics();
 
@@ -487,22 +739,30 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
     * @author Jon
     */
    private double computeTenengrad(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-      int[] ken1 = {-1, 0, 1, -2, 0, 2, -1, 0, 1};
-      int[] ken2 = {1, 2, 1, 0, 0, 0, -1, -2, -1};
-
-      ImageProcessor proc1 = proc.duplicate();
-      ImageProcessor proc2 = proc.duplicate();
-      proc1.convolve3x3(ken1);
-      proc2.convolve3x3(ken2);
-      for (int i=0; i<w; i++){
-         for (int j=0; j<h; j++){
-            sum += Math.pow(proc1.getPixel(i,j),2) + Math.pow(proc2.getPixel(i, j), 2);
+      // Sobel filters, clipped to the pixel range like ImageJ's convolve3x3
+      Object pixels = proc.getPixels();
+      final double min = pixels instanceof float[] ? Double.NEGATIVE_INFINITY : 0;
+      final double max = pixels instanceof float[] ? Double.POSITIVE_INFINITY
+              : pixels instanceof short[] ? 65535 : 255;
+      return sumRows(proc, new RowKernel() {
+         @Override
+         double sumRow(double[] above, double[] row, double[] below, int y,
+                 int w, int h) {
+            double sum = 0.0;
+            for (int i = 0; i < w; i++) {
+               int l = Math.max(0, i - 1);
+               int r = Math.min(w - 1, i + 1);
+               double gx = (above[r] - above[l]) + 2 * (row[r] - row[l])
+                       + (below[r] - below[l]);
+               double gy = (above[l] + 2 * above[i] + above[r])
+                       - (below[l] + 2 * below[i] + below[r]);
+               gx = Math.max(min, Math.min(max, gx));
+               gy = Math.max(min, Math.min(max, gy));
+               sum += gx * gx + gy * gy;
+            }
+            return sum;
          }
-      }
-      return sum;
+      });
    }
 
    /**
@@ -514,31 +774,210 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double computeFFTBandpass(ImageProcessor proc) {
       try {
          // gets power spectrum (FFT) without scaling result
-         FHT_NoScaling myFHT = new FHT_NoScaling(proc);
-         myFHT.transform();
-         ImageProcessor ps = myFHT.getPowerSpectrum_noScaling();
-         int midpoint = ps.getHeight()/2;
+         int maxN = FHT_NoScaling.paddedSize(proc.getWidth(), proc.getHeight());
+         if (fht_ == null || fht_.getWidth() != maxN) {
+            fht_ = new FHT_NoScaling(maxN);
+         }
+         fht_.setImage(proc);
+         fht_.transform(bands_);
+         int midpoint = maxN / 2;
          final int scaled_lower = (int) Math.round(fft_lower_cutoff/100*midpoint);
-         final int start_lower = Math.round(midpoint-scaled_lower);
          final int scaled_upper = (int) Math.round(fft_upper_cutoff/100*midpoint);
-         final int start_upper = Math.round(midpoint-scaled_upper);
-         OvalRoi innerCutoff = new OvalRoi(start_lower, start_lower,
-               2*scaled_lower+1, 2*scaled_lower+1);
-         OvalRoi outerCutoff = new OvalRoi(start_upper, start_upper,
-               2*scaled_upper+1, 2*scaled_upper+1);
-         ps.setColor(0);
-         ps.fillOutside(outerCutoff);
-         ps.fill(innerCutoff);
-         ps.setRoi(outerCutoff);
-         return ps.getStatistics().mean;
+         return fht_.getBandMean_noScaling(scaled_lower, scaled_upper);
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+         return 0;
+      }
+   }
+
+   /**
+    * A focus measure that sums a value over the rows of the image, where the
+    * value for a row may depend on the rows above and below it.
+    */
+   private static abstract class RowKernel {
+      abstract double sumRow(double[] above, double[] row, double[] below,
+              int y, int w, int h);
+   }
+
+   /**
+    * Runs the kernel over bands of rows in parallel.  Rows beyond the top
+    * and bottom edges repeat the edge rows.
+    */
+   private synchronized double sumRows(ImageProcessor proc, final RowKernel kernel) {
+      final Object pixels = proc.getPixels();
+      final int w = proc.getWidth();
+      final int h = proc.getHeight();
+      if (rowBuffers_.length == 0 || rowBuffers_[0][0].length != w) {
+         rowBuffers_ = new double[bands_.getNumBands()][3][w];
+      }
+      final double[][][] buffers = rowBuffers_;
+      final double[] sums = bandSums_;
+      java.util.Arrays.fill(sums, 0.0);
+      try {
+         bands_.run(h, new BandTask() {
+            @Override
+            public void run(int band, int start, int end) {
+               double[] above = buffers[band][0];
+               double[] row = buffers[band][1];
+               double[] below = buffers[band][2];
+               readRow(pixels, w, h, start - 1, above);
+               readRow(pixels, w, h, start, row);
+               double sum = 0.0;
+               for (int y = start; y < end; y++) {
+                  readRow(pixels, w, h, y + 1, below);
+                  sum += kernel.sumRow(above, row, below, y, w, h);
+                  double[] tmp = above;
+                  above = row;
+                  row = below;
+                  below = tmp;
+               }
+               sums[band] = sum;
+            }
+         });
       } catch (Exception e) {
          ReportingUtils.logError(e);
          return 0;
       }
+      double sum = 0.0;
+      for (double bandSum : sums) {
+         sum += bandSum;
+      }
+      return sum;
+   }
+
+   /**
+    * Copies row y, clamped to the image, as unsigned values; RGB pixels
+    * are averaged.
+    */
+   private static void readRow(Object pixels, int w, int h, int y, double[] row) {
+      int offset = Math.max(0, Math.min(h - 1, y)) * w;
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int i = 0; i < w; i++) {
+            row[i] = p[offset + i] & 0xff;
+         }
+      } else if (pixels instanceof short[]) {
+         short[] p = (short[]) pixels;
+         for (int i = 0; i < w; i++) {
+            row[i] = p[offset + i] & 0xffff;
+         }
+      } else if (pixels instanceof float[]) {
+         float[] p = (float[]) pixels;
+         for (int i = 0; i < w; i++) {
+            row[i] = p[offset + i];
+         }
+      } else {
+         int[] p = (int[]) pixels;
+         for (int i = 0; i < w; i++) {
+            int c = p[offset + i];
+            row[i] = (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3.0;
+         }
+      }
+   }
+
+   /**
+    * Work on one band of image rows, from start (inclusive) to end.
+    */
+   interface BandTask {
+      void run(int band, int start, int end);
+   }
+
+   /**
+    * Splits image rows into bands that are processed in parallel, the first
+    * one on the calling thread.
+    */
+   static class RowBands {
+      private final int numBands_;
+      private final ThreadPoolExecutor executor_;
+
+      RowBands(int numBands) {
+         numBands_ = Math.max(1, numBands);
+         executor_ = newExecutor(Math.max(1, numBands_ - 1), "OughtaFocus rows");
+      }
+
+      int getNumBands() {
+         return numBands_;
+      }
+
+      void run(int rows, final BandTask task) throws Exception {
+         int bands = Math.max(1, Math.min(numBands_, rows));
+         List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+         for (int b = 1; b < bands; b++) {
+            final int band = b;
+            final int start = (int) ((long) rows * b / bands);
+            final int end = (int) ((long) rows * (b + 1) / bands);
+            futures.add(executor_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  task.run(band, start, end);
+               }
+            }));
+         }
+         task.run(0, 0, rows / bands);
+         for (Future<?> future : futures) {
+            try {
+               future.get();
+            } catch (ExecutionException e) {
+               throw asException(e);
+            }
+         }
+      }
+   }
+
+   private static ThreadPoolExecutor newExecutor(int numThreads, final String name) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+              2, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                 }
+              });
+      // Don't keep threads around between focus runs
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+   }
+
+   private static Exception asException(ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+         return (Exception) e.getCause();
+      }
+      return e;
+   }
+
+   /**
+    * Where the time went for one image of a search.
+    */
+   private static class FocusStep {
+      final int index;
+      final double z;
+      double score = Double.NaN;
+      double moveMs;
+      double imageMs;
+      double queueMs;
+      double scoreMs;
+
+      FocusStep(int index, double z) {
+         this.index = index;
+         this.z = z;
+      }
+
+      @Override
+      public String toString() {
+         return "image=" + index
+                 + ", z=" + TextUtils.FMT2.format(z)
+                 + ", score=" + TextUtils.FMT2.format(score)
+                 + ", Tz=" + TextUtils.FMT2.format(moveMs)
+                 + ", Ti=" + TextUtils.FMT2.format(imageMs)
+                 + ", Tq=" + TextUtils.FMT2.format(queueMs)
+                 + ", Tc=" + TextUtils.FMT2.format(scoreMs);
+      }
    }
 
    @Override
-   public double computeScore(final ImageProcessor proc) {
+   public synchronized double computeScore(final ImageProcessor proc) {
       if (scoringMethod.contentEquals("Mean")) {
          return computeMean(proc);
       } else if (scoringMethod.contentEquals("StdDev")) {
@@ -593,9 +1032,13 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
     *   (http://rsb.info.nih.gov/ij/developer/source/ij/process/FHT.java.html).
     * This modified version is also released into the public domain.
     * Principal changes are in the method getPowerSpectrum()
-    *   which has been changed to remove scaling and renamed getPowerSpectrum_NoScaling.
-    * The pad method (renamed to padImage) was also copied from separate ImageJ code in the
-    *   public domain at http://rsb.info.nih.gov/ij/developer/source/ij/plugin/FFT.java.html
+    *   which has been changed to remove scaling, and to return the mean over a band
+    *   of frequencies directly, as getBandMean_noScaling.
+    * The padding from separate ImageJ code in the public domain at
+    *   http://rsb.info.nih.gov/ij/developer/source/ij/plugin/FFT.java.html
+    *   is done by setImage, which copies into this object's pixels, so that one
+    *   object can be reused for images of the same size.
+    * The row transforms of rc2DFHT are split over threads.
     * All other changes are incidental like tweaking imports, renaming constructors,
     *   deleting unused code, making methods private, and declaring as a static nested class.
     * This code created by Jon Daniels (Applied Scientific Instrumentation) based on
@@ -609,19 +1052,44 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       private float[] C;
       private float[] S;
       private int[] bitrev;
-      private float[] tempArr;
+      private float[][] tempArrs = new float[0][];
 
-      /** Constructs a FHT object from an ImageProcessor. Byte, short and RGB images
-       are converted to float. Float images are duplicated. */
-      public FHT_NoScaling(ImageProcessor ip) {
-         this(padImage(ip), false);
+      /** Constructs an empty maxN x maxN FHT object; maxN must be a power of 2. */
+      public FHT_NoScaling(int maxN) {
+         super(maxN, maxN);
+         this.isFrequencyDomain = false;
+         this.maxN = maxN;
       }
 
-      private FHT_NoScaling(ImageProcessor ip, boolean isFrequencyDomain) {
-         super(ip.getWidth(), ip.getHeight(), (float[])((ip instanceof FloatProcessor)?ip.duplicate().getPixels():ip.convertToFloat().getPixels()), null);
-         this.isFrequencyDomain = isFrequencyDomain;
-         maxN = getWidth();
-         resetRoi();
+      /** Returns the power of 2 size that holds a width x height image. */
+      public static int paddedSize(int width, int height) {
+         int maxN = Math.max(width, height);
+         int i = 2;
+         while(i<maxN) i *= 2;
+         return i;
+      }
+
+      /** Copies the image, converted to float, to the top left corner, and
+       pads it with its mean. */
+      public void setImage(ImageProcessor ip) {
+         final int w = ip.getWidth();
+         final int h = ip.getHeight();
+         float[] fht = (float[])getPixels();
+         double sum = 0;
+         for (int y=0; y<h; y++) {
+            for (int x=0; x<w; x++) {
+               float v = ip.getf(x, y);
+               fht[y*maxN + x] = v;
+               sum += v;
+            }
+         }
+         float mean = (float) (sum / ((double) w * h));
+         for (int y=0; y<maxN; y++) {
+            for (int x=(y<h ? w : 0); x<maxN; x++) {
+               fht[y*maxN + x] = mean;
+            }
+         }
+         isFrequencyDomain = false;
       }
 
       /** Returns true of this FHT contains a square image with a width that is a power of two. */
@@ -633,18 +1101,20 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
       /** Performs a forward transform, converting this image into the frequency domain.
        The image contained in this FHT must be square and its width must be a power of 2. */
-      public void transform() {
-         transform(false);
+      public void transform(RowBands bands) throws Exception {
+         transform(false, bands);
       }
 
-      private void transform(boolean inverse) {
+      private void transform(boolean inverse, RowBands bands) throws Exception {
          if (!powerOf2Size())
             throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
          maxN = width;
          if (S==null)
             initializeTables(maxN);
+         if (tempArrs.length != bands.getNumBands())
+            tempArrs = new float[bands.getNumBands()][maxN];
          float[] fht = (float[])getPixels();
-         rc2DFHT(fht, inverse, maxN);
+         rc2DFHT(fht, inverse, maxN, bands);
          isFrequencyDomain = !inverse;
       }
 
@@ -653,7 +1123,6 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
             throw new  IllegalArgumentException("Too large for FHT:  "+maxN+" >2^30");
          makeSinCosTables(maxN);
          makeBitReverseTable(maxN);
-         tempArr = new float[maxN];
       }
 
       private void makeSinCosTables(int maxN) {
@@ -677,13 +1146,11 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       }
 
       /** Performs a 2D FHT (Fast Hartley Transform). */
-      private void rc2DFHT(float[] x, boolean inverse, int maxN) {
+      private void rc2DFHT(float[] x, boolean inverse, int maxN, RowBands bands) throws Exception {
          if (S==null) initializeTables(maxN);
-         for (int row=0; row<maxN; row++)
-            dfht3(x, row*maxN, inverse, maxN);
+         rowTransforms(x, inverse, maxN, bands);
          transposeR(x, maxN);
-         for (int row=0; row<maxN; row++)
-            dfht3(x, row*maxN, inverse, maxN);
+         rowTransforms(x, inverse, maxN, bands);
          transposeR(x, maxN);
 
          int mRow, mCol;
@@ -705,15 +1172,28 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          }
       }
 
+      /** Performs the 1D FHT of every row, with a temporary array per band of rows. */
+      private void rowTransforms(final float[] x, final boolean inverse, final int maxN,
+              RowBands bands) throws Exception {
+         bands.run(maxN, new BandTask() {
+            @Override
+            public void run(int band, int start, int end) {
+               for (int row=start; row<end; row++)
+                  dfht3(x, row*maxN, inverse, maxN, tempArrs[band]);
+            }
+         });
+      }
+
       /** Performs an optimized 1D FHT of an array or part of an array.
        *  @param x        Input array; will be overwritten by the output in the range given by base and maxN.
        *  @param base     First index from where data of the input array should be read.
        *  @param inverse  True for inverse transform.
        *  @param maxN     Length of data that should be transformed; this must be always
        *                  the same for a given FHT object.
+       *  @param tempArr  Scratch array of length maxN.
        *  Note that all amplitudes in the output 'x' are multiplied by maxN.
        */
-      private void dfht3(float[] x, int base, boolean inverse, int maxN) {
+      private void dfht3(float[] x, int base, boolean inverse, int maxN, float[] tempArr) {
          int i, stage, gpNum, gpSize, numGps, Nlog2;
          int bfNum, numBfs;
          int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
@@ -721,7 +1201,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
          if (S==null) initializeTables(maxN);
          Nlog2 = log2(maxN);
-         BitRevRArr(x, base, Nlog2, maxN);   //bitReverse the input array
+         BitRevRArr(x, base, Nlog2, maxN, tempArr);   //bitReverse the input array
          gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
          numGps = maxN / 4;
          for (gpNum=0; gpNum<numGps; gpNum++)  {
@@ -814,7 +1294,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          return ((x & (1<<bit)) != 0);
       }
 
-      private void BitRevRArr (float[] x, int base, int bitlen, int maxN) {
+      private void BitRevRArr (float[] x, int base, int bitlen, int maxN, float[] tempArr) {
          for (int i=0; i<maxN; i++) {
             tempArr[i] = x[base+bitrev[i]];
          }
@@ -829,101 +1309,46 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          return temp;
       }
 
-      /** Returns an 8-bit power spectrum, log-scaled to 1-254. The image in this
-       FHT is assumed to be in the frequency domain.
+      /** Returns the mean of the 8-bit power spectrum, log-scaled to 1-254, over a
+       disk of radius upperRadius around the origin, counting values within
+       lowerRadius of the origin as 0. The image in this FHT is assumed to be in
+       the frequency domain.
        Modified to remove scaling per William Mohler's tweaks. */
-      public ImageProcessor getPowerSpectrum_noScaling () {
+      public double getBandMean_noScaling(int lowerRadius, int upperRadius) {
          if (!isFrequencyDomain)
             throw new  IllegalArgumentException("Frequency domain image required");
-         int base;
-         float  r;
-         float[] fps = new float[maxN*maxN];
-         byte[] ps = new byte[maxN*maxN];
          float[] fht = (float[])getPixels();
-
+         final double inner = (lowerRadius + 0.5) * (lowerRadius + 0.5);
+         final double outer = (upperRadius + 0.5) * (upperRadius + 0.5);
+         double sum = 0;
+         long count = 0;
          for (int row=0; row<maxN; row++) {
-            FHTps(row, maxN, fht, fps);
-         }
-
-         // no longer use min (=0), max, or scale (=1)
-
-         for (int row=0; row<maxN; row++) {
-            base = row*maxN;
+            int dy = row < maxN/2 ? row : row - maxN;
+            int base = row*maxN;
+            int mRow = ((maxN-row)%maxN) * maxN;
             for (int col=0; col<maxN; col++) {
-               r = fps[base+col];
+               int dx = col < maxN/2 ? col : col - maxN;
+               double d2 = dx*dx + dy*dy;
+               if (d2 > outer)
+                  continue;
+               count++;
+               if (d2 <= inner)
+                  continue;
+               float r = (sqr(fht[base+col]) + sqr(fht[mRow + (maxN-col)%maxN]))/2f;
                if (Float.isNaN(r) || r<1f)  // modified for no scaling
                   r = 0f;
                else
                   r = (float)Math.log(r);  // modified for no scaling
-               ps[base+col] = (byte)(r+1f); // 1 is min value
+               sum += ((int)(r+1f)) & 0xff; // 1 is min value
             }
          }
-         ImageProcessor ip = new ByteProcessor(maxN, maxN, ps, null);
-         swapQuadrants(ip);
-         return ip;
-      }
-
-      /** Power Spectrum of one row from 2D Hartley Transform. */
-      private void FHTps(int row, int maxN, float[] fht, float[] ps) {
-         int base = row*maxN;
-         int l;
-         for (int c=0; c<maxN; c++) {
-            l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
-            ps[base+c] = (sqr(fht[base+c]) + sqr(fht[l]))/2f;
-         }
+         return count > 0 ? sum / count : 0;
       }
 
       private static float sqr(float x) {
          return x*x;
       }
 
-      /** Pad the image to be square and have dimensions being a power of 2
-       Copied from http://rsb.info.nih.gov/ij/developer/source/ij/plugin/FFT.java.html
-       (in public domain), changed name from pad() to padImage(),
-       and tweaked to remove unused variables   */
-      private static ImageProcessor padImage(ImageProcessor ip) {
-         final int originalWidth = ip.getWidth();
-         final int originalHeight = ip.getHeight();
-         int maxN = Math.max(originalWidth, originalHeight);
-         int i = 2;
-         while(i<maxN) i *= 2;
-         if (i==maxN && originalWidth==originalHeight) {
-            return ip;
-         }
-         maxN = i;
-         ImageStatistics stats = ImageStatistics.getStatistics(ip, ImageStatistics.MEAN, null);
-         ImageProcessor ip2 = ip.createProcessor(maxN, maxN);
-         ip2.setValue(stats.mean);
-         ip2.fill();
-         ip2.insert(ip, 0, 0);
-         return ip2;
-      }
-
-      /** Swap quadrants 1 and 3 and 2 and 4 of the specified ImageProcessor
-       so the power spectrum origin is at the center of the image.
-       <pre>
-           2 1
-           3 4
-       </pre>
-       */
-      private void swapQuadrants(ImageProcessor ip) {
-         ImageProcessor t1, t2;
-         int size = ip.getWidth()/2;
-         ip.setRoi(size,0,size,size);
-         t1 = ip.crop();
-         ip.setRoi(0,size,size,size);
-         t2 = ip.crop();
-         ip.insert(t1,0,size);
-         ip.insert(t2,size,0);
-         ip.setRoi(0,0,size,size);
-         t1 = ip.crop();
-         ip.setRoi(size,size,size,size);
-         t2 = ip.crop();
-         ip.insert(t1,size,size);
-         ip.insert(t2,0,0);
-         ip.resetRoi();
-      }
-
    }
 
 }
@@ -0,0 +1,166 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AcquisitionPipelineBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.micromanager.api.DataProcessor;
+import org.micromanager.api.ImageCacheListener;
+import org.micromanager.api.TaggedImageStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End to end images/s of an acquisition without hardware: synthetic images
+ * go through a ProcessorStack of pass-through processors into a
+ * DefaultTaggedImageSink, which stores them in RAM or in multipage TIFF
+ * files, as the acquisition engine does. Each invocation is one acquisition,
+ * timed until the image cache reports that imaging has finished.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AcquisitionPipelineBenchmark {
+   private static final int CHANNELS = 2;
+   private static final int SLICES = 5;
+   private static final int FRAMES = 10;
+   private static final int NUM_IMAGES = CHANNELS * SLICES * FRAMES;
+
+   @Param({"GRAY16"})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   @Param({"0", "2"})
+   public int processors;
+
+   @Param({"ram", "tiff"})
+   public String storage;
+
+   private Object[] planes_;
+   private JSONObject summary_;
+   private TaggedImage[] images_;
+   private List<DataProcessor<TaggedImage>> processors_;
+   private File dir_;
+
+   /*
+    * What an image processor that leaves the image alone costs: a thread
+    * and a queue hand-off.
+    */
+   private static class PassThroughProcessor extends DataProcessor<TaggedImage> {
+      @Override
+      protected void process() {
+         TaggedImage image = poll();
+         if (image != null) {
+            produce(image);
+         }
+      }
+   }
+
+   @Setup(Level.Trial)
+   public void createPlanes() throws Exception {
+      planes_ = new Object[CHANNELS];
+      for (int c = 0; c < CHANNELS; c++) {
+         planes_[c] = SyntheticImages.pixels(pixelType, size, size, c);
+      }
+      summary_ = SyntheticImages.summary(pixelType, size, size,
+            CHANNELS, SLICES, FRAMES, 1);
+   }
+
+   @Setup(Level.Invocation)
+   public void createAcquisition() throws Exception {
+      images_ = new TaggedImage[NUM_IMAGES];
+      int i = 0;
+      for (int t = 0; t < FRAMES; t++) {
+         for (int z = 0; z < SLICES; z++) {
+            for (int c = 0; c < CHANNELS; c++) {
+               images_[i++] = new TaggedImage(planes_[c],
+                     SyntheticImages.tags(pixelType, size, size, c, z, t, 0));
+            }
+         }
+      }
+      // Threads can't be restarted, so every acquisition gets new processors
+      processors_ = new ArrayList<DataProcessor<TaggedImage>>();
+      for (int p = 0; p < processors; p++) {
+         processors_.add(new PassThroughProcessor());
+      }
+      dir_ = SyntheticImages.tempDirectory("AcquisitionPipelineBenchmark");
+   }
+
+   @TearDown(Level.Invocation)
+   public void stopAcquisition() {
+      for (DataProcessor<TaggedImage> processor : processors_) {
+         processor.requestStop();
+      }
+      SyntheticImages.deleteRecursively(dir_);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(NUM_IMAGES)
+   public void acquire() throws Exception {
+      JSONObject summary = new JSONObject(summary_.toString());
+      TaggedImageStorage imageStorage;
+      if (storage.equals("ram")) {
+         imageStorage = new TaggedImageStorageRamFast(summary);
+      } else {
+         imageStorage = new TaggedImageStorageMultipageTiff(dir_.getAbsolutePath(),
+               true, summary, false, true, true);
+      }
+      MMImageCache imageCache = new MMImageCache(imageStorage);
+      final CountDownLatch finished = new CountDownLatch(1);
+      imageCache.addImageCacheListener(new ImageCacheListener() {
+         @Override
+         public void imageReceived(TaggedImage taggedImage) {
+         }
+
+         @Override
+         public void imagingFinished(String path) {
+            finished.countDown();
+         }
+      });
+
+      BlockingQueue<TaggedImage> engineOutput = new TaggedImageQueue();
+      BlockingQueue<TaggedImage> sinkInput =
+            ProcessorStack.run(engineOutput, processors_);
+      new DefaultTaggedImageSink(sinkInput, imageCache).start();
+      for (TaggedImage image : images_) {
+         engineOutput.put(image);
+      }
+      engineOutput.put(TaggedImageQueue.POISON);
+      finished.await();
+      imageCache.close();
+   }
+}
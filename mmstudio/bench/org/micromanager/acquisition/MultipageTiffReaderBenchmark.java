@@ -0,0 +1,147 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffReaderBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares reading a multipage TIFF dataset through positional FileChannel
+ * reads with reading it through memory mapped files, in images/s. The MB/s
+ * of every iteration are printed as well.
+ *
+ * A synthetic 16-bit dataset is written to the directory given with
+ * -Dbench.dataset (a temporary directory by default) unless it exists, then
+ * planes are read in sequential or in random order. Run with a dataset
+ * larger than RAM to see the effect of the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultipageTiffReaderBenchmark {
+   private static final int FRAMES = 200;
+
+   @Param({"2048"})
+   public int size;
+
+   @Param({"false", "true"})
+   public boolean mapped;
+
+   @Param({"sequential", "random"})
+   public String order;
+
+   private File dir_;
+   private boolean deleteDataSet_;
+   private TaggedImageStorageMultipageTiff storage_;
+   private int[] order_;
+   private int next_;
+   private long bytesRead_;
+   private long iterationStart_;
+
+   @Setup(Level.Trial)
+   public void openDataSet() throws Exception {
+      String path = System.getProperty("bench.dataset");
+      if (path != null) {
+         dir_ = new File(path);
+      } else {
+         dir_ = SyntheticImages.tempDirectory("MPTiffReaderBenchmark");
+         deleteDataSet_ = true;
+      }
+      if (!dir_.exists()) {
+         writeDataSet(dir_, size, FRAMES);
+      }
+      storage_ = new TaggedImageStorageMultipageTiff(
+            dir_.getAbsolutePath(), false, null, false, true, false, mapped);
+      order_ = planeOrder(FRAMES, order.equals("random"));
+   }
+
+   @TearDown(Level.Trial)
+   public void closeDataSet() {
+      storage_.close();
+      if (deleteDataSet_) {
+         SyntheticImages.deleteRecursively(dir_);
+      }
+   }
+
+   @Setup(Level.Iteration)
+   public void startIteration() {
+      bytesRead_ = 0;
+      iterationStart_ = System.nanoTime();
+   }
+
+   @TearDown(Level.Iteration)
+   public void reportBandwidth() {
+      double seconds = (System.nanoTime() - iterationStart_) / 1e9;
+      System.out.println(String.format(" %.1f MB/s of pixels",
+            bytesRead_ / seconds / 1048576));
+   }
+
+   @Benchmark
+   public short readPlane() {
+      int frame = order_[next_];
+      next_ = (next_ + 1) % order_.length;
+      TaggedImage image = storage_.getImage(0, 0, frame, 0);
+      short[] pix = (short[]) image.pix;
+      bytesRead_ += 2L * pix.length;
+      return pix[frame % pix.length];
+   }
+
+   private static int[] planeOrder(int frames, boolean random) {
+      int[] order = new int[frames];
+      for (int i = 0; i < frames; i++) {
+         order[i] = i;
+      }
+      if (random) {
+         Random r = new Random(0);
+         for (int i = frames - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+         }
+      }
+      return order;
+   }
+
+   private static void writeDataSet(File dir, int size, int frames)
+         throws Exception {
+      JSONObject summary = SyntheticImages.summary("GRAY16", size, size, 1, 1, frames, 1);
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+            dir.getAbsolutePath(), true, summary, false, true, true);
+      for (int frame = 0; frame < frames; frame++) {
+         storage.putImage(SyntheticImages.image("GRAY16", size, size, 0, 0, frame, 0));
+      }
+      storage.finished();
+      storage.close();
+   }
+}
@@ -0,0 +1,119 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffWriterBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of writing stacks to multipage TIFF files, in images/s. Each
+ * invocation writes a new data set of STACK_SIZE images, from opening the
+ * storage to closing it, as an acquisition does. The MB/s of every
+ * iteration are printed as well.
+ *
+ * Use a directory on the disk of interest with -Djava.io.tmpdir.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultipageTiffWriterBenchmark {
+   private static final int STACK_SIZE = 50;
+   private static final int NUM_PLANES = 4;
+
+   @Param({"GRAY8", "GRAY16", "RGB32"})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   private Object[] planes_;
+   private JSONObject summary_;
+   private TaggedImage[] images_;
+   private File dir_;
+   private long bytesWritten_;
+   private long writeNanos_;
+
+   @Setup(Level.Trial)
+   public void createPlanes() throws Exception {
+      planes_ = new Object[NUM_PLANES];
+      for (int i = 0; i < NUM_PLANES; i++) {
+         planes_[i] = SyntheticImages.pixels(pixelType, size, size, i);
+      }
+      summary_ = SyntheticImages.summary(pixelType, size, size, 1, 1, STACK_SIZE, 1);
+   }
+
+   @Setup(Level.Iteration)
+   public void startIteration() {
+      bytesWritten_ = 0;
+      writeNanos_ = 0;
+   }
+
+   @Setup(Level.Invocation)
+   public void createImages() throws Exception {
+      dir_ = SyntheticImages.tempDirectory("MPTiffWriterBenchmark");
+      // The storage adds tags, so every data set gets fresh ones
+      images_ = new TaggedImage[STACK_SIZE];
+      for (int frame = 0; frame < STACK_SIZE; frame++) {
+         images_[frame] = new TaggedImage(planes_[frame % NUM_PLANES],
+               SyntheticImages.tags(pixelType, size, size, 0, 0, frame, 0));
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(STACK_SIZE)
+   public void writeStack() throws Exception {
+      long start = System.nanoTime();
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+            dir_.getAbsolutePath(), true, new JSONObject(summary_.toString()),
+            false, true, true);
+      for (TaggedImage image : images_) {
+         storage.putImage(image);
+      }
+      storage.finished();
+      storage.close();
+      writeNanos_ += System.nanoTime() - start;
+      bytesWritten_ += STACK_SIZE * SyntheticImages.planeBytes(pixelType, size, size);
+   }
+
+   @TearDown(Level.Invocation)
+   public void deleteDataSet() {
+      SyntheticImages.deleteRecursively(dir_);
+   }
+
+   @TearDown(Level.Iteration)
+   public void reportBandwidth() {
+      double seconds = writeNanos_ / 1e9;
+      System.out.println(String.format(" %.1f MB/s of pixels",
+            bytesWritten_ / seconds / 1048576));
+   }
+}
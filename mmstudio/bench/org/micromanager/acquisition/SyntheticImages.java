@@ -0,0 +1,176 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SyntheticImages.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.util.Random;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Images and metadata resembling those of a real acquisition, for the
+ * benchmarks. Pixel types are "GRAY8", "GRAY16" and "RGB32".
+ */
+public class SyntheticImages {
+
+   public static int bytesPerPixel(String pixelType) {
+      if (pixelType.equals("GRAY8")) {
+         return 1;
+      } else if (pixelType.equals("GRAY16")) {
+         return 2;
+      } else if (pixelType.equals("RGB32")) {
+         return 4;
+      }
+      throw new IllegalArgumentException("Unsupported pixel type " + pixelType);
+   }
+
+   public static long planeBytes(String pixelType, int width, int height) {
+      return (long) bytesPerPixel(pixelType) * width * height;
+   }
+
+   /**
+    * Noise with a few bright spots, so that images don't compress away and
+    * histograms are not trivial
+    */
+   public static Object pixels(String pixelType, int width, int height, long seed) {
+      Random r = new Random(seed);
+      int n = width * height;
+      if (pixelType.equals("GRAY16")) {
+         short[] pix = new short[n];
+         for (int i = 0; i < n; i++) {
+            pix[i] = (short) (100 + r.nextInt(64));
+         }
+         for (int i = 0; i < n / 1000; i++) {
+            pix[r.nextInt(n)] = (short) (1000 + r.nextInt(3000));
+         }
+         return pix;
+      }
+      byte[] pix = new byte[n * bytesPerPixel(pixelType)];
+      for (int i = 0; i < pix.length; i++) {
+         pix[i] = (byte) (10 + r.nextInt(32));
+      }
+      for (int i = 0; i < pix.length / 1000; i++) {
+         pix[r.nextInt(pix.length)] = (byte) (128 + r.nextInt(128));
+      }
+      return pix;
+   }
+
+   public static JSONObject summary(String pixelType, int width, int height,
+         int channels, int slices, int frames, int positions) throws JSONException {
+      JSONObject summary = new JSONObject();
+      summary.put("Prefix", "bench");
+      summary.put("PixelType", pixelType);
+      summary.put("Width", width);
+      summary.put("Height", height);
+      summary.put("Binning", 1);
+      summary.put("BitDepth", 8 * Math.min(2, bytesPerPixel(pixelType)));
+      summary.put("Camera", "Camera");
+      summary.put("Channels", channels);
+      summary.put("Slices", slices);
+      summary.put("Frames", frames);
+      summary.put("Positions", positions);
+      summary.put("PixelSize_um", 0.1625);
+      summary.put("z-step_um", 1.0);
+      summary.put("Interval_ms", 0.0);
+      summary.put("SlicesFirst", true);
+      summary.put("TimeFirst", false);
+      summary.put("MicroManagerVersion", "benchmark");
+      summary.put("ComputerName", "bench");
+      summary.put("UserName", "bench");
+      summary.put("Directory", "");
+      summary.put("Comment", "Synthetic data set");
+      return summary;
+   }
+
+   /**
+    * Tags with the indices, the usual per-image values and a set of device
+    * properties like the core adds to every image.
+    */
+   public static JSONObject tags(String pixelType, int width, int height,
+         int channel, int slice, int frame, int position) throws JSONException {
+      JSONObject tags = new JSONObject();
+      MDUtils.setChannelIndex(tags, channel);
+      MDUtils.setSliceIndex(tags, slice);
+      MDUtils.setFrameIndex(tags, frame);
+      MDUtils.setPositionIndex(tags, position);
+      MDUtils.setWidth(tags, width);
+      MDUtils.setHeight(tags, height);
+      MDUtils.setPixelTypeFromString(tags, pixelType);
+      MDUtils.setBinning(tags, 1);
+      tags.put("BitDepth", 8 * Math.min(2, bytesPerPixel(pixelType)));
+      MDUtils.setCoreCamera(tags, "Camera");
+      tags.put("Camera", "Camera");
+      MDUtils.setChannelName(tags, "Channel" + channel);
+      MDUtils.setExposureMs(tags, 10.0);
+      MDUtils.setElapsedTimeMs(tags, 10.0 * frame);
+      MDUtils.setImageTime(tags, "2014-01-01 12:00:00.000 -0800");
+      MDUtils.setXPositionUm(tags, 100.0 * position);
+      MDUtils.setYPositionUm(tags, -50.0 * position);
+      MDUtils.setZPositionUm(tags, 1.0 * slice);
+      MDUtils.setPixelSizeUm(tags, 0.1625);
+      tags.put("PositionName", "Pos" + position);
+      tags.put("Camera-Binning", "1");
+      tags.put("Camera-Exposure", "10.0000");
+      tags.put("Camera-Gain", "0");
+      tags.put("Camera-Offset", "0");
+      tags.put("Camera-PixelType", "16bit");
+      tags.put("Camera-ReadoutTime", "0.0000");
+      tags.put("Camera-CCDTemperature", "0.0000");
+      tags.put("Camera-Mode", "Noise");
+      tags.put("Core-Camera", "Camera");
+      tags.put("Core-Shutter", "Shutter");
+      tags.put("Core-Focus", "Z");
+      tags.put("Core-XYStage", "XY");
+      tags.put("Core-AutoShutter", "1");
+      tags.put("Dichroic-Label", "400DCLP");
+      tags.put("Emission-Label", "Chroma-HQ620");
+      tags.put("Excitation-Label", "Chroma-HQ570");
+      tags.put("Objective-Label", "Nikon 20X Plan Fluor ELWD");
+      tags.put("Path-Label", "State-0");
+      tags.put("Shutter-State", "1");
+      tags.put("Z-Position", Double.toString(1.0 * slice));
+      tags.put("XY-Description", "XY stage");
+      return tags;
+   }
+
+   public static TaggedImage image(String pixelType, int width, int height,
+         int channel, int slice, int frame, int position) throws JSONException {
+      return new TaggedImage(
+            pixels(pixelType, width, height, frame * 31 + channel),
+            tags(pixelType, width, height, channel, slice, frame, position));
+   }
+
+   public static File tempDirectory(String name) {
+      return new File(System.getProperty("java.io.tmpdir"),
+            name + "-" + System.nanoTime());
+   }
+
+   public static void deleteRecursively(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,100 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TaggedImageStorageRamFastBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Images/s put into and read back from the in-memory storage. Reading
+ * round robin through the stack misses the cache of recent images, so every
+ * read copies the pixels and decodes the tags.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TaggedImageStorageRamFastBenchmark {
+   private static final int STACK_SIZE = 100;
+
+   @Param({"GRAY16"})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   private JSONObject summary_;
+   private TaggedImage[] images_;
+   private TaggedImageStorageRamFast filled_;
+   private int next_;
+
+   @Setup(Level.Trial)
+   public void fillStorage() throws Exception {
+      summary_ = SyntheticImages.summary(pixelType, size, size, 1, 1, STACK_SIZE, 1);
+      Object pixels = SyntheticImages.pixels(pixelType, size, size, 0);
+      filled_ = new TaggedImageStorageRamFast(summary_);
+      for (int frame = 0; frame < STACK_SIZE; frame++) {
+         filled_.putImage(new TaggedImage(pixels,
+               SyntheticImages.tags(pixelType, size, size, 0, 0, frame, 0)));
+      }
+      filled_.finished();
+
+      // The storage does not modify the tags, so the images can be reused
+      pixels = SyntheticImages.pixels(pixelType, size, size, 1);
+      images_ = new TaggedImage[STACK_SIZE];
+      for (int frame = 0; frame < STACK_SIZE; frame++) {
+         images_[frame] = new TaggedImage(pixels,
+               SyntheticImages.tags(pixelType, size, size, 0, 0, frame, 0));
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void closeStorage() {
+      filled_.close();
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(STACK_SIZE)
+   public void putStack() throws Exception {
+      TaggedImageStorageRamFast storage = new TaggedImageStorageRamFast(summary_);
+      for (TaggedImage image : images_) {
+         storage.putImage(image);
+      }
+      storage.finished();
+      storage.close();
+   }
+
+   @Benchmark
+   public TaggedImage getImage() {
+      next_ = (next_ + 1) % STACK_SIZE;
+      return filled_.getImage(0, 0, next_, 0);
+   }
+}
@@ -0,0 +1,99 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageMetadataBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.micromanager.acquisition.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the per-image tag handling: serializing and parsing the tags as
+ * JSON, with and without ImageMetadataCodec, and the image labels used as
+ * keys by the storages and caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageMetadataBenchmark {
+
+   private JSONObject tags_;
+   private ImageMetadataCodec codec_;
+   private String json_;
+   private String encoded_;
+   private String label_;
+   private int frame_;
+
+   @Setup
+   public void createTags() throws Exception {
+      JSONObject summary = SyntheticImages.summary("GRAY16", 2048, 2048, 2, 5, 100, 1);
+      tags_ = SyntheticImages.tags("GRAY16", 2048, 2048, 1, 3, 42, 0);
+      MDUtils.setSummary(tags_, summary);
+      codec_ = new ImageMetadataCodec(summary);
+      json_ = tags_.toString();
+      ByteBuffer buffer = codec_.encode(tags_);
+      encoded_ = new String(buffer.array(), buffer.position(),
+            buffer.remaining(), "UTF-8");
+      label_ = MDUtils.getLabel(tags_);
+   }
+
+   @Benchmark
+   public String serializeTags() {
+      return tags_.toString();
+   }
+
+   @Benchmark
+   public int encodeTags() throws Exception {
+      return codec_.encode(tags_).remaining();
+   }
+
+   @Benchmark
+   public JSONObject parseTags() throws Exception {
+      return new JSONObject(json_);
+   }
+
+   @Benchmark
+   public JSONObject decodeTags() throws Exception {
+      return codec_.decode(encoded_);
+   }
+
+   @Benchmark
+   public String getLabel() {
+      return MDUtils.getLabel(tags_);
+   }
+
+   @Benchmark
+   public String generateLabel() {
+      frame_ = (frame_ + 1) & 1023;
+      return MDUtils.generateLabel(1, 3, frame_, 0);
+   }
+
+   @Benchmark
+   public int[] getIndices() {
+      return MDUtils.getIndices(label_);
+   }
+}
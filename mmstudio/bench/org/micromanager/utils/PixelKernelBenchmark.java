@@ -0,0 +1,87 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelKernelBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.acquisition.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Images/s of the per-image pixel loops run for display and autoscaling.
+ * Multiply by width * height * bytes per pixel for the bandwidth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PixelKernelBenchmark {
+
+   @Param({"GRAY8", "GRAY16"})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   private Object pixels_;
+   private Rectangle roi_;
+   private PixelStatistics statistics_;
+   private int[] histogram_;
+   private int stride_;
+
+   @Setup
+   public void createImage() {
+      pixels_ = SyntheticImages.pixels(pixelType, size, size, 0);
+      roi_ = new Rectangle(0, 0, size, size);
+      statistics_ = new PixelStatistics();
+      statistics_.compute(pixels_, size, roi_, null, 1);
+      histogram_ = statistics_.getHistogram().clone();
+      stride_ = PixelStatistics.strideFor(size * size, PixelStatistics.LIVE_SAMPLE_PIXELS);
+   }
+
+   @Benchmark
+   public int[] minMax() {
+      return ImageUtils.getMinMax(pixels_);
+   }
+
+   @Benchmark
+   public int statistics() {
+      statistics_.compute(pixels_, size, roi_, null, 1);
+      return statistics_.getMax();
+   }
+
+   @Benchmark
+   public int sampledStatistics() {
+      statistics_.compute(pixels_, size, roi_, null, stride_);
+      return statistics_.getMax();
+   }
+
+   @Benchmark
+   public int histogramLimits() {
+      HistogramUtils hu = new HistogramUtils(histogram_, size * size);
+      return hu.getMinAfterRejectingOutliers() + hu.getMaxAfterRejectingOutliers();
+   }
+}
@@ -26,6 +26,8 @@ package org.micromanager;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.Preferences;
 
 import javax.swing.JScrollPane;
@@ -98,8 +100,28 @@ public class ConfigGroupPad extends JScrollPane{
 
    public void setParentGUI(ScriptInterface parentGUI) {
       parentGUI_ = parentGUI;
+      parentGUI_.addMMListener(changeListener_);
    }
 
+   // Applies property and config group changes from the core to the rows
+   // showing them.  Changes to everything are handled by MMStudio.updateGUI.
+   private final CoalescingPropertyListener changeListener_ =
+         new CoalescingPropertyListener() {
+      @Override
+      protected void applyChanges(List<String[]> properties,
+            Map<String, String> groups, boolean allChanged) {
+         if (data_ == null) {
+            return;
+         }
+         for (String[] change : properties) {
+            data_.refreshProperty(change[0], change[1], change[2]);
+         }
+         for (Map.Entry<String, String> group : groups.entrySet()) {
+            data_.refreshGroup(group.getKey(), group.getValue());
+         }
+      }
+   };
+
    public void refreshStructure(boolean fromCache) {
       if (data_ != null) {
          data_.rebuildModel(fromCache);
@@ -111,8 +133,6 @@ public class ConfigGroupPad extends JScrollPane{
    public void refreshGroup(String groupName, String configName) {
       if (data_ != null) {
          data_.refreshGroup(groupName, configName);
-         data_.fireTableStructureChanged();
-         table_.repaint();
       }
    }
 
@@ -356,16 +376,38 @@ public class ConfigGroupPad extends JScrollPane{
          }
       }
 
+      // Update the preset shown for one group, and repaint only its row.
       public void refreshGroup(String groupName, String configName) {
          try {
-            for (StateItem item : groupList_) {
-               if (item.group.equals(groupName)) {
+            for (int row = 0; row < groupList_.size(); row++) {
+               StateItem item = groupList_.get(row);
+               if (item.group.equals(groupName) && !item.singleProp) {
                   item.config = configName;
+                  if (configName.length() > 0) {
+                     item.descr = core_.getConfigData(groupName, configName).getVerbose();
+                  } else {
+                     item.descr = "";
+                  }
+                  fireTableRowsUpdated(row, row);
                }
             }
          } catch (Exception e) {
             handleException(e);
          }
       }
+
+      // Update the groups that show the given property directly, and repaint
+      // only their rows.
+      public void refreshProperty(String device, String property, String coreValue) {
+         for (int row = 0; row < groupList_.size(); row++) {
+            StateItem item = groupList_.get(row);
+            if (item.singleProp && item.device.equals(device)
+                  && item.name.equals(property)) {
+               item.setValueFromCoreString(coreValue);
+               item.config = item.value;
+               fireTableRowsUpdated(row, row);
+            }
+         }
+      }
    }
 }
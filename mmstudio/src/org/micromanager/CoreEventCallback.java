@@ -25,6 +25,11 @@ package org.micromanager;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import mmcorej.CMMCore;
 import mmcorej.MMEventCallback;
@@ -33,6 +38,7 @@ import org.micromanager.acquisition.AcquisitionWrapperEngine;
 import org.micromanager.api.MMListenerInterface;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.MMListenerProxy;
+import org.micromanager.utils.ReportingUtils;
 
 
 /**
@@ -45,6 +51,19 @@ public class CoreEventCallback extends MMEventCallback {
    private final List<MMListenerInterface> MMListeners_
          = Collections.synchronizedList(new ArrayList<MMListenerInterface>());
    private volatile boolean ignorePropertyChanges_;
+   // onPropertiesChanged often comes in storms (e.g. while a configuration
+   // is applied); all that arrive within this time are handled once
+   private static final long PROPERTIES_CHANGED_DELAY_MS = 50;
+   private final AtomicBoolean propertiesChangedPending_ = new AtomicBoolean(false);
+   private final ScheduledExecutorService propertiesChangedExecutor_ =
+         Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Core properties changed");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
 
    @SuppressWarnings("LeakingThisInConstructor")
    public CoreEventCallback(CMMCore core, AcquisitionWrapperEngine engine) {
@@ -67,6 +86,28 @@ public class CoreEventCallback extends MMEventCallback {
          return;
       }
 
+      if (!propertiesChangedPending_.compareAndSet(false, true)) {
+         // already scheduled, and not started yet
+         return;
+      }
+      propertiesChangedExecutor_.schedule(new Runnable() {
+         @Override
+         public void run() {
+            propertiesChangedPending_.set(false);
+            try {
+               handlePropertiesChanged();
+            } catch (Exception e) {
+               ReportingUtils.logError(e, "Failed to handle changed properties");
+            }
+         }
+      }, PROPERTIES_CHANGED_DELAY_MS, TimeUnit.MILLISECONDS);
+   }
+
+   private void handlePropertiesChanged() {
+      if (engine_ != null && engine_.isAcquisitionRunning()) {
+         core_.logMessage("Notification from MMCore ignored because acquistion is running!", true);
+         return;
+      }
       core_.updateSystemStateCache();
 
       core_.logMessage("Notification from MMCore!", true);
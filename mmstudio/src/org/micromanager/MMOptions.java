@@ -41,6 +41,9 @@ public class MMOptions {
    private static final String PREF_WINDOW_MAG = "windowMag";
    private static final String MPTIFF_METADATA_FILE = "MakeMetadataFileWithMultipageTiff";
    private static final String MPTIFF_SEPARATE_FILES_FOR_POSITIONS = "SplitXYPostionsInFilesMPTiff";
+   private static final String MPTIFF_MEMORY_MAPPED_READING = "MemoryMappedReadingMPTiff";
+   private static final String RAM_STORAGE_BUDGET_MB = "RamStorageBudgetMB";
+   private static final String LIVE_DISPLAY_FPS = "LiveDisplayFPS";
    private static final String SYNCEXPOSUREMAINANDMDA = "SyncExposureBetweenMainAndMDAWindows";
    private static final String HIDE_MDA_DISPLAY = "HideMDADisplay";
    private static final String FAST_STORAGE = "FastStorage"; // No longer used but should not be reused
@@ -57,6 +60,9 @@ public class MMOptions {
    public double windowMag_;
    public boolean mpTiffMetadataFile_;
    public boolean mpTiffSeparateFilesForPositions_;
+   public boolean mpTiffMemoryMappedReading_;
+   public int ramStorageBudgetMB_; // 0 for no limit
+   public int liveDisplayFPS_; // 0 for as fast as the display keeps up
    public boolean syncExposureMainAndMDA_;
    public boolean hideMDADisplay_;
    public boolean deleteOldCoreLogs_;
@@ -78,6 +84,9 @@ public class MMOptions {
       windowMag_ = 1.0;
       mpTiffMetadataFile_ = false;
       mpTiffSeparateFilesForPositions_ = true;
+      mpTiffMemoryMappedReading_ = false;
+      ramStorageBudgetMB_ = 0;
+      liveDisplayFPS_ = 30;
       syncExposureMainAndMDA_ = false;
       hideMDADisplay_ = false;
       deleteOldCoreLogs_ = false;
@@ -102,6 +111,9 @@ public class MMOptions {
       prefs.putDouble(PREF_WINDOW_MAG, windowMag_);
       prefs.putBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       prefs.putBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      prefs.putBoolean(MPTIFF_MEMORY_MAPPED_READING, mpTiffMemoryMappedReading_);
+      prefs.putInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      prefs.putInt(LIVE_DISPLAY_FPS, liveDisplayFPS_);
       prefs.putBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       prefs.putBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       prefs.putBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
@@ -120,6 +132,9 @@ public class MMOptions {
       windowMag_ = prefs.getDouble(PREF_WINDOW_MAG, windowMag_);
       mpTiffMetadataFile_ = prefs.getBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       mpTiffSeparateFilesForPositions_ = prefs.getBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      mpTiffMemoryMappedReading_ = prefs.getBoolean(MPTIFF_MEMORY_MAPPED_READING, mpTiffMemoryMappedReading_);
+      ramStorageBudgetMB_ = prefs.getInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      liveDisplayFPS_ = prefs.getInt(LIVE_DISPLAY_FPS, liveDisplayFPS_);
       syncExposureMainAndMDA_ = prefs.getBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       hideMDADisplay_ = prefs.getBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       deleteOldCoreLogs_ =
@@ -418,6 +418,7 @@ public class MMStudio implements ScriptInterface {
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
+      TaggedImageStorageRamFast.setMemoryBudgetMB(options_.ramStorageBudgetMB_);
 
       engine_.setParentGUI(studio_);
 
@@ -730,6 +731,18 @@ public class MMStudio implements ScriptInterface {
    public boolean getSeparateFilesForPositionsMPTiff() {
       return options_.mpTiffSeparateFilesForPositions_;
    }
+
+   public boolean getMemoryMappedMultipageTiffReading() {
+      return options_.mpTiffMemoryMappedReading_;
+   }
+
+   /**
+    * @return maximum rate at which live mode images are displayed, 0 for
+    * no limit
+    */
+   public int getLiveDisplayFPS() {
+      return options_.liveDisplayFPS_;
+   }
    
    @Override
    public boolean getHideMDADisplayOption() {
@@ -1400,7 +1413,8 @@ public class MMStudio implements ScriptInterface {
 
    @Subscribe
    public void onPropertiesChanged(PropertiesChangedEvent event) {
-      updateGUI(true);
+      // CoreEventCallback has just updated the system state cache
+      updateGUI(true, true);
    }
 
    @Subscribe
@@ -1472,7 +1486,11 @@ public class MMStudio implements ScriptInterface {
             calibrationListDlg_.refreshCalibrations();
          }
          if (propertyBrowser_ != null) {
-            propertyBrowser_.refresh();
+            if (fromCache) {
+               propertyBrowser_.refreshValues();
+            } else {
+               propertyBrowser_.refresh();
+            }
          }
 
          ReportingUtils.logMessage("Finished updating GUI");
@@ -22,7 +22,6 @@
 
 package org.micromanager;
 
-import com.google.common.eventbus.Subscribe;
 import com.swtdesigner.SwingResourceManager;
 
 import ij.gui.ImageCanvas;
@@ -68,8 +67,6 @@ import mmcorej.CMMCore;
 import mmcorej.MMCoreJ;
 import mmcorej.StrVector;
 
-import org.micromanager.api.events.ConfigGroupChangedEvent;
-import org.micromanager.events.EventManager;
 import org.micromanager.imagedisplay.MetadataPanel;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.internalinterfaces.LiveModeListener;
@@ -142,8 +139,6 @@ public class MainFrame extends MMFrame implements LiveModeListener {
       setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
       setupWindowHandlers();
 
-      EventManager.register(this);
-      
       // Add our own keyboard manager that handles Micro-Manager shortcuts
       MMKeyDispatcher mmKD = new MMKeyDispatcher();
       KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(mmKD);
@@ -588,11 +583,6 @@ public class MainFrame extends MMFrame implements LiveModeListener {
       autofocusNowButton_.setEnabled(isEnabled);
    }
    
-   @Subscribe
-   public void onConfigGroupChanged(ConfigGroupChangedEvent event) {
-      configPad_.refreshGroup(event.getGroupName(), event.getNewConfig());
-   }
-
    private List<String> sortBinningItems(final List<String> items) {
       ArrayList<Integer> binSizes = new ArrayList<Integer>();
 
@@ -35,6 +35,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.prefs.Preferences;
 
 import javax.swing.JButton;
@@ -52,7 +56,7 @@ import mmcorej.CMMCore;
 import mmcorej.StrVector;
 
 import org.micromanager.api.ScriptInterface;
-import org.micromanager.utils.MMListenerAdapter;
+import org.micromanager.utils.CoalescingPropertyListener;
 import org.micromanager.utils.MMFrame;
 import org.micromanager.utils.PropertyValueCellEditor;
 import org.micromanager.utils.PropertyValueCellRenderer;
@@ -88,19 +92,23 @@ public class PropertyEditor extends MMFrame {
    private final JScrollPane scrollPane_;
    private ScriptInterface gui_;
    
-   public class MyMMListener extends MMListenerAdapter {
+   public class MyMMListener extends CoalescingPropertyListener {
 
       @Override
-      public void propertiesChangedAlert() {
+      protected void applyChanges(List<String[]> properties,
+            Map<String, String> groups, boolean allChanged) {
          // avoid re-executing a refresh because of callbacks while we are updating
-         if (!data_.updating()) {
-            refresh();
+         if (data_ == null || data_.updating()) {
+            return;
+         }
+         if (allChanged) {
+            // the core's cache is up to date; rows re-read it when painted
+            data_.invalidateValues();
+         } else {
+            for (String[] change : properties) {
+               data_.updateValue(change[0], change[1], change[2]);
+            }
          }
-      }
-
-      @Override
-      public void propertyChangedAlert(String device, String property, String value) {
-         data_.update(device, property, value);
       }
    }
 
@@ -281,6 +289,16 @@ public class PropertyEditor extends MMFrame {
       data_.refresh(false);
    }
 
+   /**
+    * Shows the values in the core's system state cache, re-reading only
+    * the rows that are painted.  Does not touch the devices, or live mode.
+    */
+   public void refreshValues() {
+      if (data_ != null) {
+         data_.invalidateValues();
+      }
+   }
+
    public void updateStatus() {
       if (data_ != null)
          data_.update(false);
@@ -318,6 +336,8 @@ public class PropertyEditor extends MMFrame {
       }
    
       private static final long serialVersionUID = 1L;
+      // items whose value may be out of date with the core's cache
+      private final Set<PropertyItem> staleItems_ = new HashSet<PropertyItem>();
 
       @Override
       public void setValueAt(Object value, int row, int col) {
@@ -327,25 +347,43 @@ public class PropertyEditor extends MMFrame {
             setValueInCore(item,value);
          }
          core_.updateSystemStateCache();
-         refresh(true);
+         invalidateValues();
          gui_.refreshGUIFromCache();
          fireTableCellUpdated(row, col);
       }
 
-      public void update (String device, String propName, String newValue) {
-         PropertyItem item = getItem(device, propName);
-         if (item != null) {
-            item.value = newValue;
-            // Better to call fireTableCellUpdated(row, col)???
-            fireTableDataChanged();
+      /**
+       * Marks all values as out of date, and repaints the table.  Only the
+       * rows that get painted read their values from the core's cache.
+       */
+      public void invalidateValues() {
+         staleItems_.addAll(propList_);
+         if (getRowCount() > 0) {
+            fireTableRowsUpdated(0, getRowCount() - 1);
          }
       }
+
+      @Override
+      public PropertyItem getPropertyItem(int row) {
+         PropertyItem item = propListVisible_.get(row);
+         if (!staleItems_.isEmpty() && staleItems_.remove(item)) {
+            item.readFromCore(core_, item.device, item.name, true);
+         }
+         return item;
+      }
+
+      @Override
+      public Object getValueAt(int row, int col) {
+         getPropertyItem(row);
+         return super.getValueAt(row, col);
+      }
       
       @Override
       public void update(ShowFlags flags, String groupName, String presetName, boolean fromCache) {  
          try {
             StrVector devices = core_.getLoadedDevices();
             propList_.clear();
+            staleItems_.clear();
 
             boolean liveMode = gui_.isLiveModeOn();
             if (!fromCache) {
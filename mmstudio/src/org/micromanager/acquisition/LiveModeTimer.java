@@ -24,11 +24,15 @@ package org.micromanager.acquisition;
 import ij.gui.ImageWindow;
 
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
@@ -36,17 +40,25 @@ import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.MMStudio;
 import org.micromanager.SnapLiveManager;
 import org.micromanager.utils.CanvasPaintPending;
+import org.micromanager.utils.FrameMailbox;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
 /**
- * This class extends the java swing timer.  It periodically retrieves images
- * from the core and displays them in the live window
+ * Runs live mode. A drain thread takes the newest frame out of the circular
+ * buffer whenever the camera has produced one and leaves it in a single slot
+ * mailbox, replacing the frame that was there if it was not picked up yet.
+ * A pacer thread picks up the frame in the mailbox at no more than the live
+ * display rate set in the options and hands it to the image processors and
+ * the live window. Camera frame rate, display rate and the rate of dropped
+ * frames are shown in the status line of the live window.
  * 
  * @author Henry Pinkard
  */
 public class LiveModeTimer {
+   private static final String EMPTY_BUFFER_MESSAGE = "Circular buffer is empty.";
+
    private VirtualAcquisitionDisplay win_;
    private CMMCore core_;
    private MMStudio studio_;
@@ -54,6 +66,9 @@ public class LiveModeTimer {
    private int multiChannelCameraNrCh_;
 
    private Thread displayThread_;
+   private Thread drainThread_;
+   private Thread pacerThread_;
+   private volatile boolean stopRequested_ = false;
 
    private long fpsTimer_; // Guarded by this
    private long fpsCounter_; // Guarded by this
@@ -61,78 +76,16 @@ public class LiveModeTimer {
    private long oldImageNumber_; // Guarded by this
 
    private long fpsInterval_ = 5000;
+   private long pollIntervalMs_ = 10;
+   private long displayIntervalNs_ = 0;
    private final NumberFormat format_;
    private boolean running_ = false;
-   private Runnable task_;
    private final MMStudio.DisplayImageRoutine displayImageRoutine_;
    private LinkedBlockingQueue<TaggedImage> imageQueue_;
+   private FrameMailbox<List<TaggedImage>> frameMailbox_;
    private static int mCamImageCounter_ = 0;
    private boolean multiCam_ = false;
 
-   // Helper class to start and stop timer task atomically.
-   private class TimerController {
-      private Timer timer_;
-      private final Object timerLock_ = new Object();
-      private boolean timerTaskShouldStop_ = true; // Guarded by timerLock_
-      private boolean timerTaskIsBusy_ = false; // Guarded by timerLock_
-      public void start(final Runnable task, long interval) {
-         synchronized (timerLock_) {
-            if (timer_ != null) {
-               return;
-            }
-            timer_ = new Timer("Live mode timer");
-            timerTaskShouldStop_ = false;
-            TimerTask timerTask = new TimerTask() {
-               @Override
-               public void run() {
-                  synchronized (timerLock_) {
-                     if (timerTaskShouldStop_) {
-                        return;
-                     }
-                     timerTaskIsBusy_ = true;
-                  }
-                  try {
-                     task.run();
-                  }
-                  finally {
-                     synchronized (timerLock_) {
-                        timerTaskIsBusy_ = false;
-                        timerLock_.notifyAll();
-                     }
-                  }
-               }
-            };
-            timer_.schedule(timerTask, 0, interval);
-         }
-      }
-
-      public void stop() {
-         synchronized (timerLock_) {
-            if (timer_ == null || timerTaskShouldStop_) {
-               return;
-            }
-
-            timerTaskShouldStop_ = true;
-            timer_.cancel();
-         }
-      }
-
-      public void waitForCompletion() {
-         synchronized (timerLock_) {
-            while (timerTaskIsBusy_) {
-               try {
-                  timerLock_.wait();
-               }
-               catch (InterruptedException e) {
-                  Thread.currentThread().interrupt();
-               }
-            }
-            timer_ = null;
-         }
-      }
-   }
-   private final TimerController timerController_ = new TimerController();
-
    /**
     * The LivemodeTimer constructor defines a DisplayImageRoutine that 
     * synchronizes image display with the "paint" function (currently execute
@@ -193,22 +146,26 @@ public class LiveModeTimer {
       };
    }
 
+
    /**
-    * Determines the optimum interval for the live mode timer task to happen
-    * Also sets variable fpsInterval_
+    * Determines how often the drain thread checks the circular buffer for a
+    * new image, and the interval used for fps reporting
     */
-   private long getInterval() {
-      double interval = 20;
+   private void setIntervals() {
+      double exposure = 20;
       try {
-         interval = Math.max(core_.getExposure(), interval);
+         exposure = core_.getExposure();
       } catch (Exception e) {
          ReportingUtils.logError("Unable to get exposure from core");
       }
-      fpsInterval_ =  (long) (20 *  interval);
-      if (fpsInterval_ < 1000)
+      // Check a few times per exposure, but do not spin on very short ones
+      pollIntervalMs_ = Math.max(1, Math.min(10, (long) (exposure / 4)));
+      fpsInterval_ = (long) (20 * Math.max(exposure, 20));
+      if (fpsInterval_ < 1000) {
          fpsInterval_ = 1000;
-      
-      return (int) interval;
+      }
+      int displayFPS = studio_.getLiveDisplayFPS();
+      displayIntervalNs_ = displayFPS > 0 ? 1000000000L / displayFPS : 0;
    }
 
    /**
@@ -216,13 +173,7 @@ public class LiveModeTimer {
     */
    private void setType() {
       multiChannelCameraNrCh_ = (int) core_.getNumberOfCameraChannels();
-      if (multiChannelCameraNrCh_ == 1) {
-         task_ = singleCameraLiveTask();
-         multiCam_ = false;
-      } else {
-         task_ = multiCamLiveTask();
-         multiCam_ = true;
-      }
+      multiCam_ = multiChannelCameraNrCh_ != 1;
    }
 
    public boolean isRunning() {
@@ -244,13 +195,13 @@ public class LiveModeTimer {
          throw(e);
       }
       setType();
-      long period = getInterval();
+      setIntervals();
 
       // Wait for first image to create ImageWindow, so that we can be sure about image size
       long start = System.currentTimeMillis();
       long now = start;
       // Give 10s extra for the camera to transfer the image to us.
-      long timeout = period + 10000;
+      long timeout = Math.max(20, (long) core_.getExposure()) + 10000;
       while (core_.getRemainingImageCount() == 0 && (now - start < timeout) ) {
          now = System.currentTimeMillis();
          Thread.sleep(5);
@@ -274,21 +225,24 @@ public class LiveModeTimer {
       }
 
       imageQueue_ = new LinkedBlockingQueue<TaggedImage>(10);
-      // XXX The logic here is very weird. We add this first image only if we
-      // are using a single camera, because the single camera timer code checks
-      // and eliminates duplicates of the same frame. For multi camera, we do
-      // not add the image, since no checks for duplicates are performed
-      // (which is a bug that needs to be fixed).
+      frameMailbox_ = new FrameMailbox<List<TaggedImage>>();
+      // For a single camera, show the first image right away; the drain
+      // thread skips it because its sequence number has been seen. Multi
+      // camera frames are assembled by the drain thread, which finds this
+      // image still in the circular buffer.
       if (!multiCam_) {
-         imageQueue_.put(timg);
+         frameMailbox_.offer(Collections.singletonList(timg));
       }
 
-      timerController_.start(task_, period);
-
       win_.getImagePlus().getWindow().toFront();
       running_ = true;
+      stopRequested_ = false;
       displayThread_ = studio_.runDisplayThread(imageQueue_,
             displayImageRoutine_);
+      drainThread_ = new Thread(drainTask(), "Live mode drain thread");
+      pacerThread_ = new Thread(pacerTask(), "Live mode pacer thread");
+      drainThread_.start();
+      pacerThread_.start();
    }
 
    public void stop() {
@@ -300,10 +254,10 @@ public class LiveModeTimer {
             (firstAttempt ? "first" : "second") + " attempt");
 
       // To safely shut down live mode, we need to stop (1) image acquisition,
-      // (2) transfer of images from the Core to image queue (live mode timer),
-      // and (3) transfer of images from the image processor output to the
-      // display (display thread). Furthermore, we need to wait for all of
-      // these to complete, so that whatever comes next (e.g. MDA) does not
+      // (2) transfer of images from the Core to image queue (drain and pacer
+      // threads), and (3) transfer of images from the image processor output
+      // to the display (display thread). Furthermore, we need to wait for all
+      // of these to complete, so that whatever comes next (e.g. MDA) does not
       // see any resources in an inconsistent or busy state.
 
       // (1) Stop image acquisition (with up to one retry, FWIW)
@@ -328,17 +282,17 @@ public class LiveModeTimer {
          }
       }
 
-      // (2) Stop transfering images from Core to image queue
-      // Indicate end of image stream by sending POISON. Note that POISON might
-      // be enqueued before the final image (since we have not yet waited for
-      // the timer to finish), but that is not a problem because the queue
-      // simply gets discarded.
-      timerController_.stop();
-      // Note: This will block if downstream (image processors and display
-      // thread) do not consume images.
-      ReportingUtils.logMessage("Waiting for timer to stop");
-      timerController_.waitForCompletion();
-      ReportingUtils.logMessage("Finished waiting for timer to stop");
+      // (2) Stop transfering images from Core to image queue. Interrupting
+      // the pacer also releases it when it is blocked on a full image queue
+      // because downstream (image processors and display thread) does not
+      // consume images.
+      stopRequested_ = true;
+      ReportingUtils.logMessage("Waiting for drain and pacer threads to stop");
+      joinThread(drainThread_);
+      drainThread_ = null;
+      joinThread(pacerThread_);
+      pacerThread_ = null;
+      ReportingUtils.logMessage("Finished waiting for drain and pacer threads to stop");
 
       // Now nobody is enqueuing images to imageQueue_, so we can be sure
       // that the POISON we enqueue will not be followed by any images.
@@ -369,6 +323,19 @@ public class LiveModeTimer {
       }
    }
 
+   private void joinThread(Thread thread) {
+      if (thread == null || thread == Thread.currentThread()) {
+         return;
+      }
+      thread.interrupt();
+      try {
+         thread.join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
    /**
     * Keep track of the last imagenumber, added by the circular buffer
     * that we have seen here
@@ -387,7 +354,8 @@ public class LiveModeTimer {
 
    /**
     * Updates the fps timer (how fast does the camera pump images into the 
-    * circular buffer) and display fps (how fast do we display the images)
+    * circular buffer), display fps (how fast do we display the images) and
+    * the rate of camera images that were never displayed.
     * It is called from tasks that are doing the actual image drawing
     */
    private synchronized void updateFPS() {
@@ -402,10 +370,13 @@ public class LiveModeTimer {
          long diffMs = (now - fpsTimer_) / 1000000;
          if (diffMs > fpsInterval_) {
             double d = diffMs / 1000.0;
+            long cameraFrames = imageNumber_ - oldImageNumber_;
             double fps = fpsCounter_ / d;
-            double dfps = (imageNumber_ - oldImageNumber_) / d;
+            double dfps = cameraFrames / d;
+            double droppedFps = Math.max(0, cameraFrames - fpsCounter_) / d;
             win_.displayStatusLine("fps: " + format_.format(dfps) +
-                    ", display fps: " + format_.format(fps));
+                    ", display fps: " + format_.format(fps) +
+                    ", dropped fps: " + format_.format(droppedFps));
             fpsCounter_ = 0;
             fpsTimer_ = now;
             oldImageNumber_ = imageNumber_;
@@ -415,131 +386,146 @@ public class LiveModeTimer {
       }
    }
 
+   private void stopLiveModeOnError(final Exception ex) {
+      ReportingUtils.logMessage("Stopping live mode because of error...");
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override public void run() {
+            snapLiveManager_.setLiveMode(false);
+            ReportingUtils.showError(ex);
+         }
+      });
+   }
+
    /**
-    * Task executed to display live images when using a single camera
-    * 
-    * @return 
+    * Task of the drain thread: whenever the circular buffer holds a new
+    * image, copies the newest one out, empties the buffer and leaves the
+    * image in the mailbox. Images in between are never copied.
     */
-   private Runnable singleCameraLiveTask() {
+   private Runnable drainTask() {
       return new Runnable() {
          @Override
          public void run() {
-            if (core_.getRemainingImageCount() == 0) {
-               return;
-            }
-            if (win_.windowClosed()) //check is user closed window             
-            {
-               SwingUtilities.invokeLater(new Runnable() {
-                  @Override public void run() { snapLiveManager_.setLiveMode(false); }
-               });
-            } else {
-               try {
-                  // Allow some time for circular buffer to have an image.
-                  TaggedImage ti = null;
-                  long start = System.currentTimeMillis();
-                  while (ti == null) {
-                     try {
-                        ti = core_.getLastTaggedImage();
-                     } catch (Exception e) {
-                        if (!e.getMessage().equals("Circular buffer is empty.")) {
-                           throw e;
-                        }
-                     }
-                     // if we time out, have the function throw the error so that we can exit
-                     if (System.currentTimeMillis() > 20 * fpsInterval_ + start) {
-                        ti = core_.getLastTaggedImage();
-                     }
-                  }
-
-                  // if we have already shown this image, do not do it again.
-                  long imageNumber = MDUtils.getSequenceNumber(ti.tags);
-                  if (setImageNumber(imageNumber)) {
-                     imageQueue_.put(ti);
+            while (!stopRequested_) {
+               if (core_.getRemainingImageCount() == 0) {
+                  try {
+                     Thread.sleep(pollIntervalMs_);
+                  } catch (InterruptedException e) {
+                     return;
                   }
-               } catch (final Exception ex) {
-                  ReportingUtils.logMessage("Stopping live mode because of error...");
+                  continue;
+               }
+               if (win_.windowClosed() || (multiCam_ &&
+                     !studio_.acquisitionExists(SnapLiveManager.SIMPLE_ACQ))) {
                   SwingUtilities.invokeLater(new Runnable() {
-                     @Override public void run() {
-                        snapLiveManager_.setLiveMode(false);
-                        ReportingUtils.showError(ex);
-                     }
+                     @Override public void run() { snapLiveManager_.setLiveMode(false); }
                   });
+                  return;
+               }
+               try {
+                  List<TaggedImage> frame = multiCam_ ?
+                        grabMultiCamFrame() : grabSingleCameraFrame();
+                  if (frame != null) {
+                     frameMailbox_.offer(frame);
+                  }
+               } catch (Exception ex) {
+                  stopLiveModeOnError(ex);
+                  return;
                }
             }
          }
       };
    }
 
-   
-   private Runnable multiCamLiveTask() {
+   /**
+    * Task of the pacer thread: hands the frame in the mailbox to the image
+    * processors, no more often than the live display rate allows
+    */
+   private Runnable pacerTask() {
       return new Runnable() {
          @Override
          public void run() {
-            if (core_.getRemainingImageCount() == 0) {
-               return;
-            }
-            if (win_.windowClosed() || !studio_.acquisitionExists(SnapLiveManager.SIMPLE_ACQ)) {
-               SwingUtilities.invokeLater(new Runnable() {
-                  @Override public void run() { snapLiveManager_.setLiveMode(false); }
-               });
-            } else {
-               try {
-                  String camera = core_.getCameraDevice();
-                  Set<String> cameraChannelsAcquired = new HashSet<String>();
-                  for (int i = 0; i < 2 * multiChannelCameraNrCh_; ++i) {
-                     // Allow some time for circular buffer to have an image.
-                     TaggedImage ti = null;
-                     long start = System.currentTimeMillis();
-                     while (ti == null) {
-                        try {
-                           ti = core_.getNBeforeLastTaggedImage(i);
-                        } catch (Exception e) {
-                           if (!e.getMessage().equals("Circular buffer is empty.")) {
-                              throw e;
-                           }
-                        }
-                        // if we time out, have the function throw the error so that we can exit
-                        if (System.currentTimeMillis() > 20 * fpsInterval_ + start) {
-                           ti = core_.getNBeforeLastTaggedImage(i);
-                        }
-                     }
-
-                     String channelName;
-                     if (ti.tags.has(camera + "-CameraChannelName")) {
-                        channelName = ti.tags.getString(camera + "-CameraChannelName");
-                        if (!cameraChannelsAcquired.contains(channelName)) {
-                           MDUtils.setChannelName(ti.tags, channelName);
-                           int ccIndex = ti.tags.getInt(camera + "-CameraChannelIndex");
-                           MDUtils.setChannelIndex(ti.tags, ccIndex);
-                           if (ccIndex == 0) {
-                              // XXX We do keep track of the image number, but
-                              // we are currently ignoring the check for new
-                              // images here (see the single camera version).
-                              // When fixing this, make sure to handle the
-                              // first frames correctly, even for very slow
-                              // acquisitions (see begin()).
-                              setImageNumber(MDUtils.getSequenceNumber(ti.tags));
-                           }
-                           imageQueue_.put(ti);
-                           cameraChannelsAcquired.add(channelName);
-                        }
-                        if (cameraChannelsAcquired.size() == multiChannelCameraNrCh_) {
-                           break;
-                        }
-                     }
+            long nextFrameTime = System.nanoTime();
+            try {
+               while (!stopRequested_) {
+                  long wait = nextFrameTime - System.nanoTime();
+                  if (wait > 0) {
+                     TimeUnit.NANOSECONDS.sleep(wait);
                   }
-               } catch (final Exception exc) {
-                  ReportingUtils.logMessage("Stopping live mode because of error...");
-                  SwingUtilities.invokeLater(new Runnable() {
-                     @Override public void run() {
-                        snapLiveManager_.setLiveMode(false);
-                        ReportingUtils.showError(exc);
-                     }
-                  });
+                  List<TaggedImage> frame =
+                        frameMailbox_.poll(500, TimeUnit.MILLISECONDS);
+                  if (frame == null) {
+                     continue;
+                  }
+                  for (TaggedImage ti : frame) {
+                     imageQueue_.put(ti);
+                  }
+                  nextFrameTime = Math.max(nextFrameTime + displayIntervalNs_,
+                        System.nanoTime());
                }
+            } catch (InterruptedException e) {
+               // stop() interrupts us
             }
          }
       };
    }
 
+   /**
+    * @return the newest image, or null if it was seen before or the circular
+    * buffer was emptied in the meantime
+    */
+   private List<TaggedImage> grabSingleCameraFrame() throws Exception {
+      TaggedImage ti;
+      try {
+         ti = core_.getLastTaggedImage();
+         core_.clearCircularBuffer();
+      } catch (Exception e) {
+         if (EMPTY_BUFFER_MESSAGE.equals(e.getMessage())) {
+            return null;
+         }
+         throw e;
+      }
+      // if we have already shown this image, do not do it again.
+      if (!setImageNumber(MDUtils.getSequenceNumber(ti.tags))) {
+         return null;
+      }
+      return Collections.singletonList(ti);
+   }
+
+   /**
+    * @return the newest image of each camera channel, or null if the
+    * circular buffer was emptied in the meantime
+    */
+   private List<TaggedImage> grabMultiCamFrame() throws Exception {
+      String camera = core_.getCameraDevice();
+      Set<String> cameraChannelsAcquired = new HashSet<String>();
+      List<TaggedImage> frame = new ArrayList<TaggedImage>(multiChannelCameraNrCh_);
+      try {
+         for (int i = 0; i < 2 * multiChannelCameraNrCh_; ++i) {
+            TaggedImage ti = core_.getNBeforeLastTaggedImage(i);
+            if (ti.tags.has(camera + "-CameraChannelName")) {
+               String channelName = ti.tags.getString(camera + "-CameraChannelName");
+               if (!cameraChannelsAcquired.contains(channelName)) {
+                  MDUtils.setChannelName(ti.tags, channelName);
+                  int ccIndex = ti.tags.getInt(camera + "-CameraChannelIndex");
+                  MDUtils.setChannelIndex(ti.tags, ccIndex);
+                  if (ccIndex == 0) {
+                     setImageNumber(MDUtils.getSequenceNumber(ti.tags));
+                  }
+                  frame.add(ti);
+                  cameraChannelsAcquired.add(channelName);
+               }
+               if (cameraChannelsAcquired.size() == multiChannelCameraNrCh_) {
+                  break;
+               }
+            }
+         }
+         core_.clearCircularBuffer();
+      } catch (Exception e) {
+         if (EMPTY_BUFFER_MESSAGE.equals(e.getMessage())) {
+            return null;
+         }
+         throw e;
+      }
+      return frame.isEmpty() ? null : frame;
+   }
 }
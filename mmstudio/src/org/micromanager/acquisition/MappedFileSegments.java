@@ -0,0 +1,99 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MappedFileSegments.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a finished file, split into fixed size windows
+ * that are mapped lazily. A single MappedByteBuffer cannot exceed 2 GB, and
+ * multipage TIFF files can be up to 4 GB, so windows are needed anyway; they
+ * also keep the address space used on 32-bit JVMs small for files that are
+ * only partially browsed.
+ *
+ * Windows overlap by MAX_VIEW_LENGTH so that any range up to that length is
+ * served as a view of a single window. Longer ranges, or ranges past the end
+ * of the mapped file, are copied through the FileChannel instead.
+ */
+final class MappedFileSegments {
+
+   private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+   // Largest range guaranteed to be served without copying (a 16-bit RGB
+   // plane of a 4k x 4k sensor)
+   private static final long MAX_VIEW_LENGTH = 4096L * 4096 * 6 + 65536;
+
+   private final FileChannel channel_;
+   private final ByteOrder byteOrder_;
+   private final long fileSize_;
+   private final MappedByteBuffer[] windows_;
+
+   MappedFileSegments(FileChannel channel, ByteOrder byteOrder) throws IOException {
+      channel_ = channel;
+      byteOrder_ = byteOrder;
+      fileSize_ = channel.size();
+      windows_ = new MappedByteBuffer[(int) (fileSize_ / WINDOW_SIZE) + 1];
+   }
+
+   /**
+    * Returns a buffer with position 0 and limit length containing the bytes
+    * at [position, position + length) of the file. When possible this is a
+    * view into the mapping and no data is copied; the view must be treated
+    * as read-only.
+    */
+   ByteBuffer view(long position, int length) throws IOException {
+      int index = (int) (position / WINDOW_SIZE);
+      long windowStart = index * WINDOW_SIZE;
+      if (length > MAX_VIEW_LENGTH || position + length > fileSize_) {
+         ByteBuffer copy = ByteBuffer.allocate(length).order(byteOrder_);
+         channel_.read(copy, position);
+         copy.rewind();
+         return copy;
+      }
+      MappedByteBuffer window = getWindow(index, windowStart);
+      ByteBuffer view = window.duplicate();
+      int start = (int) (position - windowStart);
+      view.limit(start + length);
+      view.position(start);
+      return view.slice().order(byteOrder_);
+   }
+
+   private synchronized MappedByteBuffer getWindow(int index, long windowStart)
+         throws IOException {
+      if (windows_[index] == null) {
+         long size = Math.min(WINDOW_SIZE + MAX_VIEW_LENGTH, fileSize_ - windowStart);
+         windows_[index] = channel_.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+      }
+      return windows_[index];
+   }
+
+   /**
+    * Drops all windows. The mappings themselves are released when the
+    * buffers are garbage collected.
+    */
+   synchronized void release() {
+      for (int i = 0; i < windows_.length; i++) {
+         windows_[i] = null;
+      }
+   }
+}
@@ -29,7 +29,7 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
+import java.nio.charset.Charset;
 import java.util.Set;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -38,6 +38,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.imagedisplay.DisplaySettings;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageMetadataCodec;
+import org.micromanager.utils.ImageOffsetMap;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -48,6 +51,7 @@ import org.micromanager.utils.ReportingUtils;
 public class MultipageTiffReader {
       
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
+   private static final Charset UTF8 = Charset.forName("UTF-8");
 
    
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
@@ -65,11 +69,15 @@ public class MultipageTiffReader {
       
    private JSONObject displayAndComments_;
    private JSONObject summaryMetadata_;
+   // Restores the image tags that were written against the summary
+   private ImageMetadataCodec metadataCodec_;
    private int byteDepth_ = 0;;
    private boolean rgb_;
    private boolean writingFinished_;
+   // Non-null when reads are served from a memory mapping of the file
+   private MappedFileSegments mappedFile_;
    
-   private HashMap<String,Long> indexMap_;
+   private ImageOffsetMap indexMap_;
    
    /**
     * This constructor is used for a file that is currently being written
@@ -78,12 +86,13 @@ public class MultipageTiffReader {
    public MultipageTiffReader(JSONObject summaryMD) {
       displayAndComments_ = new JSONObject();
       summaryMetadata_ = summaryMD;
+      metadataCodec_ = new ImageMetadataCodec(summaryMD);
       byteOrder_ = MultipageTiffWriter.BYTE_ORDER;
       getRGBAndByteDepth(summaryMD);
       writingFinished_ = false;
    }
    
-   public void setIndexMap(HashMap<String,Long> indexMap) {
+   public void setIndexMap(ImageOffsetMap indexMap) {
       indexMap_ = indexMap;
    }
    
@@ -107,6 +116,7 @@ public class MultipageTiffReader {
       writingFinished_ = true;
       long firstIFD = readHeader();
       summaryMetadata_ = readSummaryMD();
+      metadataCodec_ = new ImageMetadataCodec(summaryMetadata_);
       try {
          readIndexMap();
       }
@@ -149,6 +159,7 @@ public class MultipageTiffReader {
       writingFinished_ = true;
       long firstIFD = readHeader();
       summaryMetadata_ = readSummaryMD();
+      metadataCodec_ = new ImageMetadataCodec(summaryMetadata_);
 
       fixIndexMap(firstIFD, file.getName());
    }
@@ -206,6 +217,28 @@ public class MultipageTiffReader {
       writingFinished_ = true;
    }
 
+   /**
+    * Serve reads of pixels and metadata from a read-only memory mapping of
+    * the file instead of positional FileChannel reads. Only allowed for
+    * files that have finished writing, since the writer still changes the
+    * file length. Intended for browsing large datasets from disk.
+    */
+   public synchronized void setMemoryMapped(boolean mapped) throws IOException {
+      if (mapped && mappedFile_ == null) {
+         if (!writingFinished_ || fileChannel_ == null) {
+            throw new IOException("Can only memory map finished files");
+         }
+         mappedFile_ = new MappedFileSegments(fileChannel_, byteOrder_);
+      } else if (!mapped && mappedFile_ != null) {
+         mappedFile_.release();
+         mappedFile_ = null;
+      }
+   }
+
+   public boolean isMemoryMapped() {
+      return mappedFile_ != null;
+   }
+
    private void getRGBAndByteDepth(JSONObject md) {
       try {
          String pixelType = MDUtils.getPixelType(md);
@@ -232,14 +265,25 @@ public class MultipageTiffReader {
    }
    
    public TaggedImage readImage(String label) {
-      if (indexMap_.containsKey(label)) {
+      try {
+         return readImage(ImageKey.fromLabel(label));
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+   }
+
+   /**
+    * @param key ImageKey of the image
+    * @return the image, or null if it is not (yet) in this file
+    */
+   public TaggedImage readImage(long key) {
+      long byteOffset = indexMap_.get(key);
+      if (byteOffset != ImageOffsetMap.NO_VALUE) {
          if (fileChannel_ == null) {
             ReportingUtils.logError("Attempted to read image on FileChannel that is null");
             return null;
          }
          try {
-            long byteOffset = indexMap_.get(label);
-            
             IFDData data = readIFD(byteOffset);
             return readTaggedImage(data);
          } catch (IOException ex) {
@@ -256,7 +300,11 @@ public class MultipageTiffReader {
    public Set<String> getIndexKeys() {
       if (indexMap_ == null)
          return null;
-      return indexMap_.keySet();
+      return indexMap_.labelView(false, false);
+   }
+
+   public ImageOffsetMap getIndexMap() {
+      return indexMap_;
    }
 
    private JSONObject readSummaryMD() {
@@ -357,7 +405,15 @@ public class MultipageTiffReader {
       }
    }
    
+   /*
+    * Returned buffers may be read-only views of a memory mapping, so callers
+    * must use absolute get methods and never write to them
+    */
    private ByteBuffer readIntoBuffer(long position, int length) throws IOException {
+      MappedFileSegments mapped = mappedFile_;
+      if (mapped != null) {
+         return mapped.view(position, length);
+      }
       ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
       fileChannel_.read(buffer, position);
       return buffer;
@@ -379,7 +435,7 @@ public class MultipageTiffReader {
          throw new InvalidIndexMapException();
       }
       int numMappings = header.getInt(4);
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageOffsetMap(numMappings);
       ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
       for (int i = 0; i < numMappings; i++) {
          int channel = mapBuffer.getInt(i*20);
@@ -392,7 +448,7 @@ public class MultipageTiffReader {
          }
          //If a duplicate label is read, forget about the previous one
          //if data has been intentionally overwritten, this gives the most current version
-         indexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), imageOffset);
+         indexMap_.put(ImageKey.pack(channel, slice, frame, position), imageOffset);
       }
    }
 
@@ -419,6 +475,12 @@ public class MultipageTiffReader {
    }
 
    private String getString(ByteBuffer buffer) {
+      if (!buffer.hasArray()) {
+         // Memory mapped view: decode in place rather than copying to an array
+         ByteBuffer view = buffer.duplicate();
+         view.rewind();
+         return UTF8.decode(view).toString();
+      }
       try {
          return new String(buffer.array(), "UTF-8");
       } catch (UnsupportedEncodingException ex) {
@@ -428,13 +490,11 @@ public class MultipageTiffReader {
    }
    
    private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
+      ByteBuffer pixelBuffer = readIntoBuffer(data.pixelOffset, (int) data.bytesPerImage);
+      ByteBuffer mdBuffer = readIntoBuffer(data.mdOffset, (int) data.mdLength);
       JSONObject md = new JSONObject();
       try {
-         md = new JSONObject(getString(mdBuffer));
+         md = metadataCodec_.decode(getString(mdBuffer));
       } catch (JSONException ex) {
          ReportingUtils.logError("Error reading image metadata from file");
       }
@@ -450,11 +510,10 @@ public class MultipageTiffReader {
             // need to transform it into RGBA format -- swapping the R and B
             // components and inserting a blank alpha component.
             byte[] pixels = new byte[(int) (4 * data.bytesPerImage / 3)];
-            byte[] source = pixelBuffer.array();
             int numPixels = 0;
             int numComponents = 0;
-            for (int i = 0; i < source.length; ++i) {
-               pixels[i + numPixels] = source[i - (2 * (i % 3)) + 2];
+            for (int i = 0; i < data.bytesPerImage; ++i) {
+               pixels[i + numPixels] = pixelBuffer.get(i - (2 * (i % 3)) + 2);
                numComponents++;
                if (numComponents == 3) {
                   // Insert a blank alpha byte to cap off the pixel.
@@ -479,12 +538,18 @@ public class MultipageTiffReader {
          }
       } else {
          if (byteDepth_ == 1) {
-            return new TaggedImage(pixelBuffer.array(), md);
-         } else {
-            short[] pix = new short[pixelBuffer.capacity()/2];
-            for (int i = 0; i < pix.length; i++ ) {
-               pix[i] = pixelBuffer.getShort(i*2);
+            if (pixelBuffer.hasArray() && pixelBuffer.arrayOffset() == 0
+                  && pixelBuffer.array().length == pixelBuffer.limit()) {
+               return new TaggedImage(pixelBuffer.array(), md);
             }
+            byte[] pix = new byte[pixelBuffer.limit()];
+            pixelBuffer.rewind();
+            pixelBuffer.get(pix);
+            return new TaggedImage(pix, md);
+         } else {
+            short[] pix = new short[pixelBuffer.limit()/2];
+            pixelBuffer.rewind();
+            pixelBuffer.asShortBuffer().get(pix);
             return new TaggedImage(pix, md);
          }
       }
@@ -538,6 +603,7 @@ public class MultipageTiffReader {
    }
    
    public void close() throws IOException {
+      setMemoryMapped(false);
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -562,7 +628,7 @@ public class MultipageTiffReader {
    // the ImageDescription tag location 
    private void fixIndexMap(long firstIFD, String fileName) throws IOException {
       long filePosition = firstIFD;
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageOffsetMap();
       long progBarMax = (fileChannel_.size() / 2L);
       final ProgressBar progressBar = new ProgressBar("Fixing " + fileName, 0, 
               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
@@ -583,12 +649,8 @@ public class MultipageTiffReader {
                nextIFDOffsetLocation = data.nextIFDOffsetLocation;
                continue;
             }
-            String label;
-            label = MDUtils.getLabel(ti.tags);
-            if (label == null ) {
-               break;
-            }          
-            indexMap_.put(label, filePosition);
+            //missing indices end recovery, like any other read error
+            indexMap_.put(ImageKey.fromTags(ti.tags), filePosition);
             
             final int progress = (int) (filePosition/2L);
             SwingUtilities.invokeLater(new Runnable() {
@@ -656,14 +718,12 @@ public class MultipageTiffReader {
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
       int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
+      for (long key : indexMap_.keys()) {
+         buffer.putInt(4 * position++, ImageKey.channel(key));
+         buffer.putInt(4 * position++, ImageKey.slice(key));
+         buffer.putInt(4 * position++, ImageKey.frame(key));
+         buffer.putInt(4 * position++, ImageKey.position(key));
+         buffer.putInt(4 * position++, (int) indexMap_.get(key));
       }
       fileChannel_.write(buffer, filePosition);
 
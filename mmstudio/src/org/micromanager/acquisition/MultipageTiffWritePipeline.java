@@ -0,0 +1,288 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffWritePipeline.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Write pipeline shared by all MultipageTiffWriters of one
+ * TaggedImageStorageMultipageTiff.
+ *
+ * Each image (IFD, pixels, resolution values and metadata) is laid out in a
+ * single pooled direct buffer and written with one positional write on a
+ * single background thread, together with its index map entry. The number
+ * of image buffers in flight is bounded: when all of them are waiting to be
+ * written, the acquisition thread blocks in acquireImageBuffer() until the
+ * writing thread returns one, instead of polling the queue size.
+ *
+ * In non-fast storage mode all tasks are run on the calling thread.
+ */
+public final class MultipageTiffWritePipeline {
+
+   // Maximum number of image buffers queued for writing at any time
+   public static final int DEFAULT_MAX_BUFFERS = 20;
+   // Extra room in each pooled buffer for the IFD and the image metadata, so
+   // that typical images never need a one-off allocation
+   private static final int BUFFER_HEADROOM = 65536;
+
+   private final boolean asynchronous_;
+   private final int maxBuffers_;
+   private final ThreadPoolExecutor executor_;
+
+   // Pool of direct buffers, all of capacity bufferCapacity_
+   private final LinkedBlockingQueue<ByteBuffer> freeBuffers_ =
+         new LinkedBlockingQueue<ByteBuffer>();
+   private int bufferCapacity_ = 0;
+   private int allocatedBuffers_ = 0;
+   private final Object bufferLock_ = new Object();
+
+   private final AtomicInteger pendingImages_ = new AtomicInteger(0);
+   private final AtomicLong bytesWritten_ = new AtomicLong(0);
+   private final AtomicLong imagesWritten_ = new AtomicLong(0);
+   private final AtomicLong stallNanos_ = new AtomicLong(0);
+   private final AtomicLong writeNanos_ = new AtomicLong(0);
+   private volatile long firstWriteTime_ = 0;
+   private volatile long lastWriteTime_ = 0;
+
+   public MultipageTiffWritePipeline(boolean asynchronous) {
+      this(asynchronous, DEFAULT_MAX_BUFFERS);
+   }
+
+   public MultipageTiffWritePipeline(boolean asynchronous, int maxBuffers) {
+      asynchronous_ = asynchronous;
+      // HACK: if we are running on 32-bit mode, then we don't want to cache
+      // many direct buffers, due to increased memory constraints on 32-bit
+      // systems.
+      if ("32".equals(System.getProperty("sun.arch.data.model"))) {
+         maxBuffers = Math.min(maxBuffers, 2);
+      }
+      maxBuffers_ = Math.max(1, maxBuffers);
+      if (asynchronous_) {
+         // Note: Code elsewhere assumes that the writing task is performed on
+         // a _single_ background thread.
+         executor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+               new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     return new Thread(r, "Multipage TIFF writing thread");
+                  }
+               });
+      } else {
+         executor_ = null;
+      }
+   }
+
+   /**
+    * Run a task on the writing thread, after all previously submitted tasks
+    */
+   public void execute(Runnable task) {
+      if (asynchronous_) {
+         executor_.execute(task);
+      } else {
+         task.run();
+      }
+   }
+
+   /**
+    * Get a direct buffer with room for at least capacity bytes, positioned at
+    * 0 with its limit set to capacity. Blocks while the maximum number of
+    * buffers is waiting to be written.
+    */
+   public ByteBuffer acquireImageBuffer(int capacity) {
+      ByteBuffer buffer = null;
+      synchronized (bufferLock_) {
+         if (capacity > bufferCapacity_) {
+            // Image size grew (or first image): start a new generation of
+            // buffers. Older buffers are dropped when they are released.
+            freeBuffers_.clear();
+            allocatedBuffers_ = 0;
+            bufferCapacity_ = capacity + BUFFER_HEADROOM;
+         }
+         buffer = freeBuffers_.poll();
+         if (buffer == null && allocatedBuffers_ < maxBuffers_) {
+            allocatedBuffers_++;
+            buffer = ByteBuffer.allocateDirect(bufferCapacity_).
+                  order(MultipageTiffWriter.BYTE_ORDER);
+         }
+      }
+      if (buffer == null) {
+         long start = System.nanoTime();
+         while (buffer == null) {
+            try {
+               buffer = freeBuffers_.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+               ReportingUtils.logError(ex);
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+         stallNanos_.addAndGet(System.nanoTime() - start);
+         if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity).
+                  order(MultipageTiffWriter.BYTE_ORDER);
+         }
+      }
+      buffer.clear();
+      buffer.limit(capacity);
+      return buffer;
+   }
+
+   private void releaseImageBuffer(ByteBuffer buffer) {
+      synchronized (bufferLock_) {
+         if (buffer.capacity() == bufferCapacity_) {
+            freeBuffers_.offer(buffer);
+         }
+      }
+   }
+
+   /**
+    * Queue a coalesced image for writing: imageBuffer (from
+    * acquireImageBuffer) goes to imageOffset and the optional index map
+    * entry to indexEntryOffset. imageBuffer is returned to the pool
+    * afterwards and must not be touched by the caller again.
+    */
+   public void writeImage(final FileChannel channel, final ByteBuffer imageBuffer,
+         final long imageOffset, final ByteBuffer indexEntry,
+         final long indexEntryOffset) {
+      pendingImages_.incrementAndGet();
+      execute(new Runnable() {
+         @Override
+         public void run() {
+            long start = System.nanoTime();
+            try {
+               imageBuffer.rewind();
+               long bytes = writeFully(channel, imageBuffer, imageOffset);
+               if (indexEntry != null) {
+                  indexEntry.rewind();
+                  bytes += writeFully(channel, indexEntry, indexEntryOffset);
+               }
+               bytesWritten_.addAndGet(bytes);
+               imagesWritten_.incrementAndGet();
+            } catch (IOException e) {
+               ReportingUtils.logError(e);
+            } finally {
+               releaseImageBuffer(imageBuffer);
+               pendingImages_.decrementAndGet();
+               long end = System.nanoTime();
+               writeNanos_.addAndGet(end - start);
+               if (firstWriteTime_ == 0) {
+                  firstWriteTime_ = start;
+               }
+               lastWriteTime_ = end;
+            }
+         }
+      });
+   }
+
+   private static long writeFully(FileChannel channel, ByteBuffer buffer,
+         long position) throws IOException {
+      long written = 0;
+      while (buffer.hasRemaining()) {
+         written += channel.write(buffer, position + written);
+      }
+      return written;
+   }
+
+   /**
+    * Stop accepting tasks and wait for everything queued to be written
+    */
+   public void shutdown() {
+      if (!asynchronous_ || executor_.isShutdown()) {
+         return;
+      }
+      executor_.shutdown();
+      try {
+         //now that shutdown has been called, need to wait for tasks to finish
+         while (!executor_.awaitTermination(4, TimeUnit.SECONDS)) {
+            ReportingUtils.logMessage("Waiting for image stack file finishing to complete");
+         }
+      } catch (InterruptedException e) {
+         ReportingUtils.logError("File finishing thread interrupted");
+         Thread.currentThread().interrupt();
+      }
+      synchronized (bufferLock_) {
+         freeBuffers_.clear();
+         allocatedBuffers_ = 0;
+      }
+      ReportingUtils.logMessage("Multipage TIFF writing: " + imagesWritten_.get() +
+            " images, " + getBytesPerSecond() / 1048576 + " MB/s, acquisition thread stalled for " +
+            getStallTimeMs() + " ms");
+   }
+
+   public boolean isShutdown() {
+      return asynchronous_ && executor_.isShutdown();
+   }
+
+   /**
+    * @return number of images waiting to be written
+    */
+   public int getQueueDepth() {
+      return pendingImages_.get();
+   }
+
+   /**
+    * @return number of tasks of any kind waiting for the writing thread
+    */
+   public int getTaskQueueDepth() {
+      return asynchronous_ ? executor_.getQueue().size() : 0;
+   }
+
+   public long getImagesWritten() {
+      return imagesWritten_.get();
+   }
+
+   public long getBytesWritten() {
+      return bytesWritten_.get();
+   }
+
+   /**
+    * @return average write rate between the first and the latest image write
+    */
+   public double getBytesPerSecond() {
+      long elapsed = lastWriteTime_ - firstWriteTime_;
+      if (firstWriteTime_ == 0 || elapsed <= 0) {
+         return 0;
+      }
+      return bytesWritten_.get() / (elapsed / 1e9);
+   }
+
+   /**
+    * @return time spent by the writing thread inside file writes
+    */
+   public long getWriteTimeMs() {
+      return writeNanos_.get() / 1000000;
+   }
+
+   /**
+    * @return total time the acquisition thread spent waiting for a free buffer
+    */
+   public long getStallTimeMs() {
+      return stallNanos_.get() / 1000000;
+   }
+}
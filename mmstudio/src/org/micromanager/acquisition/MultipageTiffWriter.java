@@ -27,6 +27,7 @@ import ij.io.TiffDecoder;
 import ij.process.LUT;
 import java.awt.Color;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
@@ -34,16 +35,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageMetadataCodec;
+import org.micromanager.utils.ImageOffsetMap;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -93,19 +92,20 @@ public class MultipageTiffWriter {
    private TaggedImageStorageMultipageTiff masterMPTiffStorage_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
-   private ThreadPoolExecutor writingExecutor_;
+   private MultipageTiffWritePipeline writePipeline_;
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
    private int bufferPosition_;
    private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1;
-   private HashMap<String, Long> indexMap_;
+   //0 if positions are split across files or the number is unknown
+   private int numPositions_ = 0;
+   private ImageOffsetMap indexMap_;
    private long nextIFDOffsetLocation_ = -1;
    private boolean rgb_ = false;
    private int byteDepth_, imageWidth_, imageHeight_, bytesPerImagePixels_;
    private long resNumerator_ = 1, resDenomenator_ = 1;
    private double zStepUm_ = 1;
-   private LinkedList<ByteBuffer> buffers_;
    private boolean firstIFD_ = true;
    private long omeDescriptionTagPosition_;
    private long ijDescriptionTagPosition_;
@@ -115,6 +115,8 @@ public class MultipageTiffWriter {
    private MultipageTiffReader reader_;
    private long blankPixelsOffset_ = -1;
    private boolean fastStorageMode_;
+   //Serializes image tags into a buffer reused for every image
+   private ImageMetadataCodec metadataCodec_;
    
    public MultipageTiffWriter(String directory, String filename, 
            JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
@@ -153,12 +155,15 @@ public class MultipageTiffWriter {
              ReportingUtils.showError("Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterMPTiffStorage_.getWritingExecutor();
-      indexMap_ = new HashMap<String, Long>();
+      writePipeline_ = masterMPTiffStorage_.getWritePipeline();
+      //dense index when all the images of this file have known coordinates
+      indexMap_ = numPositions_ > 0 ?
+              new ImageOffsetMap(numChannels_, numSlices_, numFrames_, numPositions_) :
+              new ImageOffsetMap();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(indexMap_);
-      buffers_ = new LinkedList<ByteBuffer>();
       
+      metadataCodec_ = new ImageMetadataCodec(summaryMD);
       writeMMHeaderAndSummaryMD(summaryMD);
    }
    
@@ -166,31 +171,8 @@ public class MultipageTiffWriter {
       return ByteBuffer.allocateDirect(capacity).order(BYTE_ORDER);
    }
    
-   private BlockingQueue<ByteBuffer> currentImageByteBuffers_ = new LinkedBlockingQueue<ByteBuffer>(10);
-   private int currentImageByteBufferCapacity_ = 0;
-           
-   private ByteBuffer allocateByteBufferMemo(int capacity) {
-       // HACK: if we are running on 32-bit mode, then we don't want to cache
-       // our direct buffers, due to increased memory constraints on 32-bit
-       // systems.
-       if (System.getProperty("sun.arch.data.model").equals("32")) {
-           return allocateByteBuffer(capacity);
-       }
-       if (capacity != currentImageByteBufferCapacity_) {
-           currentImageByteBuffers_.clear();
-           currentImageByteBufferCapacity_ = capacity;
-       }
-       
-       ByteBuffer cachedBuf = currentImageByteBuffers_.poll();
-       return (cachedBuf != null) ? cachedBuf : allocateByteBuffer(capacity);
-   }
-   
    private void executeWritingTask(Runnable writingTask) {
-      if (fastStorageMode_) {
-         writingExecutor_.execute(writingTask);
-      } else {
-         writingTask.run();
-      }
+      writePipeline_.execute(writingTask);
    }
    
    private void fileChannelWrite(final ByteBuffer buffer, final long position) {
@@ -201,9 +183,6 @@ public class MultipageTiffWriter {
              try {
                 buffer.rewind();
                 fileChannel_.write(buffer, position);
-                if (buffer.limit() == currentImageByteBufferCapacity_) {
-                    currentImageByteBuffers_.offer(buffer);
-                }
               } catch (IOException e) {
                 ReportingUtils.logError(e);
               }
@@ -211,25 +190,6 @@ public class MultipageTiffWriter {
         });
    }
    
-   private void fileChannelWrite(final ByteBuffer[] buffers) {
-      executeWritingTask(
-        new Runnable() {
-           @Override
-           public void run() {
-             try {
-                fileChannel_.write(buffers);
-                for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
-                        currentImageByteBuffers_.offer(buffer);
-                    }
-                }
-              } catch (IOException e) {
-                ReportingUtils.logError(e);
-              } 
-           }
-        });
-   }
-   
    public MultipageTiffReader getReader() {
       return reader_;
    }
@@ -238,7 +198,7 @@ public class MultipageTiffWriter {
       return fileChannel_;
    }
    
-   public HashMap<String, Long> getIndexMap() {
+   public ImageOffsetMap getIndexMap() {
       return indexMap_;
    }
    
@@ -280,12 +240,9 @@ public class MultipageTiffWriter {
 
       
       //1 byte for each byte of UTF-8-encoded summary md
-      ByteBuffer[] buffers = new ByteBuffer[3];
-      buffers[0] = headerBuffer;
-      buffers[1] = ByteBuffer.wrap(summaryMDBytes);
-      buffers[2] = indexMapBuffer;
-      
-      fileChannelWrite(buffers);
+      fileChannelWrite(headerBuffer, 0);
+      fileChannelWrite(ByteBuffer.wrap(summaryMDBytes), headerBuffer.capacity());
+      fileChannelWrite(indexMapBuffer, headerBuffer.capacity() + mdLength);
       filePosition_ += headerBuffer.capacity() + mdLength +indexMapSpace;
    }
    
@@ -314,6 +271,18 @@ public class MultipageTiffWriter {
     * OME/IJ metadata, and truncates the file to a reasonable length
     */
    public void close(String omeXML) throws IOException {
+      close(omeXML, null);
+   }
+
+   /**
+    * Like close(String), with the OME-XML copied from a file, which must not
+    * be changed or deleted until the write pipeline has finished.
+    */
+   public void close(File omeXMLFile) throws IOException {
+      close(null, omeXMLFile);
+   }
+
+   private void close(String omeXML, File omeXMLFile) throws IOException {
       String summaryComment = "";
       try 
       {
@@ -328,7 +297,11 @@ public class MultipageTiffWriter {
 
       if (omeTiff_) {
          try {
-            writeImageDescription(omeXML, omeDescriptionTagPosition_);
+            if (omeXMLFile != null) {
+               writeImageDescription(omeXMLFile, omeDescriptionTagPosition_);
+            } else {
+               writeImageDescription(omeXML, omeDescriptionTagPosition_);
+            }
          } catch (Exception ex) {
             ReportingUtils.showError("Error writing OME metadata");
          }
@@ -355,7 +328,7 @@ public class MultipageTiffWriter {
       });
    }
    
-   public boolean hasSpaceForFullOMEMetadata(int length) {
+   public boolean hasSpaceForFullOMEMetadata(long length) {
       //5 MB extra padding..just to be safe
       int extraPadding = 5000000; 
       long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
@@ -365,8 +338,19 @@ public class MultipageTiffWriter {
       return true;
    }
    
-   public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
+   /**
+    * Serialize image tags for writeImage(), without the summary, which the
+    * file holds once, but with every other tag, so that any reader of the
+    * file sees them. The returned buffer is only valid until the next call.
+    */
+   public ByteBuffer encodeMetadata(JSONObject tags) throws JSONException {
+      return metadataCodec_.serialize(tags);
+   }
+   
+   /**
+    * @param mdLength length of the encoded image tags
+    */
+   public boolean hasSpaceToWrite(int mdLength, int omeMDLength) {
       int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
@@ -387,58 +371,40 @@ public class MultipageTiffWriter {
    }
    
    public void writeBlankImage(String label) throws IOException {
-      writeBlankIFD();
-      writeBuffers();
+      long offset = filePosition_;
+      ByteBuffer imageBuffer = writeBlankIFD();
+      writePipeline_.writeImage(fileChannel_, imageBuffer, offset, null, 0);
    }
         
-   public void writeImage(TaggedImage img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
-            }
-         }
-      }
+   /**
+    * @param metadata image tags from encodeMetadata()
+    */
+   public void writeImage(TaggedImage img, ByteBuffer metadata) throws IOException {
       long offset = filePosition_;
-      writeIFD(img);
-      addToIndexMap(MDUtils.getLabel(img.tags), offset);
-      writeBuffers();
-      //wait until image has finished writing to return
-//      int size = writingExecutor_.getQueue().size();
-//      while (size > 0) {
-//         size = writingExecutor_.getQueue().size();
-//      }
+      ByteBuffer imageBuffer = writeIFD(img, metadata);
+      long key;
+      try {
+         key = ImageKey.fromTags(img.tags);
+      } catch (JSONException ex) {
+         throw new IOException("Image indices missing from tags: " + ex.getMessage());
+      }
+      ByteBuffer indexEntry = createIndexMapEntry(key, offset);
+      //IFD, pixels, metadata and index map entry all go out in one task
+      writePipeline_.writeImage(fileChannel_, imageBuffer, offset, indexEntry, indexMapPosition_);
+      indexMapPosition_ += 20;
    }
    
-   private void addToIndexMap(String label, long offset) {
+   private ByteBuffer createIndexMapEntry(long key, long offset) {
       //If a duplicate label is received, forget about the previous one
       //this allows overwriting of images without loss of data
-      indexMap_.put(label, offset);
+      indexMap_.put(key, offset);
       ByteBuffer buffer = allocateByteBuffer( 20 );
-      String[] indices = label.split("_");
-      for (int i = 0; i < 4; i++) {
-         buffer.putInt( 4*i , Integer.parseInt(indices[i]));
-      }
-      buffer.putInt(16, new Long(offset).intValue());
-      fileChannelWrite(buffer,indexMapPosition_);
-      indexMapPosition_ += 20;  
-   }
-   
-   private void writeBuffers() throws IOException {
-      ByteBuffer[] buffs = new ByteBuffer[buffers_.size()];
-      for (int i = 0; i < buffs.length; i++) {
-         buffs[i] = buffers_.removeFirst();
-      }
-      fileChannelWrite(buffs);
+      buffer.putInt(0, ImageKey.channel(key));
+      buffer.putInt(4, ImageKey.slice(key));
+      buffer.putInt(8, ImageKey.frame(key));
+      buffer.putInt(12, ImageKey.position(key));
+      buffer.putInt(16, (int) offset);
+      return buffer;
    }
    
     private long unsignInt(int i) {
@@ -450,7 +416,7 @@ public class MultipageTiffWriter {
    }
    
    public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
-      long byteOffset = indexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));      
+      long byteOffset = indexMap_.get(ImageKey.pack(channel, slice, frame, position));
       ByteBuffer buffer = ByteBuffer.allocate(2).order(BYTE_ORDER);
       fileChannel_.read(buffer, byteOffset);
       int numEntries = buffer.getChar(0);
@@ -484,21 +450,20 @@ public class MultipageTiffWriter {
       fileChannelWrite(pixBuff, pixelOffset); 
    }
 
-   private void writeIFD(TaggedImage img) throws IOException {
+   private ByteBuffer writeIFD(TaggedImage img, ByteBuffer metadata) throws IOException {
       char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
-      if (img.tags.has("Summary")) {
-         img.tags.remove("Summary");
-      }
-      byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
-      mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+      //null terminated TIFF ASCII string
+      int mdLength = metadata.remaining() + 1;
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
+     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdLength + bytesPerImagePixels_;
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
+     //IFD, pixels, resolution and metadata are contiguous in the file, so
+     //lay them out in a single buffer that gets written in one go
+     ByteBuffer ifdBuffer = writePipeline_.acquireImageBuffer(totalBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
      long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
@@ -539,8 +504,8 @@ public class MultipageTiffWriter {
          ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
-      tagDataOffset += mdBytes.length;
+      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdLength,tagDataOffset);
+      tagDataOffset += mdLength;
       //NextIFDOffset
       ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
       bufferPosition_ += 4;
@@ -550,13 +515,19 @@ public class MultipageTiffWriter {
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
       }
-      buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img.pix));
-      buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(mdBytes));
+      int position = IFDandBitDepthBytes;
+      putPixels(ifdBuffer, position, img.pix);
+      position += bytesPerImagePixels_;
+      putResolutionValues(ifdBuffer, position);
+      position += 16;
+      ifdBuffer.position(position);
+      ifdBuffer.put(metadata);
+      ifdBuffer.put((byte) 0);
+      ifdBuffer.rewind();
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
+      return ifdBuffer;
    }
 
    private void writeIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) throws IOException {
@@ -572,13 +543,11 @@ public class MultipageTiffWriter {
       bufferPosition_ += 12;
    }
 
-   private ByteBuffer getResolutionValuesBuffer() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(16);
-      buffer.putInt(0,(int)resNumerator_);
-      buffer.putInt(4,(int)resDenomenator_);
-      buffer.putInt(8,(int)resNumerator_);
-      buffer.putInt(12,(int)resDenomenator_);
-      return buffer;
+   private void putResolutionValues(ByteBuffer buffer, int position) {
+      buffer.putInt(position, (int) resNumerator_);
+      buffer.putInt(position + 4, (int) resDenomenator_);
+      buffer.putInt(position + 8, (int) resNumerator_);
+      buffer.putInt(position + 12, (int) resDenomenator_);
    }
 
    public void setAbortedNumFrames(int n) {
@@ -586,57 +555,45 @@ public class MultipageTiffWriter {
    }
 
    private ByteBuffer getPixelBuffer(Object pixels) throws IOException {
+      ByteBuffer buffer = allocateByteBuffer(bytesPerImagePixels_);
+      putPixels(buffer, 0, pixels);
+      buffer.rewind();
+      return buffer;
+   }
+
+   /*
+    * Copies pixels into buffer starting at position, converting RGB images
+    * from BGRA to RGB on the way
+    */
+   private void putPixels(ByteBuffer buffer, int position, Object pixels) {
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) pixels;
-            byte[] rgbaPix = new byte[originalPix.length * 3 / 4];
-            int count = 0;
-            for (int i = 0; i < originalPix.length; i++) {
-               //skip alpha channel
-               if ((i + 1) % 4 != 0) {
-                  //swap R and B for correct format
-                  if ((i + 1) % 4 == 1 ) {
-                     rgbaPix[count] = originalPix[i + 2];
-                  } else if ((i + 1) % 4 == 3) {
-                     rgbaPix[count] = originalPix[i - 2];
-                  } else {                      
-                     rgbaPix[count] = originalPix[i];
-                  }
-                  count++;
-               }
+            int count = position;
+            for (int i = 0; i < originalPix.length; i += 4) {
+               //swap R and B for correct format, skip alpha channel
+               buffer.put(count, originalPix[i + 2]);
+               buffer.put(count + 1, originalPix[i + 1]);
+               buffer.put(count + 2, originalPix[i]);
+               count += 3;
             }
-            return ByteBuffer.wrap(rgbaPix);
          } else {
             short[] originalPix = (short[]) pixels;
-            short[] rgbaPix = new short[originalPix.length * 3 / 4];
-            int count = 0;
-            for (int i = 0; i < originalPix.length; i++) {
-               if ((i + 1) % 4 != 0) {
-                  //swap R and B for correct format
-                  if ((i + 1) % 4 == 1 ) {
-                     rgbaPix[count] = originalPix[i + 2];
-                  } else if ((i + 1) % 4 == 3) {
-                     rgbaPix[count] = originalPix[i - 2];
-                  } else {                      
-                     rgbaPix[count] = originalPix[i];
-                  }
-                  count++;
-               }
+            int count = position;
+            for (int i = 0; i < originalPix.length; i += 4) {
+               //swap R and B for correct format, skip alpha channel
+               buffer.putShort(count, originalPix[i + 2]);
+               buffer.putShort(count + 2, originalPix[i + 1]);
+               buffer.putShort(count + 4, originalPix[i]);
+               count += 6;
             }
-            ByteBuffer buffer = allocateByteBufferMemo(rgbaPix.length * 2);
-            buffer.rewind();
-            buffer.asShortBuffer().put(rgbaPix);
-            return buffer;
          }
       } else {
+         buffer.position(position);
          if (byteDepth_ == 1) {
-            return ByteBuffer.wrap((byte[]) pixels);
+            buffer.put((byte[]) pixels);
          } else {
-            short[] pix = (short[]) pixels;
-            ByteBuffer buffer = allocateByteBufferMemo(pix.length * 2);
-            buffer.rewind();
-            buffer.asShortBuffer().put(pix);
-            return buffer;
+            buffer.asShortBuffer().put((short[]) pixels);
          }
       }
    }
@@ -646,6 +603,9 @@ public class MultipageTiffWriter {
       numChannels_ = MDUtils.getNumChannels(summaryMD);
       numFrames_ = MDUtils.getNumFrames(summaryMD);
       numSlices_ = MDUtils.getNumSlices(summaryMD);
+      if (!splitByPosition && summaryMD.has("Positions")) {
+         numPositions_ = Math.max(1, MDUtils.getNumPositions(summaryMD));
+      }
       imageWidth_ = MDUtils.getWidth(summaryMD);
       imageHeight_ = MDUtils.getHeight(summaryMD);
       String pixelType = MDUtils.getPixelType(summaryMD);
@@ -875,6 +835,46 @@ public class MultipageTiffWriter {
       filePosition_ += bytes.length;
    }
 
+   /*
+    * Writes the contents of a (UTF-8) text file as image description,
+    * streaming it from the file rather than holding it in memory
+    */
+   private void writeImageDescription(final File textFile, long imageDescriptionTagOffset) throws IOException {
+      final long textLength = textFile.length();
+      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
+      ifdCountAndValueBuffer.putInt(0, (int) (textLength + 1));
+      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
+      fileChannelWrite(ifdCountAndValueBuffer, imageDescriptionTagOffset + 4);
+
+      final long position = filePosition_;
+      executeWritingTask(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               FileInputStream in = new FileInputStream(textFile);
+               try {
+                  FileChannel source = in.getChannel();
+                  long copied = 0;
+                  while (copied < textLength) {
+                     long n = fileChannel_.transferFrom(source, position + copied, textLength - copied);
+                     if (n <= 0) {
+                        throw new IOException("Couldn't copy " + textFile);
+                     }
+                     copied += n;
+                  }
+               } finally {
+                  in.close();
+               }
+            } catch (IOException e) {
+               ReportingUtils.logError(e);
+            }
+         }
+      });
+      // null terminate TIFF ASCII string
+      fileChannelWrite(ByteBuffer.wrap(new byte[] {0}), position + textLength);
+      filePosition_ += textLength + 1;
+   }
+
    private byte[] getBytesFromString(String s) {
       try {
          return s.getBytes("UTF-8");
@@ -935,7 +935,7 @@ public class MultipageTiffWriter {
       filePosition_ += numReservedBytes + 8;
    }
   
-   private void writeBlankIFD() throws IOException {
+   private ByteBuffer writeBlankIFD() throws IOException {
 //      boolean blankPixelsAlreadyWritten = blankPixelsOffset_ != -1;
       boolean blankPixelsAlreadyWritten = false;
 
@@ -951,7 +951,9 @@ public class MultipageTiffWriter {
              + (blankPixelsAlreadyWritten ? 0 : bytesPerImagePixels_);
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
+     //IFD, pixels, resolution and metadata are contiguous in the file, so
+     //lay them out in a single buffer that gets written in one go
+     ByteBuffer ifdBuffer = writePipeline_.acquireImageBuffer(totalBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
      long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
@@ -1011,14 +1013,22 @@ public class MultipageTiffWriter {
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
       }
-      buffers_.add(ifdBuffer);
+      int position = IFDandBitDepthBytes;
       if (!blankPixelsAlreadyWritten) {
-         buffers_.add(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
+         //pooled buffers are reused, so blank pixels have to be zeroed explicitly
+         for (int i = 0; i < bytesPerImagePixels_; i++) {
+            ifdBuffer.put(position + i, (byte) 0);
+         }
+         position += bytesPerImagePixels_;
       }
-      buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(mdBytes));
+      putResolutionValues(ifdBuffer, position);
+      position += 16;
+      ifdBuffer.position(position);
+      ifdBuffer.put(mdBytes);
+      ifdBuffer.rewind();
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
+      return ifdBuffer;
    }
 }
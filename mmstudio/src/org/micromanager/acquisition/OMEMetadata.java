@@ -21,7 +21,19 @@
 //
 package org.micromanager.acquisition;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.TreeMap;
 import loci.common.DateTools;
 import loci.common.services.ServiceFactory;
@@ -32,34 +44,60 @@ import ome.units.UNITS;
 import ome.units.quantity.Length;
 import ome.units.quantity.Time;
 import ome.xml.model.primitives.Color;
-import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 import ome.xml.model.primitives.Timestamp;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageOffsetMap;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
+/**
+ * OME-XML metadata of a multipage TIFF dataset.  Everything but the TiffData
+ * and Plane elements is kept in a Bio-Formats metadata object; those two,
+ * one or two per image, are appended to a temporary file of fixed size
+ * records as images arrive, and are spliced into the Pixels elements when
+ * the XML is written at the end.  Memory use thus doesn't grow with the
+ * number of planes beyond a few bytes per plane for the indices.
+ */
 public class OMEMetadata {
 
    private IMetadata metadata_;
    private TaggedImageStorageMultipageTiff mptStorage_;
    private TreeMap<Integer, Indices> seriesIndices_ = new TreeMap<Integer, Indices>();
    private int numSlices_, numChannels_;
-   private TreeMap<String, Integer> tiffDataIndexMap_;
+   // record number of the TiffData of each image, by ImageKey
+   private ImageOffsetMap tiffDataIndexMap_;
+   private PlaneRecords planeRecords_;
+   // file names and UUIDs referenced by TiffData records
+   private ArrayList<String> fileNames_ = new ArrayList<String>();
+   private ArrayList<String> fileUUIDs_ = new ArrayList<String>();
+   private HashMap<String, Integer> fileIndices_ = new HashMap<String, Integer>();
    
    private class Indices {
       //specific to each series independent of file
       int tiffDataIndex_ = -1;
       //specific to each series indpeendent of file
       int planeIndex_ = 0;
+      //records of the series, in order
+      int[] records_ = new int[64];
+      
+      void addRecord(int record) {
+         if (tiffDataIndex_ == records_.length) {
+            int[] records = new int[2 * records_.length];
+            System.arraycopy(records_, 0, records, 0, tiffDataIndex_);
+            records_ = records;
+         }
+         records_[tiffDataIndex_++] = record;
+      }
    }
    
    public OMEMetadata(TaggedImageStorageMultipageTiff mpt) {
       mptStorage_ = mpt;
-      tiffDataIndexMap_ = new TreeMap<String,Integer>();
+      tiffDataIndexMap_ = new ImageOffsetMap();
       metadata_ = MetadataTools.createOMEXMLMetadata();
    }
    
@@ -75,18 +113,139 @@ public class OMEMetadata {
       }
    }
 
-   @Override
-   public String toString() {
+   /**
+    * Writes the complete OME-XML, followed by a space like the string ImageJ
+    * and earlier versions stored, to file.  Deletes the temporary plane
+    * records; no more images can be added afterwards.
+    * @return length of the file in bytes
+    */
+   public synchronized long writeXML(File file) throws IOException {
+      String xml;
       try {
          OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
-         return service.getOMEXML(metadata_) + " ";
+         xml = service.getOMEXML(metadata_);
       } catch (Exception ex) {
-         ReportingUtils.logError(ex);
-         return "";
+         throw new IOException("Couldn't generate OME metadata: " + ex.getMessage());
+      }
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+              new FileOutputStream(file), "UTF-8"), 1 << 16);
+      try {
+         // the n-th Pixels element belongs to series n
+         int series = 0;
+         int start = 0;
+         int tag = findPixelsElement(xml, 0);
+         while (tag >= 0) {
+            int tagEnd = xml.indexOf('>', tag);
+            if (xml.charAt(tagEnd - 1) == '/') {
+               out.write(xml, start, tagEnd - 1 - start);
+               out.write(">");
+               writeSeriesElements(out, series);
+               out.write("</Pixels>");
+               start = tagEnd + 1;
+            } else {
+               int end = xml.indexOf("</Pixels>", tagEnd);
+               out.write(xml, start, end - start);
+               writeSeriesElements(out, series);
+               start = end;
+            }
+            series++;
+            tag = findPixelsElement(xml, start);
+         }
+         out.write(xml, start, xml.length() - start);
+         out.write(" ");
+      } finally {
+         out.close();
+         if (planeRecords_ != null) {
+            planeRecords_.close();
+            planeRecords_ = null;
+         }
+      }
+      return file.length();
+   }
+
+   private static int findPixelsElement(String xml, int from) {
+      int index = xml.indexOf("<Pixels", from);
+      while (index >= 0) {
+         char next = xml.charAt(index + 7);
+         if (next == '>' || next == '/' || Character.isWhitespace(next)) {
+            return index;
+         }
+         index = xml.indexOf("<Pixels", index + 7);
+      }
+      return -1;
+   }
+
+   /*
+    * Writes the TiffData and then the Plane elements of a series, which go
+    * after its Channel elements.
+    */
+   private void writeSeriesElements(Writer out, int series) throws IOException {
+      Indices indices = seriesIndices_.get(series);
+      if (indices == null || planeRecords_ == null) {
+         return;
       }
+      StringBuilder sb = new StringBuilder(256);
+      for (int i = 0; i < indices.tiffDataIndex_; i++) {
+         ByteBuffer record = planeRecords_.get(indices.records_[i]);
+         int fileIndex = record.getInt(PlaneRecords.FILE);
+         sb.setLength(0);
+         sb.append("<TiffData FirstC=\"").append(record.getInt(PlaneRecords.CHANNEL));
+         sb.append("\" FirstT=\"").append(record.getInt(PlaneRecords.FRAME));
+         sb.append("\" FirstZ=\"").append(record.getInt(PlaneRecords.SLICE));
+         sb.append("\" IFD=\"").append(record.getInt(PlaneRecords.IFD));
+         sb.append("\" PlaneCount=\"1\"><UUID FileName=\"");
+         appendEscaped(sb, fileNames_.get(fileIndex));
+         sb.append("\">");
+         appendEscaped(sb, fileUUIDs_.get(fileIndex));
+         sb.append("</UUID></TiffData>");
+         out.append(sb);
+      }
+      for (int i = 0; i < indices.tiffDataIndex_; i++) {
+         ByteBuffer record = planeRecords_.get(indices.records_[i]);
+         if (record.getInt(PlaneRecords.IS_PLANE) == 0) {
+            continue;
+         }
+         sb.setLength(0);
+         sb.append("<Plane");
+         appendQuantity(sb, "DeltaT", getValue(record, PlaneRecords.ELAPSED_MS), "ms");
+         appendQuantity(sb, "ExposureTime", getValue(record, PlaneRecords.EXPOSURE_MS), "ms");
+         appendQuantity(sb, "PositionX", getValue(record, PlaneRecords.X), "\u00b5m");
+         appendQuantity(sb, "PositionY", getValue(record, PlaneRecords.Y), "\u00b5m");
+         appendQuantity(sb, "PositionZ", getValue(record, PlaneRecords.Z), "\u00b5m");
+         sb.append(" TheC=\"").append(record.getInt(PlaneRecords.CHANNEL));
+         sb.append("\" TheT=\"").append(record.getInt(PlaneRecords.FRAME));
+         sb.append("\" TheZ=\"").append(record.getInt(PlaneRecords.SLICE));
+         sb.append("\"/>");
+         out.append(sb);
+      }
+   }
+
+   private static double getValue(ByteBuffer record, int value) {
+      return record.getDouble(PlaneRecords.VALUES + 8 * value);
    }
 
-   public void setNumFrames(int seriesIndex, int numFrames) {
+   private static void appendQuantity(StringBuilder sb, String name, double value, String unit) {
+      if (!Double.isNaN(value)) {
+         sb.append(' ').append(name).append("=\"").append(value);
+         sb.append("\" ").append(name).append("Unit=\"").append(unit).append('"');
+      }
+   }
+
+   private static void appendEscaped(StringBuilder sb, String text) {
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         switch (c) {
+            case '&': sb.append("&amp;"); break;
+            case '<': sb.append("&lt;"); break;
+            case '>': sb.append("&gt;"); break;
+            case '"': sb.append("&quot;"); break;
+            case '\'': sb.append("&apos;"); break;
+            default: sb.append(c);
+         }
+      }
+   }
+
+   public synchronized void setNumFrames(int seriesIndex, int numFrames) {
       metadata_.setPixelsSizeT(new PositiveInteger(numFrames), seriesIndex);
    }
 
@@ -156,14 +315,14 @@ public class OMEMetadata {
    /*
     * Method called when numC*numZ*numT != total number of planes
     */
-   public void fillInMissingTiffDatas(int frame, int position) {
+   public synchronized void fillInMissingTiffDatas(int frame, int position) {
       try {
       for (int slice = 0; slice < numSlices_; slice++) {
          for (int channel = 0; channel < numChannels_; channel++) {
             //make sure each tiffdata entry is present. If it is missing, link Tiffdata entry
             //to a a preveious IFD
-            Integer tiffDataIndex =  tiffDataIndexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));
-            if (tiffDataIndex == null) {
+            int tiffDataIndex = findTiffData(channel, slice, frame, position);
+            if (tiffDataIndex < 0) {
                //this plane was never added, so link to another IFD
                //find substitute channel, frame, slice
                int s = slice;
@@ -171,24 +330,24 @@ public class OMEMetadata {
                int frameSearchIndex = frame;
                //If some but not all channels have z stacks, find the closest slice for the given
                //channel that has an image.  Also if time point missing, go back until image is found
-               while (tiffDataIndex == null) {
+               while (tiffDataIndex < 0) {
                   
                               
-                  tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, s, frameSearchIndex, position));
-                  if (tiffDataIndex != null) {
+                  tiffDataIndex = findTiffData(channel, s, frameSearchIndex, position);
+                  if (tiffDataIndex >= 0) {
                      break;
                   }
 
                   if (backIndex >= 0) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, backIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                   
+                     tiffDataIndex = findTiffData(channel, backIndex, frameSearchIndex, position);
+                     if (tiffDataIndex >= 0) {                   
                         break;
                      }
                      backIndex--;
                   }
                   if (forwardIndex < numSlices_) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, forwardIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                  
+                     tiffDataIndex = findTiffData(channel, forwardIndex, frameSearchIndex, position);
+                     if (tiffDataIndex >= 0) {                  
                         break;
                      }
                      forwardIndex++;
@@ -203,21 +362,16 @@ public class OMEMetadata {
                      }
                   }
                }
-               NonNegativeInteger ifd = metadata_.getTiffDataIFD(position, tiffDataIndex);
-               String filename = metadata_.getUUIDFileName(position, tiffDataIndex);
-               String uuid = metadata_.getUUIDValue(position, tiffDataIndex);
+               if (tiffDataIndex < 0) {
+                  //no image of this channel at all so far
+                  continue;
+               }
+               ByteBuffer substitute = planeRecords_.get(tiffDataIndex);
+               int ifd = substitute.getInt(PlaneRecords.IFD);
+               int fileIndex = substitute.getInt(PlaneRecords.FILE);
                Indices indices = seriesIndices_.get(position);
 
-               metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-
-               metadata_.setTiffDataIFD(ifd, position, indices.tiffDataIndex_);
-               metadata_.setUUIDFileName(filename, position, indices.tiffDataIndex_);
-               metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-               metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-               indices.tiffDataIndex_++;
+               indices.addRecord(planeRecords_.append(channel, slice, frame, ifd, fileIndex, null));
             }
          }
       }
@@ -226,7 +380,7 @@ public class OMEMetadata {
       }
    }
 
-   public void addImageTagsToOME(JSONObject tags, int ifdCount, String baseFileName, String currentFileName,
+   public synchronized void addImageTagsToOME(JSONObject tags, int ifdCount, String baseFileName, String currentFileName,
            String uuid)
            throws JSONException, MMScriptException {
       int position;
@@ -268,67 +422,78 @@ public class OMEMetadata {
          int channel = MDUtils.getChannelIndex(tags);
              
          // ifdCount is 0 when a new file started, tiff data plane count is 0 at a new position
-         metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);         
-         metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataIFD(new NonNegativeInteger(ifdCount), position, indices.tiffDataIndex_);
-         metadata_.setUUIDFileName(currentFileName, position, indices.tiffDataIndex_);
-         metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-         tiffDataIndexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), indices.tiffDataIndex_);
-         metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-         metadata_.setPlaneTheZ(new NonNegativeInteger(slice), position, indices.planeIndex_);
-         metadata_.setPlaneTheC(new NonNegativeInteger(channel), position, indices.planeIndex_);
-         metadata_.setPlaneTheT(new NonNegativeInteger(frame), position, indices.planeIndex_);
+         if (planeRecords_ == null) {
+            planeRecords_ = new PlaneRecords();
+         }
+         double[] planeValues = getPlaneValues(tags);
+         int record = planeRecords_.append(channel, slice, frame, ifdCount,
+               getFileIndex(currentFileName, uuid), planeValues);
+         indices.addRecord(record);
+         tiffDataIndexMap_.put(ImageKey.pack(channel, slice, frame, position), record);
+
+         //should be set at start, but dont have position coordinates then
+         if (indices.planeIndex_ == 0 && !Double.isNaN(planeValues[PlaneRecords.X])) {
+            metadata_.setStageLabelX(new Length(planeValues[PlaneRecords.X], UNITS.MICROM), position);
+         }
+         if (indices.planeIndex_ == 0 && !Double.isNaN(planeValues[PlaneRecords.Y])) {
+            metadata_.setStageLabelY(new Length(planeValues[PlaneRecords.Y], UNITS.MICROM), position);
+         }
+         indices.planeIndex_++;
       } catch (JSONException ex) {
          ReportingUtils.showError("Image Metadata missing ChannelIndex, SliceIndex, or FrameIndex");
       } catch (Exception e) {
          ReportingUtils.logError("Couldn't add to OME metadata");
       }
+   }
 
-      //Optional tags
+   /*
+    * Exposure, stage position and elapsed time of an image, NaN where
+    * missing, in the order of PlaneRecords' values.
+    */
+   private static double[] getPlaneValues(JSONObject tags) {
+      double[] values = new double[PlaneRecords.NUM_VALUES];
+      Arrays.fill(values, Double.NaN);
       try {
-
          if (MDUtils.hasExposureMs(tags)) {
-            metadata_.setPlaneExposureTime(
-                  new Time(MDUtils.getExposureMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
+            values[PlaneRecords.EXPOSURE_MS] = MDUtils.getExposureMs(tags);
          }
          if (MDUtils.hasXPositionUm(tags)) {
-            final Length xPosition =
-                  new Length(MDUtils.getXPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionX(xPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) { //should be set at start, but dont have position coordinates then
-               metadata_.setStageLabelX(xPosition, position);
-            }
+            values[PlaneRecords.X] = MDUtils.getXPositionUm(tags);
          }
          if (MDUtils.hasYPositionUm(tags)) {
-            final Length yPosition =
-                  new Length(MDUtils.getYPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionY(yPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) {
-               metadata_.setStageLabelY(yPosition, position);
-            }
+            values[PlaneRecords.Y] = MDUtils.getYPositionUm(tags);
          }
          if (MDUtils.hasZPositionUm(tags)) {
-            metadata_.setPlanePositionZ(
-                  new Length(MDUtils.getZPositionUm(tags), UNITS.MICROM),
-                  position, indices.planeIndex_);
+            values[PlaneRecords.Z] = MDUtils.getZPositionUm(tags);
          }
          if (MDUtils.hasElapsedTimeMs(tags)) {
-            metadata_.setPlaneDeltaT(
-                  new Time(MDUtils.getElapsedTimeMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
+            values[PlaneRecords.ELAPSED_MS] = MDUtils.getElapsedTimeMs(tags);
          }
-
       } catch (JSONException e) {
          ReportingUtils.logError("Problem adding tags to OME Metadata");
       }
+      return values;
+   }
 
-      indices.planeIndex_++;
-      indices.tiffDataIndex_++;
+   private int getFileIndex(String fileName, String uuid) {
+      Integer index = fileIndices_.get(uuid);
+      if (index == null) {
+         index = fileNames_.size();
+         fileNames_.add(fileName);
+         fileUUIDs_.add(uuid);
+         fileIndices_.put(uuid, index);
+      }
+      return index;
+   }
+
+   /*
+    * @return record number of the TiffData of the given image, or -1
+    */
+   private int findTiffData(int channel, int slice, int frame, int position) {
+      if (channel < 0 || slice < 0 || frame < 0 || position < 0) {
+         return -1;
+      }
+      return (int) tiffDataIndexMap_.get(ImageKey.pack(channel, slice, frame, position));
    }
 
    private void setOMEDetectorMetadata(JSONObject tags) throws JSONException {
@@ -373,5 +538,124 @@ public class OMEMetadata {
 
       }
    }
+
+   /*
+    * Temporary file of fixed size records, one per TiffData: channel, slice,
+    * frame, IFD, file index, whether the record is also a Plane (rather than
+    * a TiffData filled in for a missing image) and the Plane's values.
+    * Records are buffered on the way in and read back through a window of
+    * consecutive records.
+    */
+   private static class PlaneRecords {
+      static final int CHANNEL = 0;
+      static final int SLICE = 4;
+      static final int FRAME = 8;
+      static final int IFD = 12;
+      static final int FILE = 16;
+      static final int IS_PLANE = 20;
+      static final int VALUES = 24;
+      // indices of the Plane values
+      static final int EXPOSURE_MS = 0;
+      static final int X = 1;
+      static final int Y = 2;
+      static final int Z = 3;
+      static final int ELAPSED_MS = 4;
+      static final int NUM_VALUES = 5;
+      static final int RECORD_BYTES = VALUES + 8 * NUM_VALUES;
+      static final int BUFFERED_RECORDS = 4096;
+
+      private final File file_;
+      private final RandomAccessFile raFile_;
+      private final FileChannel channel_;
+      private final ByteBuffer writeBuffer_ =
+            ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_BYTES);
+      private final ByteBuffer readBuffer_ =
+            ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_BYTES);
+      private final ByteBuffer record_ = ByteBuffer.allocate(RECORD_BYTES);
+      // records written to the file, and in total
+      private int numWritten_ = 0;
+      private int numRecords_ = 0;
+      // records in readBuffer_
+      private int firstRead_ = 0;
+      private int numRead_ = 0;
+
+      PlaneRecords() throws IOException {
+         file_ = File.createTempFile("OMEPlanes", ".tmp");
+         file_.deleteOnExit();
+         raFile_ = new RandomAccessFile(file_, "rw");
+         channel_ = raFile_.getChannel();
+      }
+
+      /*
+       * @param values Plane values, or null if the record is no Plane
+       * @return the record number
+       */
+      int append(int channel, int slice, int frame, int ifd, int fileIndex,
+            double[] values) throws IOException {
+         if (!writeBuffer_.hasRemaining()) {
+            flush();
+         }
+         writeBuffer_.putInt(channel);
+         writeBuffer_.putInt(slice);
+         writeBuffer_.putInt(frame);
+         writeBuffer_.putInt(ifd);
+         writeBuffer_.putInt(fileIndex);
+         writeBuffer_.putInt(values == null ? 0 : 1);
+         for (int i = 0; i < NUM_VALUES; i++) {
+            writeBuffer_.putDouble(values == null ? Double.NaN : values[i]);
+         }
+         return numRecords_++;
+      }
+
+      private void flush() throws IOException {
+         writeBuffer_.flip();
+         long position = (long) numWritten_ * RECORD_BYTES;
+         while (writeBuffer_.hasRemaining()) {
+            position += channel_.write(writeBuffer_, position);
+         }
+         numWritten_ = numRecords_;
+         writeBuffer_.clear();
+      }
+
+      /*
+       * @return the record, valid until the next call
+       */
+      ByteBuffer get(int record) throws IOException {
+         ByteBuffer source;
+         int offset;
+         if (record >= numWritten_) {
+            source = writeBuffer_;
+            offset = (record - numWritten_) * RECORD_BYTES;
+         } else {
+            if (record < firstRead_ || record >= firstRead_ + numRead_) {
+               readBuffer_.clear();
+               readBuffer_.limit(Math.min(BUFFERED_RECORDS, numWritten_ - record) * RECORD_BYTES);
+               long position = (long) record * RECORD_BYTES;
+               while (readBuffer_.hasRemaining()) {
+                  int n = channel_.read(readBuffer_, position);
+                  if (n < 0) {
+                     throw new IOException("OME plane records truncated");
+                  }
+                  position += n;
+               }
+               firstRead_ = record;
+               numRead_ = readBuffer_.limit() / RECORD_BYTES;
+            }
+            source = readBuffer_;
+            offset = (record - firstRead_) * RECORD_BYTES;
+         }
+         System.arraycopy(source.array(), offset, record_.array(), 0, RECORD_BYTES);
+         return record_;
+      }
+
+      void close() {
+         try {
+            raFile_.close();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex);
+         }
+         file_.delete();
+      }
+   }
 }
 
@@ -0,0 +1,195 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          OffHeapSlabAllocator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.micromanager.utils.DirectBuffers;
+
+/**
+ * Hands out regions of large direct ByteBuffers (slabs), so that storing an
+ * image does not cost one direct allocation (and one native malloc plus a
+ * Cleaner) per image.
+ *
+ * Region sizes are rounded up to GRANULE bytes and freed regions are reused
+ * for requests of the same rounded size. Images of one acquisition have the
+ * same pixel size and similar metadata sizes, so overwritten and spilled
+ * images free regions that fit the next image.
+ *
+ * All allocators share one byte budget; slabs are only allocated while the
+ * total stays within it, and are smaller than the slab size when less than
+ * that is left. allocate() returns null when the budget (or the
+ * direct memory of the JVM) is exhausted, so that the caller can make room.
+ */
+final class OffHeapSlabAllocator {
+
+   static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+   private static final int GRANULE = 16 * 1024;
+
+   // Bytes of slabs allocated by all allocators
+   private static final AtomicLong reservedBytes_ = new AtomicLong(0);
+   // 0 for no limit other than the direct memory available to the JVM
+   private static volatile long budgetBytes_ = 0;
+
+   private final int slabSize_;
+   private final ArrayList<ByteBuffer> slabs_ = new ArrayList<ByteBuffer>();
+   private ByteBuffer currentSlab_;
+   private final HashMap<Integer, LinkedList<ByteBuffer>> freeRegions_ =
+         new HashMap<Integer, LinkedList<ByteBuffer>>();
+   private long slabBytes_ = 0;
+   private long usedBytes_ = 0;
+
+   OffHeapSlabAllocator() {
+      this(DEFAULT_SLAB_SIZE);
+   }
+
+   OffHeapSlabAllocator(int slabSize) {
+      slabSize_ = slabSize;
+   }
+
+   static void setBudget(long bytes) {
+      budgetBytes_ = Math.max(0, bytes);
+   }
+
+   static long getBudget() {
+      return budgetBytes_;
+   }
+
+   static long getReservedBytes() {
+      return reservedBytes_.get();
+   }
+
+   /**
+    * @return bytes that can still be reserved for new slabs, or
+    * Long.MAX_VALUE if there is no budget
+    */
+   static long getUnreservedBytes() {
+      long budget = budgetBytes_;
+      if (budget == 0) {
+         return Long.MAX_VALUE;
+      }
+      return Math.max(0, budget - reservedBytes_.get());
+   }
+
+   private static boolean reserve(long bytes) {
+      while (true) {
+         long reserved = reservedBytes_.get();
+         long budget = budgetBytes_;
+         if (budget > 0 && reserved + bytes > budget) {
+            return false;
+         }
+         if (reservedBytes_.compareAndSet(reserved, reserved + bytes)) {
+            return true;
+         }
+      }
+   }
+
+   private static int roundUp(int length) {
+      return (int) (((long) length + GRANULE - 1) / GRANULE * GRANULE);
+   }
+
+   /**
+    * @return a native order buffer with room for at least length bytes,
+    * positioned at 0, or null if no memory is left. Its capacity is the
+    * rounded size; callers keep track of how much of it they use.
+    */
+   synchronized ByteBuffer allocate(int length) {
+      int size = roundUp(Math.max(1, length));
+      ByteBuffer region;
+      LinkedList<ByteBuffer> free = freeRegions_.get(size);
+      if (free != null && !free.isEmpty()) {
+         region = free.removeFirst();
+      } else {
+         if (currentSlab_ == null || currentSlab_.remaining() < size) {
+            // a smaller slab when the budget has less than slabSize_ left
+            long slabSize = Math.min(slabSize_, getUnreservedBytes() / GRANULE * GRANULE);
+            if (!addSlab((int) Math.max(slabSize, size))) {
+               return null;
+            }
+         }
+         int start = currentSlab_.position();
+         currentSlab_.limit(start + size);
+         region = currentSlab_.slice().order(DirectBuffers.NATIVE_ORDER);
+         currentSlab_.limit(currentSlab_.capacity());
+         currentSlab_.position(start + size);
+      }
+      usedBytes_ += size;
+      region.clear();
+      return region;
+   }
+
+   private boolean addSlab(int size) {
+      if (!reserve(size)) {
+         return false;
+      }
+      try {
+         currentSlab_ = ByteBuffer.allocateDirect(size);
+      } catch (OutOfMemoryError e) {
+         reservedBytes_.addAndGet(-size);
+         return false;
+      }
+      slabs_.add(currentSlab_);
+      slabBytes_ += size;
+      return true;
+   }
+
+   /**
+    * Return a region obtained from allocate() for reuse
+    */
+   synchronized void free(ByteBuffer region) {
+      int size = region.capacity();
+      LinkedList<ByteBuffer> free = freeRegions_.get(size);
+      if (free == null) {
+         free = new LinkedList<ByteBuffer>();
+         freeRegions_.put(size, free);
+      }
+      free.add(region);
+      usedBytes_ -= size;
+   }
+
+   /**
+    * Drop all slabs. Buffers handed out before must not be used anymore.
+    */
+   synchronized void release() {
+      reservedBytes_.addAndGet(-slabBytes_);
+      slabs_.clear();
+      freeRegions_.clear();
+      currentSlab_ = null;
+      slabBytes_ = 0;
+      usedBytes_ = 0;
+   }
+
+   /**
+    * @return bytes of slabs held by this allocator
+    */
+   synchronized long getSlabBytes() {
+      return slabBytes_;
+   }
+
+   /**
+    * @return bytes of regions currently handed out (rounded sizes)
+    */
+   synchronized long getUsedBytes() {
+      return usedBytes_;
+   }
+}
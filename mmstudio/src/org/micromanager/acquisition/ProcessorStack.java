@@ -51,6 +51,7 @@ public class ProcessorStack<E> {
       if (processors_ != null) {
          for (DataProcessor<E> processor : processors_) {
             if (processor.getIsEnabled()) {
+               processor.resetStatistics();
                right = new LinkedBlockingQueue<E>(1);
                processor.setInput(left);
                processor.setOutput(right);
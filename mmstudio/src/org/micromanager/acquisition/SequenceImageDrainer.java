@@ -0,0 +1,212 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SequenceImageDrainer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Moves the images of a sequence acquisition out of the core's circular
+ * buffer on its own thread, and hands them to the acquisition engine
+ * through a small bounded queue. The engine blocks in poll() until an image
+ * arrives instead of polling the core.
+ *
+ * Each time the circular buffer holds images, the drain thread pops as many
+ * as the queue has room for, so that a backlog is cleared in one batch, but
+ * images the engine is not ready for stay in the circular buffer. While the
+ * circular buffer is empty, the thread parks for an interval that starts
+ * short after each image and grows while no image arrives.
+ *
+ * The time the thread spends waiting for the camera, popping (converting)
+ * images and waiting for the engine is counted, and logged by stop().
+ */
+public class SequenceImageDrainer {
+   private static final long MIN_PARK_NS = 20000;
+   private static final long MAX_PARK_NS = 1000000;
+   // Put in the queue when draining fails, after the images before it
+   private static final TaggedImage FAILED = new TaggedImage(null, null);
+
+   private final CMMCore core_;
+   private final int expectedImages_;
+   private final ArrayBlockingQueue<TaggedImage> queue_;
+   private final Thread thread_;
+   private volatile boolean stopRequested_ = false;
+   private volatile Exception failure_;
+
+   // Statistics, written by the drain thread only
+   private volatile long waitNanos_ = 0;
+   private volatile long convertNanos_ = 0;
+   private volatile long handOffNanos_ = 0;
+   private volatile int imageCount_ = 0;
+   private volatile int batchCount_ = 0;
+   private volatile int maxBatchSize_ = 0;
+
+   /**
+    * @param expectedImages number of images the sequence acquisition
+    * produces; the drain thread ends after popping that many
+    * @param capacity number of images that can wait for the engine
+    */
+   public SequenceImageDrainer(CMMCore core, int expectedImages, int capacity) {
+      core_ = core;
+      expectedImages_ = expectedImages;
+      queue_ = new ArrayBlockingQueue<TaggedImage>(Math.max(1, capacity));
+      thread_ = new Thread("Sequence image drain thread") {
+         @Override
+         public void run() {
+            drain();
+         }
+      };
+      thread_.setDaemon(true);
+   }
+
+   public void start() {
+      thread_.start();
+   }
+
+   /**
+    * Stops the drain thread, without touching the sequence acquisition.
+    * Images not taken yet are dropped.
+    */
+   public void stop() {
+      stopRequested_ = true;
+      LockSupport.unpark(thread_);
+      try {
+         thread_.join();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+      queue_.clear();
+      ReportingUtils.logMessage("Sequence image drain: " + getStatistics());
+   }
+
+   /**
+    * Takes the next image, waiting up to the timeout for it to arrive.
+    * @return the image, or null on timeout
+    * @throws Exception what stopped the drain thread, such as an overflow
+    * of the circular buffer, once the images before it have been taken
+    */
+   public TaggedImage poll(long timeout, TimeUnit unit) throws Exception {
+      TaggedImage image = queue_.poll(timeout, unit);
+      if (image == FAILED) {
+         // Fail the next call as well
+         queue_.offer(FAILED);
+         throw failure_;
+      }
+      return image;
+   }
+
+   private void drain() {
+      int popped = 0;
+      long parkNanos = MIN_PARK_NS;
+      TaggedImage[] batch = new TaggedImage[queue_.remainingCapacity()];
+      try {
+         while (!stopRequested_ && popped < expectedImages_) {
+            long start = System.nanoTime();
+            int available = core_.getRemainingImageCount();
+            if (available == 0) {
+               if (core_.isBufferOverflowed()) {
+                  throw new MMException("Circular buffer overflowed.");
+               }
+               LockSupport.parkNanos(parkNanos);
+               parkNanos = Math.min(MAX_PARK_NS, 2 * parkNanos);
+               waitNanos_ += System.nanoTime() - start;
+               continue;
+            }
+            parkNanos = MIN_PARK_NS;
+
+            // The drain thread is the only producer, so the room in the
+            // queue can only grow while the batch is popped
+            int batchSize = Math.min(Math.min(available, expectedImages_ - popped),
+                  Math.max(1, queue_.remainingCapacity()));
+            for (int i = 0; i < batchSize; i++) {
+               batch[i] = core_.popNextTaggedImage();
+            }
+            long poppedAt = System.nanoTime();
+            convertNanos_ += poppedAt - start;
+            for (int i = 0; i < batchSize; i++) {
+               if (!handOff(batch[i])) {
+                  return;
+               }
+               batch[i] = null;
+            }
+            handOffNanos_ += System.nanoTime() - poppedAt;
+            popped += batchSize;
+            imageCount_ = popped;
+            batchCount_++;
+            maxBatchSize_ = Math.max(maxBatchSize_, batchSize);
+         }
+      } catch (Exception ex) {
+         if (!stopRequested_) {
+            ReportingUtils.logError(ex, "Halting sequence image collection");
+            failure_ = ex;
+            handOff(FAILED);
+         }
+      }
+   }
+
+   /**
+    * Waits for room in the queue, unless stop() is called
+    * @return false if stopped before the image was handed off
+    */
+   private boolean handOff(TaggedImage image) {
+      try {
+         while (!stopRequested_) {
+            if (queue_.offer(image, 100, TimeUnit.MILLISECONDS)) {
+               return true;
+            }
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+      return false;
+   }
+
+   public long getWaitNanos() {
+      return waitNanos_;
+   }
+
+   public long getConvertNanos() {
+      return convertNanos_;
+   }
+
+   public long getHandOffNanos() {
+      return handOffNanos_;
+   }
+
+   public int getImageCount() {
+      return imageCount_;
+   }
+
+   public int getBatchCount() {
+      return batchCount_;
+   }
+
+   public String getStatistics() {
+      return String.format("%d images in %d batches (largest %d); "
+            + "waited %.1f ms for camera, %.1f ms converting, %.1f ms for engine",
+            imageCount_, batchCount_, maxBatchSize_, waitNanos_ / 1e6,
+            convertNanos_ / 1e6, handOffNanos_ / 1e6);
+   }
+}
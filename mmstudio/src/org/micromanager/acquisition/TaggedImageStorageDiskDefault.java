@@ -8,11 +8,7 @@ import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.io.Opener;
 import ij.io.TiffDecoder;
-import ij.process.ByteProcessor;
-import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
@@ -20,6 +16,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -32,6 +36,11 @@ import org.micromanager.utils.*;
  * @author arthur
  */
 public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
+   // Images waiting to be written, per writer thread; when the queue is full,
+   // putImage writes the image itself
+   private static final int QUEUED_IMAGES_PER_THREAD = 2;
+   private static final long METADATA_FLUSH_INTERVAL_MS = 1000;
+
    private final String dir_;
    private boolean firstElement_;
    private HashMap<Integer,Writer> metadataStreams_;
@@ -43,6 +52,15 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private int lastFrame_ = -1;
    private Thread shutdownHook_;
    private HashMap<Integer, String> positionNames_;
+   // directories known to exist
+   private final Set<String> createdDirectories_ = new HashSet<String>();
+   // files being written, by name relative to dir_
+   private final Map<String, Future<?>> pendingWrites_ =
+           new ConcurrentHashMap<String, Future<?>>();
+   private ThreadPoolExecutor writers_ = null;
+   // first image the writers failed to save, not reported yet
+   private IOException writeFailure_ = null;
+   private long lastMetadataFlush_ = 0;
 
    public TaggedImageStorageDiskDefault(String dir) throws Exception {
       this(dir, false, null);
@@ -102,6 +120,11 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          if (!newDataSet_) {
             throw new MMException("This ImageFileManager is read-only.");
          }
+         IOException failure = takeWriteFailure();
+         if (failure != null) {
+            MMStudio.getInstance().stopAllActivity();
+            throw failure;
+         }
          if (!metadataStreams_.containsKey(MDUtils.getPositionIndex(taggedImg.tags))) {
             try {
                openNewDataSet(taggedImg);
@@ -119,7 +142,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
             posName = positionNames_.get(MDUtils.getPositionIndex(md));
             if (posName != null && posName.length() > 0 && 
                   !posName.contentEquals("null")) {
-               JavaUtils.createDirectory(dir_ + "/" + posName);
+               createDirectory(dir_ + "/" + posName);
                fileName = posName + "/" + tiffFileName;
             } else {
                fileName = tiffFileName;
@@ -129,13 +152,15 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          }         
 
          File saveFile = new File(dir_, fileName);
-         if (saveFile.exists()) {
+         if (pendingWrites_.containsKey(fileName) || saveFile.exists()) {
             MMStudio.getInstance().stopAllActivity();
             throw new IOException("Image saving failed: " + saveFile.getAbsolutePath());
          }
          
-         saveImageFile(img, md, dir_, fileName);
-         writeFrameMetadata(md);
+         // the same text goes into the TIFF file and metadata.txt
+         String mdString = md.toString(2);
+         saveImageFile(img, md, mdString, saveFile, fileName);
+         writeFrameMetadata(md, mdString);
          String label = MDUtils.getLabel(md);
          filenameTable_.put(label, fileName);
       } catch (Exception ex) {
@@ -143,12 +168,96 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       }
    }
 
+   private void createDirectory(String path) throws Exception {
+      if (createdDirectories_.add(path)) {
+         JavaUtils.createDirectory(path);
+      }
+   }
+
+   /*
+    * Waits until the given file (relative to dir_) is written, if it is being
+    * written.
+    */
+   private void waitForWrite(String fileName) {
+      Future<?> pending = fileName == null ? null : pendingWrites_.get(fileName);
+      if (pending != null) {
+         try {
+            pending.get();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+   }
+
+   /*
+    * Waits until all images handed to the writers are written.
+    */
+   private synchronized void waitForWriters() {
+      if (writers_ != null) {
+         writers_.shutdown();
+         try {
+            writers_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+         writers_ = null;
+      }
+   }
+
+   private synchronized void recordWriteFailure(IOException ex) {
+      if (writeFailure_ == null) {
+         writeFailure_ = ex;
+      }
+   }
+
+   private synchronized IOException takeWriteFailure() {
+      IOException failure = writeFailure_;
+      writeFailure_ = null;
+      return failure;
+   }
+
+   /*
+    * Stops acquisition and shows the error if an image could not be written.
+    * Called once all writers are done.
+    */
+   private void reportWriteFailure() {
+      IOException failure = takeWriteFailure();
+      if (failure != null) {
+         MMStudio.getInstance().stopAllActivity();
+         ReportingUtils.showError(failure);
+      }
+   }
+
+   private synchronized void execute(Runnable task) {
+      if (writers_ == null) {
+         int nrThreads = Math.max(1, Math.min(4,
+                 Runtime.getRuntime().availableProcessors()));
+         writers_ = new ThreadPoolExecutor(nrThreads, nrThreads,
+                 1, TimeUnit.SECONDS,
+                 new ArrayBlockingQueue<Runnable>(nrThreads * QUEUED_IMAGES_PER_THREAD),
+                 new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                       Thread thread = new Thread(r, "TIFF writer " + dir_);
+                       thread.setDaemon(true);
+                       return thread;
+                    }
+                 },
+                 new ThreadPoolExecutor.CallerRunsPolicy());
+         writers_.allowCoreThreadTimeOut(true);
+      }
+      writers_.execute(task);
+   }
+
    @Override
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
       String label = MDUtils.generateLabel(channel, slice, frame, position);
       if (filenameTable_.get(label) == null) {
          return null;
       }
+      waitForWrite(filenameTable_.get(label));
       ImagePlus imp = new Opener().openImage(dir_ + "/" + filenameTable_.get(label));
       if (imp != null) {
          try {
@@ -197,6 +306,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    @Override
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
       String label = MDUtils.generateLabel(channel, slice, frame, position);
+      waitForWrite(filenameTable_.get(label));
       TiffDecoder td = new TiffDecoder(dir_, filenameTable_.get(label));
       try {
          return new JSONObject(td.getTiffInfo()[0].info);
@@ -243,102 +353,88 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       }
    }
 
-   private void writeFrameMetadata(JSONObject md) {
+   private void writeFrameMetadata(JSONObject md, String mdString) {
       try {    
          String title = "FrameKey-" + MDUtils.getFrameIndex(md) + "-" + MDUtils.getChannelIndex(md) + "-" + MDUtils.getSliceIndex(md);
          int pos = MDUtils.getPositionIndex(md);
-         writeMetadata(pos, md, title);
+         writeMetadata(pos, mdString, title);
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
    }
 
-   private void writeMetadata(int pos, JSONObject md, String title) {
+   private void writeMetadata(int pos, String mdString, String title) {
       try {
          Writer metadataStream = metadataStreams_.get(pos);
          if (!firstElement_) {
             metadataStream.write(",\n");
          }
          metadataStream.write("\"" + title + "\": ");
-         metadataStream.write(md.toString(2));
-         metadataStream.flush();
+         metadataStream.write(mdString);
          firstElement_ = false;
+         // flush now and then rather than for every image
+         long now = System.currentTimeMillis();
+         if (now - lastMetadataFlush_ > METADATA_FLUSH_INTERVAL_MS) {
+            for (Writer stream : metadataStreams_.values()) {
+               stream.flush();
+            }
+            lastMetadataFlush_ = now;
+         }
       } catch (Exception e) {
          ReportingUtils.logError(e);
       }
    }
 
-   private void saveImageFile(Object img, JSONObject md, String path, String tiffFileName) {
+   private void saveImageFile(final Object img, JSONObject md,
+           final String mdString, final File saveFile, final String fileName) {
       ImagePlus imp;
       try {
-         ImageProcessor ip;
-         int width = MDUtils.getWidth(md);
-         int height = MDUtils.getHeight(md);
-         String pixelType = MDUtils.getPixelType(md);
-         if (pixelType.equals("GRAY8")) {
-            ip = new ByteProcessor(width, height);
-            ip.setPixels((byte[]) img);
-            saveImageProcessor(ip, md, path, tiffFileName);
-         } else if (pixelType.equals("GRAY16")) {
-            ip = new ShortProcessor(width, height);
-            ip.setPixels((short[]) img);           
-            saveImageProcessor(ip, md, path, tiffFileName);
-         } else if (pixelType.equals("GRAY32")) {
-            ip = new FloatProcessor(width, height);
-            ip.setPixels((float[]) img);
-            saveImageProcessor(ip, md, path, tiffFileName);
-         } else if (pixelType.equals("RGB32")) {
-            byte[][] planes = ImageUtils.getColorPlanesFromRGB32((byte []) img);
-            ColorProcessor cp = new ColorProcessor(width, height);
-            cp.setRGB(planes[0],planes[1],planes[2]);
-            saveImageProcessor(cp, md, path, tiffFileName);
+         final int width = MDUtils.getWidth(md);
+         final int height = MDUtils.getHeight(md);
+         final String pixelType = MDUtils.getPixelType(md);
+         if (TiffImageEncoder.canEncode(pixelType)) {
+            final double pixelSizeUm = getPixelSizeUm();
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     TiffImageEncoder.write(saveFile, img, pixelType, width,
+                             height, pixelSizeUm, mdString);
+                  } catch (IOException ex) {
+                     ReportingUtils.logError(ex, "Failed to write " + saveFile);
+                     IOException failure = new IOException("Image saving failed: "
+                             + saveFile.getAbsolutePath());
+                     failure.initCause(ex);
+                     recordWriteFailure(failure);
+                  } finally {
+                     pendingWrites_.remove(fileName);
+                  }
+               }
+            }, null);
+            pendingWrites_.put(fileName, task);
+            execute(task);
          } else if (pixelType.equals("RGB64")) {
             short[][] planes = ImageUtils.getColorPlanesFromRGB64((short []) img);
             ImageStack stack = new ImageStack(width, height);
 				stack.addSlice("Red", planes[0]);
 				stack.addSlice("Green", planes[1]);
 				stack.addSlice("Blue", planes[2]);
-        		imp = new ImagePlus(path + "/" + tiffFileName, stack);
+        		imp = new ImagePlus(dir_ + "/" + fileName, stack);
         		imp.setDimensions(3, 1, 1);
             imp = new CompositeImage(imp, CompositeImage.COLOR);
-            saveImagePlus(imp, md, path, tiffFileName);
+            saveImagePlus(imp, md, dir_, fileName);
          }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
    }
 
-
-   private void saveImageProcessor(ImageProcessor ip, JSONObject md, String path, String tiffFileName) {
-      if (ip != null) {
-         ImagePlus imp = new ImagePlus(path + "/" + tiffFileName, ip);
-         applyPixelSizeCalibration(imp);
-         saveImagePlus(imp, md, path, tiffFileName);
-      }
-   }
-   
-   private void applyPixelSizeCalibration(final ImagePlus ip) {
-      try {
-         JSONObject summary = getSummaryMetadata();
-         double pixSizeUm = summary.getDouble("PixelSize_um");
-         if (pixSizeUm > 0) {
-            ij.measure.Calibration cal = new ij.measure.Calibration();
-            cal.setUnit("um");
-            cal.pixelWidth = pixSizeUm;
-            cal.pixelHeight = pixSizeUm;
-            String intMs = "Interval_ms";
-            if (summary.has(intMs)) {
-               cal.frameInterval = summary.getDouble(intMs) / 1000.0;
-            }
-            String zStepUm = "z-step_um";
-            if (summary.has(zStepUm)) {
-               cal.pixelDepth = summary.getDouble(zStepUm);
-            }
-            ip.setCalibration(cal);
-         }
-      } catch (JSONException ex) {
-         // no pixelsize defined.  Nothing to do
+   private double getPixelSizeUm() {
+      JSONObject summary = getSummaryMetadata();
+      if (summary == null) {
+         return 0;
       }
+      return summary.optDouble("PixelSize_um", 0);
    }
 
 
@@ -380,11 +476,13 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       summaryMetadata.put("Time", time);
       summaryMetadata.put("Date", time.split(" ")[0]);
       summaryMetadata.put("PositionIndex", MDUtils.getPositionIndex(firstImage.tags));
-      writeMetadata(pos, summaryMetadata, "Summary");
+      writeMetadata(pos, summaryMetadata.toString(2), "Summary");
    }
 
    @Override
    public void finished() {
+      waitForWriters();
+      reportWriteFailure();
       closeMetadataStreams();
       newDataSet_ = false;
    }
@@ -612,6 +710,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
 
    @Override
    public void close() {
+      waitForWriters();
+      reportWriteFailure();
       try {
          writeDisplaySettings();
          if (shutdownHook_ != null) {
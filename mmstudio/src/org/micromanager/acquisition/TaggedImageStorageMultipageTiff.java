@@ -24,18 +24,14 @@ package org.micromanager.acquisition;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -43,7 +39,8 @@ import org.json.JSONObject;
 import org.micromanager.MMStudio;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.imagedisplay.DisplaySettings;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
@@ -55,6 +52,8 @@ import org.micromanager.utils.ReportingUtils;
 public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage {
    
    private static final int SPACE_FOR_PARTIAL_OME_MD = 2000; //this should be more than enough
+   //number of decoded planes kept for the display when memory mapped
+   private static final int DECODED_PLANE_CACHE_SIZE = 16;
    
    private JSONObject summaryMetadata_;
    private String summaryMetadataString_ = null;
@@ -73,25 +72,41 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    private boolean fixIndexMap_ = false;
    private final boolean fastStorageMode_;
    private int lastAcquiredPosition_ = 0;
-   private ThreadPoolExecutor writingExecutor_;
+   private MultipageTiffWritePipeline writePipeline_;
+   private final boolean memoryMapped_;
+   // Recently decoded planes of memory mapped datasets, in access order.
+   // Callers get their own copy of the tags; the pixel arrays are shared
+   // and must not be modified.
+   private final LinkedHashMap<Long, TaggedImage> decodedPlanes_ =
+      new LinkedHashMap<Long, TaggedImage>(DECODED_PLANE_CACHE_SIZE, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Long, TaggedImage> eldest) {
+            return size() > DECODED_PLANE_CACHE_SIZE;
+         }
+      };
 
    // Images currently being written (need to keep around so that they can be
    // returned upon request via getImage()). The data structure must be
    // synchronized because the write completion is detected on a background
    // thread.
-   private ConcurrentHashMap<String, TaggedImage> writePendingImages_ =
-      new ConcurrentHashMap<String, TaggedImage>();
+   private ConcurrentHashMap<Long, TaggedImage> writePendingImages_ =
+      new ConcurrentHashMap<Long, TaggedImage>();
 
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of image keys to file 
+   private final ImageKeyMap<MultipageTiffReader> tiffReadersByKey_ =
+      new ImageKeyMap<MultipageTiffReader>();
+   private boolean closed_ = false;
+   //Order of the labels returned by imageKeys()
+   private boolean slicesFirst_ = true;
+   private boolean timeFirst_ = false;
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudio.getInstance().getMetadataFileWithMultipageTiff(),
               MMStudio.getInstance().getSeparateFilesForPositionsMPTiff(),
-              true);
+              true, MMStudio.getInstance().getMemoryMappedMultipageTiffReading());
    }
    
    /*
@@ -99,14 +114,26 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
          boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode) throws IOException {
+      this(dir, newDataSet, summaryMetadata, separateMDFile, separateFilesForPositions,
+              fastStorageMode, false);
+   }
+
+   /*
+    * memoryMapped: read existing datasets through memory mapped files and keep
+    * a small cache of decoded planes, for fast browsing of large datasets
+    */
+   public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
+         boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode,
+         boolean memoryMapped) throws IOException {
+      ImageKey.retainLargeKeys();
       fastStorageMode_ = fastStorageMode;
+      memoryMapped_ = memoryMapped;
       omeTiff_ = true;
       separateMetadataFile_ = separateMDFile;
       splitByXYPosition_ = separateFilesForPositions;
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
       setSummaryMetadata(summaryMetadata);
 
       // TODO: throw error if no existing dataset
@@ -132,16 +159,21 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
    }
    
-   public ThreadPoolExecutor getWritingExecutor() {
-      return writingExecutor_;
+   /**
+    * @return the pipeline all writers of this storage queue their file
+    * writes on, or null if nothing has been written yet. Exposes queue depth,
+    * throughput and acquisition thread stall time.
+    */
+   public MultipageTiffWritePipeline getWritePipeline() {
+      return writePipeline_;
    }
    
    boolean slicesFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getSlicesFirst();
+      return slicesFirst_;
    }
    
    boolean timeFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getTimeFirst();
+      return timeFirst_;
    }
    
    public boolean getFixIndexMap() {
@@ -171,7 +203,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       progressBar.setVisible(false);
 
       if (reader != null) {
-         setSummaryMetadata(reader.getSummaryMetadata(), true);
+         setSummaryMetadata(reader.getSummaryMetadata());
          displayAndComments_ = reader.getDisplayAndComments();
       }
 
@@ -203,11 +235,16 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             // Open the file normally.
             reader = new MultipageTiffReader(f);
          }
-         Set<String> labels = reader.getIndexKeys();
-         for (String label : labels) {
-            tiffReadersByLabel_.put(label, reader);
-            int frameIndex = Integer.parseInt(label.split("_")[2]);
-            lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
+         if (memoryMapped_) {
+            try {
+               reader.setMemoryMapped(true);
+            } catch (IOException e) {
+               ReportingUtils.logError(e, "Couldn't memory map " + f.getName() + ", using regular reads");
+            }
+         }
+         for (long key : reader.getIndexMap().keys()) {
+            tiffReadersByKey_.put(key, reader);
+            lastFrameOpenedDataSet_ = Math.max(ImageKey.frame(key), lastFrameOpenedDataSet_);
          }
       } catch (IOException ex) {
          ReportingUtils.showError("Couldn't open file: " + f.toString());
@@ -217,18 +254,38 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
+      long key;
+      try {
+         key = ImageKey.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
 
-      TaggedImage image = writePendingImages_.get(label);
+      TaggedImage image = writePendingImages_.get(key);
       if (image != null) {
          return image;
       }
 
-      MultipageTiffReader reader = tiffReadersByLabel_.get(label);
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
       if (reader == null) {
          return null;
       }
-      return reader.readImage(label);
+      if (!reader.isMemoryMapped()) {
+         return reader.readImage(key);
+      }
+      synchronized (decodedPlanes_) {
+         image = decodedPlanes_.get(key);
+      }
+      if (image == null) {
+         image = reader.readImage(key);
+         if (image == null) {
+            return null;
+         }
+         synchronized (decodedPlanes_) {
+            decodedPlanes_.put(key, image);
+         }
+      }
+      return new TaggedImage(image.pix, MDUtils.copy(image.tags));
    }
 
    @Override
@@ -253,8 +310,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public void putImage(TaggedImage taggedImage) throws MMException, IOException {
-      final String label = MDUtils.getLabel(taggedImage.tags);
-      startWritingTask(label, taggedImage);
+      final long key;
+      try {
+         key = ImageKey.fromTags(taggedImage.tags);
+      } catch (JSONException ex) {
+         throw new MMException("Image indices missing from tags: " + ex.getMessage());
+      } catch (IllegalArgumentException ex) {
+         throw new MMException(ex.getMessage());
+      }
+      startWritingTask(key, taggedImage);
 
       // Now, we must hold on to taggedImage, so that we can return it if
       // somebody calls getImage() before the writing is finished.
@@ -262,37 +326,34 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       // that would be a bad thing to do anyway (will break the writer) and is
       // considered forbidden.
 
-      // We are here depending on the fact that writingExecutor_ is a
-      // single-thread ThreadPoolExecutor, and that submitted tasks are
+      // We are here depending on the fact that writePipeline_ runs its
+      // tasks on a single thread, and that submitted tasks are
       // executed in order. A better implementation might use Guava's
       // ListenableFuture.
       // Also note that the image will be dropped if the writing fails due to
       // any error. This is acceptable for disk-backed storage.
-      writePendingImages_.put(label, taggedImage);
-      writingExecutor_.submit(new Runnable() {
+      writePendingImages_.put(key, taggedImage);
+      writePipeline_.execute(new Runnable() {
          @Override public void run() {
-            writePendingImages_.remove(label);
+            writePendingImages_.remove(key);
          }
       });
    }
 
    /*
     * Sets up and kicks off the writing of a new image. This, in an indirect
-    * way, ends up submitting the writing task to writingExecutor_.
+    * way, ends up submitting the writing task to writePipeline_.
     */
-   private void startWritingTask(String label, TaggedImage taggedImage)
+   private void startWritingTask(long key, TaggedImage taggedImage)
       throws MMException, IOException
    {
       if (!newDataSet_) {
          ReportingUtils.showError("Tried to write image to a finished data set");
          throw new MMException("This ImageFileManager is read-only.");
       }
-      //initialize writing executor
-      if (fastStorageMode_ && writingExecutor_ == null) {
-         // Note: Code elsewhere assumes that the writing task is performed on
-         // a _single_ background thread.
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
-                 new LinkedBlockingQueue<java.lang.Runnable>());
+      //initialize writing pipeline
+      if (writePipeline_ == null) {
+         writePipeline_ = new MultipageTiffWritePipeline(fastStorageMode_);
       }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
@@ -323,24 +384,18 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       FileSet set = fileSets_.get(fileSetIndex);
       try {
          set.writeImage(taggedImage);
-         tiffReadersByLabel_.put(label, set.getCurrentReader());
+         tiffReadersByKey_.put(key, set.getCurrentReader());
       } catch (IOException ex) {
         ReportingUtils.showError("problem writing image to file");
       }
 
          
-      int frame;
-      try {
-         frame = MDUtils.getFrameIndex(taggedImage.tags);
-      } catch (JSONException ex) {
-         frame = 0;
-      }
-      lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
+      lastFrameOpenedDataSet_ = Math.max(ImageKey.frame(key), lastFrameOpenedDataSet_);
    }
 
    @Override
    public Set<String> imageKeys() {
-      return tiffReadersByLabel_.keySet();
+      return tiffReadersByKey_.labelView(slicesFirst_, timeFirst_);
    }
 
    /**
@@ -382,16 +437,25 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ReportingUtils.logError("Couldn't fill in missing frames in OME");
          }
 
-         //figure out where the full string of OME metadata can be stored 
-         String fullOMEXMLMetadata = omeMetadata_.toString();
-         int length = fullOMEXMLMetadata.length();
+         //figure out where the full OME metadata can be stored.  It is written
+         //to the file that is used when no TIFF has room for it, and copied from there
+         File fullOMEXMLFile = new File(directory_ + File.separator + "OMEXMLMetadata.ome");
+         long length = -1;
+         try {
+            //returns once the file is written and closed
+            length = omeMetadata_.writeXML(fullOMEXMLFile);
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex, "Couldn't write OME metadata, files will have none");
+            //don't leave a partial file, nor point to it
+            fullOMEXMLFile.delete();
+         }
          String uuid = null, filename = null;
          FileSet master = null;
          for (FileSet p : fileSets_.values()) {
-            if (p.hasSpaceForFullOMEXML(length)) {
+            if (length >= 0 && p.hasSpaceForFullOMEXML(length)) {
                uuid = p.getCurrentUUID();
                filename = p.getCurrentFilename();
-               p.finished(fullOMEXMLMetadata);
+               p.finished(fullOMEXMLFile);
                master = p;
                count++;
                progressBar.setProgress(count);
@@ -399,18 +463,16 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             }
          }
          
-         if (uuid == null) {
-            //in the rare case that no files have extra space to fit the full block of OME XML,
-            //generate a file specifically for holding it that all other files can point to
-            //simplest way to do this is to make a .ome text file 
-             filename = "OMEXMLMetadata.ome";
-             uuid = "urn:uuid:" + UUID.randomUUID().toString();
-             PrintWriter pw = new PrintWriter(directory_ + File.separator + filename);
-             pw.print(fullOMEXMLMetadata);
-             pw.close();
+         String partialOME = "";
+         if (length >= 0) {
+            if (uuid == null) {
+               //in the rare case that no files have extra space to fit the full block of OME XML,
+               //keep the file specifically for holding it that all other files can point to
+               filename = fullOMEXMLFile.getName();
+               uuid = "urn:uuid:" + UUID.randomUUID().toString();
+            }
+            partialOME = OMEMetadata.getOMEStringPointerToMasterFile(filename, uuid);
          }
-         
-         String partialOME = OMEMetadata.getOMEStringPointerToMasterFile(filename, uuid);
 
          for (FileSet p : fileSets_.values()) {
             if (p == master) {
@@ -424,17 +486,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          //so that no attempt is made to close the dataset (and thus the FileChannel)
          //before everything has finished writing
          //mkae sure all images have finished writing if they are on seperate thread 
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
-            try {
-               //now that shutdown has been called, need to wait for tasks to finish
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
-                  ReportingUtils.logMessage("Waiting for image stack file finishing to complete");
-               }
-            } catch (InterruptedException e) {
-               ReportingUtils.logError("File finishing thread interrupted");
-               Thread.interrupted();
-            }
+         if (writePipeline_ != null) {
+            writePipeline_.shutdown();
+         }
+         if (master != null) {
+            fullOMEXMLFile.delete();
          }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -450,7 +506,16 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    @Override
    public void close() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      synchronized (this) {
+         if (!closed_) {
+            closed_ = true;
+            ImageKey.releaseLargeKeys();
+         }
+      }
+      synchronized (decodedPlanes_) {
+         decodedPlanes_.clear();
+      }
+      for (MultipageTiffReader r : tiffReadersByKey_.valueSet()) {
          try {
             r.close();
          } catch (IOException ex) {
@@ -466,32 +531,13 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public void setSummaryMetadata(JSONObject md) {
-      setSummaryMetadata(md, false);
-   }
-   
-   private void setSummaryMetadata(JSONObject md, boolean showProgress) {
       summaryMetadata_ = md;
       summaryMetadataString_ = null;
       if (summaryMetadata_ != null) {
          summaryMetadataString_ = md.toString();
-         boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
-         boolean timeFirst = summaryMetadata_.optBoolean("TimeFirst", false);
-         TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-         tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
-         if (showProgress) {
-            ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
-            progressBar.setProgress(0);
-            progressBar.setVisible(true);
-            int i = 1;
-            for (String label : oldImageMap.keySet()) {
-               tiffReadersByLabel_.put(label, oldImageMap.get(label));
-               progressBar.setProgress(i);
-               i++;
-            }
-            progressBar.setVisible(false);
-         } else {
-            tiffReadersByLabel_.putAll(oldImageMap);
-         }
+         //the image map is unordered, imageKeys() sorts on demand
+         slicesFirst_ = summaryMetadata_.optBoolean("SlicesFirst", true);
+         timeFirst_ = summaryMetadata_.optBoolean("TimeFirst", false);
          if (summaryMetadata_ != null && summaryMetadata_.length() > 0) {
             processSummaryMD();
          }
@@ -519,7 +565,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
           
    @Override   
    public void writeDisplaySettings() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      for (MultipageTiffReader r : tiffReadersByKey_.valueSet()) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
             r.rewriteComments(displayAndComments_.getJSONObject("Comments"));
@@ -615,11 +661,19 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          return currentTiffFilename_;
       }
       
-      public boolean hasSpaceForFullOMEXML(int mdLength) {
+      public boolean hasSpaceForFullOMEXML(long mdLength) {
          return tiffWriters_.getLast().hasSpaceForFullOMEMetadata(mdLength);
       }
       
       public void finished(String omeXML) throws IOException {
+         finished(omeXML, null);
+      }
+
+      public void finished(File omeXMLFile) throws IOException {
+         finished(null, omeXMLFile);
+      }
+
+      private void finished(String omeXML, File omeXMLFile) throws IOException {
          if (finished_) {
             return;
          }
@@ -636,7 +690,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          tiffWriters_.getLast().finish();
          //close all
          for (MultipageTiffWriter w : tiffWriters_) {
-            w.close(omeXML);
+            if (omeXMLFile != null) {
+               w.close(omeXMLFile);
+            } else {
+               w.close(omeXML);
+            }
          }
          finished_ = true;
       }
@@ -647,7 +705,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       
       public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
          for (MultipageTiffWriter w : tiffWriters_) {
-            if (w.getIndexMap().containsKey(MDUtils.generateLabel(channel, slice, frame, position))) {
+            if (w.getIndexMap().containsKey(ImageKey.pack(channel, slice, frame, position))) {
                w.overwritePixels(pixels, channel, slice, frame, position);
             }
          }
@@ -657,9 +715,25 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          return currentFrame_;
       }
       
+      //Add filename to image tags and serialize them for the current file
+      private ByteBuffer encodeMetadata(TaggedImage img) throws IOException {
+         try {
+            img.tags.put("FileName", currentTiffFilename_);
+         } catch (JSONException ex) {
+            ReportingUtils.logError("Error adding filename to metadata");
+         }
+         try {
+            return tiffWriters_.getLast().encodeMetadata(img.tags);
+         } catch (JSONException ex) {
+            throw new IOException("Couldn't serialize image metadata: " + ex.getMessage());
+         }
+      }
+
       public void writeImage(TaggedImage img) throws IOException {
+         //serialize the tags once, for the space check and for writing
+         ByteBuffer metadata = encodeMetadata(img);
          //check if current writer is out of space, if so, make a new one
-         if (!tiffWriters_.getLast().hasSpaceToWrite(img, omeTiff_ ?  SPACE_FOR_PARTIAL_OME_MD : 0  )) {
+         if (!tiffWriters_.getLast().hasSpaceToWrite(metadata.remaining(), omeTiff_ ?  SPACE_FOR_PARTIAL_OME_MD : 0  )) {
             //write index map here but still need to call close() at end of acq
             tiffWriters_.getLast().finish();          
             
@@ -668,17 +742,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ifdCount_ = 0;
             tiffWriters_.add(new MultipageTiffWriter(directory_ ,currentTiffFilename_, summaryMetadata_, mpTiff_,
                     fastStorageMode_, splitByXYPosition_));
+            //file name changed
+            metadata = encodeMetadata(img);
          }      
 
-         //Add filename to image tags
-         try {
-            img.tags.put("FileName", currentTiffFilename_);
-         } catch (JSONException ex) {
-            ReportingUtils.logError("Error adding filename to metadata");
-         }
-
          //write image
-         tiffWriters_.getLast().writeImage(img);  
+         tiffWriters_.getLast().writeImage(img, metadata);  
                          
          if (expectedImageOrder_) {
             if (splitByXYPosition_) {
@@ -823,33 +892,36 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          int numSlices = MDUtils.getNumSlices(summaryMetadata_);
          int numChannels = MDUtils.getNumChannels(summaryMetadata_);
          if (numFrames > frame + 1 ) {
-            TreeSet<String> writtenImages = new TreeSet<String>();
+            //all images of this file set share one position
+            int positionIndex = -1;
             for (MultipageTiffWriter w : tiffWriters_) {
-               writtenImages.addAll(w.getIndexMap().keySet());
+               long[] keys = w.getIndexMap().keys();
+               if (positionIndex < 0 && keys.length > 0) {
+                  positionIndex = ImageKey.position(keys[0]);
+               }
                w.setAbortedNumFrames(frame + 1);
             }
-            int positionIndex = MDUtils.getIndices(writtenImages.first())[3];
+            if (positionIndex < 0) {
+               return;
+            }
             if (omeTiff_) {
                omeMetadata_.setNumFrames(positionIndex, frame + 1);
             }
-            TreeSet<String> lastFrameLabels = new TreeSet<String>();
-            for (int c = 0; c < numChannels; c++) {
-               for (int z = 0; z < numSlices; z++) {
-                  lastFrameLabels.add(MDUtils.generateLabel(c, z, frame, positionIndex));
-               }
-            }
-            lastFrameLabels.removeAll(writtenImages);
             try {
-               for (String label : lastFrameLabels) {
-                  tiffWriters_.getLast().writeBlankImage(label);
-                  if (omeTiff_) {
-                     JSONObject dummyTags = new JSONObject();
-                     int channel = Integer.parseInt(label.split("_")[0]);
-                     int slice = Integer.parseInt(label.split("_")[1]);
-                     MDUtils.setChannelIndex(dummyTags, channel);
-                     MDUtils.setFrameIndex(dummyTags, frame);
-                     MDUtils.setSliceIndex(dummyTags, slice);
-                     omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_, currentTiffUUID_);
+               for (int c = 0; c < numChannels; c++) {
+                  for (int z = 0; z < numSlices; z++) {
+                     if (isWritten(ImageKey.pack(c, z, frame, positionIndex))) {
+                        continue;
+                     }
+                     tiffWriters_.getLast().writeBlankImage(
+                           MDUtils.generateLabel(c, z, frame, positionIndex));
+                     if (omeTiff_) {
+                        JSONObject dummyTags = new JSONObject();
+                        MDUtils.setChannelIndex(dummyTags, c);
+                        MDUtils.setFrameIndex(dummyTags, frame);
+                        MDUtils.setSliceIndex(dummyTags, z);
+                        omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_, currentTiffUUID_);
+                     }
                   }
                }
             } catch (IOException ex) {
@@ -858,6 +930,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
       }
       
+      private boolean isWritten(long key) {
+         for (MultipageTiffWriter w : tiffWriters_) {
+            if (w.getIndexMap().containsKey(key)) {
+               return true;
+            }
+         }
+         return false;
+      }
+
       void checkForExpectedImageOrder(JSONObject tags) {
          try {
             //Determine next expected indices
@@ -1,18 +1,22 @@
 
 package org.micromanager.acquisition;
 
-import java.nio.Buffer;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.UUID;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.DirectBuffers;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
+import org.micromanager.utils.ImageMetadataCodec;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -23,14 +27,38 @@ import org.micromanager.utils.ReportingUtils;
  * @author arthur
  *
  * This class stores a collection of TaggedImages, all in ram.
+ * Pixels and metadata are kept off the Java heap in slabs of direct memory.
+ * When the memory budget set with setMemoryBudgetMB is used up, the oldest
+ * images are moved to a temporary multipage TIFF file, which is deleted when
+ * the storage is closed.
  */
 public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    
-   private class DirectTaggedImage {
-       Buffer pixelBuffer;
-       ByteBuffer tagsBuffer;
+   /*
+    * Pixels (native byte order) followed by the UTF-8 encoded tags, in one
+    * region of the slab allocator. The tags are stored without the summary
+    * metadata, which codec puts back.
+    */
+   private static class DirectTaggedImage {
+      ByteBuffer region;
+      int pixelType; // PIXELS_* constant
+      int pixelCount;
+      int tagsLength;
+      ImageMetadataCodec codec;
+
+      int pixelBytes() {
+         return pixelCount * (pixelType == PIXELS_BYTE ? 1 :
+               pixelType == PIXELS_SHORT ? 2 : 4);
+      }
    }
+
+   private static final int PIXELS_BYTE = 0;
+   private static final int PIXELS_SHORT = 1;
+   private static final int PIXELS_INT = 2;
+
+   // Marks images that have been moved to the spill storage
+   private static final DirectTaggedImage SPILLED = new DirectTaggedImage();
    
    private class LRUCache<T,U> extends LinkedHashMap<T,U> {
       final long max_size_;
@@ -47,89 +75,311 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    private boolean finished_ = false;
 
-   private TreeMap<String, DirectTaggedImage> imageMap_;
-   private LRUCache<String, TaggedImage> lruCache_;
+   private ImageKeyMap<DirectTaggedImage> imageMap_;
+   private LRUCache<Long, TaggedImage> lruCache_;
+   private boolean slicesFirst_ = true;
+   private boolean timeFirst_ = false;
    private JSONObject summaryMetadata_;
+   private ImageMetadataCodec metadataCodec_;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
 
+   private final OffHeapSlabAllocator allocator_ = new OffHeapSlabAllocator();
+   // Keys of the images held in RAM, oldest first
+   private final LinkedList<Long> ramImageOrder_ = new LinkedList<Long>();
+   private int ramImageCount_ = 0;
+   private long bytesPerImage_ = 0;
+   // Images that didn't fit within the RAM budget, created on first use
+   private TaggedImageStorageMultipageTiff spillStorage_;
+   private File spillDirectory_;
+   private int spilledImageCount_ = 0;
+   private boolean closed_ = false;
+
    private String diskLocation_;
    
    public TaggedImageStorageRamFast(JSONObject summaryMetadata) {
-      imageMap_ = new TreeMap<String, DirectTaggedImage>(new ImageLabelComparator());
+      ImageKey.retainLargeKeys();
+      imageMap_ = new ImageKeyMap<DirectTaggedImage>();
       setSummaryMetadata(summaryMetadata);
       displaySettings_ = new JSONObject();
-      lruCache_ = new LRUCache<String, TaggedImage>(10);
+      lruCache_ = new LRUCache<Long, TaggedImage>(10);
    }
 
-   private ByteBuffer bufferFromJSON(JSONObject json) {
-      return DirectBuffers.bufferFromString(json.toString());
+   /**
+    * Limit the memory used by all RAM storages together. Once the limit is
+    * reached, the oldest images are moved to a temporary file on disk.
+    * @param megabytes limit, or 0 for no limit other than the memory
+    * available to the JVM
+    */
+   public static void setMemoryBudgetMB(long megabytes) {
+      OffHeapSlabAllocator.setBudget(megabytes * 1024 * 1024);
    }
-   
-   private JSONObject JSONFromBuffer(ByteBuffer byteBuffer) throws JSONException {
-      return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
+
+   /**
+    * @return the number of images of bytesPerImage bytes that still fit in
+    * the RAM budget, or -1 if there is no budget
+    */
+   public static long getRemainingImageCapacity(long bytesPerImage) {
+      long free = OffHeapSlabAllocator.getUnreservedBytes();
+      if (free == Long.MAX_VALUE) {
+         return -1;
+      }
+      return free / Math.max(1, bytesPerImage);
    }
-   
-   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
+
+   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage)
+         throws JSONException, MMScriptException {
       DirectTaggedImage direct = new DirectTaggedImage();
-      direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
-      direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
+      Object pix = taggedImage.pix;
+      if (pix instanceof byte[]) {
+         direct.pixelType = PIXELS_BYTE;
+         direct.pixelCount = ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         direct.pixelType = PIXELS_SHORT;
+         direct.pixelCount = ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         direct.pixelType = PIXELS_INT;
+         direct.pixelCount = ((int[]) pix).length;
+      } else {
+         throw new MMScriptException("Unsupported pixel type");
+      }
+      ByteBuffer tags = metadataCodec_.encode(taggedImage.tags);
+      direct.tagsLength = tags.remaining();
+      direct.codec = metadataCodec_;
+      int pixelBytes = direct.pixelBytes();
+      direct.region = allocateRegion(pixelBytes + direct.tagsLength);
+      if (direct.region == null) {
+         return null;
+      }
+
+      ByteBuffer region = direct.region;
+      region.clear();
+      if (direct.pixelType == PIXELS_BYTE) {
+         region.put((byte[]) pix);
+      } else if (direct.pixelType == PIXELS_SHORT) {
+         region.asShortBuffer().put((short[]) pix);
+      } else {
+         region.asIntBuffer().put((int[]) pix);
+      }
+      region.position(pixelBytes);
+      region.put(tags);
+      bytesPerImage_ = region.capacity();
       return direct;
    }
    
    private TaggedImage directTaggedImageToTaggedImage(DirectTaggedImage directImage) {
-        if (directImage != null) {
-            try {
-                return new TaggedImage(DirectBuffers.arrayFromBuffer(directImage.pixelBuffer),
-                                       JSONFromBuffer(directImage.tagsBuffer));
-            } catch (JSONException ex) {
-               ReportingUtils.logError(ex);
-               return null;
-            }
-        } else {
-           return null;
-        } 
+      if (directImage == null) {
+         return null;
+      }
+      ByteBuffer region = directImage.region.duplicate().order(DirectBuffers.NATIVE_ORDER);
+      region.clear();
+      Object pix;
+      if (directImage.pixelType == PIXELS_BYTE) {
+         byte[] bytes = new byte[directImage.pixelCount];
+         region.get(bytes);
+         pix = bytes;
+      } else if (directImage.pixelType == PIXELS_SHORT) {
+         short[] shorts = new short[directImage.pixelCount];
+         region.asShortBuffer().get(shorts);
+         pix = shorts;
+      } else {
+         int[] ints = new int[directImage.pixelCount];
+         region.asIntBuffer().get(ints);
+         pix = ints;
+      }
+      byte[] tags = new byte[directImage.tagsLength];
+      region.position(directImage.pixelBytes());
+      region.get(tags);
+      try {
+         return new TaggedImage(pix, directImage.codec.decode(new String(tags, "UTF-8")));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   /*
+    * Get a region from the allocator, moving the oldest images to disk
+    * until one is available.  Returns null if there is no room even with
+    * all images of this storage on disk (the budget is shared with other
+    * storages), in which case the image goes to disk directly.
+    */
+   private ByteBuffer allocateRegion(int length) {
+      ByteBuffer region = allocator_.allocate(length);
+      while (region == null) {
+         if (ramImageCount_ == 0) {
+            // Nothing left to spill; free regions may all be of the wrong
+            // size, so start over with fresh slabs
+            allocator_.release();
+            return allocator_.allocate(length);
+         }
+         spillOldestImage();
+         region = allocator_.allocate(length);
+      }
+      return region;
+   }
+
+   private void spillOldestImage() {
+      long key = ramImageOrder_.getFirst();
+      DirectTaggedImage direct = imageMap_.get(key);
+      if (direct == null || direct == SPILLED) {
+         ramImageOrder_.removeFirst();
+         return;
+      }
+      putSpilledImage(directTaggedImageToTaggedImage(direct));
+      ramImageOrder_.removeFirst();
+      imageMap_.put(key, SPILLED);
+      allocator_.free(direct.region);
+      ramImageCount_--;
+      spilledImageCount_++;
+   }
+
+   private void putSpilledImage(TaggedImage image) {
+      try {
+         if (spillStorage_ == null) {
+            createSpillStorage();
+         }
+         spillStorage_.putImage(image);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         OutOfMemoryError e = new OutOfMemoryError(
+               "RAM storage is full and images could not be moved to disk: " + ex.getMessage());
+         e.initCause(ex);
+         throw e;
+      }
+   }
+
+   private void createSpillStorage() throws IOException, JSONException {
+      if (summaryMetadata_ == null) {
+         throw new IOException("No summary metadata");
+      }
+      spillDirectory_ = new File(System.getProperty("java.io.tmpdir"),
+            "MMRamStorageSpill_" + UUID.randomUUID());
+      JSONObject summary = new JSONObject(summaryMetadata_.toString());
+      summary.put("Prefix", "spill");
+      ReportingUtils.logMessage("RAM storage full, moving images to " + spillDirectory_);
+      spillStorage_ = new TaggedImageStorageMultipageTiff(spillDirectory_.getAbsolutePath(),
+            true, summary, false, false, true);
    }
    
    @Override
-   public void putImage(final TaggedImage taggedImage) throws MMException {
-      String label = MDUtils.getLabel(taggedImage.tags);
+   public synchronized void putImage(final TaggedImage taggedImage) throws MMException {
       try {
+         long key = ImageKey.fromTags(taggedImage.tags);
          // Allocate the direct tagged image before altering any data, in case
-         // OutOfMemoryError is thrown.
+         // OutOfMemoryError is thrown. This may move older images to disk.
          DirectTaggedImage directImage =
                taggedImageToDirectTaggedImage(taggedImage);
 
-         lruCache_.put(label, taggedImage);
-         imageMap_.put(label, directImage);
-         lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
+         if (directImage == null) {
+            // No RAM left for this storage: write it to disk right away.
+            // The disk storage adds the file name to the tags it is given,
+            // so it gets a copy and the caller's tags are left alone.
+            putSpilledImage(new TaggedImage(taggedImage.pix,
+                  MDUtils.copy(taggedImage.tags)));
+            DirectTaggedImage previous = imageMap_.put(key, SPILLED);
+            if (previous != SPILLED) {
+               if (previous != null) {
+                  // its key stays in ramImageOrder_ and is skipped there
+                  allocator_.free(previous.region);
+                  ramImageCount_--;
+               }
+               spilledImageCount_++;
+            }
+            lruCache_.put(key, taggedImage);
+            lastFrame_ = Math.max(lastFrame_, ImageKey.frame(key));
+            return;
+         }
+
+         DirectTaggedImage previous = imageMap_.put(key, directImage);
+         if (previous != null && previous != SPILLED) {
+            allocator_.free(previous.region);
+         } else {
+            // Overwriting a spilled image leaves the stale copy on disk,
+            // but this one is found first
+            if (previous == SPILLED) {
+               spilledImageCount_--;
+            }
+            ramImageOrder_.add(key);
+            ramImageCount_++;
+         }
+         lruCache_.put(key, taggedImage);
+         lastFrame_ = Math.max(lastFrame_, ImageKey.frame(key));
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
    }
 
    @Override
-    public TaggedImage getImage(int channel, int slice, int frame, int position) {
-        if (imageMap_ == null) {
-            return null;
-        }
-        String label = MDUtils.generateLabel(channel, slice, frame, position);
-        TaggedImage cachedImage = lruCache_.get(label);
-        if (cachedImage != null) {
-           return cachedImage;
-        } else { // cache miss
-           return directTaggedImageToTaggedImage(imageMap_.get(label));
-        }
-    }
+   public synchronized TaggedImage getImage(int channel, int slice, int frame, int position) {
+      if (imageMap_ == null) {
+         return null;
+      }
+      long key;
+      try {
+         key = ImageKey.pack(channel, slice, frame, position);
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+      TaggedImage cachedImage = lruCache_.get(key);
+      if (cachedImage != null) {
+         return cachedImage;
+      } // cache miss
+      DirectTaggedImage direct = imageMap_.get(key);
+      if (direct == SPILLED) {
+         return spillStorage_.getImage(channel, slice, frame, position);
+      }
+      return directTaggedImageToTaggedImage(direct);
+   }
 
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       return this.getImage(channelIndex, sliceIndex, frameIndex, positionIndex).tags;
    }
 
+   /**
+    * @return number of images held in RAM
+    */
+   public synchronized int getNumberOfImagesInRam() {
+      return ramImageCount_;
+   }
+
+   /**
+    * @return number of images that have been moved to disk because the RAM
+    * budget was exhausted
+    */
+   public synchronized int getNumberOfSpilledImages() {
+      return spilledImageCount_;
+   }
+
+   /**
+    * @return bytes of memory occupied by the images in RAM
+    */
+   public long getBytesInRam() {
+      return allocator_.getUsedBytes();
+   }
+
+   /**
+    * @return the number of additional images of the size of the latest
+    * image that fit in RAM before images are moved to disk, or -1 if there
+    * is no budget
+    */
+   public synchronized long getRemainingImageCapacity() {
+      if (bytesPerImage_ == 0) {
+         return -1;
+      }
+      long free = OffHeapSlabAllocator.getUnreservedBytes();
+      if (free == Long.MAX_VALUE) {
+         return -1;
+      }
+      // Space left in the slabs of this storage counts as well
+      long slack = allocator_.getSlabBytes() - allocator_.getUsedBytes();
+      return (free + slack) / bytesPerImage_;
+   }
+
    @Override
    public Set<String> imageKeys() {
-      return imageMap_.keySet();
+      return imageMap_.labelView(slicesFirst_, timeFirst_);
    }
 
    @Override
@@ -145,13 +395,14 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    @Override
    public final void setSummaryMetadata(JSONObject md) {
       summaryMetadata_ = md;
+      //images stored before keep the codec of their summary
+      metadataCodec_ = new ImageMetadataCodec(md);
       if (summaryMetadata_ != null) {
          try {
             boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
             boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, DirectTaggedImage> oldImageMap = imageMap_;
-            imageMap_ = new TreeMap<String,DirectTaggedImage>(new ImageLabelComparator(slicesFirst,timeFirst));    
-            imageMap_.putAll(oldImageMap);
+            slicesFirst_ = slicesFirst;
+            timeFirst_ = timeFirst;
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
@@ -174,12 +425,30 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    }
 
    @Override
-   public void close() {
+   public synchronized void close() {
+      if (!closed_) {
+         closed_ = true;
+         ImageKey.releaseLargeKeys();
+      }
       imageMap_.clear();
       lruCache_.clear();
+      ramImageOrder_.clear();
+      ramImageCount_ = 0;
+      allocator_.release();
       summaryMetadata_ = null;
       displaySettings_ = null;
-      // do nothing for now.
+      if (spillStorage_ != null) {
+         spillStorage_.finished();
+         spillStorage_.close();
+         spillStorage_ = null;
+         File[] files = spillDirectory_.listFiles();
+         if (files != null) {
+            for (File f : files) {
+               f.delete();
+            }
+         }
+         spillDirectory_.delete();
+      }
    }
 
    /**
@@ -202,7 +471,11 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    @Override
    public long getDataSetSize() {
-      throw new UnsupportedOperationException("Not supported yet.");
+      long size = getBytesInRam();
+      if (spillStorage_ != null) {
+         size += spillStorage_.getDataSetSize();
+      }
+      return size;
    }
 
    @Override
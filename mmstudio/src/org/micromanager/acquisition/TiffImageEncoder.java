@@ -0,0 +1,298 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TiffImageEncoder.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.acquisition;
+
+import ij.ImageJ;
+import ij.io.TiffDecoder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a single image as a TIFF file the way ImageJ's FileSaver does
+ * (big endian, one strip, ImageJ description with unit and display range,
+ * and the image metadata as ImageJ "Info"), but straight from the pixel
+ * array and in a single write, without creating an ImagePlus.
+ * Handles GRAY8, GRAY16, GRAY32 and RGB32 images.
+ */
+final class TiffImageEncoder {
+
+   private static final char NEW_SUBFILE_TYPE = 254;
+   private static final char WIDTH = 256;
+   private static final char HEIGHT = 257;
+   private static final char BITS_PER_SAMPLE = 258;
+   private static final char PHOTOMETRIC_INTERPRETATION = 262;
+   private static final char IMAGE_DESCRIPTION = 270;
+   private static final char STRIP_OFFSETS = 273;
+   private static final char SAMPLES_PER_PIXEL = 277;
+   private static final char ROWS_PER_STRIP = 278;
+   private static final char STRIP_BYTE_COUNTS = 279;
+   private static final char X_RESOLUTION = 282;
+   private static final char Y_RESOLUTION = 283;
+   private static final char RESOLUTION_UNIT = 296;
+   private static final char SAMPLE_FORMAT = 339;
+   private static final char IJ_METADATA_BYTE_COUNTS = TiffDecoder.META_DATA_BYTE_COUNTS;
+   private static final char IJ_METADATA = TiffDecoder.META_DATA;
+
+   private static final char BYTE = 1;
+   private static final char ASCII = 2;
+   private static final char SHORT = 3;
+   private static final char LONG = 4;
+   private static final char RATIONAL = 5;
+
+   // non public fields in TiffDecoder
+   private static final int IJ_MAGIC_NUMBER = 0x494a494a;
+   private static final int IJ_INFO = 0x696e666f;
+
+   private TiffImageEncoder() {
+   }
+
+   /**
+    * @return true if encode can write images of this pixel type
+    */
+   static boolean canEncode(String pixelType) {
+      return pixelType.equals("GRAY8") || pixelType.equals("GRAY16")
+              || pixelType.equals("GRAY32") || pixelType.equals("RGB32");
+   }
+
+   /**
+    * Writes the image to file.
+    * @param file - file to create
+    * @param pixels - byte[], short[], float[], or BGRA byte[] for RGB32
+    * @param pixelType - GRAY8, GRAY16, GRAY32 or RGB32
+    * @param width - image width
+    * @param height - image height
+    * @param pixelSizeUm - pixel size, or 0 if not calibrated
+    * @param info - text to store as ImageJ's "Info" property, or null
+    */
+   static void write(File file, Object pixels, String pixelType, int width,
+           int height, double pixelSizeUm, String info) throws IOException {
+      ByteBuffer buffer = encode(pixels, pixelType, width, height,
+              pixelSizeUm, info);
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+         FileChannel channel = out.getChannel();
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   static ByteBuffer encode(Object pixels, String pixelType, int width,
+           int height, double pixelSizeUm, String info) throws IOException {
+      boolean rgb = pixelType.equals("RGB32");
+      boolean isFloat = pixelType.equals("GRAY32");
+      int bitsPerSample;
+      if (pixelType.equals("GRAY8") || rgb) {
+         bitsPerSample = 8;
+      } else if (pixelType.equals("GRAY16")) {
+         bitsPerSample = 16;
+      } else if (isFloat) {
+         bitsPerSample = 32;
+      } else {
+         throw new IOException("Can not write images of type " + pixelType);
+      }
+      int samplesPerPixel = rgb ? 3 : 1;
+      long pixelBytes = (long) width * height * samplesPerPixel * (bitsPerSample / 8);
+      boolean calibrated = pixelSizeUm > 0;
+      boolean hasInfo = info != null && info.length() > 0;
+
+      byte[] description = getDescription(pixels, pixelType, calibrated);
+      int nEntries = 10 + (calibrated ? 3 : 0) + (isFloat ? 1 : 0) + (hasInfo ? 2 : 0);
+      int ifdSize = 2 + 12 * nEntries + 4;
+      int bpsOffset = 8 + ifdSize;
+      int descriptionOffset = bpsOffset + (rgb ? 6 : 0);
+      int resolutionOffset = descriptionOffset + even(description.length);
+      int ijCountsOffset = resolutionOffset + (calibrated ? 16 : 0);
+      int ijHeaderSize = 4 + 8;
+      int infoSize = hasInfo ? 2 * info.length() : 0;
+      int ijDataOffset = ijCountsOffset + (hasInfo ? 8 : 0);
+      int pixelOffset = ijDataOffset + (hasInfo ? even(ijHeaderSize + infoSize) : 0);
+      long total = pixelOffset + pixelBytes;
+      if (total > Integer.MAX_VALUE) {
+         throw new IOException("Image too large for a single TIFF strip");
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) total).order(ByteOrder.BIG_ENDIAN);
+      // header
+      buffer.putShort((short) 0x4d4d);
+      buffer.putShort((short) 42);
+      buffer.putInt(8);
+      // IFD, entries sorted by tag
+      buffer.putShort((short) nEntries);
+      putEntry(buffer, NEW_SUBFILE_TYPE, LONG, 1, 0);
+      putEntry(buffer, WIDTH, LONG, 1, width);
+      putEntry(buffer, HEIGHT, LONG, 1, height);
+      if (rgb) {
+         putEntry(buffer, BITS_PER_SAMPLE, SHORT, 3, bpsOffset);
+      } else {
+         putEntry(buffer, BITS_PER_SAMPLE, SHORT, 1, bitsPerSample);
+      }
+      putEntry(buffer, PHOTOMETRIC_INTERPRETATION, SHORT, 1, rgb ? 2 : 1);
+      putEntry(buffer, IMAGE_DESCRIPTION, ASCII, description.length, descriptionOffset);
+      putEntry(buffer, STRIP_OFFSETS, LONG, 1, pixelOffset);
+      putEntry(buffer, SAMPLES_PER_PIXEL, SHORT, 1, samplesPerPixel);
+      putEntry(buffer, ROWS_PER_STRIP, SHORT, 1, height);
+      putEntry(buffer, STRIP_BYTE_COUNTS, LONG, 1, pixelBytes);
+      if (calibrated) {
+         putEntry(buffer, X_RESOLUTION, RATIONAL, 1, resolutionOffset);
+         putEntry(buffer, Y_RESOLUTION, RATIONAL, 1, resolutionOffset + 8);
+         // no absolute unit; ImageJ takes "um" from the description
+         putEntry(buffer, RESOLUTION_UNIT, SHORT, 1, 1);
+      }
+      if (isFloat) {
+         putEntry(buffer, SAMPLE_FORMAT, SHORT, 1, 3);
+      }
+      if (hasInfo) {
+         putEntry(buffer, IJ_METADATA_BYTE_COUNTS, LONG, 2, ijCountsOffset);
+         putEntry(buffer, IJ_METADATA, BYTE, ijHeaderSize + infoSize, ijDataOffset);
+      }
+      buffer.putInt(0); // no next IFD
+
+      if (rgb) {
+         buffer.putShort(bpsOffset, (short) 8);
+         buffer.putShort(bpsOffset + 2, (short) 8);
+         buffer.putShort(bpsOffset + 4, (short) 8);
+      }
+      buffer.position(descriptionOffset);
+      buffer.put(description);
+      if (calibrated) {
+         // same rationals as ImageJ's TiffEncoder
+         double scale = 1.0 / pixelSizeUm;
+         double denominator = scale > 1000.0 ? 1000.0 : 1000000.0;
+         int numerator = (int) (scale * denominator);
+         buffer.putInt(resolutionOffset, numerator);
+         buffer.putInt(resolutionOffset + 4, (int) denominator);
+         buffer.putInt(resolutionOffset + 8, numerator);
+         buffer.putInt(resolutionOffset + 12, (int) denominator);
+      }
+      if (hasInfo) {
+         buffer.putInt(ijCountsOffset, ijHeaderSize);
+         buffer.putInt(ijCountsOffset + 4, infoSize);
+         buffer.position(ijDataOffset);
+         buffer.putInt(IJ_MAGIC_NUMBER);
+         buffer.putInt(IJ_INFO);
+         buffer.putInt(1);
+         buffer.asCharBuffer().put(info);
+      }
+
+      buffer.position(pixelOffset);
+      putPixels(buffer, pixels, pixelType);
+      buffer.rewind();
+      return buffer;
+   }
+
+   private static int even(int n) {
+      return (n + 1) & ~1;
+   }
+
+   private static void putEntry(ByteBuffer buffer, char tag, char type,
+           long count, long value) {
+      buffer.putChar(tag);
+      buffer.putChar(type);
+      buffer.putInt((int) count);
+      if (type == SHORT && count == 1) {
+         // left justify in the 4 byte value field
+         buffer.putChar((char) value);
+         buffer.putChar((char) 0);
+      } else {
+         buffer.putInt((int) value);
+      }
+   }
+
+   /*
+    * The description ImageJ's FileSaver writes for a single image: version,
+    * unit when calibrated, and the display range of 16 and 32 bit images
+    * (which for a new image is the range of its pixels).
+    */
+   private static byte[] getDescription(Object pixels, String pixelType,
+           boolean calibrated) throws UnsupportedEncodingException {
+      StringBuilder sb = new StringBuilder();
+      sb.append("ImageJ=").append(ImageJ.VERSION).append("\n");
+      if (calibrated) {
+         sb.append("unit=um\n");
+      }
+      if (pixelType.equals("GRAY16")) {
+         short[] pix = (short[]) pixels;
+         int min = 65535;
+         int max = 0;
+         for (short p : pix) {
+            int v = p & 0xffff;
+            if (v < min) {
+               min = v;
+            }
+            if (v > max) {
+               max = v;
+            }
+         }
+         if (pix.length == 0) {
+            min = 0;
+         }
+         sb.append("min=").append((double) min).append("\n");
+         sb.append("max=").append((double) max).append("\n");
+      } else if (pixelType.equals("GRAY32")) {
+         float min = Float.MAX_VALUE;
+         float max = -Float.MAX_VALUE;
+         for (float v : (float[]) pixels) {
+            if (v < min) {
+               min = v;
+            }
+            if (v > max) {
+               max = v;
+            }
+         }
+         sb.append("min=").append((double) min).append("\n");
+         sb.append("max=").append((double) max).append("\n");
+      }
+      sb.append((char) 0);
+      return sb.toString().getBytes("ISO-8859-1");
+   }
+
+   /*
+    * Copies the pixels at the current position of buffer, converting RGB32
+    * images from BGRA to RGB on the way.
+    */
+   private static void putPixels(ByteBuffer buffer, Object pixels, String pixelType) {
+      if (pixelType.equals("RGB32")) {
+         byte[] bgra = (byte[]) pixels;
+         byte[] array = buffer.array();
+         int count = buffer.arrayOffset() + buffer.position();
+         for (int i = 0; i < bgra.length; i += 4) {
+            array[count] = bgra[i + 2];
+            array[count + 1] = bgra[i + 1];
+            array[count + 2] = bgra[i];
+            count += 3;
+         }
+      } else if (pixels instanceof byte[]) {
+         buffer.put((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         buffer.asShortBuffer().put((short[]) pixels);
+      } else {
+         buffer.asFloatBuffer().put((float[]) pixels);
+      }
+   }
+}
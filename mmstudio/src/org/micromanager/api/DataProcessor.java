@@ -21,9 +21,14 @@
 
 package org.micromanager.api;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.ProcessorEnabledEvent;
 import org.micromanager.utils.ReportingUtils;
@@ -40,6 +45,10 @@ import org.micromanager.utils.ReportingUtils;
  * If you use your own constructor, make sure that it accepts no arguments.
  * If you need to initialize variables, do this in the makeConfigurationGUI 
  * method instead.  That method is the first to be called.
+ *
+ * Processors that handle every object independently can override
+ * isStateless() to have process() called from several worker threads at
+ * once. Objects still leave the processor in the order they arrived.
  */
 public abstract class DataProcessor<E> extends Thread {
    private BlockingQueue<E> input_;
@@ -50,6 +59,41 @@ public abstract class DataProcessor<E> extends Thread {
    // images.
    private boolean isEnabled_ = true;
 
+   // Parallel execution of stateless processors. Each worker thread handles
+   // one WorkItem per call to process(); results are put on the output
+   // queue in sequence number order.
+   private static class WorkItem<E> {
+      final long sequenceNumber;
+      final E datum;
+      boolean polled = false;
+      final List<E> outputs = new ArrayList<E>(1);
+
+      WorkItem(long sequenceNumber, E datum) {
+         this.sequenceNumber = sequenceNumber;
+         this.datum = datum;
+      }
+   }
+   private final ThreadLocal<WorkItem<E>> currentWorkItem_ =
+         new ThreadLocal<WorkItem<E>>();
+   private final HashMap<Long, WorkItem<E>> completedWorkItems_ =
+         new HashMap<Long, WorkItem<E>>();
+   private long nextOutputSequenceNumber_ = 0;
+   // Set while one worker puts results on the output queue; the others
+   // leave their results in completedWorkItems_ for it
+   private boolean outputting_ = false;
+   private int workerThreadCount_ =
+         Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+   private volatile boolean parallel_ = false;
+
+   // Statistics, shown in the pipeline window
+   private final AtomicLong processedCount_ = new AtomicLong(0);
+   private final AtomicLong processingNanos_ = new AtomicLong(0);
+   private volatile long firstProcessedNanos_ = 0;
+   private volatile long lastProcessedNanos_ = 0;
+   // When the datum handled by the current process() call was received
+   // (serial mode only)
+   private long pollNanos_ = 0;
+
    /**
     * The scripting interface (commonly known as the "gui" object).
     */
@@ -87,6 +131,38 @@ public abstract class DataProcessor<E> extends Thread {
     */
    public void dispose() {};
 
+   /**
+    * Override to return true if process() polls exactly one object per call
+    * and does not keep state between calls (other than configuration), so
+    * that it may be called from several threads at once. The processor
+    * must then be thread safe.
+    *
+    * The objects produced for each input are output in input order, so
+    * downstream processors see the same order as with a serial processor.
+    */
+   public boolean isStateless() {
+      return false;
+   }
+
+   /**
+    * Set the number of threads used to run a stateless processor. Takes
+    * effect when the processor is started.
+    */
+   public synchronized void setWorkerThreadCount(int count) {
+      workerThreadCount_ = Math.max(1, count);
+   }
+
+   public synchronized int getWorkerThreadCount() {
+      return workerThreadCount_;
+   }
+
+   /**
+    * Returns true if this processor is running on several worker threads.
+    */
+   public boolean isParallel() {
+      return parallel_;
+   }
+
    /**
     * Receive the ScriptInterface object.
     *
@@ -107,11 +183,182 @@ public abstract class DataProcessor<E> extends Thread {
    @Override
    public void run() {
       setStarted(true);
-      while (!stopRequested_) {
+      int workers = getWorkerThreadCount();
+      if (isStateless() && workers > 1) {
+         runParallel(workers);
+         return;
+      }
+      while (!stopRequested()) {
+         pollNanos_ = 0;
          process();
+         if (pollNanos_ != 0) {
+            recordProcessed(System.nanoTime() - pollNanos_);
+         }
       }
    }
 
+   /*
+    * This thread numbers incoming objects and hands them to the workers,
+    * which call process() for one object each.
+    */
+   private void runParallel(int workers) {
+      parallel_ = true;
+      final BlockingQueue<WorkItem<E>> work =
+            new ArrayBlockingQueue<WorkItem<E>>(2 * workers);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < workers; i++) {
+         Thread worker = new Thread(getName() + " worker " + i) {
+            @Override
+            public void run() {
+               runWorker(work);
+            }
+         };
+         worker.start();
+         threads.add(worker);
+      }
+      long sequenceNumber = 0;
+      while (!stopRequested()) {
+         E datum = poll();
+         if (datum == null) {
+            continue;
+         }
+         WorkItem<E> item = new WorkItem<E>(sequenceNumber++, datum);
+         try {
+            while (!work.offer(item, 100, TimeUnit.MILLISECONDS)) {
+               if (stopRequested()) {
+                  break;
+               }
+            }
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+      for (Thread worker : threads) {
+         try {
+            worker.join();
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+      parallel_ = false;
+   }
+
+   private void runWorker(BlockingQueue<WorkItem<E>> work) {
+      while (!stopRequested()) {
+         WorkItem<E> item;
+         try {
+            item = work.poll(100, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+            continue;
+         }
+         if (item == null) {
+            continue;
+         }
+         long start = System.nanoTime();
+         currentWorkItem_.set(item);
+         try {
+            process();
+         } catch (RuntimeException ex) {
+            ReportingUtils.logError(ex);
+         } finally {
+            currentWorkItem_.remove();
+         }
+         if (!item.polled) {
+            // process() didn't take the object; pass it on unchanged so
+            // that nothing (in particular the poison object) gets lost
+            item.outputs.add(item.datum);
+         }
+         recordProcessed(System.nanoTime() - start);
+         completeWorkItem(item);
+      }
+   }
+
+   /*
+    * Output the results of all work items that are next in sequence.
+    * The output queue may block, so results are put on it without holding
+    * the lock; only one worker does so at a time, which keeps them in order.
+    */
+   private void completeWorkItem(WorkItem<E> item) {
+      List<WorkItem<E>> ready = new ArrayList<WorkItem<E>>();
+      synchronized (completedWorkItems_) {
+         completedWorkItems_.put(item.sequenceNumber, item);
+         if (outputting_) {
+            return;
+         }
+         outputting_ = true;
+      }
+      while (true) {
+         synchronized (completedWorkItems_) {
+            WorkItem<E> next;
+            while ((next = completedWorkItems_.remove(nextOutputSequenceNumber_)) != null) {
+               ready.add(next);
+               nextOutputSequenceNumber_++;
+            }
+            if (ready.isEmpty()) {
+               outputting_ = false;
+               return;
+            }
+         }
+         for (WorkItem<E> next : ready) {
+            for (E datum : next.outputs) {
+               putOutput(datum);
+            }
+         }
+         ready.clear();
+      }
+   }
+
+   private void recordProcessed(long nanos) {
+      long now = System.nanoTime();
+      if (firstProcessedNanos_ == 0) {
+         firstProcessedNanos_ = now;
+      }
+      lastProcessedNanos_ = now;
+      processingNanos_.addAndGet(nanos);
+      processedCount_.incrementAndGet();
+   }
+
+   /**
+    * Returns the number of objects processed since the processor started or
+    * the statistics were reset.
+    */
+   public long getProcessedCount() {
+      return processedCount_.get();
+   }
+
+   /**
+    * Returns the mean time, in milliseconds, from receiving an object to
+    * the end of the process() call handling it.
+    */
+   public double getMeanLatencyMs() {
+      long count = processedCount_.get();
+      if (count == 0) {
+         return 0;
+      }
+      return processingNanos_.get() / 1e6 / count;
+   }
+
+   /**
+    * Returns the number of objects processed per second, between the first
+    * and the most recent one.
+    */
+   public double getThroughput() {
+      long elapsed = lastProcessedNanos_ - firstProcessedNanos_;
+      long count = processedCount_.get();
+      if (firstProcessedNanos_ == 0 || elapsed <= 0 || count < 2) {
+         return 0;
+      }
+      return (count - 1) / (elapsed / 1e9);
+   }
+
+   public void resetStatistics() {
+      processedCount_.set(0);
+      processingNanos_.set(0);
+      firstProcessedNanos_ = 0;
+      lastProcessedNanos_ = 0;
+   }
+
    /**
     * Request that the data processor stop processing. The current
     * processing event will continue, but no others will be started.
@@ -172,6 +419,17 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected E poll() {
+      WorkItem<E> item = currentWorkItem_.get();
+      if (item != null) {
+         // Worker thread of a stateless processor
+         if (item.polled) {
+            ReportingUtils.logError(getName() +
+                  " is declared stateless but polled twice in process()");
+            return null;
+         }
+         item.polled = true;
+         return item.datum;
+      }
       while (!stopRequested()) {
          try {
             // Ensure that input_ doesn't change between checking nullness
@@ -183,6 +441,9 @@ public abstract class DataProcessor<E> extends Thread {
             if (tmpQueue != null) {
                E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
                if (datum != null) {
+                  if (pollNanos_ == 0) {
+                     pollNanos_ = System.nanoTime();
+                  }
                   return datum;
                }
             }
@@ -216,12 +477,21 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected void produce(E datum) {
+      WorkItem<E> item = currentWorkItem_.get();
+      if (item != null) {
+         item.outputs.add(datum);
+         return;
+      }
+      putOutput(datum);
+   };
+
+   private void putOutput(E datum) {
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
          ReportingUtils.logError(ex);
       }
-   };
+   }
 
    /**
     * Returns true if stop has been requested.
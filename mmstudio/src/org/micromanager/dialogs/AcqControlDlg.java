@@ -49,6 +49,7 @@ import org.micromanager.acquisition.AcquisitionEngine;
 import org.micromanager.acquisition.ComponentTitledBorder;
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
 import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.acquisition.TaggedImageStorageRamFast;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.internalinterfaces.AcqSettingsListener;
 import org.micromanager.MMOptions;
@@ -1105,7 +1106,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
    public void propertyChange(PropertyChangeEvent e) {
       // update summary
       applySettings();
-      summaryTextArea_.setText(acqEng_.getVerboseSummary());
+      summaryTextArea_.setText(getSummaryText());
    }
    
    /**
@@ -1434,7 +1435,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
       zTop_.setText(NumberUtils.doubleToDisplayString(z));
       applySettings();
       // update summary
-      summaryTextArea_.setText(acqEng_.getVerboseSummary());
+      summaryTextArea_.setText(getSummaryText());
    }
 
    protected void setBottomPosition() {
@@ -1442,7 +1443,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
       zBottom_.setText(NumberUtils.doubleToDisplayString(z));
       applySettings();
       // update summary
-      summaryTextArea_.setText(acqEng_.getVerboseSummary());
+      summaryTextArea_.setText(getSummaryText());
    }
 
    protected void loadAcqSettingsFromFile() {
@@ -1573,13 +1574,31 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
          }
       }
 
+      return estimateBytesPerImage() * numImages;
+   }
+
+   private long estimateBytesPerImage() {
       CMMCore core = MMStudio.getInstance().getCore();
       long byteDepth = core.getBytesPerPixel();
       long width = core.getImageWidth();
       long height = core.getImageHeight();
-      long bytesPerImage = byteDepth*width*height;
+      return byteDepth*width*height;
+   }
 
-      return bytesPerImage * numImages;
+   /*
+    * Acquisition summary, plus the number of images that still fit in the
+    * RAM storage limit when acquiring to RAM
+    */
+   private String getSummaryText() {
+      String summary = acqEng_.getVerboseSummary();
+      if (!savePanel_.isSelected()) {
+         long capacity = TaggedImageStorageRamFast.getRemainingImageCapacity(
+               estimateBytesPerImage());
+         if (capacity >= 0) {
+            summary += "\nRAM storage room: " + capacity + " images";
+         }
+      }
+      return summary;
    }
 
    // Returns false if user chooses to cancel.
@@ -1592,6 +1611,30 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
          return false;
       }
 
+      // With a RAM storage limit, images beyond the limit go to a temporary
+      // file instead of failing the acquisition
+      long bytesPerImage = Math.max(1, estimateBytesPerImage());
+      long capacity = TaggedImageStorageRamFast.getRemainingImageCapacity(bytesPerImage);
+      if (capacity >= 0) {
+         long numImages = acqTotalBytes / bytesPerImage;
+         if (numImages > capacity) {
+            int answer = JOptionPane.showConfirmDialog(this,
+                  "<html><body><p width='400'>" +
+                  "Only " + capacity + " of the " + numImages + " images of " +
+                  "this acquisition fit within the RAM storage limit " +
+                  "(Tools | Options). The remaining images will be moved to " +
+                  "a temporary file on disk.</p>" +
+                  "<p>Would you like to start the acquisition anyway?</p>" +
+                  "</body></html>",
+                  "RAM storage limit",
+                  JOptionPane.YES_NO_OPTION);
+            if (answer != 0) {
+               return false;
+            }
+         }
+         acqTotalBytes = Math.min(acqTotalBytes, capacity * bytesPerImage);
+      }
+
       // Currently, images are stored in direct byte buffers in the case of
       // acquire-to-RAM. This means that the image (pixel and metadata) data do
       // not fill up the Java heap memory. The best we can do is to try to
@@ -1815,7 +1858,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
       updateSavingTypeButtons();
 
       // update summary
-      summaryTextArea_.setText(acqEng_.getVerboseSummary());
+      summaryTextArea_.setText(getSummaryText());
 
       disableGUItoSettings_ = false;
    }
@@ -46,6 +46,7 @@ import org.micromanager.api.ScriptInterface;
 import org.micromanager.logging.LogFileManager;
 import org.micromanager.MMOptions;
 import org.micromanager.MMStudio;
+import org.micromanager.acquisition.TaggedImageStorageRamFast;
 import org.micromanager.utils.GUIColors;
 import org.micromanager.utils.MMDialog;
 import org.micromanager.utils.NumberUtils;
@@ -61,6 +62,8 @@ public class OptionsDlg extends MMDialog {
 
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
+   private final JTextField ramStorageBudgetField_;
+   private final JTextField liveDisplayFPSField_;
    private JTextField logDeleteDaysField_;
    private final JComboBox comboDisplayBackground_;
 
@@ -205,6 +208,16 @@ public class OptionsDlg extends MMDialog {
 
       bufSizeField_ = new JTextField(Integer.toString(opts_.circularBufferSizeMB_), 5);
 
+      ramStorageBudgetField_ = new JTextField(Integer.toString(opts_.ramStorageBudgetMB_), 5);
+      ramStorageBudgetField_.setToolTipText("Memory used to hold images acquired " +
+            "to RAM; older images are moved to a temporary file when it is " +
+            "used up. 0 for no limit.");
+
+      liveDisplayFPSField_ = new JTextField(Integer.toString(opts_.liveDisplayFPS_), 5);
+      liveDisplayFPSField_.setToolTipText("Highest rate at which live images " +
+            "are displayed; faster cameras drop the frames in between. " +
+            "0 to display as fast as possible.");
+
       comboDisplayBackground_ = new JComboBox(guiColors_.styleOptions);
       comboDisplayBackground_.setMaximumRowCount(2);
       comboDisplayBackground_.setSelectedItem(opts_.displayBackground_);
@@ -328,6 +341,17 @@ public class OptionsDlg extends MMDialog {
             opts_.mpTiffSeparateFilesForPositions_ = separateFilesForPositionsMPTiffCheckBox.isSelected();
          }
       });
+
+      final JCheckBox memoryMappedMPTiffCheckBox = new JCheckBox();
+      memoryMappedMPTiffCheckBox.setText("Use memory mapping to read Image Stack Files");
+      memoryMappedMPTiffCheckBox.setToolTipText("Faster browsing of large datasets saved on disk; applies to datasets opened afterwards");
+      memoryMappedMPTiffCheckBox.setSelected(opts_.mpTiffMemoryMappedReading_);
+      memoryMappedMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffMemoryMappedReading_ = memoryMappedMPTiffCheckBox.isSelected();
+         }
+      });
   
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
@@ -376,10 +400,19 @@ public class OptionsDlg extends MMDialog {
       add(bufSizeField_, "gapright related");
       add(new JLabel("MB"), "wrap");
 
+      add(new JLabel("RAM Storage Limit (0 = none):"), "split 3, gapright push");
+      add(ramStorageBudgetField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+
+      add(new JLabel("Live Display Rate (0 = no limit):"), "split 3, gapright push");
+      add(liveDisplayFPSField_, "gapright related");
+      add(new JLabel("fps"), "wrap");
+
       add(new JSeparator(), "wrap");
 
       add(metadataFileWithMultipageTiffCheckBox, "wrap");
       add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      add(memoryMappedMPTiffCheckBox, "wrap");
 
       add(new JSeparator(), "wrap");
 
@@ -429,10 +462,16 @@ public class OptionsDlg extends MMDialog {
 
    private void closeRequested() {
       int seqBufSize;
+      int ramStorageBudget;
+      int liveDisplayFPS;
       int deleteLogDays;
       try {
          seqBufSize =
             NumberUtils.displayStringToInt(bufSizeField_.getText());
+         ramStorageBudget =
+            NumberUtils.displayStringToInt(ramStorageBudgetField_.getText());
+         liveDisplayFPS =
+            NumberUtils.displayStringToInt(liveDisplayFPSField_.getText());
          deleteLogDays =
             NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
       }
@@ -442,6 +481,9 @@ public class OptionsDlg extends MMDialog {
       }
 
       opts_.circularBufferSizeMB_ = seqBufSize;
+      opts_.ramStorageBudgetMB_ = Math.max(0, ramStorageBudget);
+      TaggedImageStorageRamFast.setMemoryBudgetMB(opts_.ramStorageBudgetMB_);
+      opts_.liveDisplayFPS_ = Math.max(0, liveDisplayFPS);
       opts_.startupScript_ = startupScriptFile_.getText();
       opts_.deleteCoreLogAfterDays_ = deleteLogDays;
       opts_.saveSettings();
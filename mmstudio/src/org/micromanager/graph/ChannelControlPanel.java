@@ -46,11 +46,11 @@ import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.imagedisplay.MMCompositeImage;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
-import org.micromanager.utils.HistogramUtils;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -92,6 +92,7 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
    private double gamma_ = 1;
    private int minAfterRejectingOutliers_;
    private int maxAfterRejectingOutliers_;
+   private final PixelStatistics pixelStats_ = new PixelStatistics();
    private int pixelMin_ = 0;
    private int pixelMax_ = 255;
    final private int maxIntensity_;
@@ -667,30 +668,31 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          }
       }
       
-      if (ip == null ) {
+      // The panels of an RGB image show its red, green and blue components
+      int component = channelIndex_ < 3 ? channelIndex_ : PixelStatistics.BRIGHTNESS;
+      if (ip == null || !pixelStats_.compute(ip, component,
+              PixelStatistics.getHistogramStride(img_, ip))) {
          return;
       }
 
-      int[] rawHistogram = ip.getHistogram();
+      int[] rawHistogram = pixelStats_.getHistogram();
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
 
-      if (rawHistogram[0] == imgWidth * imgHeight) {
+      if (rawHistogram[0] == pixelStats_.getCount()) {
          return;  //Blank pixels 
       }
       if (display_.getHistogramControlsState().ignoreOutliers) {
-         // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         double fraction = 0.01 * display_.getHistogramControlsState().percentToIgnore;
+         minAfterRejectingOutliers_ = pixelStats_.getMinAfterRejectingOutliers(fraction);
+         maxAfterRejectingOutliers_ = pixelStats_.getMaxAfterRejectingOutliers(fraction);
       }
       GraphData histogramData = new GraphData();
 
-      pixelMin_ = -1;
-      pixelMax_ = 0;
+      // Over the whole histogram, also when the display range is smaller
+      pixelMin_ = pixelStats_.getMin();
+      pixelMax_ = pixelStats_.getMax();
 
       int numBins = (int) Math.min(rawHistogram.length / binSize_, NUM_BINS);
       int[] histogram = new int[NUM_BINS];
@@ -701,31 +703,12 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
             int rawHistIndex = (int) (i * binSize_ + j);
             int rawHistVal = rawHistogram[rawHistIndex];
             histogram[i] += rawHistVal;
-            if (rawHistVal > 0) {
-               pixelMax_ = rawHistIndex;
-               if (pixelMin_ == -1) {
-                  pixelMin_ = rawHistIndex;
-               }
-            }
          }
          total += histogram[i];
          if (display_.getHistogramControlsState().logHist) {
             histogram[i] = histogram[i] > 0 ? (int) (1000 * Math.log(histogram[i])) : 0;
          }
       }
-      //Make sure max has correct value is hist display mode isnt auto
-      if (histRangeComboBox_.getSelectedIndex() != -1) {
-         pixelMin_ = rawHistogram.length-1;
-         for (int i = rawHistogram.length-1; i > 0; i--) {
-            if (rawHistogram[i] > 0 && i > pixelMax_ ) {
-               pixelMax_ = i;
-            }
-            if (rawHistogram[i] > 0 && i < pixelMin_ ) {
-               pixelMin_ = i;
-            }
-         }
-      }
-
       // work around what is apparently a bug in ImageJ
       if (total == 0) {
          if (img_.getProcessor().getMin() == 0) {
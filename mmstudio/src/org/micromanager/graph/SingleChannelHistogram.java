@@ -49,8 +49,8 @@ import org.micromanager.internalinterfaces.Histograms;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
 import org.micromanager.utils.ContrastSettings;
-import org.micromanager.utils.HistogramUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 
 /**
  * A single histogram and a few controls for manipulating image contrast 
@@ -78,6 +78,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
    private int bitDepth_;
    private double mean_;
    private double stdDev_;
+   private final PixelStatistics pixelStats_ = new PixelStatistics();
    private int pixelMin_ = 0;
    private int pixelMax_ = 255;
    private double binSize_ = 1;
@@ -689,8 +690,8 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       if (img_ == null || img_.getProcessor() == null) {
          return;
       }
-      int[] rawHistogram = img_.getProcessor().getHistogram();
-      if (rawHistogram == null) { // Histogram is not implemented in ImageJ for FloatProcessor (GRAY32)
+      ImageProcessor ip = img_.getProcessor();
+      if (!pixelStats_.compute(ip, PixelStatistics.getHistogramStride(img_, ip))) { // GRAY32 images have no histogram
           ImageStatistics stats = img_.getStatistics(ImageStatistics.MIN_MAX);
           pixelMax_ = (int) stats.max;
           pixelMin_ = (int) stats.min;
@@ -699,17 +700,15 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
           }
           return;
       }
+      int[] rawHistogram = pixelStats_.getHistogram();
      
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
       if (display_.getHistogramControlsState().ignoreOutliers) {
-         // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         double fraction = 0.01 * display_.getHistogramControlsState().percentToIgnore;
+         minAfterRejectingOutliers_ = pixelStats_.getMinAfterRejectingOutliers(fraction);
+         maxAfterRejectingOutliers_ = pixelStats_.getMaxAfterRejectingOutliers(fraction);
       }
       GraphData histogramData = new GraphData();
 
@@ -742,11 +741,10 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       if (drawHist) {
 
-         ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
-         pixelMax_ = (int) stats.max;
-         pixelMin_ = (int) stats.min;
-         mean_ = stats.mean;
-         stdDev_ = stats.stdDev;
+         pixelMax_ = pixelStats_.getMax();
+         pixelMin_ = pixelStats_.getMin();
+         mean_ = pixelStats_.getMean();
+         stdDev_ = pixelStats_.getStdDev();
          
          //Draw histogram and stats
          histogramData.setData(histogram);
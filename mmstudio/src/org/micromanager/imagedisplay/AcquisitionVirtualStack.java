@@ -24,6 +24,7 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
    final protected int width_, height_, type_;
    private final int nSlices_;
    private int positionIndex_ = 0;
+   private PlaybackPrefetcher prefetcher_ = null;
 
    public AcquisitionVirtualStack(int width, int height, int type,
            ColorModel cm, TaggedImageStorage imageCache, int nSlices,
@@ -50,6 +51,13 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       return acq_;
    }
 
+   /**
+    * Set the prefetcher that holds images read ahead during animation.
+    */
+   void setPrefetcher(PlaybackPrefetcher prefetcher) {
+      prefetcher_ = prefetcher;
+   }
+
    
    private TaggedImage getTaggedImage(int flatIndex) {
       int[] pos;
@@ -81,7 +89,11 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       }
       try {
          TaggedImage img;
-         img = imageCache_.getImage(chanIndex, slice, frame, positionIndex_);
+         if (prefetcher_ != null) {
+            img = prefetcher_.getImage(chanIndex, slice, frame, positionIndex_);
+         } else {
+            img = imageCache_.getImage(chanIndex, slice, frame, positionIndex_);
+         }
          int backIndex = slice - 1, forwardIndex = slice + 1;
          int frameSearchIndex = frame;
          //If some but not all channels have z stacks, find the closest slice for the given
@@ -161,6 +161,9 @@ public final class DisplayWindow extends StackWindow  {
                   widthSlop, size.height);
             g.clearRect(0, heightSlop + drawnHeight + 1,
                   size.width, heightSlop);
+            // ImageJ cleared paintPending in super.paint(); wake up the
+            // display thread waiting for it.
+            CanvasPaintPending.paintFinished(this);
          }
 
          /**
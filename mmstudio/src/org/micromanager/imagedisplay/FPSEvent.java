@@ -2,15 +2,18 @@ package org.micromanager.imagedisplay;
 
 /**
  * This class handles notifications of the current incoming image rate (data 
- * rate) and displayed image rate.
+ * rate), displayed image rate, and the rate of images that were replaced by
+ * newer ones before they could be displayed.
  */
 class FPSEvent {
    private double dataFPS_;
    private double displayFPS_;
+   private double droppedFPS_;
 
-   public FPSEvent(double dataFPS, double displayFPS) {
+   public FPSEvent(double dataFPS, double displayFPS, double droppedFPS) {
       dataFPS_ = dataFPS;
       displayFPS_ = displayFPS;
+      droppedFPS_ = droppedFPS;
    }
 
    public double getDataFPS() {
@@ -20,4 +23,8 @@ class FPSEvent {
    public double getDisplayFPS() {
       return displayFPS_;
    }
+
+   public double getDroppedFPS() {
+      return droppedFPS_;
+   }
 }
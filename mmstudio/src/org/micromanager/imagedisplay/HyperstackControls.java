@@ -30,6 +30,7 @@ import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import net.miginfocom.swing.MigLayout;
 
@@ -696,8 +697,9 @@ public class HyperstackControls extends DisplayControls implements LiveModeListe
       // Default to assuming we'll be blanking the label.
       String newLabel = "";
       if (event.getDataFPS() != 0) {
-         newLabel = String.format("FPS: %.1f (display %.1f)", 
-               event.getDataFPS(), event.getDisplayFPS());
+         newLabel = String.format("FPS: %.1f (display %.1f, dropped %.1f)", 
+               event.getDataFPS(), event.getDisplayFPS(),
+               event.getDroppedFPS());
       }
       else if (fpsField_ != null) {
          // No new data, but we do have an FPS text field for animations, so
@@ -707,6 +709,30 @@ public class HyperstackControls extends DisplayControls implements LiveModeListe
       fpsLabel_.setText(newLabel);
    }
 
+   /**
+    * New information on the playback rate; show it next to the requested
+    * rate, unless data is coming in. Posted from the animation timer thread,
+    * so the label is updated on the EDT.
+    */
+   @Subscribe
+   public void onPlaybackFPSUpdate(final ScrollerPanel.PlaybackFPSEvent event) {
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            if (fpsField_ == null || fpsLabel_.getText().startsWith("FPS:")) {
+               return;
+            }
+            if (event.getAchievedFPS() != 0) {
+               fpsLabel_.setText(String.format("Playback FPS (%.1f):",
+                        event.getAchievedFPS()));
+            }
+            else {
+               fpsLabel_.setText("Playback FPS:");
+            }
+         }
+      });
+   }
+
    /**
     * Live mode was toggled; if we have a "live mode" button, it needs to be 
     * toggled on/off; likewise, the Snap button should be disabled/enabled.
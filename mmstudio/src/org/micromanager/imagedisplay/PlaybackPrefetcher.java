@@ -0,0 +1,260 @@
+package org.micromanager.imagedisplay;
+
+import com.google.common.eventbus.Subscribe;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import mmcorej.TaggedImage;
+
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * This class reads images ahead of an animation (playback) in a display, so
+ * that disk-backed datasets play back smoothly. When animation is running,
+ * every image shown triggers reads of the next images along the animated
+ * axes on a small thread pool; enough to cover about half a second of
+ * playback. Reads that are no longer ahead of the animation, e.g. because
+ * the user dragged a scrollbar, are cancelled if they haven't started yet.
+ *
+ * Images read ahead are kept in a small cache that AcquisitionVirtualStack
+ * checks before going to the storage. The cache is emptied when animation
+ * stops.
+ */
+class PlaybackPrefetcher {
+   private static final String[] AXES = {"channel", "position", "time", "z"};
+   private static final double READ_AHEAD_SECONDS = 0.5;
+   private static final int MIN_READ_AHEAD = 2;
+   private static final int MAX_READ_AHEAD = 16;
+
+   private final TaggedImageStorage storage_;
+   private final VirtualAcquisitionDisplay display_;
+   private ThreadPoolExecutor executor_ = null;
+   // All of the following are guarded by this.
+   private ScrollerPanel.AnimationStateEvent animation_ = null;
+   private int readAhead_ = 0;
+   private final LinkedHashMap<String, TaggedImage> cache_ =
+         new LinkedHashMap<String, TaggedImage>(32, 0.75f, true);
+   private final LinkedHashMap<String, Future<TaggedImage>> pending_ =
+         new LinkedHashMap<String, Future<TaggedImage>>();
+   private boolean isClosed_ = false;
+
+   public PlaybackPrefetcher(TaggedImageStorage storage,
+         VirtualAcquisitionDisplay display) {
+      storage_ = storage;
+      display_ = display;
+   }
+
+   /**
+    * Animation started, stopped, or changed speed; adjust how far ahead we
+    * read.
+    */
+   @Subscribe
+   public synchronized void onAnimationState(
+         ScrollerPanel.AnimationStateEvent event) {
+      if (isClosed_) {
+         return;
+      }
+      if (!event.getIsAnimated()) {
+         animation_ = null;
+         cancelPending(new HashSet<String>());
+         cache_.clear();
+         return;
+      }
+      animation_ = event;
+      readAhead_ = (int) Math.ceil(
+            event.getStepsPerSecond() * READ_AHEAD_SECONDS);
+      readAhead_ = Math.max(MIN_READ_AHEAD,
+            Math.min(MAX_READ_AHEAD, readAhead_));
+      if (executor_ == null) {
+         int numThreads = Math.max(2,
+               Math.min(4, Runtime.getRuntime().availableProcessors()));
+         executor_ = new ThreadPoolExecutor(numThreads, numThreads,
+               2, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, "Playback prefetch");
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+         // Don't keep threads around for displays that aren't animating.
+         executor_.allowCoreThreadTimeOut(true);
+      }
+   }
+
+   /**
+    * The display is about to show a new image. If animating, read the
+    * images that come after it, nearest first, and cancel reads of images
+    * that are no longer coming up.
+    */
+   @Subscribe
+   public synchronized void onSetImage(ScrollerPanel.SetImageEvent event) {
+      if (animation_ == null || isClosed_) {
+         return;
+      }
+      List<int[]> upcoming = new ArrayList<int[]>();
+      for (int i = 1; i <= readAhead_; ++i) {
+         int[] indices = new int[AXES.length];
+         for (int j = 0; j < AXES.length; ++j) {
+            int max = Math.max(1, animation_.getMaximumForAxis(AXES[j]));
+            indices[j] = (event.getPositionForAxis(AXES[j]) +
+                  i * animation_.getStepForAxis(AXES[j])) % max;
+         }
+         upcoming.add(indices);
+      }
+      HashSet<String> wanted = new HashSet<String>();
+      List<int[]> toRead = new ArrayList<int[]>();
+      for (int[] indices : upcoming) {
+         int channel = display_.grayToRGBChannel(indices[0]);
+         String label = MDUtils.generateLabel(channel, indices[3], indices[2],
+               indices[1]);
+         if (wanted.add(label) && !cache_.containsKey(label) &&
+               !pending_.containsKey(label)) {
+            toRead.add(new int[] {channel, indices[3], indices[2], indices[1]});
+         }
+      }
+      cancelPending(wanted);
+      for (int[] indices : toRead) {
+         submitRead(indices[0], indices[1], indices[2], indices[3]);
+      }
+   }
+
+   /**
+    * Cancel reads of images that are not in the provided set.
+    */
+   private void cancelPending(HashSet<String> wanted) {
+      Iterator<Map.Entry<String, Future<TaggedImage>>> it =
+            pending_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<String, Future<TaggedImage>> entry = it.next();
+         if (!wanted.contains(entry.getKey())) {
+            entry.getValue().cancel(false);
+            it.remove();
+         }
+      }
+   }
+
+   private void submitRead(final int channel, final int slice,
+         final int frame, final int position) {
+      final String label = MDUtils.generateLabel(channel, slice, frame,
+            position);
+      // The read needs its own future, to tell whether it is still the
+      // pending read of its label: a read that was cancelled after it had
+      // started may finish after the label was submitted again.
+      final FutureTask<?>[] self = new FutureTask<?>[1];
+      FutureTask<TaggedImage> future = new FutureTask<TaggedImage>(
+            new Callable<TaggedImage>() {
+               @Override
+               public TaggedImage call() {
+                  TaggedImage image = storage_.getImage(channel, slice,
+                        frame, position);
+                  synchronized (PlaybackPrefetcher.this) {
+                     if (pending_.get(label) == self[0]) {
+                        pending_.remove(label);
+                     }
+                     if (image != null && animation_ != null) {
+                        addToCache(label, image);
+                     }
+                  }
+                  return image;
+               }
+            });
+      self[0] = future;
+      pending_.put(label, future);
+      executor_.execute(future);
+   }
+
+   private void addToCache(String label, TaggedImage image) {
+      cache_.put(label, image);
+      // Keep what's ahead, plus about as much behind for short loops.
+      int capacity = 2 * readAhead_ + 1;
+      Iterator<String> it = cache_.keySet().iterator();
+      while (cache_.size() > capacity && it.hasNext()) {
+         it.next();
+         it.remove();
+      }
+   }
+
+   /**
+    * Retrieve an image, from the cache if it was read ahead, waiting for
+    * the read if it is in progress, or else from the storage.
+    */
+   public TaggedImage getImage(int channel, int slice, int frame,
+         int position) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      Future<TaggedImage> future;
+      synchronized (this) {
+         TaggedImage image = cache_.get(label);
+         if (image != null) {
+            return image;
+         }
+         future = pending_.get(label);
+      }
+      if (future != null) {
+         try {
+            TaggedImage image = future.get();
+            if (image != null) {
+               return image;
+            }
+         }
+         catch (CancellationException e) {
+            // Read it ourselves, below.
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         catch (ExecutionException e) {
+            ReportingUtils.logError(e.getCause(), "Failed to read image ahead");
+         }
+      }
+      TaggedImage image = storage_.getImage(channel, slice, frame, position);
+      if (image != null) {
+         synchronized (this) {
+            if (animation_ != null) {
+               addToCache(label, image);
+            }
+         }
+      }
+      return image;
+   }
+
+   /**
+    * The display is closing; stop reading before the storage is closed.
+    */
+   public void close() {
+      ThreadPoolExecutor executor;
+      synchronized (this) {
+         isClosed_ = true;
+         animation_ = null;
+         cancelPending(new HashSet<String>());
+         cache_.clear();
+         executor = executor_;
+      }
+      if (executor != null) {
+         executor.shutdown();
+         try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+}
@@ -44,6 +44,70 @@ public class ScrollerPanel extends JPanel {
     */
    public static class LayoutChangedEvent {}
 
+   /**
+    * This class signifies that animation has started, stopped, or changed
+    * speed. It tells how far each animated axis moves per step of the
+    * animation, so that images can be read ahead of it.
+    */
+   public static class AnimationStateEvent {
+      // Steps of the animated axes only.
+      private HashMap<String, Integer> axisToStep_;
+      private HashMap<String, Integer> axisToMaximum_;
+      private double stepsPerSec_;
+      public AnimationStateEvent(HashMap<String, Integer> axisToStep,
+            HashMap<String, Integer> axisToMaximum, double stepsPerSec) {
+         axisToStep_ = axisToStep;
+         axisToMaximum_ = axisToMaximum;
+         stepsPerSec_ = stepsPerSec;
+      }
+      public boolean getIsAnimated() {
+         return !axisToStep_.isEmpty();
+      }
+      /**
+       * Retrieve how far the specified axis moves per step, or 0 if it is
+       * not animated.
+       */
+      public int getStepForAxis(String axis) {
+         if (axisToStep_.containsKey(axis)) {
+            return axisToStep_.get(axis);
+         }
+         return 0;
+      }
+      /**
+       * Retrieve the number of positions along the specified axis (where
+       * the animation wraps around), or 1 if we don't know the axis.
+       */
+      public int getMaximumForAxis(String axis) {
+         if (axisToMaximum_.containsKey(axis)) {
+            return axisToMaximum_.get(axis);
+         }
+         return 1;
+      }
+      public double getStepsPerSecond() {
+         return stepsPerSec_;
+      }
+   }
+
+   /**
+    * This class reports the animation rate, in images per second, that was
+    * requested and that was actually achieved over the last second. Both
+    * are 0 when animation stops.
+    */
+   public static class PlaybackFPSEvent {
+      private double requestedFPS_;
+      private double achievedFPS_;
+      public PlaybackFPSEvent(double requestedFPS, double achievedFPS) {
+         requestedFPS_ = requestedFPS;
+         achievedFPS_ = achievedFPS;
+      }
+      public double getRequestedFPS() {
+         return requestedFPS_;
+      }
+      public double getAchievedFPS() {
+         return achievedFPS_;
+      }
+   }
+
    // We'll be communicating with our owner and with our AxisScrollers via
    // this bus.
    private EventBus bus_;
@@ -186,18 +250,30 @@ public class ScrollerPanel extends JPanel {
       // This is going to be how much we adjust each scroller's position each
       // tick of the animation.
       final int[] offsets = new int[scrollers_.size()];
+      HashMap<String, Integer> axisToStep = new HashMap<String, Integer>();
+      HashMap<String, Integer> axisToMaximum = new HashMap<String, Integer>();
       for (int i = 0; i < offsets.length; ++i) {
-         if (scrollers_.get(i).getIsAnimated()) {
+         AxisScroller scroller = scrollers_.get(i);
+         axisToMaximum.put(scroller.getAxis(), scroller.getMaximum());
+         if (scroller.getIsAnimated()) {
             isAnimated = true;
             offsets[i] = stepSize;
+            axisToStep.put(scroller.getAxis(), stepSize);
          }
          else {
             offsets[i] = 0;
          }
       }
+      bus_.post(new AnimationStateEvent(axisToStep, axisToMaximum,
+               isAnimated ? 1000.0 / interval : 0));
       if (isAnimated) {
+         final int imagesPerTick = stepSize;
          animationUpdateTimer_ = new Timer();
          TimerTask task = new TimerTask() {
+            // Ticks since the achieved rate was last reported.
+            private int ticks_ = 0;
+            private long reportTime_ = System.currentTimeMillis();
+
             @Override
             public void run() {
                for (int i = 0; i < scrollers_.size(); ++i) {
@@ -209,10 +285,23 @@ public class ScrollerPanel extends JPanel {
                   }
                }
                checkForImagePositionChanged();
+               // The next tick is scheduled once this one is done, so slow
+               // image display lowers the achieved rate.
+               ticks_++;
+               long now = System.currentTimeMillis();
+               if (now - reportTime_ >= 1000) {
+                  bus_.post(new PlaybackFPSEvent(framesPerSec_,
+                        1000.0 * ticks_ * imagesPerTick / (now - reportTime_)));
+                  ticks_ = 0;
+                  reportTime_ = now;
+               }
             }
          };
          animationUpdateTimer_.schedule(task, 0, interval);
       }
+      else {
+         bus_.post(new PlaybackFPSEvent(0, 0));
+      }
    }
 
    /**
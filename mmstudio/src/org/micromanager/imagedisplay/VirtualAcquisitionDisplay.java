@@ -45,7 +45,6 @@ import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.swing.event.MouseInputAdapter;
@@ -78,6 +77,7 @@ import org.micromanager.internalinterfaces.Histograms;
 import org.micromanager.utils.CanvasPaintPending;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.FileDialogs;
+import org.micromanager.utils.FrameMailbox;
 import org.micromanager.utils.GUIUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
@@ -114,8 +114,8 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    private String title_;
    private int numComponents_;
    private int pixelType_ = 0;
-   // This queue holds images waiting to be displayed.
-   private LinkedBlockingQueue<JSONObject> imageTagsQueue_;
+   // Holds the newest image waiting to be displayed; older ones are dropped.
+   private FrameMailbox<JSONObject> imageTagsMailbox_;
    // This thread consumes images from the above queue.
    private Thread displayThread_;
    // This boolean is used to tell the display thread to stop what it's doing.
@@ -124,6 +124,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    // displayed, for FPS display purposes.
    private long lastImageIndex_ = 0;
    private int imagesDisplayed_ = 0;
+   private long lastDroppedCount_ = 0;
    // Tracks when we last sent an FPS update.
    private long lastFPSUpdateTimestamp_ = -1;
    private ImagePlus hyperImage_;
@@ -144,6 +145,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    private final Object imageReceivedObject_ = new Object();
 
    private EventBus bus_;
+   private PlaybackPrefetcher prefetcher_ = null;
 
    @Subscribe
    public void onPixelSizeChanged(PixelSizeChangedEvent event) {
@@ -186,51 +188,32 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
    /**
     * Start the thread that will be used to update our display. This thread
-    * extracts the newest image from imageTagsQueue_, displays it, and waits for
-    * display to stop, then repeats (all other images in the queue are 
-    * discarded). 
+    * takes the newest image from imageTagsMailbox_, displays it, and waits for
+    * the canvas to finish painting it, then repeats. Images that arrive while
+    * it is busy replace each other in the mailbox, so only the newest one is
+    * shown.
     */
    private void setupDisplayThread() {
-      imageTagsQueue_ = new LinkedBlockingQueue<JSONObject>();
+      imageTagsMailbox_ = new FrameMailbox<JSONObject>();
       displayThread_ = new Thread(new Runnable() {
          @Override
          public void run() {
-            JSONObject tags = null;
             while (!shouldStopDisplayThread_.get()) {
-               boolean haveValidImage = false;
-               // Extract images from the queue until we get to the end.
-               do {
-                  try {
-                     // This will block until an image is available or we need
-                     // to send a new FPS update.
-                     tags = imageTagsQueue_.poll(500, TimeUnit.MILLISECONDS);
-                     haveValidImage = (tags != null);
-                     if (tags == null) {
-                        try {
-                           // We still need to generate an FPS update at 
-                           // regular intervals; we just have to do it without
-                           // any image tags.
-                           sendFPSUpdate(null);
-                        }
-                        catch (Exception e) {
-                           // Can't get image tags, apparently; give up.
-                           break;
-                        }
-                        continue;
-                     }
-                  }
-                  catch (InterruptedException e) {
-                     // Interrupted while waiting for the queue to be 
-                     // populated. 
-                     if (shouldStopDisplayThread_.get()) {
-                        // Time to stop.
-                        return;
-                     }
-                  }
-               } while (imageTagsQueue_.peek() != null);
-
-               if (tags == null || !haveValidImage) {
-                  // Nothing to show. 
+               JSONObject tags;
+               try {
+                  // This will block until an image is available or we need
+                  // to send a new FPS update.
+                  tags = imageTagsMailbox_.poll(500, TimeUnit.MILLISECONDS);
+               }
+               catch (InterruptedException e) {
+                  // Interrupted while waiting for an image; we are closing,
+                  // or will check again.
+                  continue;
+               }
+               if (tags == null) {
+                  // We still need to generate an FPS update at regular
+                  // intervals; we just have to do it without any image tags.
+                  sendFPSUpdate(null);
                   continue;
                }
       
@@ -238,18 +221,20 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
                   // Wait for the canvas to be available. If we don't do this,
                   // then our framerate tanks, possibly because of repaint
                   // events piling up in the EDT. It's hard to tell. 
-                  while (CanvasPaintPending.isMyPaintPending(
-                        hyperImage_.getCanvas(), imageReceivedObject_)) {
-                     try {
-                        Thread.sleep(10);
-                     }
-                     catch (InterruptedException e) {
+                  try {
+                     while (!CanvasPaintPending.waitForMyPaint(
+                           hyperImage_.getCanvas(), imageReceivedObject_, 500)) {
                         if (shouldStopDisplayThread_.get()) {
-                           // Time to stop.
                            return;
                         }
                      }
                   }
+                  catch (InterruptedException e) {
+                     if (shouldStopDisplayThread_.get()) {
+                        // Time to stop.
+                        return;
+                     }
+                  }
                   CanvasPaintPending.setPaintPending(
                         hyperImage_.getCanvas(), imageReceivedObject_);
                }
@@ -270,7 +255,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       long curTimestamp = System.currentTimeMillis();
       // Hack: if we have null tags, then post a "blank" FPS event.
       if (tags == null) {
-         bus_.post(new FPSEvent(0, 0));
+         bus_.post(new FPSEvent(0, 0, 0));
          return;
       }
       if (lastFPSUpdateTimestamp_ == -1) {
@@ -284,16 +269,19 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
             long imageIndex = MDUtils.getSequenceNumber(tags);
             // HACK: Ignore the first FPS display event, to prevent us from
             // showing FPS for the Snap window.
+            long droppedCount = imageTagsMailbox_.getDroppedCount();
             if (lastImageIndex_ != 0) {
                bus_.post(new FPSEvent((imageIndex - lastImageIndex_) / elapsedTime, 
-                        imagesDisplayed_ / elapsedTime));
+                        imagesDisplayed_ / elapsedTime,
+                        (droppedCount - lastDroppedCount_) / elapsedTime));
             }
+            lastDroppedCount_ = droppedCount;
             lastImageIndex_ = imageIndex;
          }
          catch (Exception e) {
             // Post a "blank" event. This likely happens because the image
             // tags don't contain a sequence number (e.g. during an MDA).
-            bus_.post(new FPSEvent(0, 0));
+            bus_.post(new FPSEvent(0, 0, 0));
          }
          imagesDisplayed_ = 0;
          lastFPSUpdateTimestamp_ = curTimestamp;
@@ -408,6 +396,11 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       } else {
          virtualStack_ = new AcquisitionVirtualStack(width, height, type, null,
                  imageCache_, numGrayChannels * numSlices * numFrames, this);
+         // Read images ahead of animations. Only for our own stack, since
+         // a provided one may not display the images from imageCache_.
+         prefetcher_ = new PlaybackPrefetcher(imageCache_, this);
+         bus_.register(prefetcher_);
+         virtualStack_.setPrefetcher(prefetcher_);
       }
       if (summaryMetadata.has("PositionIndex")) {
          try {
@@ -496,14 +489,8 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
          // No valid tags, ergo no valid image, ergo give up.
          return;
       }
-      try {
-         imageTagsQueue_.add(tags);
-      }
-      catch (IllegalStateException e) {
-         // The queue was full. This should never happen as the queue has
-         // MAXINT size. 
-         ReportingUtils.logError("Ran out of space in the imageQueue! Inconceivable!");
-      }
+      // Replaces any image the display thread has not gotten to yet.
+      imageTagsMailbox_.offer(tags);
    }
 
    public int rgbToGrayChannel(int channelIndex) {
@@ -1175,6 +1162,10 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
       // Shut down our controls.
       controls_.prepareForClose();
+      if (prefetcher_ != null) {
+         bus_.unregister(prefetcher_);
+         prefetcher_.close();
+      }
 
       //Call this because for some reason WindowManager doesnt always fire
       mdPanel_.displayChanged(null);
@@ -17,6 +17,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import mmcorej.TaggedImage;
@@ -45,6 +46,9 @@ final public class PipelineFrame extends MMFrame
    private final JButton moveUpButton_;
    private final JButton moveDownButton_;
 
+   // Refreshes the processor statistics while the window is shown
+   private final Timer statisticsTimer_;
+
    public PipelineFrame(ScriptInterface gui, AcquisitionEngine engine) {
       super("On-The-Fly Processor Pipeline");
       gui_ = gui;
@@ -68,8 +72,8 @@ final public class PipelineFrame extends MMFrame
       pipelineScrollPane_ = new JScrollPane(pipelineTable_,
             JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
             JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-      pipelineScrollPane_.setPreferredSize(new Dimension(320, 80));
-      pipelineScrollPane_.setMinimumSize(new Dimension(320,
+      pipelineScrollPane_.setPreferredSize(new Dimension(480, 80));
+      pipelineScrollPane_.setMinimumSize(new Dimension(480,
             pipelineTable_.getRowHeight()));
       add(pipelineScrollPane_, "growx, growy");
 
@@ -153,11 +157,27 @@ final public class PipelineFrame extends MMFrame
       
       this.loadAndRestorePosition(200, 200);
 
+      statisticsTimer_ = new Timer(1000, new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            if (isVisible()) {
+               ((PipelineTableModel) pipelineTable_.getModel()).statisticsChanged();
+            }
+         }
+      });
+      statisticsTimer_.start();
+
       EventManager.register(this);
       reloadProcessors();
       updateEditButtonStatus(pipelineTable_.getSelectionModel());
    }
 
+   @Override
+   public void dispose() {
+      statisticsTimer_.stop();
+      super.dispose();
+   }
+
    // Handle selection change in pipeline table
    @Override
    public void valueChanged(ListSelectionEvent e) {
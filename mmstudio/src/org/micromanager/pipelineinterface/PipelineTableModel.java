@@ -15,7 +15,8 @@ public class PipelineTableModel extends AbstractTableModel {
    static final int ENABLED_COLUMN = 0;
    static final int NAME_COLUMN = 1;
    static final int CONFIGURE_COLUMN = 2;
-   private static final int NUM_COLUMNS = 3;
+   static final int STATISTICS_COLUMN = 3;
+   private static final int NUM_COLUMNS = 4;
 
    private final AcquisitionEngine engine_;
    private List<DataProcessor<TaggedImage>> pipeline_;
@@ -43,6 +44,15 @@ public class PipelineTableModel extends AbstractTableModel {
       }
    }
 
+   /**
+    * Redraw the processing statistics of all processors
+    */
+   void statisticsChanged() {
+      for (int i = 0; i < pipeline_.size(); i++) {
+         fireTableCellUpdated(i, STATISTICS_COLUMN);
+      }
+   }
+
    @Override
    public int getRowCount() {
       return pipeline_.size();
@@ -62,6 +72,8 @@ public class PipelineTableModel extends AbstractTableModel {
             return String.class;
          case CONFIGURE_COLUMN:
             return DataProcessor.class;
+         case STATISTICS_COLUMN:
+            return String.class;
       }
       return Object.class;
    }
@@ -75,6 +87,8 @@ public class PipelineTableModel extends AbstractTableModel {
             return "Processor";
          case CONFIGURE_COLUMN:
             return "Settings";
+         case STATISTICS_COLUMN:
+            return "Performance";
       }
       return "";
    }
@@ -85,6 +99,7 @@ public class PipelineTableModel extends AbstractTableModel {
          case ENABLED_COLUMN: return true;
          case NAME_COLUMN: return false;
          case CONFIGURE_COLUMN: return true;
+         case STATISTICS_COLUMN: return false;
       }
       return false;
    }
@@ -98,6 +113,8 @@ public class PipelineTableModel extends AbstractTableModel {
             return getProcessorName(pipeline_.get(row));
          case CONFIGURE_COLUMN:
             return pipeline_.get(row);
+         case STATISTICS_COLUMN:
+            return getStatistics(pipeline_.get(row));
       }
       return null;
    }
@@ -110,6 +127,18 @@ public class PipelineTableModel extends AbstractTableModel {
       }
    }
 
+   private String getStatistics(DataProcessor<TaggedImage> processor) {
+      if (processor.getProcessedCount() == 0) {
+         return "";
+      }
+      String stats = String.format("%.1f img/s, %.1f ms",
+            processor.getThroughput(), processor.getMeanLatencyMs());
+      if (processor.isParallel()) {
+         stats += " (" + processor.getWorkerThreadCount() + " threads)";
+      }
+      return stats;
+   }
+
    private String getProcessorName(DataProcessor<TaggedImage> processor) {
       @SuppressWarnings("unchecked")
       Class<? extends DataProcessor<TaggedImage>> procCls
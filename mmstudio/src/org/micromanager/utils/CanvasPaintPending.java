@@ -18,6 +18,7 @@ import java.util.Map;
  * @author nico
  */
 public class CanvasPaintPending {
+   private static final long POLL_INTERVAL_MS = 10;
    public static Map<ImageCanvas, List<Object>> requesters_ = 
            new HashMap<ImageCanvas, List<Object>>();
    
@@ -74,6 +75,34 @@ public class CanvasPaintPending {
       }
    }
 
+   /**
+    * Waits until the paint requested by caller has happened. Canvases that
+    * call paintFinished() wake the waiting thread right away; others are
+    * checked every POLL_INTERVAL_MS.
+    *
+    * @return false if the paint is still pending after timeoutMs
+    */
+   public static synchronized boolean waitForMyPaint(ImageCanvas canvas,
+           Object caller, long timeoutMs) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (isMyPaintPending(canvas, caller)) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return false;
+         }
+         CanvasPaintPending.class.wait(Math.min(remaining, POLL_INTERVAL_MS));
+      }
+      return true;
+   }
+
+   /**
+    * To be called by canvases at the end of paint(), so that threads in
+    * waitForMyPaint() do not have to poll
+    */
+   public static synchronized void paintFinished(ImageCanvas canvas) {
+      CanvasPaintPending.class.notifyAll();
+   }
+
    public static synchronized void removeAllPaintPending(ImageCanvas canvas) {
       if (requesters_.containsKey(canvas)) {
          requesters_.remove(canvas);
@@ -0,0 +1,109 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CoalescingPropertyListener.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * MMListener for GUI components that show property values.  Property and
+ * config group changes from the core are collected per (device, property)
+ * and per group, so that only the latest value of each is kept, and handed
+ * to applyChanges on the Swing thread in one go.  However many events arrive
+ * while a batch is pending, the component is updated once.
+ */
+public abstract class CoalescingPropertyListener extends MMListenerAdapter {
+
+   // pending property changes as {device, property, value}, by device and property
+   private LinkedHashMap<String, String[]> properties_ =
+         new LinkedHashMap<String, String[]>();
+   // pending config group changes, by group
+   private LinkedHashMap<String, String> groups_ =
+         new LinkedHashMap<String, String>();
+   private boolean allChanged_ = false;
+   private boolean flushPending_ = false;
+
+   private final Runnable flush_ = new Runnable() {
+      @Override
+      public void run() {
+         List<String[]> properties;
+         Map<String, String> groups;
+         boolean allChanged;
+         synchronized (CoalescingPropertyListener.this) {
+            properties = new ArrayList<String[]>(properties_.values());
+            groups = groups_;
+            allChanged = allChanged_;
+            properties_ = new LinkedHashMap<String, String[]>();
+            groups_ = new LinkedHashMap<String, String>();
+            allChanged_ = false;
+            flushPending_ = false;
+         }
+         try {
+            applyChanges(properties, groups, allChanged);
+         } catch (Exception e) {
+            ReportingUtils.logError(e);
+         }
+      }
+   };
+
+   /**
+    * Called on the Swing thread with the changes collected since the last
+    * call.
+    * @param properties changed properties, as {device, property, value}
+    * @param groups new current config by config group
+    * @param allChanged true if the core reported that any property may have
+    *    changed (its system state cache is up to date again by then)
+    */
+   protected abstract void applyChanges(List<String[]> properties,
+         Map<String, String> groups, boolean allChanged);
+
+   @Override
+   public synchronized void propertiesChangedAlert() {
+      allChanged_ = true;
+      scheduleFlush();
+   }
+
+   @Override
+   public synchronized void propertyChangedAlert(String device, String property,
+         String value) {
+      properties_.put(device + "\u0000" + property,
+            new String[] {device, property, value});
+      scheduleFlush();
+   }
+
+   @Override
+   public synchronized void configGroupChangedAlert(String groupName,
+         String newConfig) {
+      groups_.put(groupName, newConfig);
+      scheduleFlush();
+   }
+
+   private void scheduleFlush() {
+      if (!flushPending_) {
+         flushPending_ = true;
+         SwingUtilities.invokeLater(flush_);
+      }
+   }
+}
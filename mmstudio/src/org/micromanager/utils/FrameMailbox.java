@@ -0,0 +1,118 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FrameMailbox.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single slot hand-off between a producer that must never block (e.g. the
+ * thread draining the camera) and one consumer that shows frames (e.g. a
+ * display thread). Only the latest frame is kept: offering a frame while the
+ * previous one has not been taken replaces it, and the replaced frame is
+ * counted as dropped.
+ *
+ * offer() does not lock; the consumer is woken with LockSupport.unpark().
+ */
+public class FrameMailbox<T> {
+   private final AtomicReference<T> slot_ = new AtomicReference<T>();
+   private final AtomicLong offered_ = new AtomicLong();
+   private final AtomicLong dropped_ = new AtomicLong();
+   private volatile Thread consumer_;
+
+   /**
+    * Puts a frame in the slot, replacing a frame that was not taken yet
+    * @return true if a frame was replaced (dropped)
+    */
+   public boolean offer(T frame) {
+      offered_.incrementAndGet();
+      boolean replaced = slot_.getAndSet(frame) != null;
+      if (replaced) {
+         dropped_.incrementAndGet();
+      }
+      Thread consumer = consumer_;
+      if (consumer != null) {
+         LockSupport.unpark(consumer);
+      }
+      return replaced;
+   }
+
+   /**
+    * @return the latest frame without waiting, or null
+    */
+   public T poll() {
+      return slot_.getAndSet(null);
+   }
+
+   /**
+    * Waits for a frame. Only one thread may wait at a time.
+    * @return the latest frame, or null if none arrived within the timeout
+    * @throws InterruptedException if the waiting thread is interrupted
+    */
+   public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      consumer_ = Thread.currentThread();
+      try {
+         while (true) {
+            T frame = slot_.getAndSet(null);
+            if (frame != null) {
+               return frame;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+               return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+               throw new InterruptedException();
+            }
+         }
+      } finally {
+         consumer_ = null;
+      }
+   }
+
+   public boolean isEmpty() {
+      return slot_.get() == null;
+   }
+
+   /**
+    * Discards the frame in the slot, if any, without counting it as dropped
+    */
+   public void clear() {
+      slot_.set(null);
+   }
+
+   /**
+    * @return number of frames offered so far
+    */
+   public long getOfferedCount() {
+      return offered_.get();
+   }
+
+   /**
+    * @return number of frames replaced before they were taken
+    */
+   public long getDroppedCount() {
+      return dropped_.get();
+   }
+}
@@ -0,0 +1,259 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKey.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Packs the (channel, slice, frame, position) coordinates of an image into a
+ * single long, as a compact replacement for the "c_s_f_p" labels generated
+ * by MDUtils.generateLabel.
+ *
+ * Bit layout, from most to least significant:
+ *   sign 0, position 16 bits, frame 24 bits, slice 13 bits, channel 10 bits
+ * so that these keys sort like their coordinates.
+ *
+ * Any non-negative coordinates can be packed, as labels could hold them.
+ * Coordinates that don't fit the fields above get a key with the sign bit
+ * set and the number of the coordinates in a table shared by all keys.
+ * Such keys are rare (very long time lapses, many positions); the table
+ * grows with the number of distinct coordinates of that kind, and is
+ * emptied when the last storage that retained it is closed.
+ */
+public final class ImageKey {
+
+   public static final int MAX_CHANNEL = (1 << 10) - 1;
+   public static final int MAX_SLICE = (1 << 13) - 1;
+   public static final int MAX_FRAME = (1 << 24) - 1;
+   public static final int MAX_POSITION = (1 << 16) - 1;
+
+   private static final int SLICE_SHIFT = 10;
+   private static final int FRAME_SHIFT = 23;
+   private static final int POSITION_SHIFT = 47;
+
+   // Coordinates too large to pack, by label, and by number
+   private static final HashMap<String, Integer> largeKeys_ =
+         new HashMap<String, Integer>();
+   private static final ArrayList<int[]> largeCoordinates_ = new ArrayList<int[]>();
+   // Open storages that may hold large keys
+   private static int largeKeyUsers_ = 0;
+
+   private ImageKey() {
+   }
+
+   public static long pack(int channel, int slice, int frame, int position) {
+      if (channel < 0 || slice < 0 || frame < 0 || position < 0) {
+         throw new IllegalArgumentException("Image indices out of range: " +
+               channel + "_" + slice + "_" + frame + "_" + position);
+      }
+      if (channel > MAX_CHANNEL || slice > MAX_SLICE || frame > MAX_FRAME
+            || position > MAX_POSITION) {
+         return packLarge(channel, slice, frame, position);
+      }
+      return ((long) position << POSITION_SHIFT) | ((long) frame << FRAME_SHIFT)
+            | ((long) slice << SLICE_SHIFT) | channel;
+   }
+
+   private static synchronized long packLarge(int channel, int slice, int frame,
+         int position) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      Integer number = largeKeys_.get(label);
+      if (number == null) {
+         number = largeCoordinates_.size();
+         largeCoordinates_.add(new int[] {channel, slice, frame, position});
+         largeKeys_.put(label, number);
+      }
+      return Long.MIN_VALUE | number;
+   }
+
+   /**
+    * Storages that keep keys call this when they are opened, and
+    * releaseLargeKeys() when they are closed, so that the coordinates of
+    * large keys are dropped once no open storage can hold them any more.
+    */
+   public static synchronized void retainLargeKeys() {
+      largeKeyUsers_++;
+   }
+
+   /**
+    * Forgets all large keys once every storage that retained them is closed
+    */
+   public static synchronized void releaseLargeKeys() {
+      if (largeKeyUsers_ > 0 && --largeKeyUsers_ == 0) {
+         largeKeys_.clear();
+         largeCoordinates_.clear();
+      }
+   }
+
+   private static synchronized int[] largeCoordinates(long key) {
+      return largeCoordinates_.get((int) (key & Integer.MAX_VALUE));
+   }
+
+   /**
+    * @return true if the key holds the number of its coordinates rather
+    * than the coordinates themselves
+    */
+   public static boolean isLarge(long key) {
+      return key < 0;
+   }
+
+   public static int channel(long key) {
+      if (key < 0) {
+         return largeCoordinates(key)[0];
+      }
+      return (int) (key & MAX_CHANNEL);
+   }
+
+   public static int slice(long key) {
+      if (key < 0) {
+         return largeCoordinates(key)[1];
+      }
+      return (int) ((key >>> SLICE_SHIFT) & MAX_SLICE);
+   }
+
+   public static int frame(long key) {
+      if (key < 0) {
+         return largeCoordinates(key)[2];
+      }
+      return (int) ((key >>> FRAME_SHIFT) & MAX_FRAME);
+   }
+
+   public static int position(long key) {
+      if (key < 0) {
+         return largeCoordinates(key)[3];
+      }
+      return (int) ((key >>> POSITION_SHIFT) & MAX_POSITION);
+   }
+
+   public static long fromTags(JSONObject tags) throws JSONException {
+      return pack(MDUtils.getChannelIndex(tags), MDUtils.getSliceIndex(tags),
+            MDUtils.getFrameIndex(tags), MDUtils.getPositionIndex(tags));
+   }
+
+   /**
+    * Parses a "c_s_f_p" label without splitting it into Strings
+    */
+   public static long fromLabel(String label) {
+      int[] indices = new int[4];
+      int index = 0;
+      int value = 0;
+      boolean hasDigits = false;
+      for (int i = 0; i < label.length(); i++) {
+         char c = label.charAt(i);
+         if (c >= '0' && c <= '9') {
+            if (value > (Integer.MAX_VALUE - (c - '0')) / 10) {
+               throw new IllegalArgumentException("Not an image label: " + label);
+            }
+            value = value * 10 + (c - '0');
+            hasDigits = true;
+         } else if (c == '_' && hasDigits && index < 3) {
+            indices[index++] = value;
+            value = 0;
+            hasDigits = false;
+         } else {
+            throw new IllegalArgumentException("Not an image label: " + label);
+         }
+      }
+      if (index != 3 || !hasDigits) {
+         throw new IllegalArgumentException("Not an image label: " + label);
+      }
+      indices[3] = value;
+      return pack(indices[0], indices[1], indices[2], indices[3]);
+   }
+
+   public static String toLabel(long key) {
+      return MDUtils.generateLabel(channel(key), slice(key), frame(key), position(key));
+   }
+
+   /**
+    * Returns a long whose natural (signed) order is the order in which
+    * ImageLabelComparator sorts the corresponding labels. Not for large
+    * keys (see isLarge), which compare() handles.
+    */
+   public static long sortKey(long key, boolean slicesFirst, boolean timeFirst) {
+      long outer;
+      if (timeFirst) {
+         outer = ((long) position(key) << 24) | frame(key);
+      } else {
+         outer = ((long) frame(key) << 16) | position(key);
+      }
+      long inner;
+      if (slicesFirst) {
+         inner = ((long) channel(key) << 13) | slice(key);
+      } else {
+         inner = ((long) slice(key) << 10) | channel(key);
+      }
+      return (outer << 23) | inner;
+   }
+
+   /**
+    * Inverse of sortKey
+    */
+   public static long fromSortKey(long sortKey, boolean slicesFirst, boolean timeFirst) {
+      long outer = sortKey >>> 23;
+      long inner = sortKey & ((1L << 23) - 1);
+      int frame, position, channel, slice;
+      if (timeFirst) {
+         position = (int) (outer >>> 24);
+         frame = (int) (outer & MAX_FRAME);
+      } else {
+         frame = (int) (outer >>> 16);
+         position = (int) (outer & MAX_POSITION);
+      }
+      if (slicesFirst) {
+         channel = (int) (inner >>> 13);
+         slice = (int) (inner & MAX_SLICE);
+      } else {
+         slice = (int) (inner >>> 10);
+         channel = (int) (inner & MAX_CHANNEL);
+      }
+      return pack(channel, slice, frame, position);
+   }
+
+   /**
+    * Compares two keys, large or not, in ImageLabelComparator order
+    */
+   public static int compare(long key1, long key2, boolean slicesFirst, boolean timeFirst) {
+      int[] order;
+      if (timeFirst) {
+         order = slicesFirst ? new int[] {3, 2, 0, 1} : new int[] {3, 2, 1, 0};
+      } else {
+         order = slicesFirst ? new int[] {2, 3, 0, 1} : new int[] {2, 3, 1, 0};
+      }
+      int[] c1 = coordinates(key1);
+      int[] c2 = coordinates(key2);
+      for (int i : order) {
+         if (c1[i] != c2[i]) {
+            return c1[i] < c2[i] ? -1 : 1;
+         }
+      }
+      return 0;
+   }
+
+   private static int[] coordinates(long key) {
+      if (key < 0) {
+         return largeCoordinates(key);
+      }
+      return new int[] {channel(key), slice(key), frame(key), position(key)};
+   }
+}
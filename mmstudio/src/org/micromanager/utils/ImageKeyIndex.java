@@ -0,0 +1,360 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKeyIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Open addressing hash table keyed by packed ImageKeys, without boxing of
+ * keys. Subclasses store the values in a parallel array of their choice
+ * (primitive or Object). Linear probing with backward shift deletion, so no
+ * tombstones accumulate when images are overwritten or removed.
+ *
+ * Not synchronized; subclasses synchronize their public methods.
+ */
+public abstract class ImageKeyIndex {
+
+   private static final long EMPTY = -1L; // never a valid ImageKey (see ImageKey.pack)
+   private static final int MIN_CAPACITY = 16;
+
+   private long[] keys_;
+   private int size_ = 0;
+   // Changes with every key added or removed
+   private int modCount_ = 0;
+   // Keys in the order of the last labelView iterated, and what they are
+   // sorted for; shared with iterators, so replaced rather than changed
+   private long[] sortedKeys_ = null;
+   private int sortedModCount_;
+   private boolean sortedSlicesFirst_;
+   private boolean sortedTimeFirst_;
+
+   protected ImageKeyIndex(int expectedSize) {
+      int capacity = MIN_CAPACITY;
+      while (capacity * 3 < expectedSize * 4) {
+         capacity <<= 1;
+      }
+      keys_ = newKeys(capacity);
+      // Subclasses must not initialize their value array field in its
+      // declaration, or this assignment would be overwritten
+      setValues(newValues(capacity));
+   }
+
+   private static long[] newKeys(int capacity) {
+      long[] keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      return keys;
+   }
+
+   /** Allocate the value array for the given capacity */
+   protected abstract Object newValues(int capacity);
+
+   /** The current value array */
+   protected abstract Object values();
+
+   protected abstract void setValues(Object values);
+
+   /** Copy one value between (possibly identical) value arrays */
+   protected abstract void moveValue(Object from, int fromSlot, Object to, int toSlot);
+
+   /** Drop the value at slot so that it can be garbage collected */
+   protected abstract void clearValue(int slot);
+
+   private static int hash(long key) {
+      // Murmur3 finalizer: coordinates differ mostly in a few low bits of
+      // each field, so they need mixing
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      return (int) key;
+   }
+
+   /**
+    * @return the slot holding key, or -1
+    */
+   protected final int slotOf(long key) {
+      int mask = keys_.length - 1;
+      int slot = hash(key) & mask;
+      while (true) {
+         long k = keys_[slot];
+         if (k == key) {
+            return slot;
+         }
+         if (k == EMPTY) {
+            return -1;
+         }
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   /**
+    * @return the slot for key, claiming a free one if key is not present
+    */
+   protected final int claimSlot(long key) {
+      if ((size_ + 1) * 4 > keys_.length * 3) {
+         rehash(keys_.length * 2);
+      }
+      int mask = keys_.length - 1;
+      int slot = hash(key) & mask;
+      while (true) {
+         long k = keys_[slot];
+         if (k == key) {
+            return slot;
+         }
+         if (k == EMPTY) {
+            keys_[slot] = key;
+            size_++;
+            modCount_++;
+            return slot;
+         }
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   private void rehash(int capacity) {
+      long[] oldKeys = keys_;
+      Object oldValues = values();
+      keys_ = newKeys(capacity);
+      Object newValues = newValues(capacity);
+      int mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldKeys[i] != EMPTY) {
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys_[slot] != EMPTY) {
+               slot = (slot + 1) & mask;
+            }
+            keys_[slot] = oldKeys[i];
+            moveValue(oldValues, i, newValues, slot);
+         }
+      }
+      setValues(newValues);
+   }
+
+   /**
+    * Removes key and its value
+    * @return true if key was present
+    */
+   protected final boolean removeKey(long key) {
+      int slot = slotOf(key);
+      if (slot < 0) {
+         return false;
+      }
+      int mask = keys_.length - 1;
+      Object values = values();
+      // Shift back later entries of the probe sequence into the hole
+      int hole = slot;
+      int next = (hole + 1) & mask;
+      while (keys_[next] != EMPTY) {
+         int ideal = hash(keys_[next]) & mask;
+         if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+            keys_[hole] = keys_[next];
+            moveValue(values, next, values, hole);
+            hole = next;
+         }
+         next = (next + 1) & mask;
+      }
+      keys_[hole] = EMPTY;
+      clearValue(hole);
+      size_--;
+      modCount_++;
+      return true;
+   }
+
+   protected final void clearKeys() {
+      Arrays.fill(keys_, EMPTY);
+      setValues(newValues(keys_.length));
+      size_ = 0;
+      modCount_++;
+   }
+
+   /**
+    * Subclasses that keep keys outside the hash table call this when they
+    * add or remove one
+    */
+   protected final void keysChanged() {
+      modCount_++;
+   }
+
+   protected final int keyCount() {
+      return size_;
+   }
+
+   /**
+    * Calls visitor for every key, in slot order
+    */
+   protected final void forEachSlot(SlotVisitor visitor) {
+      for (int i = 0; i < keys_.length; i++) {
+         if (keys_[i] != EMPTY) {
+            visitor.visit(keys_[i], i);
+         }
+      }
+   }
+
+   protected interface SlotVisitor {
+      void visit(long key, int slot);
+   }
+
+   public abstract int size();
+
+   public abstract boolean containsKey(long key);
+
+   /**
+    * @return a copy of all keys, in no particular order
+    */
+   public abstract long[] keys();
+
+   public synchronized boolean containsLabel(String label) {
+      try {
+         return containsKey(ImageKey.fromLabel(label));
+      } catch (IllegalArgumentException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Read-only view of the keys as "c_s_f_p" labels, iterated in the order
+    * ImageLabelComparator(slicesFirst, timeFirst) would sort them. Labels are
+    * only created while iterating.
+    */
+   public Set<String> labelView(boolean slicesFirst, boolean timeFirst) {
+      return new LabelView(this, slicesFirst, timeFirst);
+   }
+
+   /**
+    * @return all keys in ImageLabelComparator(slicesFirst, timeFirst) order.
+    * Sorted again only when keys were added or removed, or for another
+    * order, since displays iterate the labels often. Must not be modified.
+    */
+   private synchronized long[] sortedKeys(boolean slicesFirst,
+         boolean timeFirst) {
+      if (sortedKeys_ != null && sortedModCount_ == modCount_
+            && sortedSlicesFirst_ == slicesFirst
+            && sortedTimeFirst_ == timeFirst) {
+         return sortedKeys_;
+      }
+      long[] keys = keys();
+      boolean large = false;
+      for (long key : keys) {
+         large |= ImageKey.isLarge(key);
+      }
+      if (large) {
+         sortByComparison(keys, slicesFirst, timeFirst);
+      } else {
+         for (int i = 0; i < keys.length; i++) {
+            keys[i] = ImageKey.sortKey(keys[i], slicesFirst, timeFirst);
+         }
+         Arrays.sort(keys);
+         for (int i = 0; i < keys.length; i++) {
+            keys[i] = ImageKey.fromSortKey(keys[i], slicesFirst, timeFirst);
+         }
+      }
+      sortedKeys_ = keys;
+      sortedModCount_ = modCount_;
+      sortedSlicesFirst_ = slicesFirst;
+      sortedTimeFirst_ = timeFirst;
+      return keys;
+   }
+
+   /*
+    * Sorts by comparing coordinates, for keys that don't all have a sortKey
+    */
+   private static void sortByComparison(long[] keys, final boolean slicesFirst,
+         final boolean timeFirst) {
+      Long[] sorted = new Long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         sorted[i] = keys[i];
+      }
+      Arrays.sort(sorted, new Comparator<Long>() {
+         @Override
+         public int compare(Long key1, Long key2) {
+            return ImageKey.compare(key1, key2, slicesFirst, timeFirst);
+         }
+      });
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = sorted[i];
+      }
+   }
+
+   protected final long[] copyKeys() {
+      final long[] keys = new long[size_];
+      forEachSlot(new SlotVisitor() {
+         int i = 0;
+
+         @Override
+         public void visit(long key, int slot) {
+            keys[i++] = key;
+         }
+      });
+      return keys;
+   }
+
+   private static class LabelView extends AbstractSet<String> {
+
+      private final ImageKeyIndex index_;
+      private final boolean slicesFirst_;
+      private final boolean timeFirst_;
+
+      LabelView(ImageKeyIndex index, boolean slicesFirst, boolean timeFirst) {
+         index_ = index;
+         slicesFirst_ = slicesFirst;
+         timeFirst_ = timeFirst;
+      }
+
+      @Override
+      public int size() {
+         return index_.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+         return (o instanceof String) && index_.containsLabel((String) o);
+      }
+
+      @Override
+      public Iterator<String> iterator() {
+         final long[] sorted = index_.sortedKeys(slicesFirst_, timeFirst_);
+         return new Iterator<String>() {
+            int next_ = 0;
+
+            @Override
+            public boolean hasNext() {
+               return next_ < sorted.length;
+            }
+
+            @Override
+            public String next() {
+               if (next_ >= sorted.length) {
+                  throw new NoSuchElementException();
+               }
+               return ImageKey.toLabel(sorted[next_++]);
+            }
+
+            @Override
+            public void remove() {
+               throw new UnsupportedOperationException();
+            }
+         };
+      }
+   }
+}
@@ -0,0 +1,138 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKeyMap.java    
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Map from packed ImageKeys to objects, e.g. images or the readers of the
+ * files holding them, without a String label or boxed key per entry.
+ */
+public class ImageKeyMap<V> extends ImageKeyIndex {
+
+   private Object[] values_; // allocated by ImageKeyIndex constructor
+
+   public ImageKeyMap() {
+      this(16);
+   }
+
+   public ImageKeyMap(int expectedSize) {
+      super(expectedSize);
+   }
+
+   @Override
+   protected Object newValues(int capacity) {
+      return new Object[capacity];
+   }
+
+   @Override
+   protected Object values() {
+      return values_;
+   }
+
+   @Override
+   protected void setValues(Object values) {
+      values_ = (Object[]) values;
+   }
+
+   @Override
+   protected void moveValue(Object from, int fromSlot, Object to, int toSlot) {
+      ((Object[]) to)[toSlot] = ((Object[]) from)[fromSlot];
+   }
+
+   @Override
+   protected void clearValue(int slot) {
+      values_[slot] = null;
+   }
+
+   /**
+    * @return the previous value for key, or null
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized V put(long key, V value) {
+      int slot = claimSlot(key);
+      V previous = (V) values_[slot];
+      values_[slot] = value;
+      return previous;
+   }
+
+   @SuppressWarnings("unchecked")
+   public synchronized V get(long key) {
+      int slot = slotOf(key);
+      return slot < 0 ? null : (V) values_[slot];
+   }
+
+   public V get(int channel, int slice, int frame, int position) {
+      return get(ImageKey.pack(channel, slice, frame, position));
+   }
+
+   @SuppressWarnings("unchecked")
+   public synchronized V remove(long key) {
+      int slot = slotOf(key);
+      if (slot < 0) {
+         return null;
+      }
+      V previous = (V) values_[slot];
+      removeKey(key);
+      return previous;
+   }
+
+   public synchronized void clear() {
+      clearKeys();
+   }
+
+   /**
+    * @return all distinct values, in no particular order
+    */
+   public synchronized Set<V> valueSet() {
+      final Set<V> set = new HashSet<V>();
+      forEachSlot(new SlotVisitor() {
+         @Override
+         @SuppressWarnings("unchecked")
+         public void visit(long key, int slot) {
+            set.add((V) values_[slot]);
+         }
+      });
+      return set;
+   }
+
+   public synchronized void putAll(ImageKeyMap<? extends V> other) {
+      long[] keys = other.keys();
+      for (long key : keys) {
+         put(key, other.get(key));
+      }
+   }
+
+   @Override
+   public synchronized int size() {
+      return keyCount();
+   }
+
+   @Override
+   public synchronized boolean containsKey(long key) {
+      return slotOf(key) >= 0;
+   }
+
+   @Override
+   public synchronized long[] keys() {
+      return copyKeys();
+   }
+}
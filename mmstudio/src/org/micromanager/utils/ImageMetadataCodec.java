@@ -0,0 +1,221 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageMetadataCodec.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.MMTags;
+
+/**
+ * Serialization of image tags for storage, against the summary metadata of
+ * the dataset.
+ *
+ * Every image of an acquisition carries the summary metadata under "Summary"
+ * and repeats fields that do not change during the acquisition (camera,
+ * binning, pixel type, size). encode() leaves out the embedded summary and
+ * those fields when they equal the summary, and lists what it left out
+ * under SUMMARY_FIELDS. decode() puts them back, so readers see the same
+ * tags as before. Compact tags are only meant for in-memory storage: other
+ * readers of files do not know SUMMARY_FIELDS, so tags that go to disk are
+ * written with serialize(), which only leaves out the embedded summary (it
+ * is stored once per file).
+ *
+ * The tags are serialized once, straight to UTF-8 bytes, into a buffer that
+ * is reused for the next image. The tags passed in are not modified.
+ *
+ * The fields are compared with the summary as it was when the codec was
+ * created, so a codec should be created when the summary is written.
+ */
+public class ImageMetadataCodec {
+   /** Tag listing the fields that are taken from the summary */
+   public static final String SUMMARY_FIELDS = "SummaryFields";
+   // Fields that are the same for all images of a (single camera) acquisition
+   private static final String[] SHARED_FIELDS = {
+      "Binning", "BitDepth", "Camera", "Height", "PixelType", "Width"
+   };
+
+   // Summary in JSON form, parsed again for every set of restored tags
+   private final String summaryJSON_;
+   // Summary values of SHARED_FIELDS, in JSON form, null where missing
+   private final String[] sharedValues_ = new String[SHARED_FIELDS.length];
+   private final Object[] sharedObjects_ = new Object[SHARED_FIELDS.length];
+   private final ReusableOutput output_ = new ReusableOutput();
+   private final Writer writer_;
+
+   /**
+    * @param summary summary metadata of the dataset, or null
+    */
+   public ImageMetadataCodec(JSONObject summary) {
+      summaryJSON_ = summary == null ? null : summary.toString();
+      if (summary != null) {
+         for (int i = 0; i < SHARED_FIELDS.length; i++) {
+            Object value = summary.opt(SHARED_FIELDS[i]);
+            if (value != null && value != JSONObject.NULL) {
+               sharedObjects_[i] = value;
+               sharedValues_[i] = toJSON(value);
+            }
+         }
+      }
+      try {
+         writer_ = new OutputStreamWriter(output_, "UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+         // Every JVM supports UTF-8
+         throw new RuntimeException(ex);
+      }
+   }
+
+   private static String toJSON(Object value) {
+      // JSONArray is the only public way to get at the JSON form of a value
+      String array = new JSONArray().put(value).toString();
+      return array.substring(1, array.length() - 1);
+   }
+
+   /**
+    * Serializes tags as they are written to files: all of them except the
+    * embedded summary.
+    * @return UTF-8 JSON, from position to limit, valid until the next call
+    */
+   public synchronized ByteBuffer serialize(JSONObject tags) throws JSONException {
+      if (!tags.has(MMTags.Root.SUMMARY)) {
+         return write(tags);
+      }
+      JSONObject written = new JSONObject();
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         if (!key.equals(MMTags.Root.SUMMARY)) {
+            written.put(key, tags.opt(key));
+         }
+      }
+      return write(written);
+   }
+
+   /**
+    * Serializes tags without the summary and the fields equal to it, for
+    * storage that is only read back through decode().
+    * @return UTF-8 JSON, from position to limit, valid until the next call
+    */
+   public synchronized ByteBuffer encode(JSONObject tags) throws JSONException {
+      JSONObject compact = new JSONObject();
+      JSONArray omitted = new JSONArray();
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         Object value = tags.opt(key);
+         if (key.equals(MMTags.Root.SUMMARY) && value instanceof JSONObject) {
+            omitted.put(key);
+         } else if (isShared(key, value)) {
+            omitted.put(key);
+         } else if (!key.equals(SUMMARY_FIELDS)) {
+            compact.put(key, value);
+         }
+      }
+      if (omitted.length() > 0) {
+         compact.put(SUMMARY_FIELDS, omitted);
+      }
+      return write(compact);
+   }
+
+   private ByteBuffer write(JSONObject tags) throws JSONException {
+      output_.reset();
+      try {
+         tags.write(writer_);
+         writer_.flush();
+      } catch (IOException ex) {
+         throw new JSONException(ex);
+      }
+      return output_.toByteBuffer();
+   }
+
+   private boolean isShared(String key, Object value) {
+      for (int i = 0; i < SHARED_FIELDS.length; i++) {
+         if (SHARED_FIELDS[i].equals(key)) {
+            return sharedValues_[i] != null && value != null
+                  && sharedValues_[i].equals(toJSON(value));
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Parses tags written by encode(), or by an older version without it
+    */
+   public JSONObject decode(String json) throws JSONException {
+      JSONObject tags = new JSONObject(json);
+      restore(tags);
+      return tags;
+   }
+
+   /**
+    * Puts back the fields that encode() left out, in place. The summary and
+    * any other object values are copies of their own, so that the tags can
+    * be modified without affecting the tags of other images.
+    */
+   public void restore(JSONObject tags) throws JSONException {
+      JSONArray omitted = tags.optJSONArray(SUMMARY_FIELDS);
+      if (omitted == null) {
+         return;
+      }
+      tags.remove(SUMMARY_FIELDS);
+      for (int i = 0; i < omitted.length(); i++) {
+         String key = omitted.getString(i);
+         if (key.equals(MMTags.Root.SUMMARY)) {
+            if (summaryJSON_ != null) {
+               tags.put(key, new JSONObject(summaryJSON_));
+            }
+            continue;
+         }
+         for (int j = 0; j < SHARED_FIELDS.length; j++) {
+            if (SHARED_FIELDS[j].equals(key) && sharedObjects_[j] != null) {
+               tags.put(key, copy(sharedObjects_[j], sharedValues_[j]));
+            }
+         }
+      }
+   }
+
+   private static Object copy(Object value, String json) throws JSONException {
+      if (value instanceof JSONObject) {
+         return new JSONObject(json);
+      }
+      if (value instanceof JSONArray) {
+         return new JSONArray(json);
+      }
+      // strings, numbers and booleans are immutable
+      return value;
+   }
+
+   private static class ReusableOutput extends ByteArrayOutputStream {
+      ReusableOutput() {
+         super(4096);
+      }
+
+      ByteBuffer toByteBuffer() {
+         return ByteBuffer.wrap(buf, 0, count);
+      }
+   }
+}
@@ -0,0 +1,201 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageOffsetMap.java 
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.Arrays;
+
+/**
+ * Map from packed ImageKeys to non-negative longs (e.g. file offsets of
+ * images), stored in primitive arrays. When the dimensions of the dataset
+ * are known up front, values are kept in a dense array indexed directly by
+ * the coordinates; an image outside those dimensions switches the map to
+ * hashing.
+ */
+public class ImageOffsetMap extends ImageKeyIndex {
+
+   public static final long NO_VALUE = -1L;
+   // Largest dense table allocated (8 bytes per entry)
+   private static final long MAX_DENSE_ENTRIES = 1 << 22;
+
+   private long[] values_; // allocated by ImageKeyIndex constructor
+   private long[] dense_;
+   private int denseSize_;
+   private int numChannels_, numSlices_, numFrames_, numPositions_;
+
+   public ImageOffsetMap() {
+      super(16);
+   }
+
+   /**
+    * Hashed map sized for expectedSize entries
+    */
+   public ImageOffsetMap(int expectedSize) {
+      super(expectedSize);
+   }
+
+   /**
+    * Use a dense table for the given dimensions, if it is small enough
+    */
+   public ImageOffsetMap(int numChannels, int numSlices, int numFrames, int numPositions) {
+      super(16);
+      long entries = (long) Math.max(1, numChannels) * Math.max(1, numSlices)
+            * Math.max(1, numFrames) * Math.max(1, numPositions);
+      if (entries <= MAX_DENSE_ENTRIES) {
+         numChannels_ = Math.max(1, numChannels);
+         numSlices_ = Math.max(1, numSlices);
+         numFrames_ = Math.max(1, numFrames);
+         numPositions_ = Math.max(1, numPositions);
+         dense_ = new long[(int) entries];
+         Arrays.fill(dense_, NO_VALUE);
+      }
+   }
+
+   @Override
+   protected Object newValues(int capacity) {
+      return new long[capacity];
+   }
+
+   @Override
+   protected Object values() {
+      return values_;
+   }
+
+   @Override
+   protected void setValues(Object values) {
+      values_ = (long[]) values;
+   }
+
+   @Override
+   protected void moveValue(Object from, int fromSlot, Object to, int toSlot) {
+      ((long[]) to)[toSlot] = ((long[]) from)[fromSlot];
+   }
+
+   @Override
+   protected void clearValue(int slot) {
+      values_[slot] = NO_VALUE;
+   }
+
+   private int denseIndex(long key) {
+      int channel = ImageKey.channel(key), slice = ImageKey.slice(key);
+      int frame = ImageKey.frame(key), position = ImageKey.position(key);
+      if (channel >= numChannels_ || slice >= numSlices_ || frame >= numFrames_
+            || position >= numPositions_) {
+         return -1;
+      }
+      return ((position * numFrames_ + frame) * numSlices_ + slice) * numChannels_ + channel;
+   }
+
+   private long denseKey(int index) {
+      int channel = index % numChannels_;
+      index /= numChannels_;
+      int slice = index % numSlices_;
+      index /= numSlices_;
+      int frame = index % numFrames_;
+      int position = index / numFrames_;
+      return ImageKey.pack(channel, slice, frame, position);
+   }
+
+   /*
+    * Move everything from the dense table into the hash table
+    */
+   private void leaveDenseMode() {
+      long[] dense = dense_;
+      dense_ = null;
+      denseSize_ = 0;
+      for (int i = 0; i < dense.length; i++) {
+         if (dense[i] != NO_VALUE) {
+            int slot = claimSlot(denseKey(i));
+            values_[slot] = dense[i];
+         }
+      }
+   }
+
+   public synchronized void put(long key, long value) {
+      if (value < 0) {
+         throw new IllegalArgumentException("Negative values can't be stored");
+      }
+      if (dense_ != null) {
+         int index = denseIndex(key);
+         if (index >= 0) {
+            if (dense_[index] == NO_VALUE) {
+               denseSize_++;
+               keysChanged();
+            }
+            dense_[index] = value;
+            return;
+         }
+         leaveDenseMode();
+      }
+      // claimSlot may reallocate values_, so it has to be called first
+      int slot = claimSlot(key);
+      values_[slot] = value;
+   }
+
+   /**
+    * @return the value for key, or NO_VALUE
+    */
+   public synchronized long get(long key) {
+      if (dense_ != null) {
+         int index = denseIndex(key);
+         return index < 0 ? NO_VALUE : dense_[index];
+      }
+      int slot = slotOf(key);
+      return slot < 0 ? NO_VALUE : values_[slot];
+   }
+
+   public synchronized boolean remove(long key) {
+      if (dense_ != null) {
+         int index = denseIndex(key);
+         if (index < 0 || dense_[index] == NO_VALUE) {
+            return false;
+         }
+         dense_[index] = NO_VALUE;
+         denseSize_--;
+         keysChanged();
+         return true;
+      }
+      return removeKey(key);
+   }
+
+   @Override
+   public synchronized int size() {
+      return dense_ != null ? denseSize_ : keyCount();
+   }
+
+   @Override
+   public synchronized boolean containsKey(long key) {
+      return get(key) != NO_VALUE;
+   }
+
+   @Override
+   public synchronized long[] keys() {
+      if (dense_ == null) {
+         return copyKeys();
+      }
+      long[] keys = new long[denseSize_];
+      int n = 0;
+      for (int i = 0; i < dense_.length; i++) {
+         if (dense_[i] != NO_VALUE) {
+            keys[n++] = denseKey(i);
+         }
+      }
+      return keys;
+   }
+}
@@ -0,0 +1,389 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.MMStudio;
+
+/**
+ * Histogram, min, max, mean, standard deviation and outlier cutoffs of an
+ * 8 bit, 16 bit or RGB image, from a single sweep over the pixels. RGB
+ * pixels are counted by one of their components, or by their brightness.
+ *
+ * The sweep only fills the histogram; everything else is derived from the
+ * histogram, which is much smaller than the image. Results match
+ * ImageProcessor.getHistogram(), ImagePlus.getStatistics() and HistogramUtils.
+ *
+ * For live display the image can be sampled: with a stride of n only every
+ * n-th pixel of every n-th row is counted. Large frames that are not sampled
+ * are split in bands of rows that are counted on all cores.
+ *
+ * One instance is meant to be reused by one histogram panel; the histogram
+ * array returned is overwritten by the next call to compute().
+ */
+public class PixelStatistics {
+   // Sampled live images keep about this many pixels
+   public static final int LIVE_SAMPLE_PIXELS = 512 * 512;
+   // Component to count RGB pixels by: the mean of red, green and blue
+   public static final int BRIGHTNESS = -1;
+   public static final int RED = 0;
+   public static final int GREEN = 1;
+   public static final int BLUE = 2;
+   // Below this, splitting the image costs more than it gains
+   private static final int MIN_BAND_PIXELS = 1 << 19;
+
+   private static ExecutorService bandPool_;
+   private static int numBandThreads_;
+
+   private int[] histogram_ = new int[0];
+   private int[][] bandHistograms_ = new int[0][];
+   private int count_;
+   private int min_;
+   private int max_;
+   private double mean_;
+   private double stdDev_;
+
+   private static synchronized ExecutorService getBandPool() {
+      if (bandPool_ == null) {
+         numBandThreads_ = Runtime.getRuntime().availableProcessors();
+         bandPool_ = Executors.newFixedThreadPool(numBandThreads_,
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "Histogram band");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      }
+      return bandPool_;
+   }
+
+   /**
+    * @return the smallest stride that brings numPixels down to about
+    * targetPixels samples
+    */
+   public static int strideFor(int numPixels, int targetPixels) {
+      int stride = 1;
+      while ((long) numPixels > (long) targetPixels * stride * stride) {
+         stride++;
+      }
+      return stride;
+   }
+
+   /**
+    * Live images are sampled, so that the histograms keep up with the camera
+    * @return stride for compute() of the given processor of an image
+    */
+   public static int getHistogramStride(ImagePlus img, ImageProcessor ip) {
+      if (!MMStudio.getInstance().isLiveModeOn()
+            || img.getWindow() != MMStudio.getInstance().getSnapLiveWin()) {
+         return 1;
+      }
+      return strideFor(ip.getRoi().width * ip.getRoi().height,
+            LIVE_SAMPLE_PIXELS);
+   }
+
+   /**
+    * Computes the statistics of the roi (and mask) of an ImageProcessor,
+    * counting RGB pixels by their brightness, as ImageJ does.
+    * @param stride 1 to count every pixel
+    * @return false if the pixel type is not 8 bit, 16 bit or RGB, in which
+    * case nothing was computed
+    */
+   public boolean compute(ImageProcessor ip, int stride) {
+      return compute(ip, BRIGHTNESS, stride);
+   }
+
+   /**
+    * Computes the statistics of the roi (and mask) of an ImageProcessor.
+    * @param component RED, GREEN, BLUE or BRIGHTNESS, for RGB pixels
+    * @param stride 1 to count every pixel
+    * @return false if the pixel type is not 8 bit, 16 bit or RGB, in which
+    * case nothing was computed
+    */
+   public boolean compute(ImageProcessor ip, int component, int stride) {
+      Object pixels = ip.getPixels();
+      if (!(pixels instanceof byte[] || pixels instanceof short[]
+            || pixels instanceof int[])) {
+         return false;
+      }
+      ImageProcessor mask = ip.getMask();
+      compute(pixels, ip.getWidth(), ip.getRoi(),
+            mask == null ? null : (byte[]) mask.getPixels(), component, stride);
+      return true;
+   }
+
+   /**
+    * Computes the statistics of a rectangle of a byte[] or short[] image.
+    * @param width image width
+    * @param roi region to count
+    * @param mask null, or roi.width * roi.height values, non-zero inside
+    * @param stride 1 to count every pixel
+    */
+   public void compute(Object pixels, int width, Rectangle roi, byte[] mask,
+         int stride) {
+      compute(pixels, width, roi, mask, BRIGHTNESS, stride);
+   }
+
+   /**
+    * Computes the statistics of a rectangle of a byte[], short[] or RGB
+    * int[] image.
+    * @param width image width
+    * @param roi region to count
+    * @param mask null, or roi.width * roi.height values, non-zero inside
+    * @param component RED, GREEN, BLUE or BRIGHTNESS, for RGB pixels
+    * @param stride 1 to count every pixel
+    */
+   public void compute(final Object pixels, final int width,
+         final Rectangle roi, final byte[] mask, final int component,
+         final int stride) {
+      int length = pixels instanceof short[] ? 65536 : 256;
+      if (histogram_.length != length) {
+         histogram_ = new int[length];
+      } else {
+         Arrays.fill(histogram_, 0);
+      }
+
+      int numRows = (roi.height + stride - 1) / stride;
+      int rowPixels = (roi.width + stride - 1) / stride;
+      int numBands = 1;
+      if (stride == 1 && (long) numRows * rowPixels >= 2 * MIN_BAND_PIXELS) {
+         getBandPool();
+         numBands = (int) Math.min(numBandThreads_,
+               (long) numRows * rowPixels / MIN_BAND_PIXELS);
+      }
+      if (numBands <= 1) {
+         countRows(pixels, width, roi, mask, component, stride, 0, numRows,
+               histogram_);
+      } else {
+         countBands(pixels, width, roi, mask, component, numRows, numBands);
+      }
+      summarize();
+   }
+
+   private void countBands(final Object pixels, final int width,
+         final Rectangle roi, final byte[] mask, final int component,
+         int numRows, int numBands) {
+      if (bandHistograms_.length < numBands - 1
+            || bandHistograms_[0].length != histogram_.length) {
+         bandHistograms_ = new int[numBands - 1][histogram_.length];
+      }
+      int bandRows = (numRows + numBands - 1) / numBands;
+      List<Future<?>> futures = new ArrayList<Future<?>>(numBands - 1);
+      int band = 0;
+      // The calling thread counts the first band itself
+      for (int start = bandRows; start < numRows; start += bandRows) {
+         final int from = start;
+         final int to = Math.min(numRows, start + bandRows);
+         final int[] histogram = bandHistograms_[band++];
+         futures.add(getBandPool().submit(new Runnable() {
+            @Override
+            public void run() {
+               countRows(pixels, width, roi, mask, component, 1, from, to,
+                     histogram);
+            }
+         }));
+      }
+      countRows(pixels, width, roi, mask, component, 1, 0,
+            Math.min(numRows, bandRows), histogram_);
+      boolean interrupted = false;
+      for (int i = 0; i < futures.size(); i++) {
+         while (true) {
+            try {
+               futures.get(i).get();
+               break;
+            } catch (InterruptedException ex) {
+               interrupted = true;
+            } catch (ExecutionException ex) {
+               ReportingUtils.logError(ex.getCause());
+               break;
+            }
+         }
+         int[] histogram = bandHistograms_[i];
+         for (int j = 0; j < histogram.length; j++) {
+            histogram_[j] += histogram[j];
+         }
+         Arrays.fill(histogram, 0);
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Counts sampled rows [from, to) of the roi into histogram
+    */
+   private static void countRows(Object pixels, int width, Rectangle roi,
+         byte[] mask, int component, int stride, int from, int to,
+         int[] histogram) {
+      for (int row = from; row < to; row++) {
+         int y = row * stride;
+         int offset = (roi.y + y) * width + roi.x;
+         int maskOffset = y * roi.width;
+         if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            if (mask == null) {
+               for (int x = 0; x < roi.width; x += stride) {
+                  histogram[p[offset + x] & 0xff]++;
+               }
+            } else {
+               for (int x = 0; x < roi.width; x += stride) {
+                  if (mask[maskOffset + x] != 0) {
+                     histogram[p[offset + x] & 0xff]++;
+                  }
+               }
+            }
+         } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            for (int x = 0; x < roi.width; x += stride) {
+               if (mask == null || mask[maskOffset + x] != 0) {
+                  histogram[rgbValue(p[offset + x], component)]++;
+               }
+            }
+         } else {
+            short[] p = (short[]) pixels;
+            if (mask == null) {
+               for (int x = 0; x < roi.width; x += stride) {
+                  histogram[p[offset + x] & 0xffff]++;
+               }
+            } else {
+               for (int x = 0; x < roi.width; x += stride) {
+                  if (mask[maskOffset + x] != 0) {
+                     histogram[p[offset + x] & 0xffff]++;
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   private static int rgbValue(int rgb, int component) {
+      if (component != BRIGHTNESS) {
+         return (rgb >> (16 - 8 * component)) & 0xff;
+      }
+      int sum = ((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff);
+      // (r + g + b) / 3, rounded, as ColorProcessor.getHistogram()
+      return (2 * sum + 3) / 6;
+   }
+
+   private void summarize() {
+      int[] h = histogram_;
+      int min = 0;
+      while (min < h.length - 1 && h[min] == 0) {
+         min++;
+      }
+      int max = h.length - 1;
+      while (max > min && h[max] == 0) {
+         max--;
+      }
+      long count = 0;
+      long sum = 0;
+      long sum2 = 0;
+      for (int i = min; i <= max; i++) {
+         long n = h[i];
+         count += n;
+         sum += n * i;
+         sum2 += n * i * i;
+      }
+      count_ = (int) count;
+      min_ = min;
+      max_ = max;
+      mean_ = count > 0 ? (double) sum / count : 0;
+      // Same (n - 1) normalization as ImageJ
+      double variance = count > 1
+            ? ((double) count * sum2 - (double) sum * sum) / count / (count - 1)
+            : 0;
+      stdDev_ = Math.sqrt(Math.max(0, variance));
+   }
+
+   /**
+    * @return histogram with one bin per pixel value (65536 bins for 16 bit
+    * images, 256 otherwise)
+    */
+   public int[] getHistogram() {
+      return histogram_;
+   }
+
+   /**
+    * @return number of pixels counted (sampled pixels only, with a stride)
+    */
+   public int getCount() {
+      return count_;
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public double getMean() {
+      return mean_;
+   }
+
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   /**
+    * Lowest value after ignoring the given fraction of low pixels, as
+    * HistogramUtils.getMinAfterRejectingOutliers()
+    */
+   public int getMinAfterRejectingOutliers(double fraction) {
+      int maxOutliers = (int) (0.5 + count_ * fraction);
+      int outliers = 0;
+      for (int i = min_; i <= max_; i++) {
+         outliers += histogram_[i];
+         if (outliers > maxOutliers) {
+            return i;
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * Highest value after ignoring the given fraction of high pixels, as
+    * HistogramUtils.getMaxAfterRejectingOutliers()
+    */
+   public int getMaxAfterRejectingOutliers(double fraction) {
+      int maxOutliers = (int) (0.5 + count_ * fraction);
+      int outliers = 0;
+      for (int i = max_; i >= min_; i--) {
+         outliers += histogram_[i];
+         if (outliers > maxOutliers) {
+            return i;
+         }
+      }
+      return 0;
+   }
+}
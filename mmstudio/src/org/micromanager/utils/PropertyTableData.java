@@ -1,6 +1,8 @@
 package org.micromanager.utils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 import javax.swing.table.AbstractTableModel;
 
@@ -31,6 +33,10 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
    String[] columnNames_ = new String[3];
    public ArrayList<PropertyItem> propList_ = new ArrayList<PropertyItem>(); // The table data is stored in here.
    public ArrayList<PropertyItem> propListVisible_ = new ArrayList<PropertyItem>(); // The table data is stored in here.
+   // items of propList_ by device and property name
+   private final HashMap<String, PropertyItem> itemIndex_ = new HashMap<String, PropertyItem>();
+   // rows of the items in propListVisible_
+   private final IdentityHashMap<PropertyItem, Integer> visibleRows_ = new IdentityHashMap<PropertyItem, Integer>();
    protected CMMCore core_ = null;
    Configuration groupData_[];
    PropertySetting groupSignature_[];
@@ -89,13 +95,44 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
       return null;
    }
 
+   private static String itemKey(String device, String propName) {
+      return device + "\u0000" + propName;
+   }
+
    public PropertyItem getItem(String device, String propName) {
+      if (itemIndex_.size() != propList_.size()) {
+         // propList_ was changed from outside
+         indexItems();
+      }
+      return itemIndex_.get(itemKey(device, propName));
+   }
+
+   private void indexItems() {
+      itemIndex_.clear();
       for (PropertyItem item : propList_) {
-         if ((item.device.contentEquals(device)) && (item.name.contentEquals(propName))) {
-            return item;
-         }
+         itemIndex_.put(itemKey(item.device, item.name), item);
+      }
+   }
+
+   /**
+    * Applies a property change reported by the core to the table, and
+    * repaints only the row showing it.  Properties included in the current
+    * configuration keep showing the value of the preset.
+    * @param device device label
+    * @param propName property name
+    * @param coreValue new value, as the core reports it
+    */
+   public void updateValue(String device, String propName, String coreValue) {
+      PropertyItem item = getItem(device, propName);
+      if (item == null || item.confInclude) {
+         return;
+      }
+      item.setValueFromCoreString(coreValue);
+      Integer row = visibleRows_.get(item);
+      if (row != null && row < propListVisible_.size()
+            && propListVisible_.get(row) == item) {
+         fireTableRowsUpdated(row, row);
       }
-      return null; // Failed to find the item.
    }
 
    public boolean verifyPresetSignature() {
@@ -238,7 +275,11 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
          Configuration cfg = core_.getConfigGroupState(groupName);
 
          boolean liveMode = gui_.isLiveModeOn();
-         gui_.enableLiveMode(false);
+         if (!fromCache) {
+            // Some properties may not be readable if we are
+            // mid-acquisition.
+            gui_.enableLiveMode(false);
+         }
 
          setUpdating(true);
 
@@ -252,12 +293,13 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
                   if (!groupOnly_ || cfg.isPropertyIncluded(devices.get(i), properties.get(j))) {
                      item.readFromCore(core_, devices.get(i), properties.get(j), fromCache);
                      if ((!item.readOnly || showReadOnly_) && !item.preInit) {
+                        // readFromCore already read the value of properties
+                        // that are not in the configuration
                         if (cfg.isPropertyIncluded(item.device, item.name)) {
                            item.confInclude = true;
                            item.setValueFromCoreString(cfg.getSetting(item.device, item.name).getPropertyValue());
                         } else {
                            item.confInclude = false;
-                           item.setValueFromCoreString(core_.getProperty(devices.get(i), properties.get(j)));
                         }
                         propList_.add(item);
                      }
@@ -271,7 +313,9 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
 
          updateRowVisibility(flags);
 
-         gui_.enableLiveMode(liveMode);
+         if (!fromCache) {
+            gui_.enableLiveMode(liveMode);
+         }
       } catch (Exception e) {
          handleException(e);
       }
@@ -281,6 +325,8 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
 
    public void updateRowVisibility(ShowFlags flags) {
       propListVisible_.clear();
+      visibleRows_.clear();
+      indexItems();
 
       boolean showDevice;
 
@@ -294,6 +340,7 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
          }
 
          if (showDevice) {
+            visibleRows_.put(item, propListVisible_.size());
             propListVisible_.add(item);
          }
       }
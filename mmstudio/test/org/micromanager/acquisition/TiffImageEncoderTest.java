@@ -0,0 +1,132 @@
+package org.micromanager.acquisition;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.micromanager.utils.ImageUtils;
+import static org.junit.Assert.*;
+
+public class TiffImageEncoderTest {
+   private static final int WIDTH = 37;
+   private static final int HEIGHT = 23;
+   private static final String INFO = "{\n  \"Camera\": \"Camera-1\",\n"
+         + "  \"FrameIndex\": 3\n}";
+
+   /**
+    * Writes the image with FileSaver, as TaggedImageStorageDiskDefault did
+    * before it used TiffImageEncoder
+    */
+   private static byte[] saveWithImageJ(ImageProcessor ip, double pixelSizeUm,
+         String info) throws IOException {
+      File file = File.createTempFile("FileSaver", ".tif");
+      try {
+         ImagePlus imp = new ImagePlus(file.getPath(), ip);
+         if (pixelSizeUm > 0) {
+            Calibration cal = new Calibration();
+            cal.setUnit("um");
+            cal.pixelWidth = pixelSizeUm;
+            cal.pixelHeight = pixelSizeUm;
+            imp.setCalibration(cal);
+         }
+         if (info != null) {
+            imp.setProperty("Info", info);
+         }
+         assertTrue(new FileSaver(imp).saveAsTiff(file.getPath()));
+         return readFile(file);
+      } finally {
+         file.delete();
+      }
+   }
+
+   private static byte[] readFile(File file) throws IOException {
+      byte[] bytes = new byte[(int) file.length()];
+      FileInputStream in = new FileInputStream(file);
+      try {
+         int read = 0;
+         while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+               throw new IOException("Unexpected end of file");
+            }
+            read += n;
+         }
+      } finally {
+         in.close();
+      }
+      return bytes;
+   }
+
+   private static byte[] encode(Object pixels, String pixelType,
+         double pixelSizeUm, String info) throws IOException {
+      ByteBuffer buffer = TiffImageEncoder.encode(pixels, pixelType, WIDTH,
+            HEIGHT, pixelSizeUm, info);
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+   }
+
+   private static void assertSameFile(Object pixels, String pixelType,
+         ImageProcessor ip) throws IOException {
+      double[] pixelSizes = {0, 0.1625};
+      String[] infos = {null, INFO};
+      for (double pixelSizeUm : pixelSizes) {
+         for (String info : infos) {
+            assertArrayEquals(pixelType + ", pixel size " + pixelSizeUm
+                  + ", info " + (info != null),
+                  saveWithImageJ(ip, pixelSizeUm, info),
+                  encode(pixels, pixelType, pixelSizeUm, info));
+         }
+      }
+   }
+
+   @Test
+   public void gray8MatchesFileSaver() throws IOException {
+      byte[] pixels = new byte[WIDTH * HEIGHT];
+      new Random(8).nextBytes(pixels);
+      assertSameFile(pixels, "GRAY8",
+            new ByteProcessor(WIDTH, HEIGHT, pixels, null));
+   }
+
+   @Test
+   public void gray16MatchesFileSaver() throws IOException {
+      Random random = new Random(16);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) random.nextInt(65536);
+      }
+      assertSameFile(pixels, "GRAY16",
+            new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+   }
+
+   @Test
+   public void gray32MatchesFileSaver() throws IOException {
+      Random random = new Random(32);
+      float[] pixels = new float[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (float) (random.nextGaussian() * 1000);
+      }
+      assertSameFile(pixels, "GRAY32",
+            new FloatProcessor(WIDTH, HEIGHT, pixels, null));
+   }
+
+   @Test
+   public void rgb32MatchesFileSaver() throws IOException {
+      byte[] pixels = new byte[4 * WIDTH * HEIGHT];
+      new Random(4).nextBytes(pixels);
+      byte[][] planes = ImageUtils.getColorPlanesFromRGB32(pixels);
+      ColorProcessor cp = new ColorProcessor(WIDTH, HEIGHT);
+      cp.setRGB(planes[0], planes[1], planes[2]);
+      assertSameFile(pixels, "RGB32", cp);
+   }
+}
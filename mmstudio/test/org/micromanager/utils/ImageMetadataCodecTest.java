@@ -0,0 +1,144 @@
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageMetadataCodecTest {
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static JSONObject summary() throws JSONException {
+      JSONObject summary = new JSONObject();
+      summary.put("Width", 512);
+      summary.put("Height", 256);
+      summary.put("PixelType", "GRAY16");
+      summary.put("Binning", 2);
+      summary.put("BitDepth", 12);
+      summary.put("Camera", "Camera-1");
+      summary.put("ChNames", new JSONArray().put("DAPI").put("GFP"));
+      return summary;
+   }
+
+   private static JSONObject tags(JSONObject summary, int frame)
+           throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("Summary", summary);
+      tags.put("Width", 512);
+      tags.put("Height", 256);
+      tags.put("PixelType", "GRAY16");
+      tags.put("Binning", 2);
+      tags.put("BitDepth", 12);
+      // differs from the summary, so it has to be kept
+      tags.put("Camera", "Camera-2");
+      tags.put("FrameIndex", frame);
+      tags.put("ElapsedTime-ms", 12.5 * frame);
+      tags.put("Label", "\u00b5m \u00e9");
+      return tags;
+   }
+
+   private static String string(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   private static void assertSameTags(JSONObject expected, JSONObject actual)
+           throws JSONException {
+      assertSameValue(new JSONObject(expected.toString()), actual);
+   }
+
+   private static void assertSameValue(Object expected, Object actual)
+           throws JSONException {
+      if (expected instanceof JSONObject) {
+         assertTrue(actual instanceof JSONObject);
+         JSONObject expectedObject = (JSONObject) expected;
+         JSONObject actualObject = (JSONObject) actual;
+         assertEquals(expectedObject.length(), actualObject.length());
+         Iterator<String> keys = expectedObject.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            assertTrue(key, actualObject.has(key));
+            assertSameValue(expectedObject.get(key), actualObject.get(key));
+         }
+      } else if (expected instanceof JSONArray) {
+         assertTrue(actual instanceof JSONArray);
+         JSONArray expectedArray = (JSONArray) expected;
+         JSONArray actualArray = (JSONArray) actual;
+         assertEquals(expectedArray.length(), actualArray.length());
+         for (int i = 0; i < expectedArray.length(); i++) {
+            assertSameValue(expectedArray.get(i), actualArray.get(i));
+         }
+      } else {
+         assertEquals(expected, actual);
+      }
+   }
+
+   @Test
+   public void compactTagsRoundTrip() throws JSONException {
+      JSONObject summary = summary();
+      ImageMetadataCodec codec = new ImageMetadataCodec(summary);
+      JSONObject tags = tags(summary, 3);
+      String before = tags.toString();
+
+      String encoded = string(codec.encode(tags));
+      JSONObject compact = new JSONObject(encoded);
+      assertFalse(compact.has("Summary"));
+      assertFalse(compact.has("Width"));
+      assertEquals("Camera-2", compact.getString("Camera"));
+      // the tags passed in are left alone
+      assertEquals(before, tags.toString());
+
+      assertSameTags(tags, codec.decode(encoded));
+   }
+
+   @Test
+   public void serializedTagsAreCompleteButForTheSummary()
+           throws JSONException {
+      JSONObject summary = summary();
+      ImageMetadataCodec codec = new ImageMetadataCodec(summary);
+      JSONObject tags = tags(summary, 1);
+      String before = tags.toString();
+      String serialized = string(codec.serialize(tags));
+      JSONObject written = new JSONObject(serialized);
+      assertFalse(written.has("Summary"));
+      assertFalse(written.has(ImageMetadataCodec.SUMMARY_FIELDS));
+      // the tags passed in are left alone
+      assertEquals(before, tags.toString());
+
+      JSONObject expected = new JSONObject(before);
+      expected.remove("Summary");
+      assertSameTags(expected, written);
+      // a reader without the codec sees the same tags
+      assertSameTags(expected, new ImageMetadataCodec(null).decode(serialized));
+   }
+
+   @Test
+   public void decodedTagsDoNotShareTheSummary() throws JSONException {
+      JSONObject summary = summary();
+      ImageMetadataCodec codec = new ImageMetadataCodec(summary);
+      String first = string(codec.encode(tags(summary, 0)));
+      String second = string(codec.encode(tags(summary, 1)));
+      JSONObject decoded1 = codec.decode(first);
+      JSONObject decoded2 = codec.decode(second);
+      decoded1.getJSONObject("Summary").put("Width", 1);
+      decoded1.getJSONObject("Summary").getJSONArray("ChNames").put("Cy5");
+      assertEquals(512, decoded2.getJSONObject("Summary").getInt("Width"));
+      assertEquals(2, decoded2.getJSONObject("Summary")
+              .getJSONArray("ChNames").length());
+      assertEquals(512, summary.getInt("Width"));
+      assertEquals(512, codec.decode(first).getJSONObject("Summary")
+              .getInt("Width"));
+   }
+
+   @Test
+   public void olderTagsAreReadAsTheyAre() throws JSONException {
+      ImageMetadataCodec codec = new ImageMetadataCodec(summary());
+      String json = "{\"FrameIndex\":4,\"Width\":512}";
+      assertSameTags(new JSONObject(json), codec.decode(json));
+   }
+}
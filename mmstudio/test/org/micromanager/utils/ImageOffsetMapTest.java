@@ -0,0 +1,139 @@
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageOffsetMapTest {
+   @Test
+   public void keysRoundTrip() {
+      long key = ImageKey.pack(3, 12, 500, 7);
+      assertEquals(3, ImageKey.channel(key));
+      assertEquals(12, ImageKey.slice(key));
+      assertEquals(500, ImageKey.frame(key));
+      assertEquals(7, ImageKey.position(key));
+      assertEquals(key, ImageKey.fromLabel("3_12_500_7"));
+      assertEquals("3_12_500_7", ImageKey.toLabel(key));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void malformedLabelIsRejected() {
+      ImageKey.fromLabel("3_12_500");
+   }
+
+   @Test
+   public void denseAndHashedMapsAgree() {
+      ImageOffsetMap dense = new ImageOffsetMap(2, 3, 4, 1);
+      ImageOffsetMap hashed = new ImageOffsetMap();
+      for (int i = 0; i < 24; i++) {
+         long key = ImageKey.pack(i % 2, (i / 2) % 3, i / 6, 0);
+         dense.put(key, 1000 + i);
+         hashed.put(key, 1000 + i);
+      }
+      hashed.remove(ImageKey.pack(1, 2, 3, 0));
+      dense.remove(ImageKey.pack(1, 2, 3, 0));
+      // Outside the dense dimensions: switches to hashing
+      dense.put(ImageKey.pack(0, 0, 10, 0), 5);
+      hashed.put(ImageKey.pack(0, 0, 10, 0), 5);
+      assertEquals(hashed.size(), dense.size());
+      for (long key : hashed.keys()) {
+         assertEquals(hashed.get(key), dense.get(key));
+      }
+      assertEquals(ImageOffsetMap.NO_VALUE, dense.get(ImageKey.pack(1, 2, 3, 0)));
+   }
+
+   @Test
+   public void labelViewIsSortedLikeComparator() {
+      ImageKeyMap<String> map = new ImageKeyMap<String>();
+      List<String> labels = new ArrayList<String>();
+      for (int c = 0; c < 3; c++) {
+         for (int z = 0; z < 2; z++) {
+            for (int t = 0; t < 11; t++) {
+               String label = MDUtils.generateLabel(c, z, t, t % 2);
+               labels.add(label);
+               map.put(ImageKey.fromLabel(label), label);
+            }
+         }
+      }
+      Collections.sort(labels, new ImageLabelComparator(false, true));
+      assertEquals(labels, new ArrayList<String>(map.labelView(false, true)));
+   }
+
+   private static List<String> sorted(String... labels) {
+      List<String> list = new ArrayList<String>(Arrays.asList(labels));
+      Collections.sort(list, new ImageLabelComparator(false, false));
+      return list;
+   }
+
+   @Test
+   public void labelViewFollowsChanges() {
+      ImageOffsetMap map = new ImageOffsetMap(2, 1, 3, 1);
+      map.put(ImageKey.pack(1, 0, 2, 0), 1);
+      map.put(ImageKey.pack(0, 0, 1, 0), 2);
+      Collection<String> view = map.labelView(false, false);
+      assertEquals(sorted("1_0_2_0", "0_0_1_0"), new ArrayList<String>(view));
+      // in the dense table
+      map.put(ImageKey.pack(0, 0, 0, 0), 3);
+      assertEquals(sorted("1_0_2_0", "0_0_1_0", "0_0_0_0"),
+            new ArrayList<String>(view));
+      map.remove(ImageKey.pack(0, 0, 1, 0));
+      assertEquals(sorted("1_0_2_0", "0_0_0_0"), new ArrayList<String>(view));
+      // outside the dense dimensions
+      map.put(ImageKey.pack(0, 0, 7, 0), 4);
+      assertEquals(sorted("1_0_2_0", "0_0_0_0", "0_0_7_0"),
+            new ArrayList<String>(view));
+   }
+
+   @Test
+   public void largeIndicesRoundTrip() {
+      // frames and positions beyond the packed fields, as in long time
+      // lapses and large multi-position datasets
+      long key = ImageKey.pack(2, 5, 2000000000, 40000);
+      assertEquals(2, ImageKey.channel(key));
+      assertEquals(5, ImageKey.slice(key));
+      assertEquals(2000000000, ImageKey.frame(key));
+      assertEquals(40000, ImageKey.position(key));
+      assertEquals(key, ImageKey.pack(2, 5, 2000000000, 40000));
+      assertEquals(key, ImageKey.fromLabel("2_5_2000000000_40000"));
+      assertEquals("2_5_2000000000_40000", ImageKey.toLabel(key));
+      assertFalse(key == ImageKey.pack(2, 5, 2000000000, 40001));
+   }
+
+   @Test
+   public void largeIndicesInMaps() {
+      ImageOffsetMap dense = new ImageOffsetMap(1, 1, 4, 1);
+      ImageKeyMap<String> map = new ImageKeyMap<String>();
+      List<String> labels = new ArrayList<String>();
+      int[] frames = {0, 3, 16777215, 16777216, 1 << 30};
+      for (int i = 0; i < frames.length; i++) {
+         for (int p : new int[] {0, 70000}) {
+            long key = ImageKey.pack(i % 2, 0, frames[i], p);
+            dense.put(key, 10 * i + p);
+            String label = ImageKey.toLabel(key);
+            labels.add(label);
+            map.put(ImageKey.fromLabel(label), label);
+         }
+      }
+      for (int i = 0; i < frames.length; i++) {
+         for (int p : new int[] {0, 70000}) {
+            long key = ImageKey.pack(i % 2, 0, frames[i], p);
+            assertEquals(10 * i + p, dense.get(key));
+            assertTrue(map.containsLabel(ImageKey.toLabel(key)));
+         }
+      }
+      assertEquals(labels.size(), map.size());
+      Collections.sort(labels, new ImageLabelComparator(false, false));
+      assertEquals(labels, new ArrayList<String>(map.labelView(false, false)));
+      Collections.sort(labels, new ImageLabelComparator(true, true));
+      assertEquals(labels, new ArrayList<String>(map.labelView(true, true)));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void negativeIndicesAreRejected() {
+      ImageKey.pack(0, 0, -1, 0);
+   }
+}
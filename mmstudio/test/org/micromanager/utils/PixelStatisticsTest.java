@@ -0,0 +1,181 @@
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PixelStatisticsTest {
+   private static final int[] STRIDES = {1, 2, 3, 7};
+
+   /**
+    * Statistics of the sampled pixels, from a plain scan of all of them
+    */
+   private static class Reference {
+      final int[] histogram;
+      int count;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      double mean;
+      double stdDev;
+
+      Reference(Object pixels, int width, Rectangle roi, byte[] mask,
+            int component, int stride) {
+         histogram = new int[pixels instanceof short[] ? 65536 : 256];
+         double sum = 0;
+         for (int y = 0; y < roi.height; y += stride) {
+            for (int x = 0; x < roi.width; x += stride) {
+               if (mask != null && mask[y * roi.width + x] == 0) {
+                  continue;
+               }
+               int value = value(pixels, (roi.y + y) * width + roi.x + x,
+                     component);
+               histogram[value]++;
+               count++;
+               sum += value;
+               min = Math.min(min, value);
+               max = Math.max(max, value);
+            }
+         }
+         mean = sum / count;
+         double squares = 0;
+         for (int y = 0; y < roi.height; y += stride) {
+            for (int x = 0; x < roi.width; x += stride) {
+               if (mask != null && mask[y * roi.width + x] == 0) {
+                  continue;
+               }
+               double d = value(pixels, (roi.y + y) * width + roi.x + x,
+                     component) - mean;
+               squares += d * d;
+            }
+         }
+         stdDev = Math.sqrt(squares / (count - 1));
+      }
+
+      private static int value(Object pixels, int index, int component) {
+         if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[index] & 0xff;
+         }
+         if (pixels instanceof short[]) {
+            return ((short[]) pixels)[index] & 0xffff;
+         }
+         int rgb = ((int[]) pixels)[index];
+         int r = (rgb >> 16) & 0xff;
+         int g = (rgb >> 8) & 0xff;
+         int b = rgb & 0xff;
+         switch (component) {
+            case PixelStatistics.RED:
+               return r;
+            case PixelStatistics.GREEN:
+               return g;
+            case PixelStatistics.BLUE:
+               return b;
+            default:
+               // as ColorProcessor.getHistogram() with its default weights
+               return (int) (r * (1d / 3d) + g * (1d / 3d) + b * (1d / 3d) + 0.5);
+         }
+      }
+   }
+
+   private static void assertMatches(Object pixels, int width, Rectangle roi,
+         byte[] mask, int component) {
+      PixelStatistics stats = new PixelStatistics();
+      for (int stride : STRIDES) {
+         Reference expected = new Reference(pixels, width, roi, mask,
+               component, stride);
+         stats.compute(pixels, width, roi, mask, component, stride);
+         String message = "stride " + stride;
+         assertArrayEquals(message, expected.histogram, stats.getHistogram());
+         assertEquals(message, expected.count, stats.getCount());
+         assertEquals(message, expected.min, stats.getMin());
+         assertEquals(message, expected.max, stats.getMax());
+         assertEquals(message, expected.mean, stats.getMean(), 1e-9);
+         assertEquals(message, expected.stdDev, stats.getStdDev(), 1e-9);
+      }
+   }
+
+   private static byte[] bytes(Random random, int n) {
+      byte[] pixels = new byte[n];
+      random.nextBytes(pixels);
+      return pixels;
+   }
+
+   private static short[] shorts(Random random, int n) {
+      short[] pixels = new short[n];
+      for (int i = 0; i < n; i++) {
+         // 12 bit camera
+         pixels[i] = (short) (100 + random.nextInt(4000));
+      }
+      return pixels;
+   }
+
+   private static int[] rgb(Random random, int n) {
+      int[] pixels = new int[n];
+      for (int i = 0; i < n; i++) {
+         pixels[i] = random.nextInt();
+      }
+      return pixels;
+   }
+
+   private static byte[] mask(Random random, Rectangle roi) {
+      byte[] mask = new byte[roi.width * roi.height];
+      for (int i = 0; i < mask.length; i++) {
+         mask[i] = (byte) (random.nextInt(3) == 0 ? 0 : 255);
+      }
+      return mask;
+   }
+
+   @Test
+   public void grayImagesMatchFullScan() {
+      Random random = new Random(1);
+      int width = 301;
+      int height = 203;
+      Rectangle all = new Rectangle(0, 0, width, height);
+      Rectangle roi = new Rectangle(17, 9, 150, 101);
+      byte[] gray8 = bytes(random, width * height);
+      short[] gray16 = shorts(random, width * height);
+      assertMatches(gray8, width, all, null, PixelStatistics.BRIGHTNESS);
+      assertMatches(gray16, width, all, null, PixelStatistics.BRIGHTNESS);
+      assertMatches(gray8, width, roi, mask(random, roi),
+            PixelStatistics.BRIGHTNESS);
+      assertMatches(gray16, width, roi, mask(random, roi),
+            PixelStatistics.BRIGHTNESS);
+   }
+
+   @Test
+   public void rgbImagesMatchFullScan() {
+      Random random = new Random(2);
+      int width = 257;
+      int height = 131;
+      Rectangle all = new Rectangle(0, 0, width, height);
+      Rectangle roi = new Rectangle(3, 40, 200, 90);
+      int[] pixels = rgb(random, width * height);
+      int[] components = {PixelStatistics.RED, PixelStatistics.GREEN,
+         PixelStatistics.BLUE, PixelStatistics.BRIGHTNESS};
+      for (int component : components) {
+         assertMatches(pixels, width, all, null, component);
+         assertMatches(pixels, width, roi, mask(random, roi), component);
+      }
+   }
+
+   @Test
+   public void bandsMatchFullScan() {
+      // Large enough to be counted in bands on several cores
+      Random random = new Random(3);
+      int width = 1500;
+      int height = 1100;
+      Rectangle all = new Rectangle(0, 0, width, height);
+      assertMatches(shorts(random, width * height), width, all, null,
+            PixelStatistics.BRIGHTNESS);
+      assertMatches(rgb(random, width * height), width, all, null,
+            PixelStatistics.GREEN);
+   }
+
+   @Test
+   public void strideKeepsAboutTheTargetNumberOfPixels() {
+      assertEquals(1, PixelStatistics.strideFor(512 * 512, 512 * 512));
+      assertEquals(2, PixelStatistics.strideFor(1024 * 1024, 512 * 512));
+      assertEquals(4, PixelStatistics.strideFor(2048 * 2048, 512 * 512));
+      assertEquals(3, PixelStatistics.strideFor(1024 * 1024 + 1, 512 * 512));
+   }
+}
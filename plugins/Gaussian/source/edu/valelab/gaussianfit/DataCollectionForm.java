@@ -27,6 +27,7 @@ import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.utils.GaussianUtils;
 import edu.valelab.gaussianfit.fitting.ZCalibrator;
 import edu.valelab.gaussianfit.data.LoadAndSave;
+import edu.valelab.gaussianfit.data.SpotColumnsFile;
 import edu.valelab.gaussianfit.spotoperations.SpotLinker;
 import edu.valelab.gaussianfit.data.RowData;
 import edu.valelab.gaussianfit.datasetdisplay.ParticlePairLister;
@@ -115,7 +116,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
    private static final FileType TSF_FILE = new FileType("TSF File",
            "Tagged Spot Format file",
            "./data.tsf",
-           false, new String[]{"txt", "tsf"});
+           false, new String[]{"txt", "tsf", "bin", "gspc"});
  
    private static CoordinateMapper c2t_;
    private static String loadTSFDir_ = "";   
@@ -697,7 +698,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
       });
 
       saveFormatBox_.setFont(new java.awt.Font("Lucida Grande", 0, 11)); // NOI18N
-      saveFormatBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Binary", "Text" }));
+      saveFormatBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Binary", "Text", "Columns" }));
 
       saveButton.setFont(new java.awt.Font("Lucida Grande", 0, 10)); // NOI18N
       saveButton.setText("Save");
@@ -1073,7 +1074,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
 
     /**
      * Given an array of files, tries to import them all 
-     * Uses .txt import for text files, and tsf importer for .tsf files.
+     * Uses .txt import for text files, tsf importer for .tsf files, bin
+     * importer for .bin files and SpotColumnsFile for .gspc files.
      * @param selectedFiles - Array of files to be imported
     */
    private void loadFiles(File[] selectedFiles) {
@@ -1085,6 +1087,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
             LoadAndSave.loadTSF(selectedFile, this);
          } else if (selectedFile.getName().endsWith(".bin")) {
             LoadAndSave.loadBin(selectedFile, this);
+         } else if (selectedFile.getName().endsWith(SpotColumnsFile.EXTENSION)) {
+            LoadAndSave.loadColumns(selectedFile, this);
          } else {
             JOptionPane.showMessageDialog(getInstance(), "Unrecognized file extension");
          }
@@ -1103,8 +1107,10 @@ public class DataCollectionForm extends javax.swing.JFrame {
                 else
                    dir_ = LoadAndSave.saveData(rowData_.get(rows[i]), true, 
                            dir_, this);
-             } else {
+             } else if (saveFormatBox_.getSelectedIndex() == 1) {
                 LoadAndSave.saveDataAsText(rowData_.get(rows[i]), this);
+             } else {
+                LoadAndSave.saveColumns(rowData_.get(rows[i]), this);
              }
           }
        } else {
@@ -1714,9 +1720,6 @@ public class DataCollectionForm extends javax.swing.JFrame {
          public void run() {
             for (int row : rows) {
                final RowData rowData = rowData_.get(row);
-               if (rowData.frameIndexSpotList_ == null) {
-                  rowData.index();
-               }
                SpotLinker.link(rowData, maxDistance);
             }
          }
@@ -2463,15 +2466,11 @@ public class DataCollectionForm extends javax.swing.JFrame {
       zc_.clearDataPoints();
       
       // calculate average and stdev per frame
-      if (rd.frameIndexSpotList_ == null) {
-         rd.index();
-      }  
-      
       final int nrImages = rd.nrSlices_;
      
       int frameNr = 0;
       while (frameNr < nrImages) {
-         List<SpotData> frameSpots = rd.frameIndexSpotList_.get(frameNr);
+         List<SpotData> frameSpots = rd.getFrameSpots(frameNr);
          if (frameSpots != null) {
             double[] xws = new double[frameSpots.size()];
             double[] yws = new double[frameSpots.size()];
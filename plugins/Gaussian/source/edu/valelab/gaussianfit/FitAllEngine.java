@@ -0,0 +1,318 @@
+/**
+ * Finds and fits all spots in a stack on all cores, for the "Fit All" button
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF (2014)
+ *
+ */
+
+package edu.valelab.gaussianfit;
+
+import edu.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.valelab.gaussianfit.algorithm.GaussianFit;
+import edu.valelab.gaussianfit.data.GaussianInfo;
+import edu.valelab.gaussianfit.data.SpotData;
+import edu.valelab.gaussianfit.fitting.ZCalibrator;
+import edu.valelab.gaussianfit.utils.ReportingUtils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The images of a stack are divided into chunks of consecutive frames of
+ * one channel and slice, which the worker threads take in turn.  Each worker
+ * reads its images from the stack without changing the position of the
+ * ImagePlus, finds the maxima, and fits them with its own GaussianFit and
+ * pixel buffer, so that workers share nothing but the chunk counter.
+ * Results are kept per chunk by the worker that fitted them, and joined in
+ * chunk order when all workers are done.
+ *
+ * @author nico
+ */
+public class FitAllEngine extends GaussianInfo {
+   // Chunks per thread, enough to even out chunks that take longer
+   private static final int CHUNKS_PER_THREAD = 8;
+
+   private final FindLocalMaxima.FilterType preFilterType_;
+   private final int nrThreads_;
+   private volatile boolean stopNow_ = false;
+   private int maxNrSpots_ = 0;
+
+   public FitAllEngine(int shape, int fitMode,
+           FindLocalMaxima.FilterType preFilterType, int nrThreads) {
+      shape_ = shape;
+      fitMode_ = fitMode;
+      preFilterType_ = preFilterType;
+      nrThreads_ = Math.max(1, nrThreads);
+   }
+
+   public void stop() {
+      stopNow_ = true;
+   }
+
+   /**
+    * @return the largest number of maxima found in one image by fitStack
+    */
+   public int getMaxNrSpots() {
+      return maxNrSpots_;
+   }
+
+   /**
+    * Finds and fits the spots in all channels, slices and frames of the
+    * stack shown in siPlus (for Micro-Manager windows, at its current
+    * position).
+    *
+    * @param siPlus - image to analyze
+    * @param position - position number stored with the spots
+    * @param roi - region in which to look for spots, or null
+    * @return spots that passed the width and photon number filters, ordered
+    *    by channel, slice, frame and position in the image
+    */
+   public List<SpotData> fitStack(final ImagePlus siPlus, int position, Roi roi) {
+      final int nrChannels = siPlus.getNChannels();
+      final int nrSlices = siPlus.getNSlices();
+      final int nrFrames = siPlus.getNFrames();
+      final int nrImages = nrChannels * nrSlices * nrFrames;
+      int framesPerChunk = Math.max(1, Math.min(nrFrames,
+              nrImages / (nrThreads_ * CHUNKS_PER_THREAD)));
+      final List<int[]> chunks = new ArrayList<int[]>();
+      for (int c = 1; c <= nrChannels; c++) {
+         for (int z = 1; z <= nrSlices; z++) {
+            for (int f = 1; f <= nrFrames; f += framesPerChunk) {
+               chunks.add(new int[] {c, z, f, Math.min(nrFrames, f + framesPerChunk - 1)});
+            }
+         }
+      }
+
+      FitState state = new FitState(siPlus, siPlus.getStack(), position, roi,
+              chunks);
+      Worker[] workers = new Worker[nrThreads_];
+      Thread[] threads = new Thread[nrThreads_];
+      for (int i = 0; i < nrThreads_; i++) {
+         workers[i] = new Worker(state);
+         threads[i] = new Thread(workers[i], "Gaussian fit " + i);
+         threads[i].start();
+      }
+
+      // wait for the workers, and show their progress
+      for (int i = 0; i < nrThreads_; i++) {
+         try {
+            while (threads[i].isAlive()) {
+               threads[i].join(500);
+               ij.IJ.showStatus("Fitting Gaussians... image "
+                       + state.imagesDone_.get() + " of " + nrImages);
+               ij.IJ.showProgress(state.imagesDone_.get(), nrImages);
+            }
+         } catch (InterruptedException ie) {
+            stop();
+            Thread.currentThread().interrupt();
+         }
+      }
+      ij.IJ.showStatus("");
+
+      List<SpotData> results = new ArrayList<SpotData>();
+      for (int chunk = 0; chunk < chunks.size(); chunk++) {
+         for (Worker worker : workers) {
+            List<SpotData> spots = worker.results_.get(chunk);
+            if (spots != null) {
+               results.addAll(spots);
+            }
+         }
+      }
+      for (Worker worker : workers) {
+         maxNrSpots_ = Math.max(maxNrSpots_, worker.maxNrSpots_);
+      }
+      return results;
+   }
+
+   /**
+    * What the workers of one fitStack call share; only the chunk and image
+    * counters change.
+    */
+   private class FitState {
+      final ImagePlus siPlus_;
+      final ImageStack stack_;
+      final int position_;
+      final Roi roi_;
+      final List<int[]> chunks_;
+      final AtomicInteger nextChunk_ = new AtomicInteger(0);
+      final AtomicInteger imagesDone_ = new AtomicInteger(0);
+      final double cPCF_ = photonConversionFactor_ / gain_;
+      final ZCalibrator zc_ = DataCollectionForm.zc_;
+
+      FitState(ImagePlus siPlus, ImageStack stack, int position, Roi roi,
+              List<int[]> chunks) {
+         siPlus_ = siPlus;
+         stack_ = stack;
+         position_ = position;
+         roi_ = roi;
+         chunks_ = chunks;
+      }
+   }
+
+   private class Worker implements Runnable {
+      private final FitState state_;
+      // reused for every spot fitted by this worker
+      private final GaussianFit gs_ = new GaussianFit(shape_, fitMode_);
+      private final short[] spotPixels_ = new short[4 * halfSize_ * halfSize_];
+      private final ShortProcessor spotProc_ = new ShortProcessor(2 * halfSize_,
+              2 * halfSize_, spotPixels_, null);
+      // results of the chunks this worker did, by chunk index
+      final Map<Integer, List<SpotData>> results_ =
+              new HashMap<Integer, List<SpotData>>();
+      int maxNrSpots_ = 0;
+
+      Worker(FitState state) {
+         state_ = state;
+      }
+
+      @Override
+      public void run() {
+         try {
+            int chunk;
+            while (!stopNow_ && (chunk = state_.nextChunk_.getAndIncrement())
+                    < state_.chunks_.size()) {
+               int[] czf = state_.chunks_.get(chunk);
+               List<SpotData> spots = new ArrayList<SpotData>();
+               for (int f = czf[2]; f <= czf[3] && !stopNow_; f++) {
+                  analyzeImage(czf[0], czf[1], f, spots);
+                  state_.imagesDone_.incrementAndGet();
+               }
+               results_.put(chunk, spots);
+            }
+         } catch (OutOfMemoryError ome) {
+            stop();
+            ReportingUtils.logError(ome, "Thread run out of memory  " +
+                    Thread.currentThread().getName());
+            ReportingUtils.showError("Fitter out of memory.\n" +
+                    "Out of memory error");
+         } catch (Exception ex) {
+            stop();
+            ReportingUtils.showError(ex, "Error while fitting Gaussians");
+         }
+      }
+
+      private void analyzeImage(int c, int z, int f, List<SpotData> spots) {
+         ImageProcessor siProc = state_.stack_.getProcessor(
+                 state_.siPlus_.getStackIndex(c, z, f));
+         siProc.setRoi(state_.roi_);
+         Polygon p = FindLocalMaxima.FindMax(siProc, halfSize_, noiseTolerance_,
+                 preFilterType_);
+         if (p.npoints > maxNrSpots_) {
+            maxNrSpots_ = p.npoints;
+         }
+         int[][] sC = new int[p.npoints][2];
+         for (int j = 0; j < p.npoints; j++) {
+            sC[j][0] = p.xpoints[j];
+            sC[j][1] = p.ypoints[j];
+         }
+         Arrays.sort(sC, new SpotSortComparator());
+
+         int width = siProc.getWidth();
+         int height = siProc.getHeight();
+         for (int j = 0; j < sC.length; j++) {
+            // filter out spots too close to the edge
+            if (sC[j][0] > halfSize_ && sC[j][0] < width - halfSize_
+                    && sC[j][1] > halfSize_ && sC[j][1] < height - halfSize_) {
+               SpotData spot = new SpotData(null, c, z, f,
+                       state_.position_, j, sC[j][0], sC[j][1]);
+               if (fitSpot(siProc, spot)) {
+                  spots.add(spot);
+               }
+            }
+         }
+      }
+
+      /**
+       * Copies the pixels around the spot into this worker's buffer, and
+       * fits them.
+       * @return true if the fit succeeded and passed the filters
+       */
+      private boolean fitSpot(ImageProcessor siProc, SpotData spot) {
+         int size = 2 * halfSize_;
+         int x0 = spot.getX() - halfSize_;
+         int y0 = spot.getY() - halfSize_;
+         int width = siProc.getWidth();
+         Object pixels = siProc.getPixels();
+         if (pixels instanceof short[]) {
+            for (int y = 0; y < size; y++) {
+               System.arraycopy((short[]) pixels, (y0 + y) * width + x0,
+                       spotPixels_, y * size, size);
+            }
+         } else {
+            for (int y = 0; y < size; y++) {
+               for (int x = 0; x < size; x++) {
+                  spotPixels_[y * size + x] = (short) siProc.get(x0 + x, y0 + y);
+               }
+            }
+         }
+
+         double[] paramsOut = gs_.dogaussianfit(spotProc_, maxIterations_);
+         if (paramsOut.length < 5) {
+            return false;
+         }
+         double sx = 0;
+         double sy = 0;
+         double a = 1;
+         double theta = 0;
+         double N = state_.cPCF_ * paramsOut[GaussianFit.INT]
+                 * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
+         double xMax = (paramsOut[GaussianFit.XC] - halfSize_ + spot.getX()) * pixelSize_;
+         double yMax = (paramsOut[GaussianFit.YC] - halfSize_ + spot.getY()) * pixelSize_;
+         double s = paramsOut[GaussianFit.S] * pixelSize_;
+         // express background in photons after base level correction
+         double bgr = state_.cPCF_ * (paramsOut[GaussianFit.BGR] - baseLevel_);
+         // calculate error using formular from Thompson et al (2002)
+         // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
+         double sigma = (s * s + (pixelSize_ * pixelSize_) / 12) / N
+                 + (8 * Math.PI * s * s * s * s * bgr * bgr) / (pixelSize_ * pixelSize_ * N * N);
+         sigma = Math.sqrt(sigma);
+
+         if (paramsOut.length >= 6) {
+            sx = paramsOut[GaussianFit.S1] * pixelSize_;
+            sy = paramsOut[GaussianFit.S2] * pixelSize_;
+            a = sx / sy;
+
+            if (state_.zc_.hasFitFunctions()) {
+               spot.setZCenter(state_.zc_.getZ(2 * sx, 2 * sy));
+            }
+         }
+
+         if (paramsOut.length >= 7) {
+            theta = paramsOut[GaussianFit.S3];
+         }
+
+         double width2 = 2 * s;
+         spot.setData(N, bgr, xMax, yMax, 0.0, width2, a, theta, sigma);
+
+         return (!useWidthFilter_ || (width2 > widthMin_ && width2 < widthMax_))
+                 && (!useNrPhotonsFilter_ || (N > nrPhotonsMin_ && N < nrPhotonsMax_));
+      }
+   }
+
+   private static class SpotSortComparator implements Comparator<int[]> {
+
+      // Return the result of comparing the two row arrays
+      @Override
+      public int compare(int[] p1, int[] p2) {
+         if (p1[0] != p2[0]) {
+            return p1[0] < p2[0] ? -1 : 1;
+         }
+         if (p1[1] != p2[1]) {
+            return p1[1] < p2[1] ? -1 : 1;
+         }
+         return 0;
+      }
+   }
+}
@@ -11,7 +11,6 @@
 package edu.valelab.gaussianfit;
 
 import edu.valelab.gaussianfit.algorithm.FindLocalMaxima;
-import edu.valelab.gaussianfit.utils.ProgressThread;
 import edu.valelab.gaussianfit.data.GaussianInfo;
 import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.fitting.ZCalibrator;
@@ -19,15 +18,8 @@ import edu.valelab.gaussianfit.utils.MMWindowAbstraction;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.plugin.frame.RoiManager;
-import ij.process.ImageProcessor;
-import java.awt.Polygon;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.concurrent.LinkedBlockingQueue;
 import edu.valelab.gaussianfit.utils.ReportingUtils;
 import java.util.List;
 
@@ -38,7 +30,7 @@ import java.util.List;
 public class FitAllThread extends GaussianInfo implements Runnable  {
    double[] params0_;
    double[] steps_ = new double[5];
-   GaussianFitStackThread[] gfsThreads_;
+   private volatile FitAllEngine engine_;
    private volatile Thread t_ = null;
    private static boolean running_ = false;
    private final FindLocalMaxima.FilterType preFilterType_;
@@ -69,12 +61,9 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    } 
 
    public synchronized void stop() {
-      if (gfsThreads_ != null) {
-         for (GaussianFitStackThread gfsThread : gfsThreads_) {
-            if (gfsThread != null) {
-               gfsThread.stop();
-            }
-         }
+      FitAllEngine engine = engine_;
+      if (engine != null) {
+         engine.stop();
       }
       t_ = null;
       running_ = false;
@@ -95,9 +84,7 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    @Override
    public void run() {
 
-      // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<SpotData>();
-      resultList_ = Collections.synchronizedList(new ArrayList<SpotData>());
+      resultList_ = new ArrayList<SpotData>();
 
       // take the active ImageJ image
       ImagePlus siPlus;
@@ -109,9 +96,6 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       }
 
       int nrThreads = ij.Prefs.getThreads();
-      if (nrThreads > 8) {
-         nrThreads = 8;
-      }
 
       Roi originalRoi = siPlus.getRoi();
 
@@ -221,32 +205,14 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       running_ = false;
    }
 
-   @SuppressWarnings("unchecked")
    private int analyzeImagePlus(ImagePlus siPlus, int position, int nrThreads, Roi originalRoi) {
 
-      int nrSpots = 0;
-      // Start up IJ.Prefs.getThreads() threads for gaussian fitting
-      gfsThreads_ = new GaussianFitStackThread[nrThreads];
-      for (int i = 0; i < nrThreads; i++) {
-         gfsThreads_[i] = new GaussianFitStackThread(sourceList_, resultList_, siPlus, halfSize_,
-                 shape_, fitMode_);
-
-         // TODO: more efficient way of passing through settings!
-         gfsThreads_[i].setPhotonConversionFactor(photonConversionFactor_);
-         gfsThreads_[i].setGain(gain_);
-         gfsThreads_[i].setPixelSize(pixelSize_);
-         gfsThreads_[i].setZStackStepSize(zStackStepSize_);
-         gfsThreads_[i].setTimeIntervalMs(timeIntervalMs_);
-         gfsThreads_[i].setBaseLevel(baseLevel_);
-         gfsThreads_[i].setNoiseTolerance(noiseTolerance_);
-         gfsThreads_[i].setSigmaMax(widthMax_);
-         gfsThreads_[i].setSigmaMin(widthMin_);
-         gfsThreads_[i].setNrPhotonsMin(nrPhotonsMin_);
-         gfsThreads_[i].setNrPhotonsMax(nrPhotonsMax_);
-         gfsThreads_[i].setMaxIterations(maxIterations_);
-         gfsThreads_[i].setUseWidthFilter(useWidthFilter_);
-         gfsThreads_[i].setUseNrPhotonsFilter(useNrPhotonsFilter_);
-         gfsThreads_[i].init();
+      FitAllEngine engine = new FitAllEngine(shape_, fitMode_, preFilterType_,
+              nrThreads);
+      engine.copySettings(this);
+      engine_ = engine;
+      if (!running_) {
+         return 0;
       }
 
       // work around strange bug that happens with freshly opened images
@@ -254,160 +220,13 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
          siPlus.setPosition(i, siPlus.getCurrentSlice(), siPlus.getFrame());
       }
 
-      int nrImages = siPlus.getNChannels() * siPlus.getNSlices() * siPlus.getNFrames();
-      int imageCount = 0;
       try {
-         for (int c = 1; c <= siPlus.getNChannels(); c++) {
-            if (!running_) {
-               break;
-            }
-            for (int z = 1; z <= siPlus.getNSlices(); z++) {
-               if (!running_) {
-                  break;
-               }
-               for (int f = 1; f <= siPlus.getNFrames(); f++) {
-                  if (!running_) {
-                     break;
-                  }
-                  // to avoid making a gigantic sourceList and running out of memory
-                  // sleep a bit when the sourcesize gets too big
-                  // once we have very fast multi-core computers, this constant can be increased
-                  if (sourceList_.size() > 100000) {
-                     try {
-                        Thread.sleep(1000);
-                     } catch (InterruptedException ex) {
-                        // not sure what to do
-                     }
-                  }
-
-                  imageCount++;
-                  ij.IJ.showStatus("Processing image " + imageCount);
-
-                  ImageProcessor siProc = null;
-                  Polygon p = new Polygon();
-                  synchronized (SpotData.lockIP) {
-                     siPlus.setPositionWithoutUpdate(c, z, f);
-                     // If ROI manager is used, use RoiManager Rois
-                     //  may be dangerous if the user is not aware
-                     RoiManager roiM = RoiManager.getInstance();
-                     Roi[] rois = null;
-                     //if (roiM != null && roiM.getSelectedIndex() > -1 ) {
-                     //   rois = roiM.getSelectedRoisAsArray();
-                     //}
-                     if (rois != null && rois.length > 0) {
-                        for (Roi roi : rois) {
-                           siPlus.setRoi(roi, false);
-                           siProc = siPlus.getProcessor();
-                           Polygon q = FindLocalMaxima.FindMax(siPlus, halfSize_, noiseTolerance_,
-                                   preFilterType_);
-                           for (int i = 0; i < q.npoints; i++) {
-                              p.addPoint(q.xpoints[i], q.ypoints[i]);
-                           }
-                        }
-                     } else {  // no Rois in RoiManager
-                        siPlus.setRoi(originalRoi, false);
-                        siProc = siPlus.getProcessor();
-                        p = FindLocalMaxima.FindMax(siPlus, halfSize_, noiseTolerance_,
-                                preFilterType_);
-                     }
-                  }
-
-                  ij.IJ.showProgress(imageCount, nrImages);
-
-
-                  if (p.npoints > nrSpots) {
-                     nrSpots = p.npoints;
-                  }
-                  int[][] sC = new int[p.npoints][2];
-                  for (int j = 0; j < p.npoints; j++) {
-                     sC[j][0] = p.xpoints[j];
-                     sC[j][1] = p.ypoints[j];
-                  }
-
-                  
-                  Arrays.sort(sC, new SpotSortComparator());
-
-                  for (int j = 0; j < sC.length; j++) {
-                     // filter out spots too close to the edge
-                     if (sC[j][0] > halfSize_ && sC[j][0] < siPlus.getWidth() - halfSize_
-                             && sC[j][1] > halfSize_ && sC[j][1] < siPlus.getHeight() - halfSize_) {
-                        ImageProcessor sp = SpotData.getSpotProcessor(siProc,
-                                halfSize_, sC[j][0], sC[j][1]);
-                        if (sp == null) {
-                           continue;
-                        }
-                        SpotData thisSpot = new SpotData(sp, c, z, f,
-                                position, j, sC[j][0], sC[j][1]);
-                        try {
-                           sourceList_.put(thisSpot);
-                        } catch (InterruptedException iex) {
-                           Thread.currentThread().interrupt();
-                           throw new RuntimeException("Unexpected interruption");
-                        }
-                     }
-                  }
-               }
-            }
-         }
-
-      // start ProgresBar thread
-      ProgressThread pt = new ProgressThread(sourceList_);
-      pt.init();
-      
-      
+         resultList_.addAll(engine.fitStack(siPlus, position, originalRoi));
       } catch (OutOfMemoryError ome) {
          ij.IJ.error("Out Of Memory");
       }
-
-      // Send working threads signal that we are done:
-      SpotData lastSpot = new SpotData(null, -1, 1, -1, -1, -1, -1, -1);
-      try {
-         sourceList_.put(lastSpot);
-      } catch (InterruptedException iex) {
-         Thread.currentThread().interrupt();
-         throw new RuntimeException("Unexpected interruption");
-      }
-
-      // wait for worker threads to finish
-      for (int i=0; i<nrThreads; i++) {
-         try {
-            gfsThreads_[i].join();
-            gfsThreads_[i] = null;
-         } catch (InterruptedException ie) {
-         }
-      }
-
-      sourceList_.clear();
-      return nrSpots;
-   }
-
-   private class SpotSortComparator implements Comparator {
-
-      // Return the result of comparing the two row arrays
-      @Override
-      public int compare(Object o1, Object o2) {
-         int[] p1 = (int[]) o1;
-         int[] p2 = (int[]) o2;
-         if (p1[0] < p2[0]) {
-            return -1;
-         }
-         if (p1[0] > p2[0]) {
-            return 1;
-         }
-         if (p1[0] == p2[0]) {
-            if (p1[1] < p2[1]) {
-               return -1;
-            }
-            if (p1[1] > p2[1]) {
-               return 1;
-            }
-         }
-         return 0;
-      }
+      engine_ = null;
+      return engine.getMaxNrSpots();
    }
 
-
-   
-
-
 }
\ No newline at end of file
@@ -13,7 +13,7 @@
 package edu.valelab.gaussianfit.algorithm;
 
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
+import ij.process.Blitter;
 import ij.process.ImageProcessor;
 import ij.plugin.filter.GaussianBlur;
 import java.awt.Polygon;
@@ -25,8 +25,6 @@ import java.awt.Rectangle;
  * @author nico
  */
 public class FindLocalMaxima {
-   private static final GaussianBlur filter_ = new GaussianBlur();
-   private static final ImageCalculator ic_ = new ImageCalculator();
    
    public enum FilterType {
       NONE,
@@ -44,23 +42,30 @@ public class FindLocalMaxima {
     * @return Polygon with maxima 
     */
    public static Polygon FindMax(ImagePlus iPlus, int n, int threshold, FilterType filterType) {
+      return FindMax(iPlus.getProcessor(), n, threshold, filterType);
+   }
+
+   /**
+    * As FindMax(ImagePlus...), for the ROI of the given ImageProcessor.
+    * Does not use shared state, so that it can be called from several 
+    * threads at once, each with its own ImageProcessor.
+    */
+   public static Polygon FindMax(ImageProcessor iProc, int n, int threshold, FilterType filterType) {
       Polygon maxima = new Polygon();
 
-      ImageProcessor iProc = iPlus.getProcessor();
       Rectangle roi = iProc.getRoi();
       
       // Prefilter if needed
       switch (filterType) {
          case GAUSSIAN1_5 : 
             // TODO: if there is an ROI, we only need to filter_ in the ROI
+            GaussianBlur filter = new GaussianBlur();
             ImageProcessor iProcG1 = iProc.duplicate();
             ImageProcessor iProcG5 = iProc.duplicate();
-            filter_.blurGaussian(iProcG1, 0.4, 0.4, 0.01); 
-            filter_.blurGaussian(iProcG5, 2.0, 2.0, 0.01);
-            ImagePlus p1 = new ImagePlus("G1", iProcG1);
-            ImagePlus p5 = new ImagePlus("G5", iProcG5);
-            ic_.run("subtract", p1, p5);
-            iProc = p1.getProcessor();
+            filter.blurGaussian(iProcG1, 0.4, 0.4, 0.01); 
+            filter.blurGaussian(iProcG5, 2.0, 2.0, 0.01);
+            iProcG1.copyBits(iProcG5, 0, 0, Blitter.SUBTRACT);
+            iProc = iProcG1;
                       
             break;
       }
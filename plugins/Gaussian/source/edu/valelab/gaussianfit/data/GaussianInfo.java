@@ -9,17 +9,14 @@ package edu.valelab.gaussianfit.data;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 
 /**
  *
  * @author nico
  */
 public class GaussianInfo {
-   protected static final Object gfsLock_ = new Object();
    protected ImagePlus siPlus_;
    protected ImageProcessor siProc_;
-   protected BlockingQueue<SpotData> sourceList_;
    protected List<SpotData> resultList_;
 
    // half the size (in pixels) of the square used for Gaussian fitting
@@ -173,5 +170,27 @@ public class GaussianInfo {
    public int getEndTrackAfterNFrames() {
       return endTrackAfterNBadFrames_;
    }
+
+   /**
+    * Takes over the settings for finding, fitting and filtering spots
+    * (not the shape and fit mode, nor the images and results) from info
+    */
+   public void copySettings(GaussianInfo info) {
+      halfSize_ = info.halfSize_;
+      baseLevel_ = info.baseLevel_;
+      noiseTolerance_ = info.noiseTolerance_;
+      photonConversionFactor_ = info.photonConversionFactor_;
+      gain_ = info.gain_;
+      pixelSize_ = info.pixelSize_;
+      zStackStepSize_ = info.zStackStepSize_;
+      timeIntervalMs_ = info.timeIntervalMs_;
+      widthMax_ = info.widthMax_;
+      widthMin_ = info.widthMin_;
+      useWidthFilter_ = info.useWidthFilter_;
+      nrPhotonsMin_ = info.nrPhotonsMin_;
+      nrPhotonsMax_ = info.nrPhotonsMax_;
+      useNrPhotonsFilter_ = info.useNrPhotonsFilter_;
+      maxIterations_ = info.maxIterations_;
+   }
    
 }
@@ -1,17 +1,20 @@
 
 package edu.valelab.gaussianfit.data;
 
+import com.google.protobuf.CodedInputStream;
 import edu.ucsf.tsf.TaggedSpotsProtos;
 import edu.valelab.gaussianfit.DataCollectionForm;
 import static edu.valelab.gaussianfit.DataCollectionForm.EXTENSION;
 import static edu.valelab.gaussianfit.DataCollectionForm.getInstance;
-import edu.valelab.gaussianfit.LittleEndianDataInputStream;
+import edu.valelab.gaussianfit.utils.ParallelScan;
 import ij.gui.YesNoCancelDialog;
-import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -22,10 +25,16 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFrame;
@@ -39,100 +48,166 @@ import javax.swing.JOptionPane;
  * @author nico
  */
 public class LoadAndSave {
+   // bytes per molecule in .bin files
+   private static final int BIN_MOLECULE_SIZE = 72;
+   // molecules buffered at a time when reading .bin files
+   private static final int BIN_WINDOW = 1 << 14;
+   // spots parsed at a time when reading .tsf files
+   private static final int TSF_CHUNK = 1 << 16;
+   // fields read from text files, in the order that SpotColumns.put takes them
+   private static final String[] TEXT_COLUMNS = {"channel", "slice", "frame",
+      "pos", "molecule", "x_position", "y_position", "intensity", "background",
+      "x", "y", "width", "a", "theta", "x_precision", "z"};
 
    /**
     * Load Gaussian spot data from indicated file Updates the ImageJ status bar
     * to show progress
+    * 
+    * The file is read in two passes: the first goes through the molecule 
+    * counts of all frames to find where each frame starts, the second reads
+    * the molecules of ranges of frames in parallel, straight into the spot 
+    * columns.  Each range is read with positional reads through one reused
+    * buffer that spans as many frames as fit, rather than by mapping every
+    * frame, which would run into the per process limit on mappings for 
+    * files with many frames.
     *
     * @param selectedFile - file that should be in binary format
     * @param caller - Calling JFrame (used to set wait cursor)
     */
    public static void loadBin(File selectedFile, JFrame caller) {
+      RandomAccessFile raf = null;
       try {
          ij.IJ.showStatus("Loading data..");
          caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-         List<SpotData> spotList = new ArrayList<SpotData>();
+         final float pixelSize = (float) 160.0; // how do we get this from the file?
 
-         float pixelSize = (float) 160.0; // how do we get this from the file?
-
-         LittleEndianDataInputStream fin = new LittleEndianDataInputStream(
-                 new BufferedInputStream(new FileInputStream(selectedFile)));
+         raf = new RandomAccessFile(selectedFile, "r");
+         final FileChannel fc = raf.getChannel();
+         ByteBuffer head = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+         readFully(fc, head, 0);
          byte[] m425 = {77, 52, 50, 53};
          for (int i = 0; i < 4; i++) {
-            if (fin.readByte() != m425[i]) {
+            if (head.get(i) != m425[i]) {
                throw (new IOException("Not a .bin file"));
             }
          }
 
          boolean nStorm = true;
-         byte[] ns = new byte[4];
          byte[] guid = {71, 85, 73, 68};
          for (int i = 0; i < 4; i++) {
-            ns[i] = fin.readByte();
-            if (ns[i] != guid[i]) {
+            if (head.get(4 + i) != guid[i]) {
                nStorm = false;
             }
          }
-
-         if (nStorm) { // read away 57 bytes
-            fin.skipBytes(53);
-         } else {
-            // there may be a more elegant way to go back 4 bytes
-            fin.close();
-            fin = new LittleEndianDataInputStream(
-                    new BufferedInputStream(new FileInputStream(selectedFile)));
-            fin.skipBytes(4);
+         // nStorm files have 57 more bytes of header
+         long position = nStorm ? 4 + 4 + 53 : 4;
+
+         final int nrFrames = readInt(fc, position);
+         // molType, not used
+         position += 8;
+
+         // molecules of frame i start at frameStarts[i], and are spots
+         // firstSpots[i] to firstSpots[i + 1] 
+         final long[] frameStarts = new long[nrFrames + 1];
+         final int[] firstSpots = new int[nrFrames + 2];
+         long fileSize = fc.size();
+         for (int i = 0; i <= nrFrames; i++) {
+            int nrMolecules = readInt(fc, position);
+            frameStarts[i] = position + 4;
+            position = frameStarts[i] + (long) nrMolecules * BIN_MOLECULE_SIZE;
+            if (nrMolecules < 0 || position > fileSize) {
+               throw new IOException("Not a .bin file");
+            }
+            long total = (long) firstSpots[i] + nrMolecules;
+            if (total > Integer.MAX_VALUE) {
+               throw new OutOfMemoryError();
+            }
+            firstSpots[i + 1] = (int) total;
          }
 
-         int nrFrames = fin.readInt();
-         int molType = fin.readInt();
-         int nr = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
+         final int nr = firstSpots[nrFrames + 1];
+         final SpotColumns spotList = new SpotColumns(Math.max(1, nr));
+         spotList.setSize(nr);
+         // {min, max} of zc, and whether any zc differs from 0, per frame
+         final double[][] zRange = new double[nrFrames + 1][];
+         final AtomicInteger framesDone = new AtomicInteger(0);
 
-         for (int i = 0; i <= nrFrames; i++) {
-            int nrMolecules = fin.readInt();
-            for (int j = 0; j < nrMolecules; j++) {
-               // total size of data on disk is 17 bytes
-               float x = fin.readFloat();
-               float y = fin.readFloat();
-               float xc = fin.readFloat();
-               float yc = fin.readFloat();
-               float h = fin.readFloat();
-               float a = fin.readFloat(); // integrated dens. based on fitting
-               float w = fin.readFloat();
-               float phi = fin.readFloat();
-               float ax = fin.readFloat();
-               float b = fin.readFloat();
-               float intensity = fin.readFloat();
-               int c = fin.readInt();
-               int union = fin.readInt();
-               int frame = fin.readInt();
-               int union2 = fin.readInt();
-               int link = fin.readInt();
-               float z = fin.readFloat();
-               float zc = fin.readFloat();
-
-               if (zc != 0.0) {
-                  hasZ = true;
-               }
-               if (zc > maxZ) {
-                  maxZ = zc;
-               }
-               if (zc < minZ) {
-                  minZ = zc;
+         ParallelScan.forRange(nrFrames + 1, 1, new ParallelScan.Range() {
+            @Override
+            public void run(int start, int end) {
+               long rangeEnd = frameStarts[end - 1] + (long) 
+                       (firstSpots[end] - firstSpots[end - 1]) * BIN_MOLECULE_SIZE;
+               ByteBuffer in = ByteBuffer.allocate(BIN_WINDOW * BIN_MOLECULE_SIZE);
+               in.order(ByteOrder.LITTLE_ENDIAN);
+               in.limit(0);
+               // file offset of the first byte in the buffer
+               long inStart = 0;
+               try {
+                  for (int i = start; i < end; i++) {
+                     int nrMolecules = firstSpots[i + 1] - firstSpots[i];
+                     double minZ = Double.POSITIVE_INFINITY;
+                     double maxZ = Double.NEGATIVE_INFINITY;
+                     boolean hasZ = false;
+                     for (int j = 0; j < nrMolecules; j += BIN_WINDOW) {
+                        int n = Math.min(BIN_WINDOW, nrMolecules - j);
+                        long from = frameStarts[i] + (long) j * BIN_MOLECULE_SIZE;
+                        long to = from + (long) n * BIN_MOLECULE_SIZE;
+                        if (from < inStart || to > inStart + in.limit()) {
+                           in.clear();
+                           in.limit((int) Math.min(in.capacity(), rangeEnd - from));
+                           readFully(fc, in, from);
+                           inStart = from;
+                        }
+                        in.position((int) (from - inStart));
+                        for (int k = 0; k < n; k++) {
+                           float x = in.getFloat();
+                           float y = in.getFloat();
+                           float xc = in.getFloat();
+                           float yc = in.getFloat();
+                           float h = in.getFloat();
+                           float a = in.getFloat(); // integrated dens. based on fitting
+                           float w = in.getFloat();
+                           float phi = in.getFloat();
+                           float ax = in.getFloat();
+                           float b = in.getFloat();
+                           float intensity = in.getFloat();
+                           int c = in.getInt();
+                           int union = in.getInt();
+                           int frame = in.getInt();
+                           int union2 = in.getInt();
+                           int link = in.getInt();
+                           float z = in.getFloat();
+                           float zc = in.getFloat();
+
+                           if (zc != 0.0) {
+                              hasZ = true;
+                           }
+                           minZ = Math.min(minZ, zc);
+                           maxZ = Math.max(maxZ, zc);
+
+                           int spot = firstSpots[i] + j + k;
+                           spotList.put(spot, 0, 0, i, 0, spot, (int) xc, (int) yc,
+                                   intensity, b, pixelSize * xc, pixelSize * yc,
+                                   zc, x, y, z, w, ax, phi, c);
+                        }
+                     }
+                     zRange[i] = new double[] {minZ, maxZ, hasZ ? 1 : 0};
+                     ij.IJ.showProgress(framesDone.incrementAndGet(), nrFrames + 1);
+                  }
+               } catch (IOException ex) {
+                  throw new RuntimeException(ex);
                }
-
-               SpotData gsd = new SpotData(null, 0, 0, i,
-                       0, nr, (int) xc, (int) yc);
-               gsd.setData(intensity, b, pixelSize * xc, pixelSize * yc, 0.0, w, ax, phi, c);
-               gsd.setZCenter(zc);
-               gsd.setOriginalPosition(x, y, z);
-               spotList.add(gsd);
-               nr++;
             }
+         });
+
+         boolean hasZ = false;
+         double maxZ = Double.NEGATIVE_INFINITY;
+         double minZ = Double.POSITIVE_INFINITY;
+         for (double[] range : zRange) {
+            minZ = Math.min(minZ, range[0]);
+            maxZ = Math.max(maxZ, range[1]);
+            hasZ |= range[2] != 0;
          }
 
          String name = selectedFile.getName();
@@ -146,9 +221,15 @@ public class LoadAndSave {
          JOptionPane.showMessageDialog(getInstance(), "File not found");
       } catch (IOException ex) {
          JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (RuntimeException ex) {
+         if (!(ex.getCause() instanceof IOException)) {
+            throw ex;
+         }
+         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
       } catch (OutOfMemoryError ome) {
          JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
       } finally {
+         close(raf);
          caller.setCursor(Cursor.getDefaultCursor());
          ij.IJ.showStatus("");
          ij.IJ.showProgress(1.0);
@@ -184,40 +265,25 @@ public class LoadAndSave {
          }
 
          String head = fr.readLine();
-         String[] headers = head.split("\t");
+         List<String> headers = java.util.Arrays.asList(head.split("\t"));
+         // column of each field, in the order of TEXT_COLUMNS
+         int[] c = new int[TEXT_COLUMNS.length];
+         for (int i = 0; i < c.length; i++) {
+            c[i] = headers.indexOf(TEXT_COLUMNS[i]);
+            if (c[i] < 0 && !(TEXT_COLUMNS[i].equals("z") && !hasZ)) {
+               throw new NumberFormatException("Missing column " + TEXT_COLUMNS[i]);
+            }
+         }
          String spot;
-         List<SpotData> spotList = new ArrayList<SpotData>();
+         SpotColumns spotList = new SpotColumns(1024);
          double maxZ = Double.NEGATIVE_INFINITY;
          double minZ = Double.POSITIVE_INFINITY;
 
          while ((spot = fr.readLine()) != null) {
-            String[] spotTags = spot.split("\t");
-            HashMap<String, String> k = new HashMap<String, String>();
-            for (int i = 0; i < headers.length; i++) {
-               k.put(headers[i], spotTags[i]);
-            }
-
-            SpotData gsd = new SpotData(null,
-                    Integer.parseInt(k.get("channel")),
-                    Integer.parseInt(k.get("slice")),
-                    Integer.parseInt(k.get("frame")),
-                    Integer.parseInt(k.get("pos")),
-                    Integer.parseInt(k.get("molecule")),
-                    Integer.parseInt(k.get("x_position")),
-                    Integer.parseInt(k.get("y_position"))
-            );
-            gsd.setData(Double.parseDouble(k.get("intensity")),
-                    Double.parseDouble(k.get("background")),
-                    Double.parseDouble(k.get("x")),
-                    Double.parseDouble(k.get("y")), 0.0,
-                    Double.parseDouble(k.get("width")),
-                    Double.parseDouble(k.get("a")),
-                    Double.parseDouble(k.get("theta")),
-                    Double.parseDouble(k.get("x_precision"))
-            );
+            String[] k = spot.split("\t");
+            double zc = 0.0;
             if (hasZ) {
-               double zc = Double.parseDouble(k.get("z"));
-               gsd.setZCenter(zc);
+               zc = Double.parseDouble(k[c[15]]);
                if (zc > maxZ) {
                   maxZ = zc;
                }
@@ -225,9 +291,27 @@ public class LoadAndSave {
                   minZ = zc;
                }
             }
-            spotList.add(gsd);
-
+            int i = spotList.size();
+            spotList.setSize(i + 1);
+            spotList.put(i, 
+                    Integer.parseInt(k[c[0]]),
+                    Integer.parseInt(k[c[1]]),
+                    Integer.parseInt(k[c[2]]),
+                    Integer.parseInt(k[c[3]]),
+                    Integer.parseInt(k[c[4]]),
+                    Integer.parseInt(k[c[5]]),
+                    Integer.parseInt(k[c[6]]),
+                    Double.parseDouble(k[c[7]]),
+                    Double.parseDouble(k[c[8]]),
+                    Double.parseDouble(k[c[9]]),
+                    Double.parseDouble(k[c[10]]), zc, 0.0, 0.0, 0.0,
+                    Double.parseDouble(k[c[11]]),
+                    Double.parseDouble(k[c[12]]),
+                    Double.parseDouble(k[c[13]]),
+                    Double.parseDouble(k[c[14]])
+            );
          }
+         fr.close();
 
          // Add transformed data to data overview window
          float zStepSize = (float) 0.0;
@@ -272,12 +356,18 @@ public class LoadAndSave {
 
    /**
     * Load a .tsf file
+    * 
+    * Spots are stored as length delimited protocol buffer messages.  A first
+    * pass goes through the lengths only, and notes where each chunk of 
+    * TSF_CHUNK spots starts.  The chunks are then parsed in parallel, 
+    * straight into the spot columns.
     *
     * @param selectedFile - File to be loaded
     * @param caller - Calling GUI element, used to set WaitCursor
     */
    public static void loadTSF(File selectedFile, JFrame caller) {
       TaggedSpotsProtos.SpotList psl;
+      RandomAccessFile raf = null;
       try {
 
          ij.IJ.showStatus("Loading data..");
@@ -286,6 +376,9 @@ public class LoadAndSave {
 
          FileInputStream fi = new FileInputStream(selectedFile);
          DataInputStream di = new DataInputStream(fi);
+         // spots are between spotsStart and spotsEnd
+         long spotsStart;
+         long spotsEnd;
 
          // the new file format has an initial 0, then the offset (in long)
          // to the position of spotList
@@ -295,15 +388,16 @@ public class LoadAndSave {
             fi.close();
             fi = new FileInputStream(selectedFile);
             psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
+            spotsStart = fi.getChannel().position();
+            spotsEnd = selectedFile.length();
          } else {
-            // TODO: evaluate after creating code writing this format
             long offset = di.readLong();
             fi.skip(offset);
             psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            fi.skip(12); // size of int + size of long
+            spotsStart = 12; // size of int + size of long
+            spotsEnd = 12 + offset;
          }
+         fi.close();
 
          String name = psl.getName();
          String title = psl.getName();
@@ -323,52 +417,123 @@ public class LoadAndSave {
          int nrPositions = psl.getNrPos();
          boolean isTrack = psl.getIsTrack();
          long expectedSpots = psl.getNrSpots();
-         long esf = expectedSpots / 100;
-         long maxNrSpots = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
 
-         ArrayList<SpotData> spotList = new ArrayList<SpotData>();
-         TaggedSpotsProtos.Spot pSpot;
-         while (fi.available() > 0 && (expectedSpots == 0 || maxNrSpots < expectedSpots)) {
-
-            pSpot = TaggedSpotsProtos.Spot.parseDelimitedFrom(fi);
-
-            SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
-                    pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
-                    pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
-            gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
-                    pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
-                    pSpot.getXPrecision());
-            if (pSpot.hasZ()) {
-               double zc = pSpot.getZ();
-               gSpot.setZCenter(zc);
-               hasZ = true;
-               if (zc > maxZ) {
-                  maxZ = zc;
-               }
-               if (zc < minZ) {
-                  minZ = zc;
+         // find where the chunks start
+         ij.IJ.showStatus("Indexing spots..");
+         List<Long> chunkStarts = new ArrayList<Long>();
+         DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 new FileInputStream(selectedFile), 1 << 20));
+         long position = 0;
+         int nrSpots = 0;
+         try {
+            in.skipBytes((int) spotsStart);
+            position = spotsStart;
+            while (position < spotsEnd && 
+                    (expectedSpots == 0 || nrSpots < expectedSpots)) {
+               if (nrSpots % TSF_CHUNK == 0) {
+                  chunkStarts.add(position);
                }
+               // varint message length
+               int size = 0;
+               int shift = 0;
+               int b;
+               do {
+                  b = in.readUnsignedByte();
+                  position++;
+                  size |= (b & 0x7f) << shift;
+                  shift += 7;
+               } while ((b & 0x80) != 0);
+               in.skipBytes(size);
+               position += size;
+               nrSpots++;
             }
-            maxNrSpots++;
-            if ((esf > 0) && ((maxNrSpots % esf) == 0)) {
-               ij.IJ.showProgress((double) maxNrSpots / (double) expectedSpots);
+         } finally {
+            in.close();
+         }
+         chunkStarts.add(position);
+         final long[] starts = new long[chunkStarts.size()];
+         for (int i = 0; i < starts.length; i++) {
+            starts[i] = chunkStarts.get(i);
+         }
+
+         // parse the chunks
+         ij.IJ.showStatus("Loading data..");
+         final int maxNrSpots = nrSpots;
+         final SpotColumns spotList = new SpotColumns(Math.max(1, nrSpots));
+         spotList.setSize(nrSpots);
+         final boolean[] hasZs = new boolean[starts.length - 1];
+         final double[] minZs = new double[starts.length - 1];
+         final double[] maxZs = new double[starts.length - 1];
+         final AtomicInteger chunksDone = new AtomicInteger(0);
+         raf = new RandomAccessFile(selectedFile, "r");
+         final FileChannel fc = raf.getChannel();
+         ParallelScan.forRange(starts.length - 1, 1, new ParallelScan.Range() {
+            @Override
+            public void run(int first, int end) {
+               try {
+                  for (int chunk = first; chunk < end; chunk++) {
+                     MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY,
+                             starts[chunk], starts[chunk + 1] - starts[chunk]);
+                     byte[] bytes = new byte[buffer.remaining()];
+                     buffer.get(bytes);
+                     CodedInputStream cis = CodedInputStream.newInstance(bytes);
+                     int spot = chunk * TSF_CHUNK;
+                     int lastSpot = Math.min(maxNrSpots, spot + TSF_CHUNK);
+                     minZs[chunk] = Double.POSITIVE_INFINITY;
+                     maxZs[chunk] = Double.NEGATIVE_INFINITY;
+                     for (; spot < lastSpot; spot++) {
+                        int limit = cis.pushLimit(cis.readRawVarint32());
+                        TaggedSpotsProtos.Spot pSpot = 
+                                TaggedSpotsProtos.Spot.parseFrom(cis);
+                        cis.popLimit(limit);
+                        double zc = 0.0;
+                        if (pSpot.hasZ()) {
+                           zc = pSpot.getZ();
+                           hasZs[chunk] = true;
+                           minZs[chunk] = Math.min(minZs[chunk], zc);
+                           maxZs[chunk] = Math.max(maxZs[chunk], zc);
+                        }
+                        spotList.put(spot, pSpot.getChannel(), pSpot.getSlice(),
+                                pSpot.getFrame(), pSpot.getPos(), 
+                                pSpot.getMolecule(), pSpot.getXPosition(), 
+                                pSpot.getYPosition(), pSpot.getIntensity(), 
+                                pSpot.getBackground(), pSpot.getX(), pSpot.getY(),
+                                zc, 0.0, 0.0, 0.0, pSpot.getWidth(), pSpot.getA(),
+                                pSpot.getTheta(), pSpot.getXPrecision());
+                     }
+                     ij.IJ.showProgress(chunksDone.incrementAndGet(), 
+                             starts.length - 1);
+                  }
+               } catch (IOException ex) {
+                  throw new RuntimeException(ex);
+               }
             }
+         });
 
-            spotList.add(gSpot);
+         boolean hasZ = false;
+         double maxZ = Double.NEGATIVE_INFINITY;
+         double minZ = Double.POSITIVE_INFINITY;
+         for (int chunk = 0; chunk < hasZs.length; chunk++) {
+            hasZ |= hasZs[chunk];
+            minZ = Math.min(minZ, minZs[chunk]);
+            maxZ = Math.max(maxZ, maxZs[chunk]);
          }
 
          DataCollectionForm.getInstance().addSpotData(name, title, "", width, height, pixelSizeUm, (float) 0.0, shape, halfSize,
-                 nrChannels, nrFrames, nrSlices, nrPositions, (int) maxNrSpots,
+                 nrChannels, nrFrames, nrSlices, nrPositions, maxNrSpots,
                  spotList, null, isTrack, DataCollectionForm.Coordinates.NM, hasZ, minZ, maxZ);
 
       } catch (FileNotFoundException ex) {
          JOptionPane.showMessageDialog(getInstance(), "File not found");
       } catch (IOException ex) {
          JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (RuntimeException ex) {
+         if (!(ex.getCause() instanceof IOException)) {
+            throw ex;
+         }
+         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
       } finally {
+         close(raf);
          caller.setCursor(Cursor.getDefaultCursor());
          ij.IJ.showStatus("");
          ij.IJ.showProgress(1.0);
@@ -457,53 +622,48 @@ public class LoadAndSave {
                caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
                FileOutputStream fo = new FileOutputStream(selectedFile);
+               BufferedOutputStream bo = new BufferedOutputStream(fo, 1 << 20);
                // write space for magic nr and offset to spotList
                for (int i = 0; i < 12; i++) {
-                  fo.write(0);
+                  bo.write(0);
                }
 
+               // read the columns rather than going through SpotData views
+               SpotColumns spots = rowData.spotList_;
+               TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
+               for (int counter = 0; counter < spots.size(); counter++) {
 
-
-               int counter = 0;
-               for (SpotData gd : rowData.spotList_) {
-
-                  if ((counter % 1000) == 0) {
+                  if ((counter % 100000) == 0) {
                      ij.IJ.showStatus("Saving spotData...");
-                     ij.IJ.showProgress(counter, rowData.spotList_.size());
+                     ij.IJ.showProgress(counter, spots.size());
                   }
 
-                  if (gd != null) {
-                     TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
-                     // TODO: precede all these calls with check for presence of member
-                     // or be OK with default values?
-                     spotBuilder.setMolecule(counter).
-                             setFrame(gd.getFrame()).
-                             setChannel(gd.getChannel()).
-                             setPos(gd.getPosition()).
-                             setSlice(gd.getSlice()).
-                             setX((float) gd.getXCenter()).
-                             setY((float) gd.getYCenter()).
-                             setIntensity((float) gd.getIntensity()).
-                             setBackground((float) gd.getBackground()).
-                             setXPosition(gd.getX()).
-                             setYPosition(gd.getY()).
-                             setWidth((float) gd.getWidth()).
-                             setA((float) gd.getA()).
-                             setTheta((float) gd.getTheta()).
-                             setXPrecision((float) gd.getSigma());
-                     if (rowData.hasZ_) {
-                        spotBuilder.setZ((float) gd.getZCenter());
-                     }
-
-                     double width = gd.getWidth();
-                     double xPrec = gd.getSigma();
-
-                     TaggedSpotsProtos.Spot spot = spotBuilder.build();
-                     // write message size and message
-                     spot.writeDelimitedTo(fo);
-                     counter++;
+                  // TODO: precede all these calls with check for presence of member
+                  // or be OK with default values?
+                  spotBuilder.clear();
+                  spotBuilder.setMolecule(counter).
+                          setFrame(spots.getFrame(counter)).
+                          setChannel(spots.getChannel(counter)).
+                          setPos(spots.getPosition(counter)).
+                          setSlice(spots.getSlice(counter)).
+                          setX((float) spots.getXCenter(counter)).
+                          setY((float) spots.getYCenter(counter)).
+                          setIntensity((float) spots.getIntensity(counter)).
+                          setBackground((float) spots.getBackground(counter)).
+                          setXPosition(spots.getX(counter)).
+                          setYPosition(spots.getY(counter)).
+                          setWidth((float) spots.getWidth(counter)).
+                          setA((float) spots.getA(counter)).
+                          setTheta((float) spots.getTheta(counter)).
+                          setXPrecision((float) spots.getSigma(counter));
+                  if (rowData.hasZ_) {
+                     spotBuilder.setZ((float) spots.getZCenter(counter));
                   }
+
+                  // write message size and message
+                  spotBuilder.build().writeDelimitedTo(bo);
                }
+               bo.flush();
 
                FileChannel fc = fo.getChannel();
                long offset = fc.position();
@@ -576,7 +736,7 @@ public class LoadAndSave {
                try {
                   String tab = "\t";
                   caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-                  FileWriter fw = new FileWriter(selectedFile);
+                  Writer fw = new BufferedWriter(new FileWriter(selectedFile), 1 << 20);
                   fw.write(""
                           + "application_id: " + 1 + tab
                           + "name: " + rowData.name_ + tab
@@ -603,38 +763,34 @@ public class LoadAndSave {
                   }
                   fw.write("\n");
 
-                  int counter = 0;
-                  for (SpotData gd : rowData.spotList_) {
+                  SpotColumns spots = rowData.spotList_;
+                  for (int i = 0; i < spots.size(); i++) {
 
-                     if ((counter % 1000) == 0) {
+                     if ((i % 100000) == 0) {
                         ij.IJ.showStatus("Saving spotData...");
-                        ij.IJ.showProgress(counter, rowData.spotList_.size());
+                        ij.IJ.showProgress(i, spots.size());
                      }
                      
-                     if (gd != null) {
-                        fw.write("" + gd.getFrame() + tab +
-                                gd.getChannel() + tab +
-                                gd.getFrame() + tab +
-                                gd.getSlice() + tab + 
-                                gd.getPosition() + tab + 
-                                String.format("%.2f", gd.getXCenter()) + tab + 
-                                String.format("%.2f", gd.getYCenter()) + tab +
-                                String.format("%.2f", gd.getIntensity()) + tab +
-                                String.format("%.2f", gd.getBackground()) + tab +
-                                String.format("%.2f",gd.getWidth()) + tab +
-                                String.format("%.3f", gd.getA()) + tab + 
-                                String.format("%.3f",gd.getTheta()) + tab + 
-                                gd.getX() + tab + 
-                                gd.getY() + tab + 
-                                String.format("%.3f", gd.getSigma()) );
-                        
-                        if (rowData.hasZ_) {
-                           fw.write(tab + String.format("%.2f", gd.getZCenter()));
-                        }
-                        fw.write("\n");
+                     fw.write("" + spots.getFrame(i) + tab +
+                             spots.getChannel(i) + tab +
+                             spots.getFrame(i) + tab +
+                             spots.getSlice(i) + tab + 
+                             spots.getPosition(i) + tab + 
+                             String.format("%.2f", spots.getXCenter(i)) + tab + 
+                             String.format("%.2f", spots.getYCenter(i)) + tab +
+                             String.format("%.2f", spots.getIntensity(i)) + tab +
+                             String.format("%.2f", spots.getBackground(i)) + tab +
+                             String.format("%.2f", spots.getWidth(i)) + tab +
+                             String.format("%.3f", spots.getA(i)) + tab + 
+                             String.format("%.3f", spots.getTheta(i)) + tab + 
+                             spots.getX(i) + tab + 
+                             spots.getY(i) + tab + 
+                             String.format("%.3f", spots.getSigma(i)) );
 
-                        counter++;
+                     if (rowData.hasZ_) {
+                        fw.write(tab + String.format("%.2f", spots.getZCenter(i)));
                      }
+                     fw.write("\n");
                   }
                   
                   fw.close();
@@ -654,4 +810,121 @@ public class LoadAndSave {
       }
    }
    
-}
\ No newline at end of file
+   /**
+    * Loads a file in the compact SpotColumnsFile format.  When the spots 
+    * would take more than half of the memory that is left, asks which range
+    * of frames to load, and reads only those.
+    *
+    * @param selectedFile - file to be loaded
+    * @param caller - JFrame calling code, used to set Waitcursor
+    */
+   public static void loadColumns(File selectedFile, JFrame caller) {
+      try {
+         ij.IJ.showStatus("Loading data..");
+         caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+         SpotColumnsFile.Info info = SpotColumnsFile.readInfo(selectedFile);
+         int first = 0;
+         int last = info.getNrFrameIndices() - 1;
+         Runtime rt = Runtime.getRuntime();
+         long available = (rt.maxMemory() - rt.totalMemory() + rt.freeMemory()) / 2;
+         if (info.getBytes(first, last) > available) {
+            int fit = last;
+            while (fit > first && info.getBytes(first, fit) > available) {
+               fit /= 2;
+            }
+            String range = JOptionPane.showInputDialog(getInstance(), 
+                    "This data set is too large to load at once.\n" + 
+                    "Frames to load (0-" + last + "):", first + "-" + fit);
+            if (range == null) {
+               return;
+            }
+            String[] parts = range.split("-");
+            first = Integer.parseInt(parts[0].trim());
+            last = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : first;
+         }
+
+         DataCollectionForm.getInstance().addSpotData(
+                 SpotColumnsFile.read(selectedFile, info, first, last));
+         
+      } catch (NumberFormatException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "Invalid range of frames");
+      } catch (FileNotFoundException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "File not found");
+      } catch (IOException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (OutOfMemoryError ome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
+      } finally {
+         caller.setCursor(Cursor.getDefaultCursor());
+         ij.IJ.showStatus("");
+         ij.IJ.showProgress(1.0);
+      }
+   }
+   
+   /**
+    * Save data set in the compact SpotColumnsFile format
+    *
+    * @param rowData - row with spot data to be saved
+    * @param caller - JFrame of calling code to provide visual feedback
+    */
+   public static void saveColumns(final RowData rowData, final JFrame caller) {
+      FileDialog fd = new FileDialog(caller, "Save Spot Data", FileDialog.SAVE);
+      fd.setFile(rowData.name_ + SpotColumnsFile.EXTENSION);
+      fd.setVisible(true);
+      String fn = fd.getFile();
+      if (fn == null) {
+         return;
+      }
+      if (!fn.contains(".")) {
+         fn = fn + SpotColumnsFile.EXTENSION;
+      }
+      final File selectedFile = new File(fd.getDirectory() + File.separator + fn);
+
+      Runnable doWorkRunnable = new Runnable() {
+
+         @Override
+         public void run() {
+            try {
+               caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+               ij.IJ.showStatus("Saving spotData...");
+               SpotColumnsFile.write(rowData, selectedFile);
+               ij.IJ.showProgress(1);
+               ij.IJ.showStatus("Finished saving spotData...");
+            } catch (IOException ex) {
+               JOptionPane.showMessageDialog(getInstance(), "Error while saving data");
+            } finally {
+               caller.setCursor(Cursor.getDefaultCursor());
+            }
+         }
+      };
+
+      (new Thread(doWorkRunnable)).start();
+   }
+   
+   private static void readFully(FileChannel fc, ByteBuffer buffer, long position)
+           throws IOException {
+      while (buffer.hasRemaining()) {
+         if (fc.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of file");
+         }
+      }
+   }
+   
+   private static int readInt(FileChannel fc, long position) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(fc, buffer, position);
+      return buffer.getInt(0);
+   }
+   
+   private static void close(Closeable closeable) {
+      if (closeable != null) {
+         try {
+            closeable.close();
+         } catch (IOException ex) {
+            // nothing left to do
+         }
+      }
+   }
+   
+}
@@ -14,9 +14,7 @@ import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
 import edu.valelab.gaussianfit.utils.ListUtils;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
     * Data structure for spotlists
@@ -24,9 +22,8 @@ import java.util.Map;
    public class RowData {
      
       
-      public final List<SpotData> spotList_;
-      public Map<Integer, List<SpotData>> frameIndexSpotList_;
-      private Map<ImageIndex, List<SpotData>> indexedSpotList_;
+      // spots are kept in columns, spotList_.get() returns views
+      public final SpotColumns spotList_;
       public final ArrayList<Double> timePoints_;
       public String name_;             // name as it appears in the DataCollection table
       public final String title_;      // ImagePlus title of the image
@@ -71,7 +68,7 @@ import java.util.Map;
          nrSlices_ = oldRow.nrSlices_;
          nrPositions_ = oldRow.nrPositions_;
          maxNrSpots_ = oldRow.maxNrSpots_;
-         spotList_ = new ArrayList<SpotData> (oldRow.spotList_);
+         spotList_ = new SpotColumns(oldRow.spotList_);
          if (oldRow.timePoints_ != null)
             timePoints_ = new ArrayList<Double> (oldRow.timePoints_);
          else
@@ -131,7 +128,10 @@ import java.util.Map;
          height_ = height;
          pixelSizeNm_ = pixelSizeUm;
          zStackStepSizeNm_ = zStackStepSizeNm;
-         spotList_ = spotList;
+         // a SpotColumns made for this row (e.g. by a file reader) is used 
+         // as is, anything else is copied into columns
+         spotList_ = spotList instanceof SpotColumns ? 
+                 (SpotColumns) spotList : new SpotColumns(spotList);
          shape_ = shape;
          halfSize_ = halfSize;
          nrChannels_ = nrChannels;
@@ -168,37 +168,26 @@ import java.util.Map;
       
       
       /**
-       * Populates the list frameIndexSpotList which gives access to spots by frame
+       * Indexes the spots by frame (or by slice when there are more slices
+       * than frames), and by image.  Not needed before getFrameSpots or get,
+       * which index when the spots changed since the last index.
        */
       public void index() {
-         boolean useFrames = nrFrames_ > nrSlices_;
-         int nr = nrSlices_;
-         if (useFrames)
-            nr = nrFrames_;
-         
-         frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(nr);
-         indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>();
-         
-         for (SpotData spot : spotList_) {
-            int frameIndex = spot.getSlice();
-            if (useFrames)
-               frameIndex = spot.getFrame();
-            if (frameIndexSpotList_.get(frameIndex) == null)
-               frameIndexSpotList_.put(frameIndex, new ArrayList<SpotData>());
-            frameIndexSpotList_.get(frameIndex).add(spot);  
-            
-            ImageIndex ii = new ImageIndex (spot.getFrame(), spot.getSlice(), 
-                    spot.getChannel(), spot.getPosition() );
-            if (indexedSpotList_.get(ii) == null) {
-               indexedSpotList_.put(ii, new ArrayList<SpotData>());
-            }
-            indexedSpotList_.get(ii).add(spot);           
-         }  
+         spotList_.index(nrFrames_ > nrSlices_);
+      }
+      
+      /**
+       * Spots in the given frame, or in the given slice when there are more 
+       * slices than frames
+       * @param frameIndex - frame or slice number
+       * @return spots in this frame or null if there are none
+       */
+      public List<SpotData> getFrameSpots(int frameIndex) {
+         return spotList_.getFrameSpots(nrFrames_ > nrSlices_, frameIndex);
       }
       
       public List<SpotData> get(int frame, int slice, int channel, int position) {
-         ImageIndex ii = new ImageIndex(frame, slice, channel, position);
-         return indexedSpotList_.get(ii);
+         return spotList_.getImageSpots(frame, slice, channel, position);
       }
       
       /**
@@ -212,10 +201,10 @@ import java.util.Map;
        * @return desired spot or null if not found
        */
       public SpotData get(int frame, int channel, double xPos, double yPos) {
-         for (SpotData spot : spotList_) {
-            if (spot.getFrame() == frame && spot.getChannel() == channel &&
-                    spot.getXCenter() == xPos && spot.getYCenter() == yPos) {
-               return spot;
+         for (int i = 0; i < spotList_.size(); i++) {
+            if (spotList_.getFrame(i) == frame && spotList_.getChannel(i) == channel &&
+                    spotList_.getXCenter(i) == xPos && spotList_.getYCenter(i) == yPos) {
+               return spotList_.get(i);
             }
          }
  
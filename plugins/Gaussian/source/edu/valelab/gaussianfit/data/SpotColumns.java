@@ -0,0 +1,825 @@
+/*
+ * Stores spots column by column, in primitive arrays
+ *
+ * Nico Stuurman, nico.stuurman at ucsf.edu
+ *
+ * Copyright UCSF, 2014
+ *
+ * Licensed under BSD license version 2.0
+ *
+ */
+package edu.valelab.gaussianfit.data;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * List of spots that keeps each field of SpotData in its own primitive
+ * array, rather than keeping a SpotData object (with its own key/value map)
+ * per spot.  Extra values (see SpotData.addKeyValue) are kept in one array
+ * per key, with NaN for spots that do not have the key.
+ *
+ * get() returns a SpotData view of the spot: reading and setting its values
+ * reads and writes the columns.  Views are made on every call, so compare
+ * spots by their values rather than by identity, and do not keep views over
+ * adding or removing spots at lower indices.  The nrLinks_ and
+ * originalFrame_ of a view are copies.  add() and set() copy the values of
+ * the given spot, but not its ImageProcessor.
+ *
+ * Code that goes through many spots can read the columns directly with the
+ * getters that take a spot index, for instance in a ParallelScan.
+ *
+ * Not synchronized.
+ *
+ * @author nico
+ */
+public class SpotColumns extends AbstractList<SpotData> implements RandomAccess {
+
+   private int size_ = 0;
+
+   private int[] frame_;
+   private int[] channel_;
+   private int[] slice_;
+   private int[] position_;
+   private int[] nr_;
+   private int[] x_;
+   private int[] y_;
+   private int[] nrLinks_;
+   private int[] originalFrame_;
+   private double[] intensity_;
+   private double[] background_;
+   private double[] xCenter_;
+   private double[] yCenter_;
+   private double[] zCenter_;
+   private double[] xOri_;
+   private double[] yOri_;
+   private double[] zOri_;
+   private double[] width_;
+   private double[] a_;
+   private double[] theta_;
+   private double[] sigma_;
+   private final Map<String, double[]> extra_ =
+           new LinkedHashMap<String, double[]>();
+
+   // Spot indices in frame (or slice) order, and where each frame starts
+   private int[] frameOrder_ = null;
+   private int[] frameOffsets_ = null;
+   private boolean indexUsesFrames_;
+   // Spot indices in image order, and where each image starts
+   private int[] imageOrder_ = null;
+   private int[] imageOffsets_ = null;
+   private final int[] imageMin_ = new int[4];
+   private final int[] imageDim_ = new int[4];
+   private int indexModCount_ = -1;
+
+   public SpotColumns() {
+      this(16);
+   }
+
+   public SpotColumns(int capacity) {
+      allocate(Math.max(1, capacity));
+   }
+
+   /**
+    * Copies the spots in the given collection
+    * @param spots
+    */
+   public SpotColumns(Collection<? extends SpotData> spots) {
+      if (spots instanceof SpotColumns) {
+         SpotColumns other = (SpotColumns) spots;
+         allocate(Math.max(1, other.size_));
+         copyColumns(other, this, other.size_);
+         for (Map.Entry<String, double[]> column : other.extra_.entrySet()) {
+            double[] values = new double[frame_.length];
+            System.arraycopy(column.getValue(), 0, values, 0, other.size_);
+            Arrays.fill(values, other.size_, values.length, Double.NaN);
+            extra_.put(column.getKey(), values);
+         }
+         size_ = other.size_;
+      } else {
+         allocate(Math.max(1, spots.size()));
+         for (SpotData spot : spots) {
+            add(spot);
+         }
+      }
+   }
+
+   @Override
+   public int size() {
+      return size_;
+   }
+
+   @Override
+   public SpotData get(int index) {
+      checkIndex(index);
+      return new SpotView(index);
+   }
+
+   @Override
+   public SpotData set(int index, SpotData spot) {
+      checkIndex(index);
+      SpotData old = new SpotData(get(index));
+      store(index, spot);
+      // spot may belong to a different frame now
+      modCount++;
+      return old;
+   }
+
+   @Override
+   public void add(int index, SpotData spot) {
+      if (index < 0 || index > size_) {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size_);
+      }
+      if (size_ == frame_.length) {
+         grow(size_ + 1);
+      }
+      if (index < size_) {
+         shift(index, index + 1, size_ - index);
+      }
+      size_++;
+      store(index, spot);
+      modCount++;
+   }
+
+   @Override
+   public SpotData remove(int index) {
+      checkIndex(index);
+      SpotData old = new SpotData(get(index));
+      shift(index + 1, index, size_ - index - 1);
+      size_--;
+      modCount++;
+      return old;
+   }
+
+   @Override
+   public void clear() {
+      size_ = 0;
+      extra_.clear();
+      modCount++;
+   }
+
+   /**
+    * Makes room for at least capacity spots
+    * @param capacity
+    */
+   public void ensureCapacity(int capacity) {
+      if (capacity > frame_.length) {
+         grow(capacity);
+      }
+   }
+
+   /**
+    * Sets the number of spots.  Spots added this way have all fields zero
+    * and no key/values, and can be filled in with put(), from several
+    * threads as long as each fills in its own spots.
+    * @param size
+    */
+   public void setSize(int size) {
+      ensureCapacity(size);
+      for (int i = size_; i < size; i++) {
+         store(i, EMPTY);
+      }
+      size_ = size;
+      modCount++;
+   }
+
+   private static final SpotData EMPTY = new SpotData(null, 0, 0, 0, 0, 0, 0, 0);
+
+   /**
+    * Sets all fields of spot i, without going through a SpotData
+    */
+   void put(int i, int channel, int slice, int frame, int position, int nr,
+           int x, int y, double intensity, double background, double xCenter,
+           double yCenter, double zCenter, double xOri, double yOri, double zOri,
+           double width, double a, double theta, double sigma) {
+      channel_[i] = channel;
+      slice_[i] = slice;
+      frame_[i] = frame;
+      position_[i] = position;
+      nr_[i] = nr;
+      x_[i] = x;
+      y_[i] = y;
+      intensity_[i] = intensity;
+      background_[i] = background;
+      xCenter_[i] = xCenter;
+      yCenter_[i] = yCenter;
+      zCenter_[i] = zCenter;
+      xOri_[i] = xOri;
+      yOri_[i] = yOri;
+      zOri_[i] = zOri;
+      width_[i] = width;
+      a_[i] = a;
+      theta_[i] = theta;
+      sigma_[i] = sigma;
+   }
+
+   /**
+    * Adds a column for the given key, so that readRecord can fill it in
+    */
+   void addKey(String key) {
+      column(key);
+   }
+
+   // ints and doubles in a record, not counting the key/values
+   private static final int RECORD_INTS = 9;
+   private static final int RECORD_DOUBLES = 12;
+
+   /**
+    * @return number of bytes that writeRecord writes for each spot
+    */
+   int recordSize() {
+      return 4 * RECORD_INTS + 8 * (RECORD_DOUBLES + extra_.size());
+   }
+
+   /**
+    * Writes all values of spot i, with the key/values in getKeys() order
+    */
+   void writeRecord(int i, ByteBuffer buffer) {
+      buffer.putInt(frame_[i]).putInt(channel_[i]).putInt(slice_[i]).
+              putInt(position_[i]).putInt(nr_[i]).putInt(x_[i]).putInt(y_[i]).
+              putInt(nrLinks_[i]).putInt(originalFrame_[i]);
+      buffer.putDouble(intensity_[i]).putDouble(background_[i]).
+              putDouble(xCenter_[i]).putDouble(yCenter_[i]).
+              putDouble(zCenter_[i]).putDouble(xOri_[i]).putDouble(yOri_[i]).
+              putDouble(zOri_[i]).putDouble(width_[i]).putDouble(a_[i]).
+              putDouble(theta_[i]).putDouble(sigma_[i]);
+      for (double[] values : extra_.values()) {
+         buffer.putDouble(values[i]);
+      }
+   }
+
+   /**
+    * Reads spot i as written by writeRecord, into a store that has the same
+    * keys (in the same order)
+    */
+   void readRecord(int i, ByteBuffer buffer) {
+      frame_[i] = buffer.getInt();
+      channel_[i] = buffer.getInt();
+      slice_[i] = buffer.getInt();
+      position_[i] = buffer.getInt();
+      nr_[i] = buffer.getInt();
+      x_[i] = buffer.getInt();
+      y_[i] = buffer.getInt();
+      nrLinks_[i] = buffer.getInt();
+      originalFrame_[i] = buffer.getInt();
+      intensity_[i] = buffer.getDouble();
+      background_[i] = buffer.getDouble();
+      xCenter_[i] = buffer.getDouble();
+      yCenter_[i] = buffer.getDouble();
+      zCenter_[i] = buffer.getDouble();
+      xOri_[i] = buffer.getDouble();
+      yOri_[i] = buffer.getDouble();
+      zOri_[i] = buffer.getDouble();
+      width_[i] = buffer.getDouble();
+      a_[i] = buffer.getDouble();
+      theta_[i] = buffer.getDouble();
+      sigma_[i] = buffer.getDouble();
+      for (double[] values : extra_.values()) {
+         values[i] = buffer.getDouble();
+      }
+   }
+
+   /**
+    * Spot indices in frame (or slice) order, as used by getFrameSpots
+    * @return {order, offsets}, where the spots of frame f are
+    * order[offsets[f]] .. order[offsets[f + 1] - 1]
+    */
+   int[][] frameIndex(boolean useFrames) {
+      if (indexModCount_ != modCount || indexUsesFrames_ != useFrames) {
+         index(useFrames);
+      }
+      return new int[][] {frameOrder_, frameOffsets_};
+   }
+
+   public int getFrame(int i) {
+      return frame_[i];
+   }
+   public int getSlice(int i) {
+      return slice_[i];
+   }
+   public int getChannel(int i) {
+      return channel_[i];
+   }
+   public int getPosition(int i) {
+      return position_[i];
+   }
+   public int getNr(int i) {
+      return nr_[i];
+   }
+   public int getX(int i) {
+      return x_[i];
+   }
+   public int getY(int i) {
+      return y_[i];
+   }
+   public double getIntensity(int i) {
+      return intensity_[i];
+   }
+   public double getBackground(int i) {
+      return background_[i];
+   }
+   public double getXCenter(int i) {
+      return xCenter_[i];
+   }
+   public double getYCenter(int i) {
+      return yCenter_[i];
+   }
+   public double getZCenter(int i) {
+      return zCenter_[i];
+   }
+   public double getWidth(int i) {
+      return width_[i];
+   }
+   public double getA(int i) {
+      return a_[i];
+   }
+   public double getTheta(int i) {
+      return theta_[i];
+   }
+   public double getSigma(int i) {
+      return sigma_[i];
+   }
+
+   /**
+    * @param key
+    * @return values of the given key, with NaN for spots that do not have it,
+    * or null if no spot has the key.  The array may be longer than size().
+    */
+   public double[] getValues(String key) {
+      return extra_.get(key);
+   }
+
+   /**
+    * @return keys that at least one spot has a value for
+    */
+   public String[] getKeys() {
+      return extra_.keySet().toArray(new String[extra_.size()]);
+   }
+
+   /**
+    * Spots in the given frame, or in the given slice when the index was made
+    * with useFrames false.  Indexes the spots first if they changed since the
+    * last index.
+    *
+    * @param useFrames - index by frame rather than by slice
+    * @param frameIndex - frame (or slice) number
+    * @return views of the spots in this frame, in list order, or null if there
+    * are none
+    */
+   public List<SpotData> getFrameSpots(boolean useFrames, int frameIndex) {
+      if (indexModCount_ != modCount || indexUsesFrames_ != useFrames) {
+         index(useFrames);
+      }
+      if (frameIndex < 0 || frameIndex >= frameOffsets_.length - 1) {
+         return null;
+      }
+      return orderedView(frameOrder_, frameOffsets_[frameIndex],
+              frameOffsets_[frameIndex + 1]);
+   }
+
+   /**
+    * Spots in the given image.  Indexes the spots first if they changed since
+    * the last index.
+    * @return views of the spots in this image, in list order, or null if
+    * there are none
+    */
+   public List<SpotData> getImageSpots(int frame, int slice, int channel,
+           int position) {
+      if (indexModCount_ != modCount) {
+         index(indexUsesFrames_);
+      }
+      int[] values = {frame, slice, channel, position};
+      int key = 0;
+      for (int i = 3; i >= 0; i--) {
+         int v = values[i] - imageMin_[i];
+         if (v < 0 || v >= imageDim_[i]) {
+            return null;
+         }
+         key = key * imageDim_[i] + v;
+      }
+      return orderedView(imageOrder_, imageOffsets_[key],
+              imageOffsets_[key + 1]);
+   }
+
+   /**
+    * Sorts the spot indices by frame (or slice), and by image.  Sorting is
+    * stable, so spots of one frame or image stay in list order.
+    * @param useFrames - index by frame rather than by slice
+    */
+   public void index(boolean useFrames) {
+      int[] frames = useFrames ? frame_ : slice_;
+      int nrFrames = 0;
+      for (int i = 0; i < size_; i++) {
+         nrFrames = Math.max(nrFrames, frames[i] + 1);
+      }
+      frameOffsets_ = new int[nrFrames + 1];
+      frameOrder_ = countingSort(frames, frameOffsets_);
+
+      int[][] columns = {frame_, slice_, channel_, position_};
+      long nrImages = 1;
+      for (int c = 0; c < 4; c++) {
+         int min = Integer.MAX_VALUE;
+         int max = Integer.MIN_VALUE;
+         for (int i = 0; i < size_; i++) {
+            min = Math.min(min, columns[c][i]);
+            max = Math.max(max, columns[c][i]);
+         }
+         imageMin_[c] = size_ > 0 ? min : 0;
+         imageDim_[c] = size_ > 0 ? max - min + 1 : 1;
+         nrImages *= imageDim_[c];
+      }
+      if (nrImages >= Integer.MAX_VALUE) {
+         throw new IllegalStateException("Too many images to index spots");
+      }
+      int[] keys = new int[size_];
+      for (int i = 0; i < size_; i++) {
+         int key = 0;
+         for (int c = 3; c >= 0; c--) {
+            key = key * imageDim_[c] + columns[c][i] - imageMin_[c];
+         }
+         keys[i] = key;
+      }
+      imageOffsets_ = new int[(int) nrImages + 1];
+      imageOrder_ = countingSort(keys, imageOffsets_);
+
+      indexUsesFrames_ = useFrames;
+      indexModCount_ = modCount;
+   }
+
+   /**
+    * Stable counting sort of the spot indices by key
+    * @param keys - key of each spot, up to offsets.length - 2.  Spots with a
+    * negative key are left out.
+    * @param offsets - filled with where the spots with each key start
+    * @return spot indices ordered by key
+    */
+   private int[] countingSort(int[] keys, int[] offsets) {
+      for (int i = 0; i < size_; i++) {
+         if (keys[i] >= 0) {
+            offsets[keys[i] + 1]++;
+         }
+      }
+      for (int k = 1; k < offsets.length; k++) {
+         offsets[k] += offsets[k - 1];
+      }
+      int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+      int[] order = new int[offsets[offsets.length - 1]];
+      for (int i = 0; i < size_; i++) {
+         if (keys[i] >= 0) {
+            order[next[keys[i]]++] = i;
+         }
+      }
+      return order;
+   }
+
+   private List<SpotData> orderedView(final int[] order, final int start,
+           final int end) {
+      if (start == end) {
+         return null;
+      }
+      return new Subset(order, start, end);
+   }
+
+   /**
+    * Read only list of the spots at order[start] .. order[end - 1]
+    */
+   private class Subset extends AbstractList<SpotData> implements RandomAccess {
+      private final int[] order_;
+      private final int start_;
+      private final int end_;
+
+      Subset(int[] order, int start, int end) {
+         order_ = order;
+         start_ = start;
+         end_ = end;
+      }
+
+      @Override
+      public SpotData get(int index) {
+         if (index < 0 || index >= end_ - start_) {
+            throw new IndexOutOfBoundsException("Index: " + index +
+                    ", Size: " + (end_ - start_));
+         }
+         return new SpotView(order_[start_ + index]);
+      }
+
+      @Override
+      public int size() {
+         return end_ - start_;
+      }
+   }
+
+   private void checkIndex(int index) {
+      if (index < 0 || index >= size_) {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size_);
+      }
+   }
+
+   private void store(int i, SpotData spot) {
+      frame_[i] = spot.getFrame();
+      channel_[i] = spot.getChannel();
+      slice_[i] = spot.getSlice();
+      position_[i] = spot.getPosition();
+      nr_[i] = spot.getNr();
+      x_[i] = spot.getX();
+      y_[i] = spot.getY();
+      nrLinks_[i] = spot.nrLinks_;
+      originalFrame_[i] = spot.originalFrame_;
+      intensity_[i] = spot.getIntensity();
+      background_[i] = spot.getBackground();
+      xCenter_[i] = spot.getXCenter();
+      yCenter_[i] = spot.getYCenter();
+      zCenter_[i] = spot.getZCenter();
+      xOri_[i] = spot.getXOri();
+      yOri_[i] = spot.geYOri();
+      zOri_[i] = spot.getZOri();
+      width_[i] = spot.getWidth();
+      a_[i] = spot.getA();
+      theta_[i] = spot.getTheta();
+      sigma_[i] = spot.getSigma();
+      for (double[] values : extra_.values()) {
+         values[i] = Double.NaN;
+      }
+      for (String key : spot.getKeys()) {
+         column(key)[i] = spot.getValue(key);
+      }
+   }
+
+   private double[] column(String key) {
+      double[] values = extra_.get(key);
+      if (values == null) {
+         values = new double[frame_.length];
+         Arrays.fill(values, Double.NaN);
+         extra_.put(key, values);
+      }
+      return values;
+   }
+
+   private void allocate(int capacity) {
+      frame_ = new int[capacity];
+      channel_ = new int[capacity];
+      slice_ = new int[capacity];
+      position_ = new int[capacity];
+      nr_ = new int[capacity];
+      x_ = new int[capacity];
+      y_ = new int[capacity];
+      nrLinks_ = new int[capacity];
+      originalFrame_ = new int[capacity];
+      intensity_ = new double[capacity];
+      background_ = new double[capacity];
+      xCenter_ = new double[capacity];
+      yCenter_ = new double[capacity];
+      zCenter_ = new double[capacity];
+      xOri_ = new double[capacity];
+      yOri_ = new double[capacity];
+      zOri_ = new double[capacity];
+      width_ = new double[capacity];
+      a_ = new double[capacity];
+      theta_ = new double[capacity];
+      sigma_ = new double[capacity];
+   }
+
+   private void grow(int minCapacity) {
+      int oldCapacity = frame_.length;
+      int capacity = Math.max(minCapacity, oldCapacity + (oldCapacity >> 1));
+      frame_ = Arrays.copyOf(frame_, capacity);
+      channel_ = Arrays.copyOf(channel_, capacity);
+      slice_ = Arrays.copyOf(slice_, capacity);
+      position_ = Arrays.copyOf(position_, capacity);
+      nr_ = Arrays.copyOf(nr_, capacity);
+      x_ = Arrays.copyOf(x_, capacity);
+      y_ = Arrays.copyOf(y_, capacity);
+      nrLinks_ = Arrays.copyOf(nrLinks_, capacity);
+      originalFrame_ = Arrays.copyOf(originalFrame_, capacity);
+      intensity_ = Arrays.copyOf(intensity_, capacity);
+      background_ = Arrays.copyOf(background_, capacity);
+      xCenter_ = Arrays.copyOf(xCenter_, capacity);
+      yCenter_ = Arrays.copyOf(yCenter_, capacity);
+      zCenter_ = Arrays.copyOf(zCenter_, capacity);
+      xOri_ = Arrays.copyOf(xOri_, capacity);
+      yOri_ = Arrays.copyOf(yOri_, capacity);
+      zOri_ = Arrays.copyOf(zOri_, capacity);
+      width_ = Arrays.copyOf(width_, capacity);
+      a_ = Arrays.copyOf(a_, capacity);
+      theta_ = Arrays.copyOf(theta_, capacity);
+      sigma_ = Arrays.copyOf(sigma_, capacity);
+      for (Map.Entry<String, double[]> column : extra_.entrySet()) {
+         double[] values = Arrays.copyOf(column.getValue(), capacity);
+         Arrays.fill(values, oldCapacity, capacity, Double.NaN);
+         column.setValue(values);
+      }
+   }
+
+   private static void copyColumns(SpotColumns from, SpotColumns to, int n) {
+      System.arraycopy(from.frame_, 0, to.frame_, 0, n);
+      System.arraycopy(from.channel_, 0, to.channel_, 0, n);
+      System.arraycopy(from.slice_, 0, to.slice_, 0, n);
+      System.arraycopy(from.position_, 0, to.position_, 0, n);
+      System.arraycopy(from.nr_, 0, to.nr_, 0, n);
+      System.arraycopy(from.x_, 0, to.x_, 0, n);
+      System.arraycopy(from.y_, 0, to.y_, 0, n);
+      System.arraycopy(from.nrLinks_, 0, to.nrLinks_, 0, n);
+      System.arraycopy(from.originalFrame_, 0, to.originalFrame_, 0, n);
+      System.arraycopy(from.intensity_, 0, to.intensity_, 0, n);
+      System.arraycopy(from.background_, 0, to.background_, 0, n);
+      System.arraycopy(from.xCenter_, 0, to.xCenter_, 0, n);
+      System.arraycopy(from.yCenter_, 0, to.yCenter_, 0, n);
+      System.arraycopy(from.zCenter_, 0, to.zCenter_, 0, n);
+      System.arraycopy(from.xOri_, 0, to.xOri_, 0, n);
+      System.arraycopy(from.yOri_, 0, to.yOri_, 0, n);
+      System.arraycopy(from.zOri_, 0, to.zOri_, 0, n);
+      System.arraycopy(from.width_, 0, to.width_, 0, n);
+      System.arraycopy(from.a_, 0, to.a_, 0, n);
+      System.arraycopy(from.theta_, 0, to.theta_, 0, n);
+      System.arraycopy(from.sigma_, 0, to.sigma_, 0, n);
+   }
+
+   /**
+    * Moves n spots from index from to index to, within the columns
+    */
+   private void shift(int from, int to, int n) {
+      System.arraycopy(frame_, from, frame_, to, n);
+      System.arraycopy(channel_, from, channel_, to, n);
+      System.arraycopy(slice_, from, slice_, to, n);
+      System.arraycopy(position_, from, position_, to, n);
+      System.arraycopy(nr_, from, nr_, to, n);
+      System.arraycopy(x_, from, x_, to, n);
+      System.arraycopy(y_, from, y_, to, n);
+      System.arraycopy(nrLinks_, from, nrLinks_, to, n);
+      System.arraycopy(originalFrame_, from, originalFrame_, to, n);
+      System.arraycopy(intensity_, from, intensity_, to, n);
+      System.arraycopy(background_, from, background_, to, n);
+      System.arraycopy(xCenter_, from, xCenter_, to, n);
+      System.arraycopy(yCenter_, from, yCenter_, to, n);
+      System.arraycopy(zCenter_, from, zCenter_, to, n);
+      System.arraycopy(xOri_, from, xOri_, to, n);
+      System.arraycopy(yOri_, from, yOri_, to, n);
+      System.arraycopy(zOri_, from, zOri_, to, n);
+      System.arraycopy(width_, from, width_, to, n);
+      System.arraycopy(a_, from, a_, to, n);
+      System.arraycopy(theta_, from, theta_, to, n);
+      System.arraycopy(sigma_, from, sigma_, to, n);
+      for (double[] values : extra_.values()) {
+         System.arraycopy(values, from, values, to, n);
+      }
+   }
+
+   /**
+    * SpotData that reads and writes the columns of one spot
+    */
+   private class SpotView extends SpotData {
+      private final int i_;
+
+      SpotView(int i) {
+         super(null, channel_[i], slice_[i], frame_[i], position_[i], nr_[i],
+                 x_[i], y_[i]);
+         i_ = i;
+         nrLinks_ = SpotColumns.this.nrLinks_[i];
+         originalFrame_ = SpotColumns.this.originalFrame_[i];
+      }
+
+      @Override
+      public void setData(double intensity, double background, double xCenter,
+              double yCenter, double zCenter, double width, double a,
+              double theta, double sigma) {
+         // like SpotData, leaves zCenter alone
+         intensity_[i_] = intensity;
+         background_[i_] = background;
+         xCenter_[i_] = xCenter;
+         yCenter_[i_] = yCenter;
+         width_[i_] = width;
+         a_[i_] = a;
+         theta_[i_] = theta;
+         sigma_[i_] = sigma;
+      }
+
+      @Override
+      public void addKeyValue(String key, double value) {
+         column(key)[i_] = value;
+      }
+
+      @Override
+      public Double getValue(String key) {
+         double[] values = extra_.get(key);
+         if (values == null || Double.isNaN(values[i_])) {
+            return null;
+         }
+         return values[i_];
+      }
+
+      @Override
+      public String[] getKeys() {
+         int n = 0;
+         String[] keys = new String[extra_.size()];
+         for (Map.Entry<String, double[]> column : extra_.entrySet()) {
+            if (!Double.isNaN(column.getValue()[i_])) {
+               keys[n++] = column.getKey();
+            }
+         }
+         return Arrays.copyOf(keys, n);
+      }
+
+      @Override
+      public boolean hasKey(String key) {
+         double[] values = extra_.get(key);
+         return values != null && !Double.isNaN(values[i_]);
+      }
+
+      @Override
+      public void setOriginalPosition(double xPos, double yPos, double zPos) {
+         xOri_[i_] = xPos;
+         yOri_[i_] = yPos;
+         zOri_[i_] = zPos;
+      }
+
+      @Override
+      public double getIntensity() {
+         return intensity_[i_];
+      }
+      @Override
+      public double getBackground() {
+         return background_[i_];
+      }
+      @Override
+      public double getXCenter() {
+         return xCenter_[i_];
+      }
+      @Override
+      public void setXCenter(double x) {
+         xCenter_[i_] = x;
+      }
+      @Override
+      public double getYCenter() {
+         return yCenter_[i_];
+      }
+      @Override
+      public void setYCenter(double y) {
+         yCenter_[i_] = y;
+      }
+      @Override
+      public double getZCenter() {
+         return zCenter_[i_];
+      }
+      @Override
+      public void setZCenter(double z) {
+         zCenter_[i_] = z;
+      }
+      @Override
+      public double getXOri() {
+         return xOri_[i_];
+      }
+      @Override
+      public double geYOri() {
+         return yOri_[i_];
+      }
+      @Override
+      public double getZOri() {
+         return zOri_[i_];
+      }
+      @Override
+      public double getWidth() {
+         return width_[i_];
+      }
+      @Override
+      public double getA() {
+         return a_[i_];
+      }
+      @Override
+      public double getTheta() {
+         return theta_[i_];
+      }
+      @Override
+      public double getSigma() {
+         return sigma_[i_];
+      }
+
+      private SpotColumns owner() {
+         return SpotColumns.this;
+      }
+
+      /**
+       * Views are created on every get(), so two views are the same spot
+       * when they show the same row of the same columns
+       */
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof SpotView)) {
+            return false;
+         }
+         SpotView other = (SpotView) o;
+         return other.owner() == SpotColumns.this && other.i_ == i_;
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * System.identityHashCode(SpotColumns.this) + i_;
+      }
+   }
+
+}
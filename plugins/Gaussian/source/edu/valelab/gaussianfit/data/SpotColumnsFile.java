@@ -0,0 +1,395 @@
+/*
+ * Reads and writes spot data in a compact binary format
+ *
+ * Nico Stuurman, nico.stuurman at ucsf.edu
+ *
+ * Copyright UCSF, 2014
+ *
+ * Licensed under BSD license version 2.0
+ *
+ */
+package edu.valelab.gaussianfit.data;
+
+import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
+import edu.valelab.gaussianfit.utils.ParallelScan;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * File format that stores a RowData as a header followed by one fixed size
+ * record per spot (see SpotColumns.writeRecord), all little endian.
+ * Spots are written in frame order (or slice order when there are more
+ * slices than frames), and the header holds where each frame starts, so that
+ * a range of frames can be read without reading the rest of the file.
+ * Records are read straight from a memory mapped file into the columns of a
+ * SpotColumns store, in parallel.
+ *
+ * Header:
+ *   magic "GSPC", version, length of the header in bytes,
+ *   name, title, width, height, pixel size, z step size, shape, half size,
+ *   nr channels, frames, slices and positions, max nr spots, is track,
+ *   coordinates, has z, min z, max z, time points (-1 when absent),
+ *   nr spots, keys of the extra columns, nr frame indices and the index of
+ *   the first spot of each frame index (plus one for the end).
+ * Strings are an int length followed by UTF-8 bytes.
+ *
+ * @author nico
+ */
+public class SpotColumnsFile {
+   public static final String EXTENSION = ".gspc";
+
+   private static final byte[] MAGIC = {'G', 'S', 'P', 'C'};
+   private static final int VERSION = 1;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   // records are read and written in windows of about this many bytes
+   private static final int WINDOW = 1 << 24;
+
+   /**
+    * What the header says about a file, without the spots
+    */
+   public static class Info {
+      public String name_;
+      public String title_;
+      public int width_;
+      public int height_;
+      public float pixelSizeNm_;
+      public float zStackStepSizeNm_;
+      public int shape_;
+      public int halfSize_;
+      public int nrChannels_;
+      public int nrFrames_;
+      public int nrSlices_;
+      public int nrPositions_;
+      public int maxNrSpots_;
+      public boolean isTrack_;
+      public Coordinates coordinate_;
+      public boolean hasZ_;
+      public double minZ_;
+      public double maxZ_;
+      public ArrayList<Double> timePoints_;
+      public int nrSpots_;
+      public String[] keys_;
+      // spots of frame index f are frameOffsets_[f] .. frameOffsets_[f + 1]
+      public int[] frameOffsets_;
+      long dataStart_;
+      int recordSize_;
+
+      /**
+       * @return number of frames (or slices when there are more slices
+       * than frames) that spots are indexed by, counting from 0
+       */
+      public int getNrFrameIndices() {
+         return frameOffsets_.length - 1;
+      }
+
+      /**
+       * @return estimate of the memory taken by the spots of the given
+       * frames once loaded
+       */
+      public long getBytes(int firstFrame, int lastFrame) {
+         return (long) recordSize_ * countSpots(firstFrame, lastFrame);
+      }
+
+      int countSpots(int firstFrame, int lastFrame) {
+         int first = Math.max(0, Math.min(firstFrame, getNrFrameIndices()));
+         int last = Math.max(first - 1, Math.min(lastFrame, getNrFrameIndices() - 1));
+         return frameOffsets_[last + 1] - frameOffsets_[first];
+      }
+   }
+
+   /**
+    * Writes the row to the file
+    *
+    * @param rowData - data to be saved
+    * @param file - destination, will be overwritten
+    * @throws IOException
+    */
+   public static void write(RowData rowData, File file) throws IOException {
+      SpotColumns spots = rowData.spotList_;
+      int[][] index = spots.frameIndex(rowData.nrFrames_ > rowData.nrSlices_);
+      int[] order = index[0];
+      int[] offsets = index[1];
+      String[] keys = spots.getKeys();
+
+      ByteBuffer header = growable(4096);
+      header.put(MAGIC).putInt(VERSION).putInt(0);
+      header = putString(header, rowData.name_);
+      header = putString(header, rowData.title_);
+      header = ensure(header, 1024 + 8 * (rowData.timePoints_ == null ? 0
+              : rowData.timePoints_.size()) + 4 * offsets.length);
+      header.putInt(rowData.width_).putInt(rowData.height_).
+              putFloat(rowData.pixelSizeNm_).putFloat(rowData.zStackStepSizeNm_).
+              putInt(rowData.shape_).putInt(rowData.halfSize_).
+              putInt(rowData.nrChannels_).putInt(rowData.nrFrames_).
+              putInt(rowData.nrSlices_).putInt(rowData.nrPositions_).
+              putInt(rowData.maxNrSpots_).put((byte) (rowData.isTrack_ ? 1 : 0)).
+              putInt(rowData.coordinate_ == null ? 0 : rowData.coordinate_.ordinal()).
+              put((byte) (rowData.hasZ_ ? 1 : 0)).
+              putDouble(rowData.minZ_).putDouble(rowData.maxZ_);
+      if (rowData.timePoints_ == null) {
+         header.putInt(-1);
+      } else {
+         header.putInt(rowData.timePoints_.size());
+         for (Double timePoint : rowData.timePoints_) {
+            header.putDouble(timePoint);
+         }
+      }
+      // spots with a negative frame are not in the index, and not saved
+      header.putInt(order.length);
+      header.putInt(keys.length);
+      for (String key : keys) {
+         header = putString(header, key);
+      }
+      header = ensure(header, 4 + 4 * offsets.length);
+      header.putInt(offsets.length - 1);
+      for (int offset : offsets) {
+         header.putInt(offset);
+      }
+      header.putInt(8, header.position());
+      header.flip();
+
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         FileChannel fc = raf.getChannel();
+         while (header.hasRemaining()) {
+            fc.write(header);
+         }
+         int recordSize = spots.recordSize();
+         ByteBuffer buffer = ByteBuffer.allocateDirect(
+                 Math.max(recordSize, WINDOW / recordSize * recordSize));
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+         for (int k = 0; k < order.length; k++) {
+            if (buffer.remaining() < recordSize) {
+               flush(fc, buffer);
+            }
+            spots.writeRecord(order[k], buffer);
+            if ((k & 0xffff) == 0) {
+               ij.IJ.showProgress(k, order.length);
+            }
+         }
+         flush(fc, buffer);
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads the header of the file
+    * @param file
+    * @return description of the file
+    * @throws IOException when the file is not in this format
+    */
+   public static Info readInfo(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel fc = raf.getChannel();
+         ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+         readFully(fc, start, 0);
+         start.flip();
+         for (byte b : MAGIC) {
+            if (start.get() != b) {
+               throw new IOException("Not a spot columns file");
+            }
+         }
+         if (start.getInt() > VERSION) {
+            throw new IOException("File was written by a newer version");
+         }
+         int headerLength = start.getInt();
+         if (headerLength < 12 || headerLength > fc.size()) {
+            throw new IOException("Not a spot columns file");
+         }
+         ByteBuffer header = ByteBuffer.allocate(headerLength).
+                 order(ByteOrder.LITTLE_ENDIAN);
+         readFully(fc, header, 0);
+         header.flip();
+         header.position(12);
+
+         Info info = new Info();
+         info.name_ = getString(header);
+         info.title_ = getString(header);
+         info.width_ = header.getInt();
+         info.height_ = header.getInt();
+         info.pixelSizeNm_ = header.getFloat();
+         info.zStackStepSizeNm_ = header.getFloat();
+         info.shape_ = header.getInt();
+         info.halfSize_ = header.getInt();
+         info.nrChannels_ = header.getInt();
+         info.nrFrames_ = header.getInt();
+         info.nrSlices_ = header.getInt();
+         info.nrPositions_ = header.getInt();
+         info.maxNrSpots_ = header.getInt();
+         info.isTrack_ = header.get() != 0;
+         int coordinate = header.getInt();
+         if (coordinate < 0 || coordinate >= Coordinates.values().length) {
+            throw new IOException("Not a spot columns file");
+         }
+         info.coordinate_ = Coordinates.values()[coordinate];
+         info.hasZ_ = header.get() != 0;
+         info.minZ_ = header.getDouble();
+         info.maxZ_ = header.getDouble();
+         int nrTimePoints = header.getInt();
+         if (nrTimePoints > header.remaining() / 8) {
+            throw new IOException("Not a spot columns file");
+         }
+         if (nrTimePoints >= 0) {
+            info.timePoints_ = new ArrayList<Double>(nrTimePoints);
+            for (int i = 0; i < nrTimePoints; i++) {
+               info.timePoints_.add(header.getDouble());
+            }
+         }
+         info.nrSpots_ = header.getInt();
+         info.keys_ = new String[getCount(header, 4)];
+         for (int k = 0; k < info.keys_.length; k++) {
+            info.keys_[k] = getString(header);
+         }
+         info.frameOffsets_ = new int[getCount(header, 4) + 1];
+         for (int f = 0; f < info.frameOffsets_.length; f++) {
+            info.frameOffsets_[f] = header.getInt();
+         }
+         info.dataStart_ = headerLength;
+         info.recordSize_ = new SpotColumns(1).recordSize()
+                 + 8 * info.keys_.length;
+         return info;
+      } catch (BufferUnderflowException ex) {
+         throw new IOException("Not a spot columns file");
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads the spots of a range of frames (or slices, see Info)
+    *
+    * @param file - file to read
+    * @param info - header of the file, from readInfo
+    * @param firstFrame - first frame index to read
+    * @param lastFrame - last frame index to read (inclusive)
+    * @return row with these spots
+    * @throws IOException
+    */
+   public static RowData read(File file, Info info, int firstFrame,
+           int lastFrame) throws IOException {
+      final int nrSpots = info.countSpots(firstFrame, lastFrame);
+      final long start = info.dataStart_ + (long) info.recordSize_ *
+              info.frameOffsets_[Math.max(0, Math.min(firstFrame, info.getNrFrameIndices()))];
+      final int recordSize = info.recordSize_;
+      final SpotColumns spots = new SpotColumns(Math.max(1, nrSpots));
+      for (String key : info.keys_) {
+         spots.addKey(key);
+      }
+      spots.setSize(nrSpots);
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         final FileChannel fc = raf.getChannel();
+         ParallelScan.forRange(nrSpots, new ParallelScan.Range() {
+            @Override
+            public void run(int first, int end) {
+               int perWindow = Math.max(1, WINDOW / recordSize);
+               try {
+                  for (int i = first; i < end; i += perWindow) {
+                     int n = Math.min(perWindow, end - i);
+                     MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY,
+                             start + (long) recordSize * i, (long) recordSize * n);
+                     buffer.order(ByteOrder.LITTLE_ENDIAN);
+                     for (int j = i; j < i + n; j++) {
+                        spots.readRecord(j, buffer);
+                     }
+                  }
+               } catch (IOException ex) {
+                  throw new RuntimeException(ex);
+               }
+            }
+         });
+      } catch (RuntimeException ex) {
+         if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+         }
+         throw ex;
+      } finally {
+         raf.close();
+      }
+
+      String name = info.name_;
+      if (firstFrame > 0 || lastFrame < info.getNrFrameIndices() - 1) {
+         name += "_" + firstFrame + "-" + lastFrame;
+      }
+      return new RowData(name, info.title_, "", info.width_,
+              info.height_, info.pixelSizeNm_, info.zStackStepSizeNm_,
+              info.shape_, info.halfSize_, info.nrChannels_, info.nrFrames_,
+              info.nrSlices_, info.nrPositions_, info.maxNrSpots_, spots,
+              info.timePoints_, info.isTrack_, info.coordinate_, info.hasZ_,
+              info.minZ_, info.maxZ_);
+   }
+
+   private static void flush(FileChannel fc, ByteBuffer buffer) throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+         fc.write(buffer);
+      }
+      buffer.clear();
+   }
+
+   private static void readFully(FileChannel fc, ByteBuffer buffer, long position)
+           throws IOException {
+      while (buffer.hasRemaining()) {
+         int read = fc.read(buffer, position + buffer.position());
+         if (read < 0) {
+            throw new IOException("Unexpected end of file");
+         }
+      }
+   }
+
+   private static ByteBuffer growable(int capacity) {
+      return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /**
+    * @return buffer, or a copy of it with room for at least n more bytes
+    */
+   private static ByteBuffer ensure(ByteBuffer buffer, int n) {
+      if (buffer.remaining() >= n) {
+         return buffer;
+      }
+      ByteBuffer bigger = growable(Math.max(2 * buffer.capacity(),
+              buffer.position() + n));
+      buffer.flip();
+      bigger.put(buffer);
+      return bigger;
+   }
+
+   private static ByteBuffer putString(ByteBuffer buffer, String s) {
+      byte[] bytes = (s == null ? "" : s).getBytes(UTF8);
+      buffer = ensure(buffer, 4 + bytes.length);
+      buffer.putInt(bytes.length).put(bytes);
+      return buffer;
+   }
+
+   /*
+    * Reads the number of entries that follow, each at least entrySize
+    * bytes long, checking that they fit in what is left of the buffer
+    */
+   private static int getCount(ByteBuffer buffer, int entrySize)
+           throws IOException {
+      int count = buffer.getInt();
+      if (count < 0 || count > buffer.remaining() / entrySize) {
+         throw new IOException("Not a spot columns file");
+      }
+      return count;
+   }
+
+   private static String getString(ByteBuffer buffer) throws IOException {
+      byte[] bytes = new byte[getCount(buffer, 1)];
+      buffer.get(bytes);
+      return new String(bytes, UTF8);
+   }
+}
@@ -47,7 +47,7 @@ public class SpotData {
                               // that uses # of photons, background and width of gaussian
    public int nrLinks_;       // number of frames/slices in which this spot was found
    public int originalFrame_; // original first frame/slice in which this spot was found
-   private final Map<String, Double> keyValue_; // Map of keys/values taht can be used to extend what we store in the SpotData
+   private Map<String, Double> keyValue_ = null; // Map of keys/values taht can be used to extend what we store in the SpotData, created when first used
 
    public SpotData(ImageProcessor ip, int channel, int slice, int frame, 
            int position, int nr, int x, int y) {
@@ -59,36 +59,39 @@ public class SpotData {
       nr_ = nr;
       x_ = x;
       y_ = y;
-      keyValue_ = new HashMap<String, Double>();
    }
    
    
    /**
     * Copy constructor.  Copies frame, slice, channel, position ,  x,  y,
-    * intensity, background, width, a, theta and sigma!
+    * intensity, background, width, a, theta, sigma and key/values!
+    * Goes through the getters, so that views on a SpotColumns store are
+    * copied correctly.
     * @param spot
     */
    public SpotData(SpotData spot) {
-      frame_ = spot.frame_;
-      slice_ = spot.slice_;
-      channel_ = spot.channel_;
-      position_ = spot.position_;
-      nr_ = spot.nr_;
-      x_ = spot.x_;
-      y_ = spot.y_;
-      intensity_ = spot.intensity_;
-      background_ = spot.background_;
-      xCenter_ = spot.xCenter_;
-      yCenter_ = spot.yCenter_;
-      zCenter_ = spot.zCenter_;
-      xOri_ = spot.xOri_;
-      yOri_ = spot.yOri_;
-      zOri_ = spot.zOri_;
-      width_ = spot.width_;
-      a_ = spot.a_;
-      theta_ = spot.theta_;
-      sigma_ = spot.sigma_;  
-      keyValue_ = new HashMap<String, Double>(spot.keyValue_);
+      frame_ = spot.getFrame();
+      slice_ = spot.getSlice();
+      channel_ = spot.getChannel();
+      position_ = spot.getPosition();
+      nr_ = spot.getNr();
+      x_ = spot.getX();
+      y_ = spot.getY();
+      intensity_ = spot.getIntensity();
+      background_ = spot.getBackground();
+      xCenter_ = spot.getXCenter();
+      yCenter_ = spot.getYCenter();
+      zCenter_ = spot.getZCenter();
+      xOri_ = spot.getXOri();
+      yOri_ = spot.geYOri();
+      zOri_ = spot.getZOri();
+      width_ = spot.getWidth();
+      a_ = spot.getA();
+      theta_ = spot.getTheta();
+      sigma_ = spot.getSigma();  
+      for (String key : spot.getKeys()) {
+         addKeyValue(key, spot.getValue(key));
+      }
    }
 
    public void setData(double intensity, 
@@ -111,20 +114,29 @@ public class SpotData {
    }
    
    public void addKeyValue(String key, double value) {
+      if (keyValue_ == null) {
+         keyValue_ = new HashMap<String, Double>();
+      }
       keyValue_.put(key, value);
    }
    
    public Double getValue(String key) {
+      if (keyValue_ == null) {
+         return null;
+      }
       return keyValue_.get(key);
    }
    
    public String[] getKeys() {
+      if (keyValue_ == null) {
+         return new String[0];
+      }
       Set<String> keys = keyValue_.keySet();
       return  keys.toArray(new String[keys.size()]);
    }
    
    public boolean hasKey(String key) {
-      return keyValue_.containsKey(key);
+      return keyValue_ != null && keyValue_.containsKey(key);
    }
    
    public void setOriginalPosition(double xPos, double yPos, double zPos) {
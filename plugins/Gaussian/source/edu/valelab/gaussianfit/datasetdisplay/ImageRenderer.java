@@ -4,9 +4,10 @@
 package edu.valelab.gaussianfit.datasetdisplay;
 
 import edu.valelab.gaussianfit.datasettransformations.SpotDataFilter;
-import edu.valelab.gaussianfit.data.SpotData;
+import edu.valelab.gaussianfit.data.SpotColumns;
 import edu.valelab.gaussianfit.utils.GaussianUtils;
 import edu.valelab.gaussianfit.data.RowData;
+import edu.valelab.gaussianfit.utils.ParallelScan;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -17,6 +18,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -63,18 +65,20 @@ public class ImageRenderer {
       int endy = rect.y + rect.height;
       final int size = width * height;
       double factor = magnification / rowData.pixelSizeNm_;
+      final SpotColumns spots = rowData.spotList_;
 
 
       try {
+         final boolean[] accepted = sf.filter(spots);
          if (method == 0) {
             if (!rowData.hasZ_) {
                ip = new ShortProcessor(width, height);
                short pixels[] = new short[size];
                ip.setPixels(pixels);
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+               for (int s = 0; s < accepted.length; s++) {
+                  if (accepted[s]) {
+                     int x = (int) (factor * spots.getXCenter(s));
+                     int y = (int) (factor * spots.getYCenter(s));
                      if (x > rect.x && x < endx && y > rect.y && y < endy) {
                         x -= rect.x;
                         y -= rect.y;
@@ -95,16 +99,16 @@ public class ImageRenderer {
                   sp[i].setPixels(pixels[i]);
                }
                double spread = rowData.maxZ_ - rowData.minZ_;
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+               for (int s = 0; s < accepted.length; s++) {
+                  if (accepted[s]) {
+                     int x = (int) (factor * spots.getXCenter(s));
+                     int y = (int) (factor * spots.getYCenter(s));
                      if (x > rect.x && x < endx && y > rect.y && y < endy) {
                         x -= rect.x;
                         y -= rect.y;
                         int index = (y * width) + x;
                         if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
+                           int zIndex = (int) (256 * (spots.getZCenter(s) - rowData.minZ_) / spread);
                            if (zIndex < 0) {
                               zIndex = 0;
                            }
@@ -145,105 +149,79 @@ public class ImageRenderer {
 
 
             // determines whether gaussians should be normalized by their total intensity
-            boolean normalize = false;
-            if (method == 2) {
-               normalize = true;
-            }
+            final boolean normalize = method == 2;
 
-            ip = new FloatProcessor(width, height);
-            float pixels[] = new float[size];
-            ip.setPixels(pixels);
+            final float pixels[] = new float[size];
+            ip = new FloatProcessor(width, height, pixels, null);
 
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
+            
+            // Find the spots to render and how far out (cover 3 * precision),
+            // and which bands of rows of the image each of them touches
+            final int nrBands = Math.max(1, Math.min(height, 
+                    4 * ij.Prefs.getThreads()));
+            final int bandHeight = (height + nrBands - 1) / nrBands;
+            final int[] halfWidths = new int[accepted.length];
+            final int[] bandOffsets = new int[nrBands + 1];
             int spotsUsed = 0;
-            for (SpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
+            for (int s = 0; s < accepted.length; s++) {
+               if (!accepted[s]) {
+                  continue;
                }
-
-
-               if (sf.filter(spot)) {
-
-
-                  // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
+               int halfWidth = (int) (2 * spots.getSigma(s) / renderedPixelInNm);
+               if (halfWidth == 0) {
+                  halfWidth = 2;
+               }
+               int xc = (int) (factor * spots.getXCenter(s));
+               int yc = (int) (factor * spots.getYCenter(s));
+               if (xc > rect.x + halfWidth && xc < endx - halfWidth
+                       && yc > rect.y + halfWidth && yc < endy - halfWidth
+                       && xc > halfWidth && xc < (fullWidth - halfWidth)
+                       && yc > halfWidth && yc < (fullHeight - halfWidth)) {
+                  halfWidths[s] = halfWidth;
+                  spotsUsed++;
+                  int lastBand = (yc + halfWidth - 1 - rect.y) / bandHeight;
+                  for (int b = (yc - halfWidth - rect.y) / bandHeight; b <= lastBand; b++) {
+                     bandOffsets[b + 1]++;
                   }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   * 
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                          && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                             && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
-                        double totalInt = 0.0;
-                        int xStart = xc - halfWidth;
-                        int xEnd = xc + halfWidth;
-                        int yStart = yc - halfWidth;
-                        int yEnd = yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
-                        for (int x = xStart; x < xEnd; x++) {
-                           for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
-                              if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
-                              } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
-                              }
-                           }
-                        }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                            ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
-                        }
-
-                     }
+               }
+            }
+            for (int b = 1; b <= nrBands; b++) {
+               bandOffsets[b] += bandOffsets[b - 1];
+            }
+            final int[] bandSpots = new int[bandOffsets[nrBands]];
+            int[] next = java.util.Arrays.copyOf(bandOffsets, nrBands);
+            for (int s = 0; s < halfWidths.length; s++) {
+               if (halfWidths[s] > 0) {
+                  int yc = (int) (factor * spots.getYCenter(s));
+                  int lastBand = (yc + halfWidths[s] - 1 - rect.y) / bandHeight;
+                  for (int b = (yc - halfWidths[s] - rect.y) / bandHeight; b <= lastBand; b++) {
+                     bandSpots[next[b]++] = s;
                   }
                }
             }
 
+            // Each band adds the rows of the spots that fall within it, so
+            // that bands can be drawn in parallel
+            final double fac = factor;
+            final Rectangle area = rect;
+            final AtomicInteger bandsDone = new AtomicInteger(0);
+            ParallelScan.forRange(nrBands, 1, new ParallelScan.Range() {
+               @Override
+               public void run(int start, int end) {
+                  for (int b = start; b < end; b++) {
+                     int rowStart = b * bandHeight;
+                     int rowEnd = Math.min(height, rowStart + bandHeight);
+                     for (int k = bandOffsets[b]; k < bandOffsets[b + 1]; k++) {
+                        int s = bandSpots[k];
+                        drawGaussian(spots, s, halfWidths[s], fac,
+                                renderedPixelInNm, normalize, area, 
+                                pixels, width, rowStart, rowEnd);
+                     }
+                     ij.IJ.showProgress(bandsDone.incrementAndGet(), nrBands);
+                  }
+               }
+            });
 
             ij.IJ.showProgress(1);
             ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
@@ -270,6 +248,49 @@ public class ImageRenderer {
       return ip;    
    }
    
+   /**
+    * Adds the Gaussian of one spot to the rows rowStart to rowEnd (exclusive)
+    * of the image.
+    * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
+    * with A = 1 and b = 0, or A such that the Gaussian sums to one when
+    * normalize is true
+    */
+   private static void drawGaussian(SpotColumns spots, int s, int halfWidth,
+           double factor, double renderedPixelInNm, boolean normalize,
+           Rectangle rect, float[] pixels, int width, int rowStart, int rowEnd) {
+      int xc = (int) (factor * spots.getXCenter(s));
+      int yc = (int) (factor * spots.getYCenter(s));
+      int xStart = xc - halfWidth;
+      int xEnd = xc + halfWidth;
+      int yStart = yc - halfWidth;
+      int yEnd = yc + halfWidth;
+      double[] parms = {1.0, 0.0,
+         spots.getXCenter(s) / renderedPixelInNm,
+         spots.getYCenter(s) / renderedPixelInNm,
+         spots.getSigma(s) / renderedPixelInNm};
+      double totalInt = 1.0;
+      if (normalize) {
+         totalInt = 0.0;
+         for (int x = xStart; x < xEnd; x++) {
+            for (int y = yStart; y < yEnd; y++) {
+               totalInt += GaussianUtils.gaussian(parms, x, y);
+            }
+         }
+         if (totalInt <= 0) {
+            return;
+         }
+      }
+      int yFirst = Math.max(yStart, rowStart + rect.y);
+      int yLast = Math.min(yEnd, rowEnd + rect.y);
+      for (int y = yFirst; y < yLast; y++) {
+         int offset = (y - rect.y) * width - rect.x;
+         for (int x = xStart; x < xEnd; x++) {
+            pixels[offset + x] += (float) (GaussianUtils.gaussian(parms, x, y)
+                    / totalInt);
+         }
+      }
+   }
+   
    
    /**
     * Renders spotdata using various renderModes
@@ -316,11 +337,13 @@ public class ImageRenderer {
             is.addSlice(ip[i]);
          }
 
-         for (SpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
+         SpotColumns spots = rowData.spotList_;
+         boolean[] accepted = sf.filter(spots);
+         for (int s = 0; s < accepted.length; s++) {
+            if (accepted[s]) {
+               int x = (int) (factor * spots.getXCenter(s));
+               int y = (int) (factor * spots.getYCenter(s));
+               int z = (int) (factor * (spots.getZCenter(s) - rowData.minZ_) * 500.0);
                if (x > rect.x && x < endx && y > rect.y && y < endy) {
                   x -= rect.x;
                   y -= rect.y;
@@ -421,13 +421,10 @@ public class DriftCorrector {
       byte[] pixelsRef = new byte[width * height];
       ipRef.setPixels(pixelsRef);
 
-      if (rowData.frameIndexSpotList_ == null) {
-         rowData.index();
-      }
       int spotNr = 0;
       int frameNr = 0;
       while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<SpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
+         List<SpotData> frameSpots = rowData.getFrameSpots(frameNr);
          if (frameSpots != null) {
             for (SpotData spot: frameSpots) {
                int x = (int) (factor * spot.getXCenter());
@@ -472,7 +469,7 @@ public class DriftCorrector {
          spotNr = 0;
 
          while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
-            List<SpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr); 
+            List<SpotData> frameSpots = rowData.getFrameSpots(frameNr); 
             if (frameSpots != null) {
                for (SpotData spot : frameSpots) {
                   int x = (int) (factor * spot.getXCenter());
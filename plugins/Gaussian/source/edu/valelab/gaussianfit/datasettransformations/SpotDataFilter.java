@@ -1,7 +1,9 @@
 
 package edu.valelab.gaussianfit.datasettransformations;
 
+import edu.valelab.gaussianfit.data.SpotColumns;
 import edu.valelab.gaussianfit.data.SpotData;
+import edu.valelab.gaussianfit.utils.ParallelScan;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -11,7 +13,8 @@ import java.util.Set;
  * 
  * Spots can be filtered based on intensity and sigma (width)
  * Setup the filter using the setSigma, setIntensity, and setItemFilter functions,
- * then use the filter class to test individual spots
+ * then use the filter class to test individual spots, or all spots of a 
+ * SpotColumns store at once
  * 
  * @author Nico Stuuman
  */
@@ -81,6 +84,46 @@ public class SpotDataFilter {
       return true;
    }
    
-   
+   /**
+    * Tests all spots in the store, in parallel, reading the columns rather
+    * than going through SpotData views.  Same outcome as filter(SpotData) for
+    * each spot.
+    * 
+    * @param spots - spots to test
+    * @return for each spot, true if it is acceptable
+    */
+   public boolean[] filter(final SpotColumns spots) {
+      final boolean[] accepted = new boolean[spots.size()];
+      final String[] keys = itemFilter_.keySet().toArray(new String[0]);
+      final double[][] values = new double[keys.length][];
+      for (int k = 0; k < keys.length; k++) {
+         values[k] = spots.getValues(keys[k]);
+      }
+      ParallelScan.forRange(accepted.length, new ParallelScan.Range() {
+         @Override
+         public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+               boolean ok = true;
+               if (useSigma_) {
+                  double sigma = spots.getSigma(i);
+                  ok = !(sigma < sigmaMin_ || sigma > sigmaMax_);
+               }
+               if (ok && useIntensity_) {
+                  double intensity = spots.getIntensity(i);
+                  ok = !(intensity < intensityMin_ || intensity > intensityMax_);
+               }
+               for (int k = 0; ok && k < keys.length; k++) {
+                  // spots without the key (NaN) are not filtered
+                  if (values[k] != null) {
+                     Extremes ex = itemFilter_.get(keys[k]);
+                     ok = !(values[k][i] < ex.minimum_ || values[k][i] > ex.maximum_);
+                  }
+               }
+               accepted[i] = ok;
+            }
+         }
+      });
+      return accepted;
+   }
    
 }
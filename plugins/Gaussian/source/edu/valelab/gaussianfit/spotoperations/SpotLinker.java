@@ -36,77 +36,7 @@ public class SpotLinker {
    public static void link(RowData rowData, double maxDistance) {
       try {
          ij.IJ.showStatus("Linking spotData...");
-         boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
-
-         // linked spots go here:
-         List<SpotData> destList = new ArrayList<SpotData>();
-         // maintain active tracks here
-         List< List<SpotData>> tracks = 
-                 new ArrayList<List<SpotData>>();
-         for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-            for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot,
-                                      new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                      new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointGsSpotPair nsp = new NearestPointGsSpotPair(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks = 
-                                   new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              GsSpotPair newSpot = nsp.findKDWSE(new Point2D.Double(
-                                      tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getGSD());
-                                 markedSpots.add(newSpot.getGSD());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
-                     }
-                  }
-                  // add tracks that made it to the end to destination list
-                  for (List<SpotData> track : tracks) {
-                     linkSpots(track, destList, useFrames);
-                  }
-                  tracks.clear();
-               }
-            }
-         }
-
+         List<SpotData> destList = linkTracks(rowData, maxDistance);
       
          // Add destList to rowData
          DataCollectionForm.getInstance().addSpotData(rowData.name_ + " Linked", rowData.title_, "", rowData.width_,
@@ -119,6 +49,88 @@ public class SpotLinker {
       }
    }
 
+   /**
+    * Does the work for link(): finds the tracks and returns one linked spot
+    * per track, without adding anything to the DataCollectionForm
+    * 
+    * @param rowData
+    * @param maxDistance
+    * @return linked spots
+    */
+   public static List<SpotData> linkTracks(RowData rowData, double maxDistance) {
+      boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
+      int nr = rowData.nrSlices_;
+      if (useFrames) {
+         nr = rowData.nrFrames_;
+      }
+
+      // linked spots go here:
+      List<SpotData> destList = new ArrayList<SpotData>();
+      // maintain active tracks here
+      List< List<SpotData>> tracks = 
+              new ArrayList<List<SpotData>>();
+      for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
+         for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
+            for (int s = 1; s <= rowData.nrSlices_; s++) {
+               for (int f = 1; f <= rowData.nrFrames_; f++) {
+                  List<SpotData> spots = rowData.get(f, s, ch, pos);
+                  if (spots != null) {
+                     // keep track of spots in this frame added to tracks 
+                     List<SpotData> markedSpots = new ArrayList<SpotData>();
+                     // go through all tracks to see if they can be extended
+                     if (tracks.size() > 0) {
+                        ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
+                        for (SpotData spot : spots) {
+                           gsSpots.add(new GsSpotPair(spot,
+                                   new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
+                                   new Point2D.Double(0.0, 0.0)));
+                        }
+                        NearestPointGsSpotPair nsp = new NearestPointGsSpotPair(gsSpots, maxDistance);
+                        List<List<SpotData>> removedTracks = 
+                                new ArrayList<List<SpotData>>();
+                        for (List<SpotData> track : tracks) {
+                           SpotData tSpot = track.get(track.size() - 1);
+                           GsSpotPair newSpot = nsp.findKDWSE(new Point2D.Double(
+                                   tSpot.getXCenter(), tSpot.getYCenter()));
+                           if (newSpot == null) {
+                              // track could not be extended, finalize it
+                              linkSpots(track, destList, useFrames);
+                              // and remove from the list of tracks
+                              // to avoid a concurrent modification exception
+                              // the removal needs to be a two step process
+                              removedTracks.add(track);
+                           } else {
+                              track.add(newSpot.getGSD());
+                              markedSpots.add(newSpot.getGSD());
+                           }
+                        }
+                        // second part of removing tracks
+                        for (List<SpotData> track : removedTracks) {
+                           tracks.remove(track);
+                        }
+                     }
+                     // go through spots and start a new track with any spot 
+                     // that was not part of a track
+                     for (SpotData spot : spots) {
+                        if (!markedSpots.contains(spot)) {
+                           List<SpotData> track = new ArrayList<SpotData>();
+                           track.add(spot);
+                           tracks.add(track);
+                        }
+                     }
+                  }
+               }
+               // add tracks that made it to the end to destination list
+               for (List<SpotData> track : tracks) {
+                  linkSpots(track, destList, useFrames);
+               }
+               tracks.clear();
+            }
+         }
+      }
+      return destList;
+   }
+
    /**
     * Given a list of linked spots, create a single spot entry that will be
     * added to the destination list
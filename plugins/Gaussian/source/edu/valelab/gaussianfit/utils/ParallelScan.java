@@ -0,0 +1,120 @@
+/**
+ * ParallelScan
+ *
+ * Runs a loop over a range of indices on all ImageJ threads
+ *
+ * Copyright UCSF, 2014
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+package edu.valelab.gaussianfit.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits 0..n into consecutive ranges and hands them to a shared pool of
+ * daemon threads.  Used for scans over the columns of a SpotColumns store and
+ * for rendering bands of an image.  A Range must only write to elements
+ * (or pixels) that belong to it.
+ *
+ * @author nico
+ */
+public class ParallelScan {
+
+   public interface Range {
+      /**
+       * Processes indices start (inclusive) to end (exclusive)
+       */
+      void run(int start, int end);
+   }
+
+   // Ranges per thread, so that uneven ranges even out
+   private static final int RANGES_PER_THREAD = 4;
+   // Below this, the overhead of handing out work is not worth it
+   private static final int MIN_RANGE = 4096;
+
+   private static ThreadPoolExecutor executor_ = null;
+
+   private static synchronized ThreadPoolExecutor getExecutor() {
+      int nrThreads = Math.max(1, ij.Prefs.getThreads());
+      if (executor_ == null || executor_.getMaximumPoolSize() != nrThreads) {
+         if (executor_ != null) {
+            executor_.shutdown();
+         }
+         executor_ = new ThreadPoolExecutor(nrThreads, nrThreads,
+                 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                 new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                       Thread t = new Thread(r, "Spot scan");
+                       t.setDaemon(true);
+                       return t;
+                    }
+                 });
+         executor_.allowCoreThreadTimeOut(true);
+      }
+      return executor_;
+   }
+
+   /**
+    * Runs range over 0..n, and returns when all of it is done
+    *
+    * @param n - number of indices
+    * @param minRange - smallest number of indices worth giving to a thread
+    * @param range - work to do
+    */
+   public static void forRange(int n, int minRange, final Range range) {
+      ThreadPoolExecutor executor = getExecutor();
+      int nrRanges = Math.min(executor.getMaximumPoolSize() * RANGES_PER_THREAD,
+              n / Math.max(1, minRange));
+      if (nrRanges <= 1) {
+         range.run(0, n);
+         return;
+      }
+      List<Future<?>> futures = new ArrayList<Future<?>>(nrRanges);
+      for (int i = 0; i < nrRanges; i++) {
+         final int start = (int) ((long) n * i / nrRanges);
+         final int end = (int) ((long) n * (i + 1) / nrRanges);
+         futures.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+               range.run(start, end);
+            }
+         }));
+      }
+      try {
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } catch (InterruptedException ie) {
+         for (Future<?> future : futures) {
+            future.cancel(true);
+         }
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         throw new RuntimeException(cause);
+      }
+   }
+
+   /**
+    * Runs range over 0..n, in ranges of at least a few thousand indices
+    */
+   public static void forRange(int n, final Range range) {
+      forRange(n, MIN_RANGE, range);
+   }
+}
@@ -0,0 +1,51 @@
+package edu.valelab.gaussianfit.spotoperations;
+
+import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
+import edu.valelab.gaussianfit.data.RowData;
+import edu.valelab.gaussianfit.data.SpotColumns;
+import edu.valelab.gaussianfit.data.SpotData;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SpotLinkerTest {
+   private static final int NR_FRAMES = 4;
+
+   // Two spots per frame, each drifting a little from frame to frame
+   private static RowData twoTracks() {
+      SpotColumns spots = new SpotColumns();
+      for (int frame = 1; frame <= NR_FRAMES; frame++) {
+         for (int track = 0; track < 2; track++) {
+            SpotData spot = new SpotData(null, 1, 1, frame, 1, track, 0, 0);
+            double x = 100.0 + 400.0 * track + frame;
+            double y = 100.0 + 400.0 * track - frame;
+            spot.setData(1000.0, 10.0, x, y, 0.0, 250.0, 1.0, 0.0, 5.0);
+            spots.add(spot);
+         }
+      }
+      return new RowData("test", "test", "", 512, 512, 100.0f, 0.0f, 1, 3,
+              1, NR_FRAMES, 1, 1, 2, spots, new ArrayList<Double>(), false,
+              Coordinates.NM, false, 0.0, 0.0);
+   }
+
+   @Test
+   public void viewsOfTheSameSpotAreEqual() {
+      RowData row = twoTracks();
+      assertEquals(row.spotList_.get(1), row.spotList_.get(1));
+      assertEquals(row.spotList_.get(1).hashCode(), row.spotList_.get(1).hashCode());
+      assertFalse(row.spotList_.get(0).equals(row.spotList_.get(1)));
+      List<SpotData> frameSpots = row.get(2, 1, 1, 1);
+      assertTrue(frameSpots.contains(row.get(2, 1, 1, 1).get(0)));
+   }
+
+   @Test
+   public void eachTrackIsLinkedOnce() {
+      List<SpotData> linked = SpotLinker.linkTracks(twoTracks(), 10.0);
+      assertEquals(2, linked.size());
+      for (SpotData spot : linked) {
+         assertEquals(NR_FRAMES, spot.nrLinks_);
+         assertEquals(1, spot.originalFrame_);
+      }
+   }
+}
@@ -29,10 +29,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.micromanager.plugins.magellan.json.JSONArray;
@@ -50,6 +60,17 @@ import org.micromanager.plugins.magellan.misc.MD;
  * direction. This condition ensures that pixels will always be divisible by the
  * downsample factor without truncation
  *
+ * Lower resolutions are computed on downsampling threads, not in putImage.
+ * All tiles of one channel, slice and frame go to the same thread, so that two
+ * threads never update the same lower resolution tile. Updated lower
+ * resolution tiles are kept in memory and written once the thread runs out of
+ * work, so that the 4 (16, 64...) tiles that make up a lower resolution tile
+ * cost one write instead of one per tile. The display reads tiles that were not
+ * written yet from memory.
+ *
+ * Tiles read for display are kept in a least recently used cache, and the
+ * tiles that come into view next when panning or scrolling through z are read
+ * ahead on a prefetch thread.
  */
 public class MultiResMultipageTiffStorage {
 
@@ -74,6 +95,56 @@ public class MultiResMultipageTiffStorage {
    private BDVXMLWriter bdvXML_;
    private int currentTP_ = -1;
    private boolean rgb_;
+   private static final int MAX_DOWNSAMPLING_THREADS = 4;
+   //full res tiles waiting for downsampling before putImage waits
+   private static final int MAX_QUEUED_TILES = 32;
+   //lower res tiles a downsampling thread holds in memory before writing them
+   private static final int MAX_PENDING_TILES_PER_THREAD = 64;
+   private ThreadPoolExecutor[] downsamplingExecutors_;
+   private int[] pendingTileCounts_; //per executor; only changed by its own thread or with the write lock held
+   private final Semaphore queuedTiles_ = new Semaphore(MAX_QUEUED_TILES);
+   //lower res tiles updated but not yet written, by resolution index and label
+   private final ConcurrentHashMap<String, PendingTile> pendingTiles_ = new ConcurrentHashMap<String, PendingTile>();
+   //downsampling holds the read lock, changes to the set of resolution levels the write lock
+   private final ReentrantReadWriteLock levelsLock_ = new ReentrantReadWriteLock();
+   //decoded tiles for getImageForDisplay, by resolution index and label
+   private final TileCache tileCache_ = new TileCache(TileCache.defaultBudget());
+   //tile reads queued ahead of panning and z scrolling; the oldest are dropped
+   private static final int MAX_QUEUED_PREFETCHES = 64;
+   private final ThreadPoolExecutor prefetchExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+           new LinkedBlockingQueue<Runnable>(MAX_QUEUED_PREFETCHES), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Magellan tile prefetch thread");
+         t.setDaemon(true);
+         return t;
+      }
+   }, new ThreadPoolExecutor.DiscardOldestPolicy());
+   //channel, slice, frame, resolution index, x and y of the last display request
+   private volatile long[] lastDisplayView_;
+
+   /**
+    * Lower resolution tile that is being updated in memory
+    */
+   private static class PendingTile {
+      final int resIndex, channel, slice, frame, position, executorIndex;
+      final Object pix;
+      final JSONObject tags;
+      final boolean inStorage;
+
+      PendingTile(int resIndex, int channel, int slice, int frame, int position, int executorIndex,
+              Object pix, JSONObject tags, boolean inStorage) {
+         this.resIndex = resIndex;
+         this.channel = channel;
+         this.slice = slice;
+         this.frame = frame;
+         this.position = position;
+         this.executorIndex = executorIndex;
+         this.pix = pix;
+         this.tags = tags;
+         this.inStorage = inStorage;
+      }
+   }
    
    /**
     * Constructor to load existing storage from disk
@@ -100,6 +171,7 @@ public class MultiResMultipageTiffStorage {
          lowResStorages_.put(resIndex, new TaggedImageStorageMultipageTiff(dsDir, false, null));
          resIndex++;         
       }
+      startDownsamplingExecutors();
          
       //create position manager
       try {
@@ -171,6 +243,7 @@ public class MultiResMultipageTiffStorage {
          Log.log("couldn't create Full res storage", true);
       }
       lowResStorages_ = new TreeMap<Integer, TaggedImageStorageMultipageTiff>();
+      startDownsamplingExecutors();
       try {
          bdvXML_ = new BDVXMLWriter(new File(directory_), fullResStorage_.getNumChannels(), MD.getBytesPerPixel(summaryMD_));
       } catch (IOException ex) {
@@ -354,23 +427,18 @@ public class MultiResMultipageTiffStorage {
    public MagellanTaggedImage loadSubvolume(int channel, int frame, int resIndex,
            int xStart, int yStart, int zStart, int width, int height, int depth) {
       JSONObject metadata = null;
+      Object pix;
       if (byteDepth_ == 1) {
-         byte[] pix = new byte[width*height*depth];
-         for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
-            metadata = image.tags;
-            System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
-         }
-         return new MagellanTaggedImage(pix, metadata);
+         pix = new byte[width*height*depth];
       } else {
-         short[] pix = new short[width*height*depth];
-         for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
-            metadata = image.tags;
-            System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
-         }
-         return new MagellanTaggedImage(pix, metadata);
+         pix = new short[width*height*depth];
+      }
+      //read each slice straight into the volume
+      for (int z = zStart; z < zStart + depth; z++ ) {
+         metadata = readDisplayTiles(channel, z, frame, resIndex, xStart, yStart, width, height,
+                 pix, (z-zStart)*(width*height));
       }
+      return new MagellanTaggedImage(pix, metadata);
    }
 
    /**
@@ -392,112 +460,185 @@ public class MultiResMultipageTiffStorage {
    public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
            int width, int height) {
       Object pixels;
-       if (rgb_) {
-          pixels = new byte[width * height * 4];
-       } else {
-           if (byteDepth_ == 1) {
-               pixels = new byte[width * height];
-               if (backgroundPix_.containsKey(channel)) {
-                   Arrays.fill((byte[]) pixels, (byte) getBackgroundPixelValue(channel));
-               }
-           } else {
-               pixels = new short[width * height];
-               if (backgroundPix_.containsKey(channel)) {
-                   Arrays.fill((short[]) pixels, (short) getBackgroundPixelValue(channel));
-               }
-           }
-       }
+      if (rgb_) {
+         pixels = new byte[width * height * 4];
+      } else if (byteDepth_ == 1) {
+         pixels = new byte[width * height];
+      } else {
+         pixels = new short[width * height];
+      }
+      JSONObject topLeftMD = readDisplayTiles(channel, slice, frame, dsIndex, x, y, width, height, pixels, 0);
+      prefetchAround(channel, slice, frame, dsIndex, x, y, width, height);
+      return new MagellanTaggedImage(pixels, topLeftMD);
+   }
+
+   /**
+    * Copy the tiles covering a subimage into pixels, starting at pixOffset
+    * @return metadata of the top left tile, or null if no pixel data is present
+    */
+   private JSONObject readDisplayTiles(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height, Object pixels, int pixOffset) {
+      if (!rgb_ && backgroundPix_.containsKey(channel)) {
+         if (byteDepth_ == 1) {
+            Arrays.fill((byte[]) pixels, pixOffset, pixOffset + width * height, (byte) getBackgroundPixelValue(channel));
+         } else {
+            Arrays.fill((short[]) pixels, pixOffset, pixOffset + width * height, (short) getBackgroundPixelValue(channel));
+         }
+      }
       //go line by line through one column of tiles at a time, then move to next column
       JSONObject topLeftMD = null;
-      //first calculate how many columns and rows of tiles are relevant and the number of pixels
-      //of each tile to copy into the returned image
-      long previousCol = tileIndexFromPixelIndex(x, true) - 1; //make it one less than the first col in loop
-      LinkedList<Integer> lineWidths = new LinkedList<Integer>();
-      for (long i = x; i < x + width; i++) { //Iterate through every column of pixels in the image to be returned
-         long colIndex = tileIndexFromPixelIndex(i, true);
-         if (colIndex != previousCol) {
-            lineWidths.add(0);
-         }
-         //Increment current width
-         lineWidths.add(lineWidths.removeLast() + 1);
-         previousCol = colIndex;
-      }
-      //do the same thing for rows
-      long previousRow = tileIndexFromPixelIndex(y, false) - 1; //one less than first row in loop?
-      LinkedList<Integer> lineHeights = new LinkedList<Integer>();
-      for (long i = y; i < y + height; i++) {
-         long rowIndex = tileIndexFromPixelIndex(i, false);
-         if (rowIndex != previousRow) {
-            lineHeights.add(0);
-         }
-         //add one to pixel count of current height
-         lineHeights.add(lineHeights.removeLast() + 1);
-         previousRow = rowIndex;
-      }
-      //get starting row and column
+      int multiplier = rgb_ ? 4 : 1;
       long rowStart = tileIndexFromPixelIndex(y, false);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
       long colStart = tileIndexFromPixelIndex(x, true);
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
       //xOffset and y offset are the distance from the top left of the display image into which 
       //we are copying data
       int xOffset = 0;
-      for (long col = colStart; col < colStart + lineWidths.size(); col++) {
+      for (long col = colStart; col <= colEnd; col++) {
+         //first pixel of this column of tiles in view, and number of pixels of it in view
+         long left = Math.max(col * tileWidth_, x);
+         int lineWidth = (int) (Math.min((col + 1) * tileWidth_, x + width) - left);
+         int tileXPix = (int) (left - col * tileWidth_);
          int yOffset = 0;
-         for (long row = rowStart; row < rowStart + lineHeights.size(); row++) {
-            MagellanTaggedImage tile = null;          
-            if (dsIndex == 0) {
-               tile = fullResStorage_.getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            } else {               
-               tile = lowResStorages_.get(dsIndex) == null ? null : 
-                       lowResStorages_.get(dsIndex).getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            }
-            if (tile == null) {
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue; //If no data present for this tile go on to next one
-            } else if ( (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
-                    (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0))  {
+         for (long row = rowStart; row <= rowEnd; row++) {
+            long top = Math.max(row * tileHeight_, y);
+            int lineHeight = (int) (Math.min((row + 1) * tileHeight_, y + height) - top);
+            int tileYPix = (int) (top - row * tileHeight_);
+            MagellanTaggedImage tile = getDisplayTile(channel, slice, frame, dsIndex, row, col);
+            if (tile == null || isEmpty(tile)) {
                //Somtimes an inability to read IFDs soon after they are written results in an image being read 
                //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
                //a black flickering during acquisition
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue;
+               yOffset += lineHeight; //increment y offset so new tiles appear in correct position
+               continue; //If no data present for this tile go on to next one
             }
             //take top left tile for metadata
             if (topLeftMD == null) {
                topLeftMD = tile.tags;
             }
+            int srcX = tileXPix;
+            int srcY = tileYPix;
+            int tileRowLength = tileWidth_;
+            if (dsIndex == 0) {
+               //account for overlaps when viewing full resolution tiles
+               srcY += yOverlap_ / 2;
+               srcX += xOverlap_ / 2;
+               tileRowLength = fullResTileWidthIncludingOverlap_;
+            }
             //Copy pixels into the image to be returned
-            //yOffset is how many rows from top of viewable area, y is top of image to top of area
-            for (int line = yOffset; line < lineHeights.get((int)(row - rowStart)) + yOffset; line++) {
-               int tileYPix = (int) ((y + line) % tileHeight_);
-               int tileXPix = (int) ((x + xOffset) % tileWidth_);                   
-               //make sure tile pixels are positive
-               while (tileXPix < 0) {
-                  tileXPix += tileWidth_;
-               }
-               while (tileYPix < 0) {
-                  tileYPix += tileHeight_;
-               }
-               try {
-                  int multiplier = rgb_ ? 4 : 1; 
-                  if (dsIndex == 0) {
-                     //account for overlaps when viewing full resolution tiles
-                     tileYPix += yOverlap_ / 2;
-                     tileXPix += xOverlap_ / 2;
-                     System.arraycopy(tile.pix, multiplier*(tileYPix * fullResTileWidthIncludingOverlap_ + tileXPix), pixels, (xOffset + width * line)*multiplier, multiplier*lineWidths.get((int) (col - colStart)));                 
-                  } else {
-                     System.arraycopy(tile.pix, multiplier*(tileYPix * tileWidth_ + tileXPix), pixels, multiplier*(xOffset + width * line), multiplier*lineWidths.get((int)(col - colStart)));
-                  }
-               } catch (Exception e) {
-                  e.printStackTrace();
-                  Log.log("Problem copying pixels");
+            try {
+               for (int line = 0; line < lineHeight; line++) {
+                  System.arraycopy(tile.pix, multiplier * ((srcY + line) * tileRowLength + srcX), pixels,
+                          pixOffset + multiplier * (xOffset + width * (yOffset + line)), multiplier * lineWidth);
                }
+            } catch (Exception e) {
+               e.printStackTrace();
+               Log.log("Problem copying pixels");
             }
-            yOffset += lineHeights.get((int)(row - rowStart));
+            yOffset += lineHeight;
+         }
+         xOffset += lineWidth;
+      }
+      return topLeftMD;
+   }
+
+   private static boolean isEmpty(MagellanTaggedImage tile) {
+      return (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0)
+              || (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0);
+   }
 
+   /**
+    * Tile at a row and column of a resolution level, from the tiles being
+    * downsampled, the cache, or disk
+    */
+   private MagellanTaggedImage getDisplayTile(int channel, int slice, int frame, int dsIndex, long row, long col) {
+      int position = posManager_.getPositionIndexFromTilePosition(dsIndex, row, col);
+      if (position == -1) {
+         return null;
+      }
+      String key = tileKey(dsIndex, channel, slice, frame, position);
+      if (dsIndex > 0) {
+         PendingTile pending = pendingTiles_.get(key);
+         if (pending != null) {
+            return new MagellanTaggedImage(pending.pix, pending.tags);
+         }
+      }
+      MagellanTaggedImage tile = tileCache_.get(key);
+      if (tile != null) {
+         return tile;
+      }
+      TaggedImageStorageMultipageTiff storage = dsIndex == 0 ? fullResStorage_ : lowResStorages_.get(dsIndex);
+      if (storage == null) {
+         return null;
+      }
+      long stamp = tileCache_.getStamp(key);
+      tile = storage.getImage(channel, slice, frame, position);
+      if (tile != null && !isEmpty(tile)) {
+         tileCache_.put(key, tile, stamp);
+      }
+      return tile;
+   }
+
+   /**
+    * Queue reads of the tiles that are likely to be displayed next: those
+    * beyond the edge of the view in the direction of panning, the same view in
+    * the next slice when scrolling through z, and otherwise the view in both
+    * neighboring slices
+    */
+   private void prefetchAround(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height) {
+      long[] view = new long[]{channel, slice, frame, dsIndex, x, y};
+      long[] last = lastDisplayView_;
+      lastDisplayView_ = view;
+      if (Arrays.equals(view, last)) {
+         return; //only repainting
+      }
+      long rowStart = tileIndexFromPixelIndex(y, false);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
+      long colStart = tileIndexFromPixelIndex(x, true);
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      if (last != null && last[0] == channel && last[2] == frame && last[3] == dsIndex) {
+         long dx = Long.signum(x - last[4]);
+         long dy = Long.signum(y - last[5]);
+         long dz = Long.signum(slice - last[1]);
+         if (dx != 0) {
+            long col = dx > 0 ? colEnd + 1 : colStart - 1;
+            prefetchTiles(channel, slice, frame, dsIndex, rowStart, rowEnd, col, col);
+         }
+         if (dy != 0) {
+            long row = dy > 0 ? rowEnd + 1 : rowStart - 1;
+            prefetchTiles(channel, slice, frame, dsIndex, row, row, colStart, colEnd);
+         }
+         if (dz != 0) {
+            prefetchTiles(channel, (int) (slice + dz), frame, dsIndex, rowStart, rowEnd, colStart, colEnd);
+         }
+         if (dx != 0 || dy != 0 || dz != 0) {
+            return;
+         }
+      }
+      prefetchTiles(channel, slice + 1, frame, dsIndex, rowStart, rowEnd, colStart, colEnd);
+      prefetchTiles(channel, slice - 1, frame, dsIndex, rowStart, rowEnd, colStart, colEnd);
+   }
+
+   private void prefetchTiles(final int channel, final int slice, final int frame, final int dsIndex,
+           long rowStart, long rowEnd, long colStart, long colEnd) {
+      for (long row = rowStart; row <= rowEnd; row++) {
+         for (long col = colStart; col <= colEnd; col++) {
+            final long tileRow = row;
+            final long tileCol = col;
+            prefetchExecutor_.execute(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     getDisplayTile(channel, slice, frame, dsIndex, tileRow, tileCol);
+                  } catch (Exception e) {
+                     Log.log("Couldn't prefetch tile");
+                  }
+               }
+            });
          }
-         xOffset += lineWidths.get((int)(col - colStart));
       }
-      return new MagellanTaggedImage(pixels, topLeftMD);
    }
    
    /**
@@ -505,13 +646,18 @@ public class MultiResMultipageTiffStorage {
     * @param resIndex 
     */
    public void initializeToLevel(int resIndex) {
-      //create a null pointer in lower res storages to signal addToLoResStorage function
-      //to continue downsampling to this level
-      for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
-         lowResStorages_.put(i, null);
+      levelsLock_.writeLock().lock();
+      try {
+         //create a null pointer in lower res storages to signal ensureLowResLevels
+         //to continue downsampling to this level
+         for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
+            lowResStorages_.put(i, null);
+         }
+         //Make sure position nodes for lower resolutions are created if they weren't automatically
+         posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
+      } finally {
+         levelsLock_.writeLock().unlock();
       }
-      //Make sure position nodes for lower resolutions are created if they weren't automatically
-      posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
    }
 
    /**
@@ -523,194 +669,302 @@ public class MultiResMultipageTiffStorage {
             //nothing to downsample
             return false;
          }
-         //create a null pointer in lower res storages to signal addToLoResStorage function
-         //to continue downsampling to this level
-         lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
-         //update position manager to reflect addition of new resolution level
-         posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
-         String aLabel = fullResStorage_.imageKeys().iterator().next();
-         int[] indices = MD.getIndices(aLabel);
-         MagellanTaggedImage anImage = fullResStorage_.getImage(indices[0], indices[1], indices[2], indices[3]);         
-         addToLowResStorage(anImage, 0, indices[3]);
+         levelsLock_.writeLock().lock();
+         try {
+            //create a null pointer in lower res storages to signal ensureLowResLevels
+            //to continue downsampling to this level
+            lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
+            //update position manager to reflect addition of new resolution level
+            posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
+            ensureLowResLevels();
+         } finally {
+            levelsLock_.writeLock().unlock();
+         }
          return true;
       }
    }
-   
-   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int fullResPositionIndex) {
-      //Read indices
-      int channel = MD.getChannelIndex(img.tags);
-      int slice = MD.getSliceIndex(img.tags);
-      int frame = MD.getFrameIndex(img.tags);
 
-      if (estimateBackground_) {
-         readBackgroundPixelValue(channel, img); //find a background pixel value in the first image
+   private void startDownsamplingExecutors() {
+      int numThreads = Math.max(1, Math.min(MAX_DOWNSAMPLING_THREADS, Runtime.getRuntime().availableProcessors()));
+      downsamplingExecutors_ = new ThreadPoolExecutor[numThreads];
+      pendingTileCounts_ = new int[numThreads];
+      for (int i = 0; i < numThreads; i++) {
+         downsamplingExecutors_[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Magellan downsampling thread");
+               t.setDaemon(true);
+               return t;
+            }
+         });
       }
-      Object previousLevelPix = img.pix;
-      int resolutionIndex = previousResIndex + 1;
-      
-      //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
-      //or keep going until lowest user created resolution exists
-      while (lowResStorages_.containsKey(resolutionIndex) ||
-              (posManager_.getNumRows() >= Math.pow(2, resolutionIndex) || posManager_.getNumCols() >= Math.pow(2, resolutionIndex)) ) {
-
-         //See if storage level exists
-         if (!lowResStorages_.containsKey(resolutionIndex) || lowResStorages_.get(resolutionIndex) == null) {
-            createDownsampledStorage(resolutionIndex);
-            //add all tiles from existing resolution levels to this new one            
-            TaggedImageStorageMultipageTiff previousLevelStorage;
-            if (resolutionIndex == 1) {
-               previousLevelStorage = fullResStorage_;
-            } else {
-               previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
-            }            
-            Set<String> imageKeys = previousLevelStorage.imageKeys();
-            for (String key : imageKeys) {
-               String[] indices = key.split("_");
-               MagellanTaggedImage ti = previousLevelStorage.getImage(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
-                       Integer.parseInt(indices[2]), Integer.parseInt(indices[3]));
-               addToLowResStorage(ti, resolutionIndex - 1, posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1)); 
+   }
+
+   /**
+    * @return the executor that downsamples all tiles of this channel, slice and frame
+    */
+   private int executorIndexFor(int channel, int slice, int frame) {
+      int hash = (channel * 31 + slice) * 31 + frame;
+      return Math.abs(hash % downsamplingExecutors_.length);
+   }
+
+   private static String tileKey(int resIndex, int channel, int slice, int frame, int position) {
+      return resIndex + "_" + MD.generateLabel(channel, slice, frame, position);
+   }
+
+   /**
+    * Queue a full resolution tile for downsampling into all lower resolution levels.
+    * The caller has acquired a permit from queuedTiles_, which is released when done
+    */
+   private void submitForDownsampling(final MagellanTaggedImage img) {
+      final int executorIndex = executorIndexFor(MD.getChannelIndex(img.tags),
+              MD.getSliceIndex(img.tags), MD.getFrameIndex(img.tags));
+      downsamplingExecutors_[executorIndex].submit(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               downsampleTile(img, executorIndex);
+            } catch (Exception e) {
+               Log.log("Couldn't add tile to lower resolutions");
+               Log.log(e);
+            } finally {
+               queuedTiles_.release();
             }
-            return; //this will include the higher res tile intially added, so can return here and
-            //not worry about having to add it again
-         }
-         //Create pixels or get appropriate pixels to add to
-         MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame,
-                 posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-         Object currentLevelPix;
-         if (existingImage == null) {
-             if (rgb_) {
-                 currentLevelPix = new byte[tileWidth_ * tileHeight_ * 4];
-             } else if (byteDepth_ == 1) {
-                 currentLevelPix = new byte[tileWidth_ * tileHeight_];
-             } else {
-                 currentLevelPix = new short[tileWidth_ * tileHeight_];
-             }         
-            //fill in with background pixel value
-            if (rgb_) {
-                //whatever
-            }else if (byteDepth_ == 1) {
-               Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(channel));
-            } else {
-               Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(channel));
+         }
+      });
+   }
+
+   /**
+    * Runs on a downsampling thread
+    */
+   private void downsampleTile(MagellanTaggedImage img, int executorIndex) {
+      levelsLock_.readLock().lock();
+      try {
+         if (!lowResLevelsReady()) {
+            //a lock cannot be upgraded, so let go of the read lock to add levels
+            levelsLock_.readLock().unlock();
+            try {
+               synchronized (this) {
+                  levelsLock_.writeLock().lock();
+                  try {
+                     ensureLowResLevels();
+                  } finally {
+                     levelsLock_.writeLock().unlock();
+                  }
+               }
+            } finally {
+               levelsLock_.readLock().lock();
             }
+         }
+         addToLowResStorage(img, 0, Integer.MAX_VALUE, MD.getPositionIndex(img.tags), executorIndex);
+         //write when there is no more work, or when too much is held in memory
+         if (downsamplingExecutors_[executorIndex].getQueue().isEmpty()
+                 || pendingTileCounts_[executorIndex] >= MAX_PENDING_TILES_PER_THREAD) {
+            writePendingTiles(executorIndex);
+         }
+      } finally {
+         levelsLock_.readLock().unlock();
+      }
+   }
+
+   /**
+    * Waits until all queued tiles are downsampled and written
+    */
+   private void waitForDownsampling() {
+      List<Future<?>> done = new ArrayList<Future<?>>();
+      for (int i = 0; i < downsamplingExecutors_.length; i++) {
+         final int executorIndex = i;
+         done.add(downsamplingExecutors_[i].submit(new Runnable() {
+            @Override
+            public void run() {
+               levelsLock_.readLock().lock();
+               try {
+                  writePendingTiles(executorIndex);
+               } finally {
+                  levelsLock_.readLock().unlock();
+               }
+            }
+         }));
+      }
+      try {
+         for (Future<?> f : done) {
+            f.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         Log.log("Couldn't write lower resolution tiles");
+      }
+   }
+
+   /**
+    * Auto downsample until max number of tiles in either direction is less than the highest dsFactor
+    * or keep going until lowest user created resolution exists
+    */
+   private boolean isLevelNeeded(int resIndex) {
+      return lowResStorages_.containsKey(resIndex) || posManager_.getNumRows() >= Math.pow(2, resIndex)
+              || posManager_.getNumCols() >= Math.pow(2, resIndex);
+   }
+
+   private boolean lowResLevelsReady() {
+      for (int resIndex = 1; isLevelNeeded(resIndex); resIndex++) {
+         if (lowResStorages_.get(resIndex) == null) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Creates the storage for missing resolution levels and adds all tiles of the
+    * level above to them. Call with the write lock held.
+    */
+   private void ensureLowResLevels() {
+      writePendingTiles(-1);
+      for (int resolutionIndex = 1; isLevelNeeded(resolutionIndex); resolutionIndex++) {
+         if (lowResStorages_.get(resolutionIndex) != null) {
+            continue;
+         }
+         createDownsampledStorage(resolutionIndex);
+         //add all tiles from existing resolution levels to this new one            
+         TaggedImageStorageMultipageTiff previousLevelStorage;
+         if (resolutionIndex == 1) {
+            previousLevelStorage = fullResStorage_;
          } else {
-            currentLevelPix = existingImage.pix; 
-         }     
+            previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
+         }            
+         Set<String> imageKeys = previousLevelStorage.imageKeys();
+         for (String key : imageKeys) {
+            String[] indices = key.split("_");
+            int channel = Integer.parseInt(indices[0]);
+            int slice = Integer.parseInt(indices[1]);
+            int frame = Integer.parseInt(indices[2]);
+            MagellanTaggedImage ti = previousLevelStorage.getImage(channel, slice, frame, Integer.parseInt(indices[3]));
+            if (ti == null) {
+               continue;
+            }
+            addToLowResStorage(ti, resolutionIndex - 1, resolutionIndex,
+                    posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1),
+                    executorIndexFor(channel, slice, frame));
+         }
+         writePendingTiles(-1);
+      }
+   }
 
-         
+   /**
+    * Downsample a tile into the tiles containing it at the lower resolution levels
+    * previousResIndex + 1 to lastResIndex that exist. Call with a lock held.
+    */
+   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int lastResIndex,
+           int fullResPositionIndex, int executorIndex) {
+      //Read indices
+      int channel = MD.getChannelIndex(img.tags);
+      int slice = MD.getSliceIndex(img.tags);
+      int frame = MD.getFrameIndex(img.tags);
+
+      Object previousLevelPix = img.pix;
+      for (int resolutionIndex = previousResIndex + 1; resolutionIndex <= lastResIndex
+              && lowResStorages_.get(resolutionIndex) != null; resolutionIndex++) {
+         PendingTile tile = getPendingTile(img, resolutionIndex, channel, slice, frame,
+                 fullResPositionIndex, executorIndex);
          //Determine which position in 2x2 this tile sits in
          int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
          int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
-         //Add one if top or left so border pixels from an odd length image gets added in
-         for (int x = 0; x < tileWidth_; x += 2) { //iterate over previous res level pixels
-            for (int y = 0; y < tileHeight_; y += 2) {
-               //average a square of 4 pixels from previous level
-               //edges: if odd number of pixels in tile, round to determine which
-               //tiles pixels make it to next res level
-               
-               //these are the indices of pixels at the previous res level, which are offset
-               //when moving from res level 0 to one as we throw away the overlapped image edges
-               int pixelX, pixelY, previousLevelWidth, previousLevelHeight; 
-               if ( resolutionIndex == 1 ) {                  
-                  //add offsets to account for overlap pixels at resolution level 0
-                  pixelX = x + xOverlap_ / 2;
-                  pixelY = y + yOverlap_ /2;
-                  previousLevelWidth = fullResTileWidthIncludingOverlap_;
-                  previousLevelHeight = fullResTileHeightIncludingOverlap_;
-               } else {
-                  pixelX = x;
-                  pixelY = y;
-                  previousLevelWidth = tileWidth_;
-                  previousLevelHeight = tileHeight_;
+         if (resolutionIndex == 1) {
+            //leave out the overlap pixels at resolution level 0
+            PyramidDownsampler.downsample(previousLevelPix, fullResTileWidthIncludingOverlap_,
+                    fullResTileHeightIncludingOverlap_, xOverlap_ / 2, yOverlap_ / 2, tile.pix,
+                    tileWidth_, tileHeight_, xPos, yPos, rgb_);
+         } else {
+            PyramidDownsampler.downsample(previousLevelPix, tileWidth_, tileHeight_, 0, 0, tile.pix,
+                    tileWidth_, tileHeight_, xPos, yPos, rgb_);
+         }
+         //go on to next level of downsampling
+         previousLevelPix = tile.pix;
+      }
+   }
 
-               }
-                int rgbMultiplier_ = rgb_ ? 4 : 1;
-                for (int compIndex = 0; compIndex < (rgb_ ? 3 : 1); compIndex++) {
-                    int count = 1; //count is number of pixels (out of 4) used to create a pixel at this level
-                    //always take top left pixel, maybe take others depending on whether at image edge
-                    int sum = 0;
-                    if (byteDepth_ == 1 || rgb_) {
-                        sum += ((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX)*rgbMultiplier_ + compIndex] & 0xff;
-                    } else {
-                        sum += ((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX)*rgbMultiplier_ + compIndex] & 0xffff;
-                    }
-
-                    //pixel index can be different from index in tile at resolution level 0 if there is nonzero overlap
-                    if (x < previousLevelWidth - 1 && y < previousLevelHeight - 1) { //if not bottom right corner, add three more pix
-                        count += 3;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += (((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff)
-                                    + (((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff)
-                                    + (((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xff);
-                        } else {
-                            sum += (((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff)
-                                    + (((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff)
-                                    + (((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xffff);
-                        }
-                    } else if (x < previousLevelWidth - 1) { //if not right edge, add one more pix
-                        count++;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += ((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff;
-                        } else {
-                            sum += ((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff;
-                        }
-                    } else if (y < previousLevelHeight - 1) { // if not bottom edge, add one more pix
-                        count++;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += ((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xff;
-                        } else {
-                            sum += ((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xffff;
-                        }
-                    } else {
-                        //it is the bottom right corner, no more pix to add
-                    }
-                    //add averaged pixel into appropriate quadrant of current res level
-                    //if full res tile has an odd number of pix, the last one gets chopped off
-                    //to make it fit into tile containers
-                    try {
-                        int index = (((y + yPos * tileHeight_) / 2) * tileWidth_ + (x + xPos * tileWidth_) / 2)*rgbMultiplier_+compIndex;
-                        if (byteDepth_ == 1 || rgb_) {
-                            ((byte[]) currentLevelPix)[index] = (byte) Math.round(sum / count);
-                        } else {
-                            ((short[]) currentLevelPix)[index] = (short) Math.round(sum / count);
-                        }
-                    } catch (Exception e) {
-                        Log.log("Couldn't copy pixels to lower resolution");
-                        e.printStackTrace();
-                        return;
-                    }
-
-                }
-            }
+   /**
+    * @return the tile at resolutionIndex that contains img, from memory, storage, or new
+    */
+   private PendingTile getPendingTile(MagellanTaggedImage img, int resolutionIndex, int channel, int slice,
+           int frame, int fullResPositionIndex, int executorIndex) {
+      int position = posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex);
+      String key = tileKey(resolutionIndex, channel, slice, frame, position);
+      PendingTile tile = pendingTiles_.get(key);
+      if (tile != null) {
+         return tile;
+      }
+      MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame, position);
+      if (existingImage != null) {
+         tile = new PendingTile(resolutionIndex, channel, slice, frame, position, executorIndex,
+                 existingImage.pix, existingImage.tags, true);
+      } else {
+         Object pix;
+         if (rgb_) {
+            pix = new byte[tileWidth_ * tileHeight_ * 4];
+         } else if (byteDepth_ == 1) {
+            pix = new byte[tileWidth_ * tileHeight_];
+            Arrays.fill((byte[]) pix, (byte) getBackgroundPixelValue(channel));
+         } else {
+            pix = new short[tileWidth_ * tileHeight_];
+            Arrays.fill((short[]) pix, (short) getBackgroundPixelValue(channel));
          }
-         
-         //store this tile in the storage class correspondign to this resolution
+         JSONObject tags = null;
          try {
-            if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
-               //create a copy of tags so tags from a different res level arent inadverntanly modified
-               // while waiting for being written to disk
-               JSONObject tags = new JSONObject(img.tags.toString());
-               //modify tags to reflect image size, and correct position index
-               MD.setWidth(tags, tileWidth_);
-               MD.setHeight(tags, tileHeight_);
-               long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
-               long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
-               MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
-               MD.setPositionIndex(tags, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));  
-               lowResStorages_.get(resolutionIndex).putImage(new MagellanTaggedImage(currentLevelPix, tags));
-            } else {
-               //Image already exists, only overwrite pixels to include new tiles
-               lowResStorages_.get(resolutionIndex).overwritePixels(currentLevelPix,
-                       channel, slice, frame, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-            }
+            //create a copy of tags so tags from a different res level arent inadverntanly modified
+            // while waiting for being written to disk
+            tags = new JSONObject(img.tags.toString());
+            //modify tags to reflect image size, and correct position index
+            MD.setWidth(tags, tileWidth_);
+            MD.setHeight(tags, tileHeight_);
+            long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
+            long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
+            MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
+            MD.setPositionIndex(tags, position);
          } catch (Exception e) {
-            e.printStackTrace();
             Log.log("Couldnt modify tags for lower resolution level");
          }
+         tile = new PendingTile(resolutionIndex, channel, slice, frame, position, executorIndex,
+                 pix, tags, false);
+      }
+      pendingTiles_.put(key, tile);
+      pendingTileCounts_[executorIndex]++;
+      tileCache_.invalidate(key);
+      return tile;
+   }
 
-         //go on to next level of downsampling
-         previousLevelPix = currentLevelPix;
-         resolutionIndex++;
+   /**
+    * Write the tiles updated by one downsampling thread, or by all of them for -1,
+    * to the storage of their resolution level
+    */
+   private void writePendingTiles(int executorIndex) {
+      Iterator<PendingTile> it = pendingTiles_.values().iterator();
+      while (it.hasNext()) {
+         PendingTile tile = it.next();
+         if (executorIndex != -1 && tile.executorIndex != executorIndex) {
+            continue;
+         }
+         TaggedImageStorageMultipageTiff storage = lowResStorages_.get(tile.resIndex);
+         try {
+            synchronized (storage) {
+               if (!tile.inStorage) {
+                  //Image doesn't yet exist at this level, so add it
+                  storage.putImage(new MagellanTaggedImage(tile.pix, tile.tags));
+               } else {
+                  //Image already exists, only overwrite pixels to include new tiles
+                  storage.overwritePixels(tile.pix, tile.channel, tile.slice, tile.frame, tile.position);
+               }
+            }
+         } catch (Exception e) {
+            Log.log("Couldn't write lower resolution tile");
+            Log.log(e);
+         }
+         //only now, so that the display finds the tile either here or in storage
+         it.remove();
+         pendingTileCounts_[tile.executorIndex]--;
+         tileCache_.invalidate(tileKey(tile.resIndex, tile.channel, tile.slice, tile.frame, tile.position));
       }
    }
 
@@ -735,11 +989,24 @@ public class MultiResMultipageTiffStorage {
    }
 
    public void putImage(MagellanTaggedImage MagellanTaggedImage)  {
+      try {
+         //wait for room on the downsampling threads before taking the lock,
+         //they take it when they add a resolution level
+         queuedTiles_.acquire();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         Log.log("Interrupted while waiting for downsampling");
+         return;
+      }
+      boolean submitted = false;
       try {
          synchronized (this) {            
             //write to full res storage as normal (i.e. with overlap pixels present)
             fullResStorage_.putImage(MagellanTaggedImage);
-            addToLowResStorage(MagellanTaggedImage, 0, MD.getPositionIndex(MagellanTaggedImage.tags));
+            //find a background pixel value in the first image
+            readBackgroundPixelValue(MD.getChannelIndex(MagellanTaggedImage.tags), MagellanTaggedImage);
+            submitForDownsampling(MagellanTaggedImage);
+            submitted = true;
             if (currentTP_ < MD.getFrameIndex(MagellanTaggedImage.tags)) {
                bdvXML_.addTP();
                currentTP_ = MD.getFrameIndex(MagellanTaggedImage.tags);
@@ -747,17 +1014,33 @@ public class MultiResMultipageTiffStorage {
          }
       } catch (IOException ex) {
          Log.log(ex.toString());
-      } 
+      } finally {
+         if (!submitted) {
+            queuedTiles_.release();
+         }
+      }
    }
    
    public MagellanTaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex, int resLevel) {
       if (resLevel == 0) {
          return fullResStorage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
       } else {
-         return lowResStorages_.get(resLevel).getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+         return getLowResImage(channelIndex, sliceIndex, frameIndex, positionIndex, resLevel);
       }
    }
 
+   /**
+    * Lower resolution tile, including updates that have not been written yet
+    */
+   private MagellanTaggedImage getLowResImage(int channel, int slice, int frame, int position, int resIndex) {
+      PendingTile pending = pendingTiles_.get(tileKey(resIndex, channel, slice, frame, position));
+      if (pending != null) {
+         return new MagellanTaggedImage(pending.pix, pending.tags);
+      }
+      TaggedImageStorageMultipageTiff storage = lowResStorages_.get(resIndex);
+      return storage == null ? null : storage.getImage(channel, slice, frame, position);
+   }
+
    public MagellanTaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       //return a single tile from the full res image
       return fullResStorage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
@@ -772,6 +1055,10 @@ public class MultiResMultipageTiffStorage {
    }
 
    public void finished() {
+      waitForDownsampling();
+      for (ThreadPoolExecutor executor : downsamplingExecutors_) {
+         executor.shutdown();
+      }
       try {
          if (bdvXML_ != null) { //if its not an oened dataset
             bdvXML_.close();
@@ -823,6 +1110,11 @@ public class MultiResMultipageTiffStorage {
                   throw new RuntimeException("closing thread interrupted");
                }
             }
+            for (ThreadPoolExecutor executor : downsamplingExecutors_) {
+               executor.shutdown();
+            }
+            prefetchExecutor_.shutdownNow();
+            tileCache_.clear();
             fullResStorage_.close();
             for (TaggedImageStorageMultipageTiff s : lowResStorages_.values()) {
                s.close();
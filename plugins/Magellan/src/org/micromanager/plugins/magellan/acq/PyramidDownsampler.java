@@ -0,0 +1,180 @@
+///////////////////////////////////////////////////////////////////////////////
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.acq;
+
+/**
+ * 2x2 averaging of one tile into a quadrant of the tile one resolution level
+ * lower, with separate loops for 8 bit, 16 bit and RGB pixels.
+ *
+ * Each output pixel is the truncated mean of the 2x2 square whose top left
+ * pixel is at (x, y) in the source tile, for even x and y. Squares that stick
+ * out over the right or bottom edge of the source use only the pixels inside
+ * it. Those edge columns and rows are handled after the loops over whole
+ * squares, so the inner loops have no edge tests.
+ */
+final class PyramidDownsampler {
+
+   private PyramidDownsampler() {
+   }
+
+   /**
+    * @param src pixels of the higher resolution tile
+    * @param srcWidth row length of src, including overlap
+    * @param srcHeight number of rows of src, including overlap
+    * @param offsetX first column of src to use (half the overlap at full
+    * resolution, 0 otherwise)
+    * @param offsetY first row of src to use
+    * @param dst pixels of the lower resolution tile, updated in place
+    * @param tileWidth width of the area of src to use, and of dst
+    * @param tileHeight height of the area of src to use, and of dst
+    * @param xPos 0 or 1 for the left or right half of dst
+    * @param yPos 0 or 1 for the top or bottom half of dst
+    * @param rgb pixels are byte[] with 4 bytes per pixel, of which the
+    * first 3 are averaged
+    */
+   static void downsample(Object src, int srcWidth, int srcHeight,
+           int offsetX, int offsetY, Object dst, int tileWidth, int tileHeight,
+           int xPos, int yPos, boolean rgb) {
+      // Squares with a top left pixel before these have a pixel to the right,
+      // respectively below
+      int xEdge = Math.min(tileWidth, srcWidth - 1);
+      int yEdge = Math.min(tileHeight, srcHeight - 1);
+      if (rgb) {
+         downsampleRGB((byte[]) src, srcWidth, offsetX, offsetY, (byte[]) dst,
+                 tileWidth, tileHeight, xPos, yPos, xEdge, yEdge);
+      } else if (src instanceof byte[]) {
+         downsample8((byte[]) src, srcWidth, offsetX, offsetY, (byte[]) dst,
+                 tileWidth, tileHeight, xPos, yPos, xEdge, yEdge);
+      } else {
+         downsample16((short[]) src, srcWidth, offsetX, offsetY, (short[]) dst,
+                 tileWidth, tileHeight, xPos, yPos, xEdge, yEdge);
+      }
+   }
+
+   private static void downsample8(byte[] src, int srcWidth, int offsetX,
+           int offsetY, byte[] dst, int tileWidth, int tileHeight, int xPos,
+           int yPos, int xEdge, int yEdge) {
+      int dstX = xPos * tileWidth;
+      int dstY = yPos * tileHeight;
+      for (int y = 0; y < tileHeight; y += 2) {
+         int row = (y + offsetY) * srcWidth + offsetX;
+         int below = row + srcWidth;
+         int dstRow = ((y + dstY) / 2) * tileWidth;
+         int x = 0;
+         if (y < yEdge) {
+            for (; x < xEdge; x += 2) {
+               int sum = (src[row + x] & 0xff) + (src[row + x + 1] & 0xff)
+                       + (src[below + x] & 0xff) + (src[below + x + 1] & 0xff);
+               dst[dstRow + (x + dstX) / 2] = (byte) (sum >> 2);
+            }
+            for (; x < tileWidth; x += 2) {
+               int sum = (src[row + x] & 0xff) + (src[below + x] & 0xff);
+               dst[dstRow + (x + dstX) / 2] = (byte) (sum >> 1);
+            }
+         } else {
+            for (; x < xEdge; x += 2) {
+               int sum = (src[row + x] & 0xff) + (src[row + x + 1] & 0xff);
+               dst[dstRow + (x + dstX) / 2] = (byte) (sum >> 1);
+            }
+            for (; x < tileWidth; x += 2) {
+               dst[dstRow + (x + dstX) / 2] = src[row + x];
+            }
+         }
+      }
+   }
+
+   private static void downsample16(short[] src, int srcWidth, int offsetX,
+           int offsetY, short[] dst, int tileWidth, int tileHeight, int xPos,
+           int yPos, int xEdge, int yEdge) {
+      int dstX = xPos * tileWidth;
+      int dstY = yPos * tileHeight;
+      for (int y = 0; y < tileHeight; y += 2) {
+         int row = (y + offsetY) * srcWidth + offsetX;
+         int below = row + srcWidth;
+         int dstRow = ((y + dstY) / 2) * tileWidth;
+         int x = 0;
+         if (y < yEdge) {
+            for (; x < xEdge; x += 2) {
+               int sum = (src[row + x] & 0xffff) + (src[row + x + 1] & 0xffff)
+                       + (src[below + x] & 0xffff) + (src[below + x + 1] & 0xffff);
+               dst[dstRow + (x + dstX) / 2] = (short) (sum >> 2);
+            }
+            for (; x < tileWidth; x += 2) {
+               int sum = (src[row + x] & 0xffff) + (src[below + x] & 0xffff);
+               dst[dstRow + (x + dstX) / 2] = (short) (sum >> 1);
+            }
+         } else {
+            for (; x < xEdge; x += 2) {
+               int sum = (src[row + x] & 0xffff) + (src[row + x + 1] & 0xffff);
+               dst[dstRow + (x + dstX) / 2] = (short) (sum >> 1);
+            }
+            for (; x < tileWidth; x += 2) {
+               dst[dstRow + (x + dstX) / 2] = src[row + x];
+            }
+         }
+      }
+   }
+
+   private static void downsampleRGB(byte[] src, int srcWidth, int offsetX,
+           int offsetY, byte[] dst, int tileWidth, int tileHeight, int xPos,
+           int yPos, int xEdge, int yEdge) {
+      int dstX = xPos * tileWidth;
+      int dstY = yPos * tileHeight;
+      int srcStride = 4 * srcWidth;
+      for (int y = 0; y < tileHeight; y += 2) {
+         int row = 4 * ((y + offsetY) * srcWidth + offsetX);
+         int dstRow = ((y + dstY) / 2) * tileWidth;
+         int x = 0;
+         if (y < yEdge) {
+            for (; x < xEdge; x += 2) {
+               int a = row + 4 * x;
+               int b = a + srcStride;
+               int d = 4 * (dstRow + (x + dstX) / 2);
+               for (int c = 0; c < 3; c++) {
+                  int sum = (src[a + c] & 0xff) + (src[a + 4 + c] & 0xff)
+                          + (src[b + c] & 0xff) + (src[b + 4 + c] & 0xff);
+                  dst[d + c] = (byte) (sum >> 2);
+               }
+            }
+            for (; x < tileWidth; x += 2) {
+               int a = row + 4 * x;
+               int b = a + srcStride;
+               int d = 4 * (dstRow + (x + dstX) / 2);
+               for (int c = 0; c < 3; c++) {
+                  int sum = (src[a + c] & 0xff) + (src[b + c] & 0xff);
+                  dst[d + c] = (byte) (sum >> 1);
+               }
+            }
+         } else {
+            for (; x < xEdge; x += 2) {
+               int a = row + 4 * x;
+               int d = 4 * (dstRow + (x + dstX) / 2);
+               for (int c = 0; c < 3; c++) {
+                  int sum = (src[a + c] & 0xff) + (src[a + 4 + c] & 0xff);
+                  dst[d + c] = (byte) (sum >> 1);
+               }
+            }
+            for (; x < tileWidth; x += 2) {
+               int a = row + 4 * x;
+               int d = 4 * (dstRow + (x + dstX) / 2);
+               dst[d] = src[a];
+               dst[d + 1] = src[a + 1];
+               dst[d + 2] = src[a + 2];
+            }
+         }
+      }
+   }
+}
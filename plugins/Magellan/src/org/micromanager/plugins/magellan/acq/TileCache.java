@@ -0,0 +1,146 @@
+///////////////////////////////////////////////////////////////////////////////
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.acq;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded tiles, limited by the number of bytes
+ * of pixels it holds. Tiles are shared with callers and must not be modified.
+ *
+ * A tile read from disk can be outdated by the time it is put in the cache,
+ * if the tile was rewritten in between. To catch that, callers get a stamp
+ * before reading and hand it to put(), which drops the tile if it was
+ * invalidated since. Stamps are kept per hash bucket of keys, so an
+ * invalidation occasionally drops an unrelated tile, which is harmless.
+ */
+final class TileCache {
+
+   // Tags and object overhead, roughly
+   private static final int TILE_OVERHEAD_BYTES = 1024;
+   private static final int NUM_STAMPS = 256;
+
+   private final long budgetBytes_;
+   private final LinkedHashMap<String, MagellanTaggedImage> tiles_ =
+           new LinkedHashMap<String, MagellanTaggedImage>(64, 0.75f, true);
+   private final long[] stamps_ = new long[NUM_STAMPS];
+   private long bytes_ = 0;
+   private long hits_ = 0;
+   private long misses_ = 0;
+
+   TileCache(long budgetBytes) {
+      budgetBytes_ = budgetBytes;
+   }
+
+   /**
+    * @return the default budget: an eighth of the heap, at most 256 MB
+    */
+   static long defaultBudget() {
+      return Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+   }
+
+   private static long sizeOf(MagellanTaggedImage tile) {
+      long size = TILE_OVERHEAD_BYTES;
+      if (tile.pix instanceof byte[]) {
+         size += ((byte[]) tile.pix).length;
+      } else if (tile.pix instanceof short[]) {
+         size += 2L * ((short[]) tile.pix).length;
+      }
+      return size;
+   }
+
+   private static int bucket(String key) {
+      return (key.hashCode() & 0x7fffffff) % NUM_STAMPS;
+   }
+
+   synchronized MagellanTaggedImage get(String key) {
+      MagellanTaggedImage tile = tiles_.get(key);
+      if (tile == null) {
+         misses_++;
+      } else {
+         hits_++;
+      }
+      return tile;
+   }
+
+   synchronized boolean contains(String key) {
+      return tiles_.containsKey(key);
+   }
+
+   /**
+    * @return stamp to pass to put() for a tile that is about to be read
+    */
+   synchronized long getStamp(String key) {
+      return stamps_[bucket(key)];
+   }
+
+   /**
+    * Add a tile, unless it was invalidated after the stamp was taken
+    */
+   synchronized void put(String key, MagellanTaggedImage tile, long stamp) {
+      if (stamps_[bucket(key)] != stamp) {
+         return;
+      }
+      long size = sizeOf(tile);
+      if (size > budgetBytes_) {
+         return;
+      }
+      MagellanTaggedImage previous = tiles_.put(key, tile);
+      if (previous != null) {
+         bytes_ -= sizeOf(previous);
+      }
+      bytes_ += size;
+      Iterator<Map.Entry<String, MagellanTaggedImage>> it = tiles_.entrySet().iterator();
+      while (bytes_ > budgetBytes_ && it.hasNext()) {
+         Map.Entry<String, MagellanTaggedImage> eldest = it.next();
+         bytes_ -= sizeOf(eldest.getValue());
+         it.remove();
+      }
+   }
+
+   /**
+    * Forget a tile because it is being changed
+    */
+   synchronized void invalidate(String key) {
+      stamps_[bucket(key)]++;
+      MagellanTaggedImage previous = tiles_.remove(key);
+      if (previous != null) {
+         bytes_ -= sizeOf(previous);
+      }
+   }
+
+   synchronized void clear() {
+      for (int i = 0; i < NUM_STAMPS; i++) {
+         stamps_[i]++;
+      }
+      tiles_.clear();
+      bytes_ = 0;
+   }
+
+   synchronized long getBytes() {
+      return bytes_;
+   }
+
+   synchronized long getHitCount() {
+      return hits_;
+   }
+
+   synchronized long getMissCount() {
+      return misses_;
+   }
+}
@@ -0,0 +1,193 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FlatFieldKernel.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.multichannelshading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.utils.MMException;
+
+/**
+ * Background subtraction and flat field gain in a single pass over the
+ * pixels, in place.
+ *
+ * For each pixel: value = max(0, pixel - offset) * gain, rounded (16 bit) or
+ * truncated (8 bit) and clipped as the plugin always did. Offsets and gains
+ * come precomputed from ImageCollection; either may be null.
+ *
+ * Large frames can be split in tiles that are corrected on all cores.
+ */
+class FlatFieldKernel {
+   // Below this, tiling costs more than it gains
+   private static final int MIN_TILE_PIXELS = 1 << 18;
+   private static final float MAX_8BIT = 2 * Byte.MAX_VALUE;
+   private static final float MAX_16BIT = 2 * Short.MAX_VALUE;
+
+   private static ExecutorService tilePool_;
+   private static int numTileThreads_;
+
+   private FlatFieldKernel() {
+   }
+
+   private static synchronized ExecutorService getTilePool() {
+      if (tilePool_ == null) {
+         numTileThreads_ = Runtime.getRuntime().availableProcessors();
+         tilePool_ = Executors.newFixedThreadPool(numTileThreads_,
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "Flat field correction tile");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      }
+      return tilePool_;
+   }
+
+   private static void checkLength(int length, float[] map, String name)
+         throws MMException {
+      if (map != null && map.length != length) {
+         throw new MMException(name + " image size does not match the image");
+      }
+   }
+
+   /**
+    * Corrects 8 bit pixels in place
+    * @param tiled split large frames across cores
+    */
+   public static void correct(final byte[] pixels, final float[] offsets,
+         final float[] gains, boolean tiled) throws MMException {
+      checkLength(pixels.length, offsets, "Background");
+      checkLength(pixels.length, gains, "Flatfield");
+      runTiles(pixels.length, tiled, new Tile() {
+         @Override
+         public void correct(int from, int to) {
+            correctRange(pixels, offsets, gains, from, to);
+         }
+      });
+   }
+
+   /**
+    * Corrects 16 bit pixels in place
+    * @param tiled split large frames across cores
+    */
+   public static void correct(final short[] pixels, final float[] offsets,
+         final float[] gains, boolean tiled) throws MMException {
+      checkLength(pixels.length, offsets, "Background");
+      checkLength(pixels.length, gains, "Flatfield");
+      runTiles(pixels.length, tiled, new Tile() {
+         @Override
+         public void correct(int from, int to) {
+            correctRange(pixels, offsets, gains, from, to);
+         }
+      });
+   }
+
+   private interface Tile {
+      void correct(int from, int to);
+   }
+
+   private static void runTiles(int length, boolean tiled, final Tile tile)
+         throws MMException {
+      if (!tiled || length < 2 * MIN_TILE_PIXELS) {
+         tile.correct(0, length);
+         return;
+      }
+      ExecutorService pool = getTilePool();
+      int numTiles = Math.min(numTileThreads_, length / MIN_TILE_PIXELS);
+      int tileLength = (length + numTiles - 1) / numTiles;
+      List<Future<?>> futures = new ArrayList<Future<?>>(numTiles);
+      // The calling thread does the first tile itself
+      for (int start = tileLength; start < length; start += tileLength) {
+         final int from = start;
+         final int to = Math.min(length, start + tileLength);
+         futures.add(pool.submit(new Runnable() {
+            @Override
+            public void run() {
+               tile.correct(from, to);
+            }
+         }));
+      }
+      tile.correct(0, Math.min(length, tileLength));
+      try {
+         for (Future<?> f : futures) {
+            f.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new MMException("Interrupted while correcting image");
+      } catch (ExecutionException ex) {
+         throw new MMException(ex.getCause().toString());
+      }
+   }
+
+   private static void correctRange(byte[] pixels, float[] offsets,
+         float[] gains, int from, int to) {
+      if (gains == null) {
+         if (offsets == null) {
+            return;
+         }
+         for (int i = from; i < to; i++) {
+            float value = (pixels[i] & 0xff) - offsets[i];
+            pixels[i] = (byte) (value > 0 ? value : 0);
+         }
+      } else if (offsets == null) {
+         for (int i = from; i < to; i++) {
+            float value = (pixels[i] & 0xff) * gains[i];
+            pixels[i] = (byte) (value > MAX_8BIT ? MAX_8BIT : value);
+         }
+      } else {
+         for (int i = from; i < to; i++) {
+            float value = (pixels[i] & 0xff) - offsets[i];
+            value = (value > 0 ? value : 0) * gains[i];
+            pixels[i] = (byte) (value > MAX_8BIT ? MAX_8BIT : value);
+         }
+      }
+   }
+
+   private static void correctRange(short[] pixels, float[] offsets,
+         float[] gains, int from, int to) {
+      if (gains == null) {
+         if (offsets == null) {
+            return;
+         }
+         for (int i = from; i < to; i++) {
+            float value = (pixels[i] & 0xffff) - offsets[i];
+            pixels[i] = (short) (value > 0 ? value : 0);
+         }
+      } else if (offsets == null) {
+         for (int i = from; i < to; i++) {
+            float value = (pixels[i] & 0xffff) * gains[i] + 0.5f;
+            pixels[i] = (short) (value > MAX_16BIT ? MAX_16BIT : value);
+         }
+      } else {
+         for (int i = from; i < to; i++) {
+            float value = (pixels[i] & 0xffff) - offsets[i];
+            value = (value > 0 ? value : 0) * gains[i] + 0.5f;
+            pixels[i] = (short) (value > MAX_16BIT ? MAX_16BIT : value);
+         }
+      }
+   }
+}
@@ -39,21 +39,28 @@ import org.micromanager.utils.ReportingUtils;
  * Images should be provided as full frame, unbinned images.  When binned 
  * images, and/or ROIs of (binned) images are requested, these are provided
  * on the fly, and a copy is cached for later use.
+ * The per pixel values used by FlatFieldKernel are cached per binning, ROI
+ * and preset as well.  Methods are synchronized, since images are
+ * processed on other threads than the GUI.
  * @author nico
  */
 public class ImageCollection {
    private final HashMap<String, ImagePlusInfo> background_;
    private final HashMap<String, HashMap<String, ImagePlusInfo>> flatFields_;
+   // background values as floats, keyed like background_
+   private final HashMap<String, float[]> backgroundOffsets_;
    
    private final String BASEIMAGE = "base";
    
    public ImageCollection() {
       background_ = new HashMap<String, ImagePlusInfo>();
       flatFields_ = new HashMap<String, HashMap<String, ImagePlusInfo>>();
+      backgroundOffsets_ = new HashMap<String, float[]>();
    }
    
-   public void setBackground(String file) throws MMException {
+   public synchronized void setBackground(String file) throws MMException {
       background_.clear();
+      backgroundOffsets_.clear();
       if (!file.equals("")) {
          ij.io.Opener opener = new ij.io.Opener();
          ImagePlus ip = opener.openImage(file);
@@ -66,11 +73,11 @@ public class ImageCollection {
       }
    }
    
-   public ImagePlusInfo getBackground() {
+   public synchronized ImagePlusInfo getBackground() {
       return background_.get(BASEIMAGE);
    }
    
-   public ImagePlusInfo getBackground(int binning, Rectangle roi) 
+   public synchronized ImagePlusInfo getBackground(int binning, Rectangle roi) 
            throws MMException {
       String key = makeKey(binning, roi);
       if (background_.containsKey(key)) {
@@ -100,7 +107,7 @@ public class ImageCollection {
     * @param file
     * @throws MMException 
     */
-   public void addFlatField(String preset, String file) throws MMException {
+   public synchronized void addFlatField(String preset, String file) throws MMException {
       ij.io.Opener opener = new ij.io.Opener();
       ImagePlus ip = opener.openImage(file);
       if (ip == null) {
@@ -169,19 +176,19 @@ public class ImageCollection {
       }
    }
 
-   public ImagePlusInfo getFlatField(String preset) {
+   public synchronized ImagePlusInfo getFlatField(String preset) {
       return flatFields_.get(preset).get(BASEIMAGE);
    }
 
-   public void clearFlatFields() {
+   public synchronized void clearFlatFields() {
       flatFields_.clear();
    }
 
-   public void removeFlatField(String preset) {
+   public synchronized void removeFlatField(String preset) {
       flatFields_.remove(preset);
    }
 
-   public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
+   public synchronized ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
            throws MMException {
       String key = makeKey(binning, roi);
       if (flatFields_.get(preset).containsKey(key)) {
@@ -199,6 +206,68 @@ public class ImageCollection {
       return derivedIp;
    }
 
+   /**
+    * Background values to subtract from each pixel of images with the given
+    * binning and ROI, the way ImageUtils.subtractImageProcessors does
+    * @return cached offsets, or null if there is no background image
+    * @throws MMException 
+    */
+   public synchronized float[] getBackgroundOffsets(int binning, Rectangle roi)
+           throws MMException {
+      String key = makeKey(binning, roi);
+      float[] offsets = backgroundOffsets_.get(key);
+      if (offsets != null) {
+         return offsets;
+      }
+      ImagePlusInfo bg = getBackground(binning, roi);
+      if (bg == null) {
+         return null;
+      }
+      Object pixels = bg.getProcessor().getPixels();
+      if (pixels instanceof byte[]) {
+         byte[] bytes = (byte[]) pixels;
+         offsets = new float[bytes.length];
+         for (int i = 0; i < bytes.length; i++) {
+            offsets[i] = bytes[i] & 0xff;
+         }
+      } else if (pixels instanceof short[]) {
+         short[] shorts = (short[]) pixels;
+         offsets = new float[shorts.length];
+         for (int i = 0; i < shorts.length; i++) {
+            offsets[i] = shorts[i] & 0xffff;
+         }
+      } else if (pixels instanceof float[]) {
+         float[] floats = (float[]) pixels;
+         offsets = new float[floats.length];
+         for (int i = 0; i < floats.length; i++) {
+            offsets[i] = ((int) floats[i]) & 0xffff;
+         }
+      } else {
+         throw new MMException("Unsupported background image type");
+      }
+      backgroundOffsets_.put(key, offsets);
+      return offsets;
+   }
+
+   /**
+    * Gain to multiply each (background corrected) pixel with, for images of 
+    * the given preset, binning and ROI
+    * @return cached gains, or null if there is no flatfield for the preset
+    * @throws MMException 
+    */
+   public synchronized float[] getFlatFieldGains(String preset, int binning, 
+           Rectangle roi) throws MMException {
+      if (!flatFields_.containsKey(preset)) {
+         return null;
+      }
+      ImagePlusInfo ff = getFlatField(preset, binning, roi);
+      if (ff == null) {
+         return null;
+      }
+      // flatfields are normalized into FloatProcessors by addFlatField
+      return (float[]) ff.getProcessor().getPixels();
+   }
+
    private String makeKey(int binning, Rectangle roi) {
       if (binning == 1 && (roi == null || roi.width == 0)) {
          return BASEIMAGE;
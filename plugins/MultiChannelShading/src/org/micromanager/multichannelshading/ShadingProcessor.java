@@ -22,10 +22,7 @@
 
 package org.micromanager.multichannelshading;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import java.awt.Rectangle;
-import java.util.Iterator;
 import mmcorej.Configuration;
 import mmcorej.PropertySetting;
 import mmcorej.TaggedImage;
@@ -33,8 +30,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
-import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
@@ -84,37 +79,37 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
    }
 
    /**
-    * Executes flat-fielding
+    * Images are corrected independently of each other, so they can be
+    * processed on several threads at once.
+    */
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
+   /**
+    * Executes flat-fielding.  Background subtraction and flatfield gain are
+    * applied in a single pass, in place: the pixels of nextImage are
+    * modified
 
     * @param nextImage - image to be processed
-    * @return - Transformed tagged image, otherwise a copy of the input
+    * @return - the corrected image, or the input if it could not be corrected
     * @throws JSONException
     * @throws MMScriptException 
     */
    public  TaggedImage processTaggedImage(TaggedImage nextImage) throws 
            JSONException, MMScriptException, Exception {     
       myFrame_.setStatus("Processing image...");
-      int width = MDUtils.getWidth(nextImage.tags);
-      int height = MDUtils.getHeight(nextImage.tags);
-      TaggedImage newImage;
-      String type = MDUtils.getPixelType(nextImage.tags);
-      
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
-      }
       
       // For now, this plugin only works with 8 or 16 bit grayscale images
-      if (! (ijType == ImagePlus.GRAY8 || ijType == ImagePlus.GRAY16) ) {
+      if (! (nextImage.pix instanceof byte[] || nextImage.pix instanceof short[]) ) {
          String msg = "Cannot flatfield correct images other than 8 or 16 bit grayscale";
          myFrame_.setStatus(msg);
          ReportingUtils.logError(msg);
          return nextImage;
       }
       JSONObject newTags = nextImage.tags;
-      TaggedImage bgSubtracted = nextImage;
       
-      // subtract background
       int binning;
       try {
         binning = newTags.getInt("Binning");
@@ -124,72 +119,40 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
           binning = Integer.parseInt(binString.substring(0, 1));
       }
       Rectangle rect = ImageCollection.TagToRectangle(newTags.getString("ROI"));
-      ImagePlusInfo background = imageCollection_.getBackground(binning, 
+      float[] backgroundOffsets = imageCollection_.getBackgroundOffsets(binning, 
               rect);
-      if (background != null) {
-         ImageProcessor imp = ImageUtils.makeProcessor(nextImage);
-         ImageProcessor impBackground = background.getProcessor();
-         imp = ImageUtils.subtractImageProcessors(imp, impBackground);
-         bgSubtracted = new TaggedImage(imp.getPixels(), newTags);
+      float[] flatFieldGains = getMatchingFlatFieldGains(newTags, binning, rect);
+
+      if (backgroundOffsets != null || flatFieldGains != null) {
+         // When images are processed on several threads, each frame is
+         // already using a core
+         boolean tiled = !isParallel();
+         if (nextImage.pix instanceof byte[]) {
+            FlatFieldKernel.correct((byte[]) nextImage.pix, backgroundOffsets, 
+                    flatFieldGains, tiled);
+         } else {
+            FlatFieldKernel.correct((short[]) nextImage.pix, backgroundOffsets, 
+                    flatFieldGains, tiled);
+         }
       }
-      
-      ImagePlusInfo flatFieldImage = getMatchingFlatFieldImage(newTags, binning, rect);       
 
       //do not calculate flat field if we don't have a matching channel
-      if (flatFieldImage == null) {
+      if (flatFieldGains == null) {
          String msg = "No matching flatfield image found";
          myFrame_.setStatus(msg);
-         return bgSubtracted;
-      }  
-      
-      if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) bgSubtracted.pix;
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++){
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
-            }
-            newPixels[index] = (byte) (newValue);
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-         myFrame_.setStatus("Done");
-         return newImage;
-       
-      } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.pix;
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++){
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel * 
-                    flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) newValue;
-         }
-         newImage = new TaggedImage(newPixels, newTags);
+      } else {
          myFrame_.setStatus("Done");
-         return newImage;         
-         
-      } 
-      
+      }
       return nextImage;
-     
    }
+
    /**
     * Given the tags of the image currently being processed,
     * find a matching preset from the channelgroup used by the tablemodel
     * @param imgTags - image tags in JSON format
-    * @return matching flat field image
+    * @return gains of the matching flat field image, or null
     */
-   ImagePlusInfo getMatchingFlatFieldImage(JSONObject imgTags, int binning, 
+   float[] getMatchingFlatFieldGains(JSONObject imgTags, int binning, 
            Rectangle rect) {
       String channelGroup = shadingTableModel_.getChannelGroup();
       String[] presets = shadingTableModel_.getUsedPresets();
@@ -199,24 +162,16 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
                     channelGroup, preset);
             boolean presetMatch = true;
             for (int i = 0; i < config.size() && presetMatch; i++) {
-               boolean settingMatch = false;
                PropertySetting ps = config.getSetting(i);
                String key = ps.getKey();
                String value = ps.getPropertyValue();
-               Iterator<String> tagIterator = imgTags.keys();
-               while (tagIterator.hasNext() && !settingMatch) {
-                  String tagKey = tagIterator.next();
-                  String tagValue = imgTags.optString(tagKey);
-                  if (key.equals(tagKey) && value.equals(tagValue)) {
-                     settingMatch = true;
-                  }
-               }
                // if we do not have a settingMatch, this config can not match
                // so stop testing this config
-               presetMatch = settingMatch;
+               presetMatch = imgTags.has(key) && 
+                       value.equals(imgTags.optString(key));
             }
             if (presetMatch) {
-               return imageCollection_.getFlatField(preset, binning, rect);
+               return imageCollection_.getFlatFieldGains(preset, binning, rect);
             }
          } catch (Exception ex) {
             ReportingUtils.logError(ex, "Exception in tag matching");
@@ -44,6 +44,15 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
    Rotation rotation_;
    NewImageFlipperControls controls_;
 
+   /**
+    * Each image is flipped independently, so images can be processed on
+    * several threads.
+    */
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    /**
     * Polls for tagged images, and processes them if they are from the selected 
     * camera.
@@ -0,0 +1,250 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MappingIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Projector plugin
+//-----------------------------------------------------------------------------
+//COPYRIGHT:     University of California, San Francisco, 2014
+//LICENSE:       This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.projector;
+
+import ij.process.FloatPolygon;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up the cell of a nonlinear calibration mapping (a Map of polygon
+ * cells to AffineTransforms) that a camera point falls in, or the cell whose
+ * center is closest to the point if it falls in none.  The cells are put in
+ * a uniform grid over their bounding boxes, so that a lookup only tests the
+ * few cells near the point.  An index never changes once built, and can be
+ * used from any thread.
+ */
+public class MappingIndex {
+   private final Polygon[] cells_;
+   private final AffineTransform[] transforms_;
+   private final double[] centerX_;
+   private final double[] centerY_;
+   private final double x0_;
+   private final double y0_;
+   private final double binWidth_;
+   private final double binHeight_;
+   private final int nx_;
+   private final int ny_;
+   // cells whose bounding box overlaps each bin
+   private final int[][] cellBins_;
+   // cells whose center lies in each bin
+   private final int[][] centerBins_;
+
+   /**
+    * Builds the index for the given mapping.
+    */
+   public MappingIndex(Map<Polygon, AffineTransform> mapping) {
+      int n = mapping.size();
+      cells_ = new Polygon[n];
+      transforms_ = new AffineTransform[n];
+      centerX_ = new double[n];
+      centerY_ = new double[n];
+      Rectangle bounds = null;
+      int c = 0;
+      for (Map.Entry<Polygon, AffineTransform> entry : mapping.entrySet()) {
+         Polygon poly = entry.getKey();
+         cells_[c] = poly;
+         transforms_[c] = new AffineTransform(entry.getValue());
+         double xsum = 0;
+         double ysum = 0;
+         for (int i = 0; i < poly.npoints; ++i) {
+            xsum += poly.xpoints[i];
+            ysum += poly.ypoints[i];
+         }
+         centerX_[c] = xsum / Math.max(1, poly.npoints);
+         centerY_[c] = ysum / Math.max(1, poly.npoints);
+         Rectangle cellBounds = poly.getBounds();
+         // include the center, in case of a degenerate polygon
+         cellBounds.add(centerX_[c], centerY_[c]);
+         bounds = (bounds == null) ? cellBounds : bounds.union(cellBounds);
+         ++c;
+      }
+      if (bounds == null) {
+         bounds = new Rectangle();
+      }
+
+      // about one cell per bin
+      int side = Math.max(1, (int) Math.ceil(Math.sqrt(n)));
+      nx_ = side;
+      ny_ = side;
+      x0_ = bounds.x;
+      y0_ = bounds.y;
+      binWidth_ = Math.max(1.0, (bounds.width + 1.0) / nx_);
+      binHeight_ = Math.max(1.0, (bounds.height + 1.0) / ny_);
+
+      List<List<Integer>> cellBins = newBins(nx_ * ny_);
+      List<List<Integer>> centerBins = newBins(nx_ * ny_);
+      for (int i = 0; i < n; ++i) {
+         Rectangle r = cells_[i].getBounds();
+         int bx0 = binX(r.x);
+         int bx1 = binX(r.x + r.width);
+         int by0 = binY(r.y);
+         int by1 = binY(r.y + r.height);
+         for (int by = by0; by <= by1; ++by) {
+            for (int bx = bx0; bx <= bx1; ++bx) {
+               cellBins.get(by * nx_ + bx).add(i);
+            }
+         }
+         centerBins.get(binY(centerY_[i]) * nx_ + binX(centerX_[i])).add(i);
+      }
+      cellBins_ = toArrays(cellBins);
+      centerBins_ = toArrays(centerBins);
+   }
+
+   private static List<List<Integer>> newBins(int n) {
+      List<List<Integer>> bins = new ArrayList<List<Integer>>(n);
+      for (int i = 0; i < n; ++i) {
+         bins.add(new ArrayList<Integer>());
+      }
+      return bins;
+   }
+
+   private static int[][] toArrays(List<List<Integer>> bins) {
+      int[][] arrays = new int[bins.size()][];
+      for (int i = 0; i < arrays.length; ++i) {
+         List<Integer> bin = bins.get(i);
+         arrays[i] = new int[bin.size()];
+         for (int j = 0; j < arrays[i].length; ++j) {
+            arrays[i][j] = bin.get(j);
+         }
+      }
+      return arrays;
+   }
+
+   // Bin column of x, clamped to the grid.
+   private int binX(double x) {
+      return Math.max(0, Math.min(nx_ - 1, (int) Math.floor((x - x0_) / binWidth_)));
+   }
+
+   // Bin row of y, clamped to the grid.
+   private int binY(double y) {
+      return Math.max(0, Math.min(ny_ - 1, (int) Math.floor((y - y0_) / binHeight_)));
+   }
+
+   /**
+    * Returns the number of cells in the mapping.
+    */
+   public int size() {
+      return cells_.length;
+   }
+
+   /**
+    * Finds the cell that contains (x, y), or else the one with the closest
+    * center.
+    * @return index of the cell, or -1 if the mapping has no cells
+    */
+   private int findCell(double x, double y) {
+      if (cells_.length == 0) {
+         return -1;
+      }
+      int bx = binX(x);
+      int by = binY(y);
+      for (int cell : cellBins_[by * nx_ + bx]) {
+         if (cells_[cell].contains(x, y)) {
+            return cell;
+         }
+      }
+
+      // Not inside any cell: search the bins in rings around the point's bin
+      // until no bin further out can hold a closer center.
+      int best = -1;
+      double bestDistSq = Double.MAX_VALUE;
+      int maxRing = Math.max(nx_, ny_);
+      for (int ring = 0; ring <= maxRing; ++ring) {
+         for (int j = by - ring; j <= by + ring; ++j) {
+            if (j < 0 || j >= ny_) {
+               continue;
+            }
+            boolean edgeRow = (j == by - ring) || (j == by + ring);
+            int step = edgeRow ? 1 : 2 * ring;
+            for (int i = bx - ring; i <= bx + ring; i += Math.max(1, step)) {
+               if (i < 0 || i >= nx_) {
+                  continue;
+               }
+               for (int cell : centerBins_[j * nx_ + i]) {
+                  double dx = centerX_[cell] - x;
+                  double dy = centerY_[cell] - y;
+                  double distSq = dx * dx + dy * dy;
+                  if (distSq < bestDistSq) {
+                     bestDistSq = distSq;
+                     best = cell;
+                  }
+               }
+            }
+         }
+         // distance from the point to the edge of the searched area
+         double margin = Math.min(
+               Math.min(x - (x0_ + (bx - ring) * binWidth_),
+                     x0_ + (bx + ring + 1) * binWidth_ - x),
+               Math.min(y - (y0_ + (by - ring) * binHeight_),
+                     y0_ + (by + ring + 1) * binHeight_ - y));
+         if (best >= 0 && margin > 0 && bestDistSq <= margin * margin) {
+            break;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Transforms a camera point to phototargeter coordinates with the
+    * AffineTransform of the cell it falls in (or is closest to).
+    */
+   public Point2D.Double transform(Point2D.Double pt) {
+      int cell = findCell(pt.x, pt.y);
+      if (cell < 0) {
+         throw new RuntimeException("Unable to map point to device.");
+      }
+      return (Point2D.Double) transforms_[cell].transform(pt, new Point2D.Double());
+   }
+
+   /**
+    * Transforms all points of a list of polygons in camera coordinates to
+    * phototargeter coordinates.  Consecutive points mostly fall in the same
+    * cell, so that cell is tried first.
+    */
+   public List<FloatPolygon> transform(List<FloatPolygon> polygons) {
+      if (cells_.length == 0) {
+         throw new RuntimeException("Unable to map point to device.");
+      }
+      List<FloatPolygon> result = new ArrayList<FloatPolygon>(polygons.size());
+      double[] pt = new double[2];
+      int cell = 0;
+      for (FloatPolygon polygon : polygons) {
+         float[] xs = new float[polygon.npoints];
+         float[] ys = new float[polygon.npoints];
+         for (int i = 0; i < polygon.npoints; ++i) {
+            double x = polygon.xpoints[i];
+            double y = polygon.ypoints[i];
+            if (!cells_[cell].contains(x, y)) {
+               cell = findCell(x, y);
+            }
+            pt[0] = x;
+            pt[1] = y;
+            transforms_[cell].transform(pt, 0, pt, 0, 1);
+            xs[i] = (float) pt[0];
+            ys[i] = (float) pt[1];
+         }
+         result.add(new FloatPolygon(xs, ys, polygon.npoints));
+      }
+      return result;
+   }
+}
@@ -65,7 +65,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
@@ -108,6 +107,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    private final boolean isSLM_;
    private Roi[] individualRois_ = {};
    private Map<Polygon, AffineTransform> mapping_ = null;
+   private MappingIndex mappingIndex_ = null;
    private String mappingNode_ = null;
    private String targetingChannel_;
    AtomicBoolean stopRequested_ = new AtomicBoolean(false);
@@ -125,31 +125,6 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
       polygon.addPoint(p.x, p.y);
    }
    
-   /**
-    * Returns the vertices of the given polygon as a series of points.
-    */
-   private static Point[] getVertices(Polygon polygon) {
-      Point vertices[] = new Point[polygon.npoints];
-      for (int i = 0; i < polygon.npoints; ++i) {
-         vertices[i] = new Point(polygon.xpoints[i], polygon.ypoints[i]);
-      }   
-      return vertices;
-   }
-   
-   /**
-    * Gets the vectorial mean of an array of Points.
-    */
-   private static Point2D.Double meanPosition2D(Point[] points) {
-      double xsum = 0;
-      double ysum = 0;
-      int n = points.length;
-      for (int i = 0; i < n; ++i) {
-         xsum += points[i].x;
-         ysum += points[i].y;
-      }
-      return new Point2D.Double(xsum/n, ysum/n);
-   }
-
    /**
     * Converts a Point with double values for x,y to a point
     * with x and y rounded to the nearest integer.
@@ -385,10 +360,20 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
                     prefs,
                     dev_.getName(),
                     new HashMap<Polygon, AffineTransform>());
+            mappingIndex_ = (mapping_ == null) ? null : new MappingIndex(mapping_);
         }
         return mapping_;
     }
 
+    /**
+     * Returns the spatial index of the mapping for the current calibration
+     * node, loading the mapping if needed.
+     */
+    private MappingIndex loadMappingIndex() {
+        loadMapping();
+        return mappingIndex_;
+    }
+
    /**
     * Save the mapping for the current calibration node. The mapping
     * maps each polygon cell to an AffineTransform.
@@ -396,6 +381,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    private void saveMapping(HashMap<Polygon, AffineTransform> mapping) {
       JavaUtils.putObjectInPrefs(getCalibrationNode(), dev_.getName(), mapping);
       mapping_ = mapping;
+      mappingIndex_ = new MappingIndex(mapping);
       mappingNode_ = getCalibrationNode().toString();
    }
    
@@ -690,32 +676,15 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    
    // ## Transforming points according to a nonlinear calibration mapping.
      
-   // Transform a point, pt, given the mapping, which is a Map of polygon cells
-   // to AffineTransforms.
-   private static Point2D.Double transformPoint(Map<Polygon, AffineTransform> mapping, Point2D.Double pt) {
-      Set<Polygon> set = mapping.keySet();
-      // First find out if the given point is inside a cell, and if so,
-      // transform it with that cell's AffineTransform.
-      for (Polygon poly : set) {
-         if (poly.contains(pt)) {
-            return (Point2D.Double) mapping.get(poly).transform(pt, null);
-         }
-      }
-      // The point isn't inside any cell, so search for the closest cell
-      // and use the AffineTransform from that.
-      double minDistance = Double.MAX_VALUE;
-      Polygon bestPoly = null;
-      for (Polygon poly : set) {
-         double distance = meanPosition2D(getVertices(poly)).distance(pt.x, pt.y);
-         if (minDistance > distance) {
-            bestPoly = poly;
-            minDistance = distance;
-         }
-      }
-      if (bestPoly == null) {
+   // Transform a point, pt, given the spatial index of the mapping, which is a
+   // Map of polygon cells to AffineTransforms. A point inside a cell is
+   // transformed with that cell's AffineTransform; a point outside all cells
+   // with the AffineTransform of the cell with the closest center.
+   private static Point2D.Double transformPoint(MappingIndex mapping, Point2D.Double pt) {
+      if (mapping == null) {
          throw new RuntimeException("Unable to map point to device.");
       }
-      return (Point2D.Double) mapping.get(bestPoly).transform(pt, null);
+      return mapping.transform(pt);
    }
    
       
@@ -743,7 +712,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    
    // Transform and mirror (if necessary) a point on an image to 
    // a point on phototargeter coordinates.
-   private static Point2D.Double transformAndMirrorPoint(Map<Polygon, AffineTransform> mapping, 
+   private static Point2D.Double transformAndMirrorPoint(MappingIndex mapping, 
            ImagePlus imgp, Point2D.Double pt) {
       Point2D.Double pOffscreen = mirrorIfNecessary(pt, imgp);
       return transformPoint(mapping, pOffscreen);
@@ -762,7 +731,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
                Point p = e.getPoint();
                ImageCanvas canvas = (ImageCanvas) e.getSource();
                Point pOffscreen = new Point(canvas.offScreenX(p.x), canvas.offScreenY(p.y));
-               final Point2D.Double devP = transformAndMirrorPoint(loadMapping(), canvas.getImage(),
+               final Point2D.Double devP = transformAndMirrorPoint(loadMappingIndex(), canvas.getImage(),
                        new Point2D.Double(pOffscreen.x, pOffscreen.y));
                final Configuration originalConfig = prepareChannel();
                final boolean originalShutterState = prepareShutter();
@@ -984,31 +953,32 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    
    /**
     * Transform the Roi polygons with the given nonlinear mapping.
+    * The polygons are mirrored first if the image is, and then transformed
+    * all at once by the spatial index of the mapping.
     */
    private static List<FloatPolygon> transformRoiPolygons(final ImagePlus imgp, 
-           Polygon[] roiPolygons, Map<Polygon, AffineTransform> mapping) {
-      ArrayList<FloatPolygon> transformedROIs = new ArrayList<FloatPolygon>();
+           Polygon[] roiPolygons, MappingIndex mapping) {
+      boolean mirrored = isImageMirrored(imgp);
+      int width = imgp.getWidth();
+      List<FloatPolygon> imagePolygons = new ArrayList<FloatPolygon>(roiPolygons.length);
       for (Polygon roiPolygon : roiPolygons) {
-         FloatPolygon targeterPolygon = new FloatPolygon();
-         try {
-            Point2D targeterPoint;
-            for (int i = 0; i < roiPolygon.npoints; ++i) {
-               Point2D.Double imagePoint = new Point2D.Double(
-                       roiPolygon.xpoints[i], roiPolygon.ypoints[i]);
-               targeterPoint = transformAndMirrorPoint(mapping, imgp, imagePoint);
-               if (targeterPoint == null) {
-                  throw new Exception();
-               }
-               targeterPolygon.addPoint( (float) targeterPoint.getX(), 
-                       (float) targeterPoint.getY() );
-            }
-            transformedROIs.add(targeterPolygon);
-         } catch (Exception ex) {
-            ReportingUtils.showError(ex);
-            break;
+         float[] xs = new float[roiPolygon.npoints];
+         float[] ys = new float[roiPolygon.npoints];
+         for (int i = 0; i < roiPolygon.npoints; ++i) {
+            xs[i] = mirrored ? width - roiPolygon.xpoints[i] : roiPolygon.xpoints[i];
+            ys[i] = roiPolygon.ypoints[i];
+         }
+         imagePolygons.add(new FloatPolygon(xs, ys, roiPolygon.npoints));
+      }
+      try {
+         if (mapping == null) {
+            throw new RuntimeException("Unable to map point to device.");
          }
+         return mapping.transform(imagePolygons);
+      } catch (RuntimeException ex) {
+         ReportingUtils.showError(ex);
+         return new ArrayList<FloatPolygon>();
       }
-      return transformedROIs;
    }
        
    // ## Saving, sending, and running ROIs.
@@ -1021,7 +991,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
     * 
     */
    public List<FloatPolygon> transformROIs(ImagePlus contextImagePlus, Roi[] rois) {
-      return transformRoiPolygons(contextImagePlus, roisAsPolygons(rois), mapping_);
+      return transformRoiPolygons(contextImagePlus, roisAsPolygons(rois), mappingIndex_);
    }
    
    // Save ROIs in the acquisition path, if it exists.
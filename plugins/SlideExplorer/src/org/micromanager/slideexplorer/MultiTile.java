@@ -1,24 +1,27 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
+import java.io.IOException;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * One tile of the pyramid.  The pixels are either in memory, or (after
+ * MultiTileCache evicted them) in a slot of the cache's spill file.
+ * MultiTileCache does all the locking; a MultiTile is never used on its own.
+ */
 public class MultiTile {
 
-    ImageProcessor proc_;
-    int type_;
-    int width_;
-    int height_;
-    String fileName_ = null;
-    boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
+    final int type_;
+    final int width_;
+    final int height_;
+    private Object pixels_ = null;
+    // slot in the spill file, or -1 if the tile was never spilled
+    private long slot_ = -1;
+    // the pixels in memory differ from those in the spill file
+    private boolean dirty_ = true;
 
     MultiTile(int type, int width, int height) {
         type_ = type;
@@ -26,88 +29,162 @@ public class MultiTile {
         height_ = height;
     }
 
-    public synchronized ImageProcessor getImage() {
-        getImageReady();
-        return proc_;
+    public ImageProcessor getImage() {
+        ImageProcessor proc = ImageUtils.makeProcessor(type_, width_, height_, pixels_);
+        proc.setInterpolationMethod(ImageProcessor.BILINEAR);
+        return proc;
     }
 
-    public synchronized void getImageReady() {
-        if (proc_ == null) {
-            if (cached_ == false) {
-                createCleanImage();
-            } else {
-                loadFromCache();
-            }
-        }
-        proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+    Object getPixels() {
+        return pixels_;
     }
 
-    public synchronized void setImage(ImageProcessor proc) {
-        getImageReady();
-        proc_.insert(proc, 0, 0);
+    boolean isInMemory() {
+        return pixels_ != null;
     }
 
-    private void createCleanImage() {
-        proc_ = ImageUtils.makeProcessor(type_, width_, height_);
+    long getByteSize() {
+        return (long) width_ * height_ * bytesPerPixel(type_);
     }
 
-    public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-        // TODO: rewrite this as a fast algorithm. Should require only a single copy.
-        getImageReady();
-        inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-        ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-        proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-        cached_ = false;
+    /*
+     * Brings the pixels back into memory, from the spill file if the tile
+     * was spilled, or as a blank image if not.
+     */
+    void load(TileSpillFile spillFile) {
+        if (pixels_ != null) {
+            return;
+        }
+        pixels_ = ImageUtils.makeProcessor(type_, width_, height_).getPixels();
+        dirty_ = true;
+        if (slot_ >= 0 && spillFile != null) {
+            try {
+                spillFile.read(slot_, pixels_);
+                dirty_ = false;
+            } catch (IOException e) {
+                // Somehow the image got lost.
+                ReportingUtils.logError(e, "Failed to read SlideExplorer tile");
+            }
+        }
     }
 
-    public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
+    public void setImage(ImageProcessor proc) {
+        if (proc.getWidth() == width_ && proc.getHeight() == height_
+                && ImageUtils.getImageProcessorType(proc) == type_) {
+            System.arraycopy(proc.getPixels(), 0, pixels_, 0, width_ * height_);
+        } else {
+            getImage().insert(proc, 0, 0);
         }
-
-        proc_ = null;
+        dirty_ = true;
     }
 
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
-            }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
-        }
+    /*
+     * Bins the pixels of a child tile 2x2 into the given quadrant of this
+     * tile, in a single pass and without intermediate images.
+     */
+    public void insertQuadrantImage(Point quad, MultiTile child) {
+        binQuadrant(child.pixels_, pixels_, width_, height_, quad.x, quad.y);
+        dirty_ = true;
     }
 
-    private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
+    /*
+     * Writes the pixels to the spill file (only if they changed since they
+     * were last written), and lets go of them.
+     * @return false if the pixels could not be written and stay in memory
+     */
+    boolean dropFromMemory(TileSpillFile spillFile) {
+        if (pixels_ == null) {
+            return true;
+        }
+        if (dirty_) {
+            try {
+                slot_ = spillFile.write(slot_, pixels_);
+            } catch (IOException e) {
+                ReportingUtils.logError(e, "Failed to write SlideExplorer tile");
+                return false;
+            }
         }
+        pixels_ = null;
+        dirty_ = false;
+        return true;
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
 
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
+    static int bytesPerPixel(int type) {
+        switch (type) {
+            case ij.ImagePlus.GRAY8:
+                return 1;
+            case ij.ImagePlus.GRAY16:
+                return 2;
+            default:
+                return 4;
         }
-        return rand.nextLong();
     }
 
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
+    /*
+     * Averages each 2x2 block of src (width x height) into one pixel of the
+     * quadrant (qx, qy) of dst, which has the same size.  RGB pixels are
+     * averaged per channel.
+     */
+    static void binQuadrant(Object src, Object dst, int width, int height, int qx, int qy) {
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        int x0 = qx * halfWidth;
+        int y0 = qy * halfHeight;
+        if (src instanceof byte[]) {
+            byte[] s = (byte[]) src;
+            byte[] d = (byte[]) dst;
+            for (int y = 0; y < halfHeight; y++) {
+                int a = 2 * y * width;
+                int b = a + width;
+                int o = (y0 + y) * width + x0;
+                for (int x = 0; x < halfWidth; x++, a += 2, b += 2) {
+                    d[o + x] = (byte) (((s[a] & 0xff) + (s[a + 1] & 0xff)
+                            + (s[b] & 0xff) + (s[b + 1] & 0xff) + 2) >> 2);
+                }
+            }
+        } else if (src instanceof short[]) {
+            short[] s = (short[]) src;
+            short[] d = (short[]) dst;
+            for (int y = 0; y < halfHeight; y++) {
+                int a = 2 * y * width;
+                int b = a + width;
+                int o = (y0 + y) * width + x0;
+                for (int x = 0; x < halfWidth; x++, a += 2, b += 2) {
+                    d[o + x] = (short) (((s[a] & 0xffff) + (s[a + 1] & 0xffff)
+                            + (s[b] & 0xffff) + (s[b + 1] & 0xffff) + 2) >> 2);
+                }
+            }
+        } else if (src instanceof float[]) {
+            float[] s = (float[]) src;
+            float[] d = (float[]) dst;
+            for (int y = 0; y < halfHeight; y++) {
+                int a = 2 * y * width;
+                int b = a + width;
+                int o = (y0 + y) * width + x0;
+                for (int x = 0; x < halfWidth; x++, a += 2, b += 2) {
+                    d[o + x] = 0.25f * (s[a] + s[a + 1] + s[b] + s[b + 1]);
+                }
+            }
+        } else if (src instanceof int[]) {
+            int[] s = (int[]) src;
+            int[] d = (int[]) dst;
+            for (int y = 0; y < halfHeight; y++) {
+                int a = 2 * y * width;
+                int b = a + width;
+                int o = (y0 + y) * width + x0;
+                for (int x = 0; x < halfWidth; x++, a += 2, b += 2) {
+                    int p0 = s[a], p1 = s[a + 1], p2 = s[b], p3 = s[b + 1];
+                    int r = ((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff)
+                            + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 2;
+                    int g = ((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff)
+                            + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 2;
+                    int bl = (p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2;
+                    d[o + x] = 0xff000000 | ((r >> 2) << 16) | ((g >> 2) << 8) | (bl >> 2);
+                }
             }
         }
     }
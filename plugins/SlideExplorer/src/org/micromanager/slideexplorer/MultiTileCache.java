@@ -4,117 +4,176 @@ import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * Pyramid of tiles at all zoom levels.  Tiles at all levels share one byte
+ * budget; when the tiles in memory exceed it, the least recently used ones
+ * are written to a spill file and read back when needed again.
+ */
 public class MultiTileCache {
-	
+
+	// Part of the maximum heap size used for tiles in memory
+	private static final int MEMORY_FRACTION = 4;
+
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
-	
-	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
-	
+
+	protected HashMap<Point3D,MultiTile> allTiles_ = new HashMap<Point3D,MultiTile>();
+	// tiles with their pixels in memory, least recently used first
+	private final LinkedHashMap<Point3D,MultiTile> inMemory_ =
+			new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	private long memoryBudget_;
+	private long bytesInMemory_ = 0;
+	private TileSpillFile spillFile_ = null;
+
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
+		memoryBudget_ = Runtime.getRuntime().maxMemory() / MEMORY_FRACTION;
+	}
 
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+	/*
+	 * Sets the number of bytes of tile pixels kept in memory.  At least one
+	 * tile per zoom level (plus one) is always kept, so that a new image can
+	 * be propagated to the top of the pyramid.
+	 */
+	public synchronized void setMemoryBudget(long bytes) {
+		memoryBudget_ = bytes;
+		evict();
 	}
-	
-	public void addImage(Point idx, ImageProcessor proc) {
+
+	public synchronized void addImage(Point idx, ImageProcessor proc) {
 		if (type_ == -1) {
 			type_ = ImageUtils.getImageProcessorType(proc);
 		}
-		
+
 		MultiTile tile = getTile(idx);
 		tile.setImage(proc);
 		propagateTile(idx, tile);
+		evict();
 	}
-	
-	public ImageProcessor getImage(Point3D multiTileIndex) {
-		return getMultiTile(multiTileIndex).getImage();
+
+	public synchronized ImageProcessor getImage(Point3D multiTileIndex) {
+		ImageProcessor proc = getMultiTile(multiTileIndex).getImage();
+		// the processor keeps its pixels, even if the tile lets go of them
+		evict();
+		return proc;
 	}
-	
-	public boolean hasImage(Point p) {
+
+	public synchronized boolean hasImage(Point p) {
 		return allTiles_.containsKey(new Point3D(p,0));
 	}
-	
-	public boolean hasImage(Point3D p) {
+
+	public synchronized boolean hasImage(Point3D p) {
 		return allTiles_.containsKey(p);
 	}
-		
+
 	protected void propagateTile(Point idx, MultiTile multiTile) {
 		propagateTile(new Point3D(idx, 0), multiTile);
 	}
-	
+
 	protected void propagateTile(Point3D idx, MultiTile multiTile) {
-		if (idx.k>minZoomLevel_) {
+		while (idx.k>minZoomLevel_) {
 			Point3D pidx = getParentIndex(idx);
 			Point pquad = getParentQuadrant(idx);
 			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+
+			parentTile.insertQuadrantImage(pquad, multiTile);
+			idx = pidx;
+			multiTile = parentTile;
 		}
 	}
-		
+
 	protected MultiTile getMultiTile(int i, int j, int z) {
 		return getMultiTile(new Point3D(i,j,z));
 	}
-	
+
 	protected MultiTile getTile(Point idx) {
 		return getMultiTile(new Point3D(idx.x, idx.y, 0));
 	}
-	
+
+	/*
+	 * Returns the tile with its pixels in memory.  Nothing is evicted here,
+	 * so that all tiles touched by one addImage stay in memory until it is
+	 * done.
+	 */
 	protected synchronized MultiTile getMultiTile(Point3D idx) {
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			tile = new MultiTile(type_, width_, height_);
+			allTiles_.put(idx, tile);
+		}
+		if (!tile.isInMemory()) {
+			tile.load(spillFile_);
+			bytesInMemory_ += tile.getByteSize();
+		}
+		inMemory_.put(idx, tile);
+		return tile;
+	}
 
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+	/*
+	 * Spills least recently used tiles until the ones left fit the budget.
+	 */
+	private void evict() {
+		if (inMemory_.isEmpty()) {
+			return;
+		}
+		long tileBytes = inMemory_.values().iterator().next().getByteSize();
+		long budget = Math.max(memoryBudget_, (2 - minZoomLevel_) * tileBytes);
+		if (bytesInMemory_ <= budget) {
+			return;
+		}
+		if (spillFile_ == null) {
+			try {
+				spillFile_ = new TileSpillFile(tileBytes);
+			} catch (IOException e) {
+				ReportingUtils.logError(e, "Failed to create SlideExplorer tile file");
+				return;
 			}
 		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+		Iterator<MultiTile> it = inMemory_.values().iterator();
+		while (bytesInMemory_ > budget && it.hasNext()) {
+			MultiTile tile = it.next();
+			if (!tile.dropFromMemory(spillFile_)) {
+				return;
+			}
+			it.remove();
+			bytesInMemory_ -= tile.getByteSize();
 		}
 	}
-		
+
 	protected Point3D getParentIndex(Point3D idx) {
 		return new Point3D(idx.i>>1, idx.j>>1, idx.k-1);
 	}
-	
+
 	protected Point getParentQuadrant(Point3D idx) {
 		return new Point(idx.i & 1, idx.j & 1);
 	}
-	
+
 	protected Point3D newPoint3D(int i, int j, int k) {
 		return new Point3D(i,j,k);
 	}
 
-	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+	public synchronized void clear() {
+		if (spillFile_ != null) {
+			spillFile_.close();
+			spillFile_ = null;
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
+		inMemory_.clear();
+		allTiles_.clear();
+		bytesInMemory_ = 0;
 	}
-	
-	
 
-}
\ No newline at end of file
+
+
+}
@@ -32,6 +32,6 @@ public class Point3D {
 	}
 	
 	public int hashCode() {
-		return 10000*i + 100*j + k;
+		return (31*i + j)*31 + k;
 	}
 }
\ No newline at end of file
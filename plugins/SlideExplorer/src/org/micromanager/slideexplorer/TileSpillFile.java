@@ -0,0 +1,89 @@
+package org.micromanager.slideexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+ * A single temporary file holding the pixels of evicted tiles as raw,
+ * headerless slots of equal size.  Slots are never freed until the file is
+ * closed, since tiles are only ever dropped all at once.
+ */
+class TileSpillFile {
+
+    private final File file_;
+    private final RandomAccessFile raf_;
+    private final FileChannel channel_;
+    private final ByteBuffer buffer_;
+    private final int slotBytes_;
+    private long nextSlot_ = 0;
+
+    TileSpillFile(long slotBytes) throws IOException {
+        slotBytes_ = (int) slotBytes;
+        file_ = File.createTempFile("slideexplorer", ".raw");
+        file_.deleteOnExit();
+        raf_ = new RandomAccessFile(file_, "rw");
+        channel_ = raf_.getChannel();
+        buffer_ = ByteBuffer.allocateDirect(slotBytes_).order(ByteOrder.nativeOrder());
+    }
+
+    /*
+     * Writes the pixels into the given slot, or into a new one if slot is -1.
+     * @return the slot used
+     */
+    long write(long slot, Object pixels) throws IOException {
+        if (slot < 0) {
+            slot = nextSlot_++;
+        }
+        buffer_.clear();
+        if (pixels instanceof byte[]) {
+            buffer_.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer_.asShortBuffer().put((short[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer_.asFloatBuffer().put((float[]) pixels);
+        } else {
+            buffer_.asIntBuffer().put((int[]) pixels);
+        }
+        buffer_.position(0).limit(slotBytes_);
+        long pos = slot * slotBytes_;
+        while (buffer_.hasRemaining()) {
+            pos += channel_.write(buffer_, pos);
+        }
+        return slot;
+    }
+
+    void read(long slot, Object pixels) throws IOException {
+        buffer_.clear();
+        long pos = slot * slotBytes_;
+        while (buffer_.hasRemaining()) {
+            int n = channel_.read(buffer_, pos);
+            if (n < 0) {
+                throw new IOException("Tile " + slot + " is missing from " + file_);
+            }
+            pos += n;
+        }
+        buffer_.flip();
+        if (pixels instanceof byte[]) {
+            buffer_.get((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer_.asShortBuffer().get((short[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer_.asFloatBuffer().get((float[]) pixels);
+        } else {
+            buffer_.asIntBuffer().get((int[]) pixels);
+        }
+    }
+
+    void close() {
+        try {
+            raf_.close();
+        } catch (IOException e) {
+            // nothing left to lose
+        }
+        file_.delete();
+    }
+}
@@ -25,9 +25,7 @@ package org.micromanager.splitview;
 
 import com.google.common.eventbus.Subscribe;
 
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
+import java.util.Iterator;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -48,7 +46,7 @@ import org.micromanager.events.SummaryMetadataEvent;
 public class SplitViewProcessor extends DataProcessor<TaggedImage> {
 
    private SplitViewFrame myFrame_;
-   private String orientation_ = SplitViewFrame.LR;
+   private volatile String orientation_ = SplitViewFrame.LR;
 
    @Override
    public void makeConfigurationGUI() {
@@ -97,6 +95,15 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
       return token;
    }
 
+   /**
+    * Each image is split independently, so images can be processed on
+    * several threads.
+    */
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    @Override
    public void process() {
 
@@ -110,58 +117,49 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
          }
 
          if (taggedImage != null && taggedImage.tags != null) {
-            ImageProcessor tmpImg;
             int imgDepth = MDUtils.getDepth(taggedImage.tags);
             int width = MDUtils.getWidth(taggedImage.tags);
             int height = MDUtils.getHeight(taggedImage.tags);
             int channelIndex = MDUtils.getChannelIndex(taggedImage.tags);
+            // Read once, in case the orientation is changed meanwhile
+            boolean leftRight = orientation_.equals(SplitViewFrame.LR);
 
-            //System.out.println("Processed one");
-
-            if (imgDepth == 1) {
-               tmpImg = new ByteProcessor(width, height);
-            } else if (imgDepth == 2) {
-               tmpImg = new ShortProcessor(width, height);
-            } else // TODO throw error
-            {
+            if (imgDepth != 1 && imgDepth != 2) {
+               // TODO throw error
                produce(taggedImage);
                return;
             }
 
-            tmpImg.setPixels(taggedImage.pix);
+            int newWidth = leftRight ? width / 2 : width;
+            int newHeight = leftRight ? height : height / 2;
+            // The halves are handed on downstream, which keeps them, so
+            // they can't come from a pool
+            Object firstPix, secondPix;
+            if (imgDepth == 1) {
+               firstPix = new byte[newWidth * newHeight];
+               secondPix = new byte[newWidth * newHeight];
+            } else {
+               firstPix = new short[newWidth * newHeight];
+               secondPix = new short[newWidth * newHeight];
+            }
+            split(taggedImage.pix, width, newWidth, newHeight, leftRight,
+                  firstPix, secondPix);
 
-            height = calculateHeight(height);
-            width = calculateWidth(width);
+            String channelName = MDUtils.getChannelName(taggedImage.tags);
 
-            tmpImg.setRoi(0, 0, width, height);
-            
-            
             // first channel
-
-            // Weird way of copying a JSONObject
-            JSONObject tags = new JSONObject(taggedImage.tags.toString());
-            MDUtils.setWidth(tags, width);
-            MDUtils.setHeight(tags, height);
+            JSONObject tags = copyTags(taggedImage.tags);
+            MDUtils.setWidth(tags, newWidth);
+            MDUtils.setHeight(tags, newHeight);
             MDUtils.setChannelIndex(tags, channelIndex * 2);
-
-            tags.put("Channel", MDUtils.getChannelName(taggedImage.tags) + getChannelSuffix(channelIndex*2));
-            
-            TaggedImage firstIm = new TaggedImage(tmpImg.crop().getPixels(), tags);
+            tags.put("Channel", channelName + getChannelSuffix(channelIndex*2));
+            TaggedImage firstIm = new TaggedImage(firstPix, tags);
 
             // second channel
-            JSONObject tags2 = new JSONObject(tags.toString());
-            tags2.put("Channel", MDUtils.getChannelName(taggedImage.tags)  + getChannelSuffix(channelIndex*2+1));
-
-            if (orientation_.equals(SplitViewFrame.LR)) {
-               tmpImg.setRoi(width, 0, width, height);
-            } else if (orientation_.equals(SplitViewFrame.TB)) {
-               tmpImg.setRoi(0, height, width, height);
-            }
-            MDUtils.setWidth(tags2, width);
-            MDUtils.setHeight(tags2, height);
+            JSONObject tags2 = copyTags(tags);
             MDUtils.setChannelIndex(tags2, channelIndex * 2 + 1);
-
-            TaggedImage secondIm = new TaggedImage(tmpImg.crop().getPixels(), tags2);
+            tags2.put("Channel", channelName + getChannelSuffix(channelIndex*2+1));
+            TaggedImage secondIm = new TaggedImage(secondPix, tags2);
 
             produce(secondIm);
             produce(firstIm);
@@ -175,6 +173,40 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
       }
    }
 
+   /**
+    * Copies the two halves of a byte[] or short[] image straight into the
+    * destination arrays: row by row for left/right, and as two blocks for
+    * top/bottom, where each half is contiguous.
+    */
+   private static void split(Object pix, int width, int newWidth,
+         int newHeight, boolean leftRight, Object first, Object second) {
+      int halfSize = newWidth * newHeight;
+      if (leftRight) {
+         for (int row = 0; row < newHeight; row++) {
+            System.arraycopy(pix, row * width, first, row * newWidth, newWidth);
+            System.arraycopy(pix, row * width + newWidth, second,
+                  row * newWidth, newWidth);
+         }
+      } else {
+         System.arraycopy(pix, 0, first, 0, halfSize);
+         System.arraycopy(pix, halfSize, second, 0, halfSize);
+      }
+   }
+
+   /**
+    * Copies the top level of the tags. Nested values (such as the summary)
+    * are shared, which is fine since only top level tags are changed.
+    */
+   private static JSONObject copyTags(JSONObject tags) throws JSONException {
+      JSONObject copy = new JSONObject();
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         copy.put(key, tags.get(key));
+      }
+      return copy;
+   }
+
    public int calculateWidth(int width) {
       int newWidth = width;
       if (orientation_.equals(SplitViewFrame.LR)) {
@@ -0,0 +1,323 @@
+/*
+ * FFT based image correlation for the Tracker plugin
+ * Copyright UCSF, 2014, BSD license
+ *
+ */
+package com.imaging100x.tracker;
+
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+
+/**
+ * Measures how far the contents of a ROI moved between two frames by
+ * correlating, in the frequency domain, the ROI of the previous frame with
+ * the region of the current frame that extends the ROI by the search range
+ * on every side.  This costs a few FFTs of a power-of-2 square that holds
+ * the ROI plus the search range, instead of a pass over the ROI for every
+ * offset.
+ *
+ * The transform buffers are allocated for the first frame and reused as long
+ * as the ROI and search range fit in them.  Not thread safe; use one engine
+ * per tracking thread.
+ */
+public class CorrelationEngine {
+
+   public enum Method {
+      /**
+       * Phase correlation: the cross power spectrum is normalized to unit
+       * magnitude, giving a sharp peak that is insensitive to illumination
+       * changes.
+       */
+      PHASE("Phase"),
+      /**
+       * Zero-normalized cross-correlation: values from -1 to 1, normalized
+       * by the variance of the part of the current frame under the ROI at
+       * each offset.
+       */
+      NORMALIZED("Normalized");
+
+      private final String name_;
+
+      private Method(String name) {
+         name_ = name;
+      }
+
+      @Override
+      public String toString() {
+         return name_;
+      }
+   }
+
+   private static final double EPSILON = 1e-12;
+
+   private final Method method_;
+   private final int range_;
+   private final int side_;  // 2 * range_ + 1 offsets along each axis
+
+   // N x N transforms, reused across frames
+   private int size_ = 0;
+   private FHT template_;
+   private FHT search_;
+   private FHT product_;
+   // Integral images of the search region and of its square, (N+1) x (N+1)
+   private double[] sum_;
+   private double[] sumSq_;
+
+   // Correlation at each offset of the last frame; NaN where not measured
+   private final float[] surface_;
+   private double peak_ = Double.NaN;
+
+   /**
+    * @param method how to normalize the correlation
+    * @param range largest shift, in pixels along each axis, that is searched
+    */
+   public CorrelationEngine(Method method, int range) {
+      method_ = method;
+      range_ = Math.max(1, range);
+      side_ = 2 * range_ + 1;
+      surface_ = new float[side_ * side_];
+   }
+
+   public Method getMethod() {
+      return method_;
+   }
+
+   /**
+    * Finds where the contents of the roi in the previous frame are in the
+    * current frame.
+    *
+    * @param prev previous frame, width * height pixels
+    * @param cur current frame, same size
+    * @param roi region of the previous frame to follow
+    * @return shift (to sub-pixel precision) of the roi contents from the
+    * previous to the current frame, or null if the roi can not be placed
+    * at any offset within the image
+    */
+   public Point2D.Double measureShift(float[] prev, float[] cur, int width,
+         int height, Rectangle roi) {
+      peak_ = Double.NaN;
+      java.util.Arrays.fill(surface_, Float.NaN);
+      Rectangle r = roi.intersection(new Rectangle(0, 0, width, height));
+      if (r.isEmpty()) {
+         return null;
+      }
+      // Offsets (relative to -range_) at which the roi lies within the image
+      int pxMin = Math.max(0, range_ - r.x);
+      int pxMax = Math.min(side_ - 1, range_ + width - r.x - r.width);
+      int pyMin = Math.max(0, range_ - r.y);
+      int pyMax = Math.min(side_ - 1, range_ + height - r.y - r.height);
+      if (pxMin > pxMax || pyMin > pyMax) {
+         return null;
+      }
+
+      allocate(nextPowerOf2(Math.max(r.width, r.height) + 2 * range_));
+      int n = size_;
+      double templateEnergy = fillTemplate(prev, width, r);
+      fillSearch(cur, width, height, r.x - range_, r.y - range_);
+      template_.transform();
+      search_.transform();
+      multiply();
+      product_.inverseTransform();
+
+      // The correlation at offset p is at p, since the roi is at the
+      // origin of the template and at (range_, range_) in the search region
+      float[] corr = (float[]) product_.getPixels();
+      int count = r.width * r.height;
+      int best = -1;
+      for (int py = pyMin; py <= pyMax; py++) {
+         for (int px = pxMin; px <= pxMax; px++) {
+            double value = corr[py * n + px];
+            if (method_ == Method.NORMALIZED) {
+               double s = rectSum(sum_, px, py, r.width, r.height);
+               double s2 = rectSum(sumSq_, px, py, r.width, r.height);
+               double var = s2 - s * s / count;
+               value = var > EPSILON && templateEnergy > EPSILON
+                     ? value / Math.sqrt(var * templateEnergy) : 0.0;
+            }
+            int index = py * side_ + px;
+            surface_[index] = (float) value;
+            if (best < 0 || value > surface_[best]) {
+               best = index;
+            }
+         }
+      }
+
+      int bx = best % side_;
+      int by = best / side_;
+      peak_ = surface_[best];
+      return new Point2D.Double(
+            bx - range_ + refine(bx > pxMin ? surface_[best - 1] : Float.NaN,
+                  peak_, bx < pxMax ? surface_[best + 1] : Float.NaN),
+            by - range_ + refine(by > pyMin ? surface_[best - side_] : Float.NaN,
+                  peak_, by < pyMax ? surface_[best + side_] : Float.NaN));
+   }
+
+   /**
+    * @return correlation at the peak found by the last measureShift
+    */
+   public double getPeakValue() {
+      return peak_;
+   }
+
+   /**
+    * @return correlation measured by the last measureShift at the given
+    * whole pixel shift, or NaN if out of range or not measured
+    */
+   public float getCorrelation(int dx, int dy) {
+      if (Math.abs(dx) > range_ || Math.abs(dy) > range_) {
+         return Float.NaN;
+      }
+      return surface_[(dy + range_) * side_ + dx + range_];
+   }
+
+   private void allocate(int n) {
+      if (n == size_) {
+         return;
+      }
+      size_ = n;
+      template_ = new FHT(new FloatProcessor(n, n));
+      search_ = new FHT(new FloatProcessor(n, n));
+      product_ = new FHT(new FloatProcessor(n, n));
+      sum_ = new double[(n + 1) * (n + 1)];
+      sumSq_ = new double[(n + 1) * (n + 1)];
+   }
+
+   /**
+    * Copies the roi of the previous frame, minus its mean, to the origin of
+    * the template; the rest is zero.
+    * @return sum of squares of the template
+    */
+   private double fillTemplate(float[] prev, int width, Rectangle r) {
+      float[] t = (float[]) template_.getPixels();
+      java.util.Arrays.fill(t, 0f);
+      double mean = 0;
+      for (int y = 0; y < r.height; y++) {
+         int offset = (r.y + y) * width + r.x;
+         for (int x = 0; x < r.width; x++) {
+            mean += prev[offset + x];
+         }
+      }
+      mean /= r.width * r.height;
+      double energy = 0;
+      for (int y = 0; y < r.height; y++) {
+         int offset = (r.y + y) * width + r.x;
+         for (int x = 0; x < r.width; x++) {
+            float value = (float) (prev[offset + x] - mean);
+            t[y * size_ + x] = value;
+            energy += value * value;
+         }
+      }
+      return energy;
+   }
+
+   /**
+    * Copies the search region of the current frame, whose top left corner
+    * is at (x0, y0), minus its mean.  Pixels outside the image are zero.
+    * Also builds the integral images used for normalization.
+    */
+   private void fillSearch(float[] cur, int width, int height, int x0, int y0) {
+      int n = size_;
+      float[] s = (float[]) search_.getPixels();
+      java.util.Arrays.fill(s, 0f);
+      int xStart = Math.max(0, -x0);
+      int xEnd = Math.min(n, width - x0);
+      int yStart = Math.max(0, -y0);
+      int yEnd = Math.min(n, height - y0);
+      double mean = 0;
+      for (int y = yStart; y < yEnd; y++) {
+         int offset = (y0 + y) * width + x0;
+         for (int x = xStart; x < xEnd; x++) {
+            mean += cur[offset + x];
+         }
+      }
+      mean /= (double) (xEnd - xStart) * (yEnd - yStart);
+      for (int y = yStart; y < yEnd; y++) {
+         int offset = (y0 + y) * width + x0;
+         for (int x = xStart; x < xEnd; x++) {
+            s[y * n + x] = (float) (cur[offset + x] - mean);
+         }
+      }
+      if (method_ != Method.NORMALIZED) {
+         return;
+      }
+      int stride = n + 1;
+      for (int y = 0; y < n; y++) {
+         double rowSum = 0;
+         double rowSumSq = 0;
+         for (int x = 0; x < n; x++) {
+            double value = s[y * n + x];
+            rowSum += value;
+            rowSumSq += value * value;
+            int i = (y + 1) * stride + x + 1;
+            sum_[i] = sum_[i - stride] + rowSum;
+            sumSq_[i] = sumSq_[i - stride] + rowSumSq;
+         }
+      }
+   }
+
+   private double rectSum(double[] integral, int x, int y, int w, int h) {
+      int stride = size_ + 1;
+      return integral[(y + h) * stride + x + w] - integral[y * stride + x + w]
+            - integral[(y + h) * stride + x] + integral[y * stride + x];
+   }
+
+   /**
+    * Hartley transform of search * conj(template), as in
+    * FHT.conjugateMultiply but into a preallocated buffer; for phase
+    * correlation divided by its magnitude.
+    */
+   private void multiply() {
+      int n = size_;
+      float[] h1 = (float[]) search_.getPixels();
+      float[] h2 = (float[]) template_.getPixels();
+      float[] out = (float[]) product_.getPixels();
+      boolean phase = method_ == Method.PHASE;
+      for (int r = 0; r < n; r++) {
+         int rowMod = (n - r) % n;
+         for (int c = 0; c < n; c++) {
+            int colMod = (n - c) % n;
+            int k = r * n + c;
+            int mk = rowMod * n + colMod;
+            double e1 = (h1[k] + h1[mk]) / 2.0;
+            double o1 = (h1[k] - h1[mk]) / 2.0;
+            double e2 = (h2[k] + h2[mk]) / 2.0;
+            double o2 = (h2[k] - h2[mk]) / 2.0;
+            double re = e1 * e2 + o1 * o2;
+            double im = o1 * e2 - e1 * o2;
+            double value = re + im;
+            if (phase) {
+               double magnitude = Math.sqrt(re * re + im * im);
+               value = magnitude > EPSILON ? value / magnitude : 0.0;
+            }
+            out[k] = (float) value;
+         }
+      }
+   }
+
+   /**
+    * Fits a parabola through the peak and its neighbors along one axis.
+    * @return position of the vertex relative to the peak, within +/- 0.5
+    */
+   private static double refine(double before, double peak, double after) {
+      if (Double.isNaN(before) || Double.isNaN(after)) {
+         return 0.0;
+      }
+      double curvature = before - 2 * peak + after;
+      if (curvature >= 0) {
+         return 0.0;
+      }
+      double delta = (before - after) / (2 * curvature);
+      return Math.max(-0.5, Math.min(0.5, delta));
+   }
+
+   private static int nextPowerOf2(int n) {
+      int size = 2;
+      while (size < n) {
+         size *= 2;
+      }
+      return size;
+   }
+}
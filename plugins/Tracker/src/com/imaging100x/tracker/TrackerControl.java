@@ -31,6 +31,7 @@ import ij.gui.Roi;
 import ij.process.ImageProcessor;
 
 import java.awt.Rectangle;
+import java.awt.geom.Point2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
@@ -43,6 +44,7 @@ import java.util.prefs.Preferences;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
@@ -99,6 +101,8 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private int imageCounter_;
    private String acqName_;
    private XYSeries xySeries_;
+   private CorrelationEngine engine_;
+   private final JComboBox correlationCombo_;
 
    private static final String RESOLUTION_PIX = "resolution_pix";
    private static final String OFFSET_PIX = "offset_pix";
@@ -106,6 +110,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private static final String DISK_RECORDING = "disk_recording";
    private static final String ROOT = "root";
    private static final String NAME = "name";
+   private static final String CORRELATION = "correlation";
    private static final String TRACK_Y = "TRACK_X_UM";
    private static final String TRACK_X = "TRACK_Y_UM";
    private static final String TRACK_DY = "TRACK_DX_PIX";
@@ -196,6 +201,12 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             diskRadioButton_.setSelected(prefs_.getBoolean(DISK_RECORDING, diskRadioButton_.isSelected()));
             rootField_.setText(prefs_.get(ROOT, ""));
             nameField_.setText(prefs_.get(NAME, ""));
+            try {
+               correlationCombo_.setSelectedItem(CorrelationEngine.Method.valueOf(
+                       prefs_.get(CORRELATION, CorrelationEngine.Method.PHASE.name())));
+            } catch (IllegalArgumentException ex) {
+               correlationCombo_.setSelectedItem(CorrelationEngine.Method.PHASE);
+            }
 
             resField_.setText(Integer.toString(resolutionPix_));
             offsetField_.setText(Integer.toString(offsetPix_));
@@ -211,6 +222,8 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             prefs_.putBoolean(DISK_RECORDING, diskRadioButton_.isSelected());
             prefs_.put(ROOT, rootField_.getText());
             prefs_.put(NAME, nameField_.getText());
+            prefs_.put(CORRELATION, ((CorrelationEngine.Method)
+                    correlationCombo_.getSelectedItem()).name());
          }
       });
 
@@ -305,6 +318,15 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       labelBottomRight_.setBounds(140, 175, 93, 16);
       getContentPane().add(labelBottomRight_);
 
+      final JLabel correlationLabel = new JLabel();
+      correlationLabel.setText("Correlation:");
+      correlationLabel.setBounds(240, 120, 156, 16);
+      getContentPane().add(correlationLabel);
+
+      correlationCombo_ = new JComboBox(CorrelationEngine.Method.values());
+      correlationCombo_.setBounds(240, 140, 156, 22);
+      getContentPane().add(correlationCombo_);
+
       final JLabel trackingRegionLabel = new JLabel();
       trackingRegionLabel.setText("XY Stage Limits:");
       trackingRegionLabel.setBounds(10, 120, 217, 16);
@@ -448,6 +470,9 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       corrStack_.addSlice(corrImproc);
       corrImplus_ = new ij.ImagePlus("Cross Correlation", corrStack_);
       corrImplus_.show();
+
+      engine_ = new CorrelationEngine(
+              (CorrelationEngine.Method) correlationCombo_.getSelectedItem(), offsetPix_);
       
       app_.logMessage("Tracking started at " + GregorianCalendar.getInstance().getTime());
 
@@ -492,13 +517,13 @@ public class TrackerControl extends MMFrame implements MMPlugin {
                pixelsCur_ = new float[size];
                byte[] pixels = (byte[])img.pix;
                for (int i = 0; i < size; i++)
-                  pixelsCur_[i] = pixels[i];
+                  pixelsCur_[i] = pixels[i] & 0xff;
             }
             if (ip instanceof ij.process.ShortProcessor) {
                pixelsCur_ = new float[size];
                short[] pixels = (short[])img.pix;
                for (int i = 0; i < size; i++)
-                  pixelsCur_[i] = pixels[i];
+                  pixelsCur_[i] = pixels[i] & 0xffff;
             }
             if (ip instanceof ij.process.FloatProcessor) {
                pixelsCur_ = java.util.Arrays.copyOf((float[])img.pix, size);
@@ -527,10 +552,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
       corrStack_.addSlice(corrImproc);
 
-      // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
-
       Rectangle r = roi_.getBounds();
       try {
          app_.getAcquisition(acqName_).getAcquisitionWindow().
@@ -540,43 +561,21 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       }
       //IJ.write("ROI pos: " + r.x + "," + r.y);
 
-      int width = r.width, height = r.height;
-      double corScale = width * height;
-
-      double maxCor = 0;
-      for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
-         for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i = 0; i < height; i++) {
-               for (int j = 0; j < width; j++) {
-                  int row = r.y + i;
-                  int col = r.x + j;
-                  double pixPrev = pixelsPrev_[row * imWidth_ + col];
-                  double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
-                  sum += pixPrev * pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev*meanCur;
-
-            int x = (l + offsetPix_) / resolutionPix_;
-            int y = (k + offsetPix_) / resolutionPix_;
-            corrImproc.setf(x + lCount * y, (float) sum);
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
-            }
+      // position of correlation maximum
+      Point2D.Double shift = engine_.measureShift(pixelsPrev_, pixelsCur_,
+              imWidth_, pixelsCur_.length / imWidth_, r);
+      if (shift == null) {
+         shift = new Point2D.Double(0.0, 0.0);
+      }
+      double kMax = shift.y;
+      double lMax = shift.x;
+
+      // show the correlation at the chosen resolution
+      for (int y = 0; y < kCount; y++) {
+         for (int x = 0; x < lCount; x++) {
+            float value = engine_.getCorrelation(x * resolutionPix_ - offsetPix_,
+                    y * resolutionPix_ - offsetPix_);
+            corrImproc.setf(x + lCount * y, Float.isNaN(value) ? 0f : value);
          }
       }
 
@@ -654,7 +653,8 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         roi_.setLocation((int) Math.round(r.x + lMax),
+                 (int) Math.round(r.y + kMax));
 
          try {
             app_.getAcquisition(acqName_).getAcquisitionWindow().